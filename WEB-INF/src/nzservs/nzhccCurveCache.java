@@ -0,0 +1,177 @@
+package nzservs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+
+/**
+ * Hazard curves of recent requests, so that the curves of the cities and
+ * default site values most users ask for are only calculated once. Curves are
+ * keyed by {@link nzhccWorker#getCurveKey(nzhccRequest)}, which holds
+ * everything the curve depends on: the forecast, its parameters and the
+ * checksum of its source model files, the IMR and its parameters, the
+ * period, the calculator settings and the site.
+ *
+ * Only the y values of the curves are kept, since the x values are the same
+ * for every request. The cache is bounded by an estimate of its size in
+ * bytes, least recently used curves being dropped first, and counts its hits
+ * and misses.
+ *
+ * Site locations are snapped to a grid of {@link #GRID_PROPERTY} points per
+ * degree (1000 by default, 0 for no snapping) by
+ * {@link nzhccServlet#createRequest}, so that nearby requests share a curve
+ * and a cached curve is exactly the curve of the location it is used for.
+ *
+ * The curves can be saved to and loaded from a file, so that they survive a
+ * redeploy. Entries of an older format are ignored on loading.
+ */
+public class nzhccCurveCache {
+
+	/** System property with the path of the file the curves are kept in. */
+	public static final String FILE_PROPERTY = "nzservs.curveCacheFile";
+
+	/** System property with the points per degree locations are snapped to (0 for none). */
+	public static final String GRID_PROPERTY = "nzservs.curveCacheGridPerDegree";
+
+	// written at the start of the file; increment when the key or the
+	// calculation changes so that old curves are not loaded
+	private static final int FILE_MAGIC = 0x4e5a4843;
+	private static final int FILE_VERSION = 2;
+
+	protected static long maxBytes = 32L * 1024 * 1024;
+	protected static int gridPointsPerDegree = Integer.getInteger(GRID_PROPERTY, 1000);
+
+	private final Cache<String, double[]> curves;
+
+	public nzhccCurveCache() {
+		curves = CacheBuilder.newBuilder()
+				.maximumWeight(maxBytes)
+				.weigher(new Weigher<String, double[]>() {
+					@Override
+					public int weigh(String key, double[] yValues) {
+						// rough footprint of the key string and value array
+						return 64 + 2 * key.length() + 8 * yValues.length;
+					}
+				})
+				.recordStats()
+				.build();
+	}
+
+	/**
+	 * Snaps a latitude or longitude to the cache grid, if there is one.
+	 */
+	public static double snap(double degrees) {
+		if (gridPointsPerDegree <= 0)
+			return degrees;
+		// divide by the number of points rather than multiply by the spacing,
+		// so that grid values such as -41.3 are returned exactly
+		return Math.round(degrees * gridPointsPerDegree) / (double) gridPointsPerDegree;
+	}
+
+	/**
+	 * @return the y values of the cached curve, or null if not cached; the
+	 * array must not be modified
+	 */
+	public double[] get(String key) {
+		return curves.getIfPresent(key);
+	}
+
+	/**
+	 * Caches the y values of a curve; the array must not be modified afterwards.
+	 */
+	public void put(String key, double[] yValues) {
+		curves.put(key, yValues);
+	}
+
+	public long size() {
+		return curves.size();
+	}
+
+	/**
+	 * @return hit, miss and eviction counts since the cache was created
+	 */
+	public CacheStats getStats() {
+		return curves.stats();
+	}
+
+	public void clear() {
+		curves.invalidateAll();
+	}
+
+	/**
+	 * Loads the curves of the given file, if it exists.
+	 *
+	 * @return the number of curves loaded
+	 */
+	public int load(File file) throws IOException {
+		if (!file.isFile())
+			return 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION)
+				return 0;
+			int num = in.readInt();
+			for (int i = 0; i < num; i++) {
+				String key = in.readUTF();
+				double[] yValues = new double[in.readInt()];
+				for (int j = 0; j < yValues.length; j++)
+					yValues[j] = in.readDouble();
+				curves.put(key, yValues);
+			}
+			return num;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Saves the cached curves to the given file. The file is written under a
+	 * temporary name first, so that a failed save leaves the previous file.
+	 */
+	public void save(File file) throws IOException {
+		Map<String, double[]> snapshot = new LinkedHashMap<String, double[]>(curves.asMap());
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeInt(snapshot.size());
+			for (Map.Entry<String, double[]> entry : snapshot.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeInt(entry.getValue().length);
+				for (double y : entry.getValue())
+					out.writeDouble(y);
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("Could not rename " + tmp + " to " + file);
+		}
+	}
+
+	/**
+	 * @return the file set with the {@link #FILE_PROPERTY} system property, or
+	 * null if the curves are not to be kept on disk
+	 */
+	public static File getConfiguredFile() {
+		String path = System.getProperty(FILE_PROPERTY);
+		if (path == null || path.trim().isEmpty())
+			return null;
+		return new File(path.trim());
+	}
+}
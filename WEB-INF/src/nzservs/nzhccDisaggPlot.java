@@ -0,0 +1,86 @@
+package nzservs;
+
+import java.io.IOException;
+
+import org.opensha.sha.calc.disaggregation.DisaggregationPlotData;
+import org.opensha.sha.calc.disaggregation.DisaggregationPlotRenderer;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Result of one disaggregation, as served by {@link nzhccDisaggPlotServlet}.
+ * The key is a hash of everything that is shown, so that identical
+ * disaggregations share a single entry (and rendering) in
+ * {@link nzhccDisaggPlotCache}. The PNG is only rendered when first requested.
+ */
+public class nzhccDisaggPlot {
+
+	public static final String PNG_NAME = "DisaggregationPlot.png";
+
+	protected final double disaggVal;
+	protected final DisaggregationPlotData data;
+	protected final String metadata;
+	protected final String meanAndModeInfo;
+	protected final String binData;
+	protected final String sourceInfo;
+	protected final String key;
+
+	private byte[] png;
+
+	public nzhccDisaggPlot(double disaggVal, DisaggregationPlotData data, String metadata,
+			String meanAndModeInfo, String binData, String sourceInfo) {
+		this.disaggVal = disaggVal;
+		this.data = data;
+		this.metadata = metadata;
+		this.meanAndModeInfo = meanAndModeInfo;
+		this.binData = binData;
+		this.sourceInfo = sourceInfo;
+		this.key = computeKey();
+	}
+
+	private String computeKey() {
+		Hasher hasher = Hashing.sha1().newHasher();
+		putDoubles(hasher, data.getMag_binEdges());
+		putDoubles(hasher, data.getDist_binEdges());
+		hasher.putDouble(data.getMaxContrEpsilonForGMT_Plot());
+		hasher.putInt(data.getNUM_E());
+		for (double[][] distBin : data.getPdf3D())
+			for (double[] magBin : distBin)
+				putDoubles(hasher, magBin);
+		hasher.putDouble(disaggVal);
+		putString(hasher, metadata);
+		putString(hasher, meanAndModeInfo);
+		putString(hasher, binData);
+		putString(hasher, sourceInfo);
+		return hasher.hash().toString();
+	}
+
+	private static void putDoubles(Hasher hasher, double[] vals) {
+		hasher.putInt(vals.length);
+		for (double val : vals)
+			hasher.putDouble(val);
+	}
+
+	private static void putString(Hasher hasher, String str) {
+		if (str == null) {
+			hasher.putInt(-1);
+		} else {
+			hasher.putInt(str.length());
+			hasher.putUnencodedChars(str);
+		}
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * Returns the plot as PNG, rendering it on first call.
+	 */
+	public synchronized byte[] getPNG() throws IOException {
+		if (png == null)
+			png = new DisaggregationPlotRenderer(data).getPNG();
+		return png;
+	}
+}
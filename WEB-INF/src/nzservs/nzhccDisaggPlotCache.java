@@ -0,0 +1,63 @@
+package nzservs;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContext;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Disaggregation results of recent requests, keyed by
+ * {@link nzhccDisaggPlot#getKey()}. One instance is shared through the servlet
+ * context by {@link nzhccServlet}, which adds the results, and
+ * {@link nzhccDisaggPlotServlet}, which serves them. Entries that have not been
+ * accessed for a day are dropped, as the GMT plot server used to do.
+ */
+public class nzhccDisaggPlotCache {
+
+	private static final String ATTRIBUTE_NAME = nzhccDisaggPlotCache.class.getName();
+
+	protected static int maxSize = 500;
+	protected static long expireHours = 24;
+
+	private final Cache<String, nzhccDisaggPlot> plots;
+
+	public nzhccDisaggPlotCache() {
+		plots = CacheBuilder.newBuilder()
+				.maximumSize(maxSize)
+				.expireAfterAccess(expireHours, TimeUnit.HOURS)
+				.build();
+	}
+
+	/**
+	 * Returns the cache of the given servlet context, creating it if needed.
+	 */
+	public static nzhccDisaggPlotCache get(ServletContext context) {
+		synchronized (context) {
+			nzhccDisaggPlotCache cache = (nzhccDisaggPlotCache) context.getAttribute(ATTRIBUTE_NAME);
+			if (cache == null) {
+				cache = new nzhccDisaggPlotCache();
+				context.setAttribute(ATTRIBUTE_NAME, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * Adds the plot, unless an identical one is already cached.
+	 *
+	 * @return the cached plot with the same key
+	 */
+	public nzhccDisaggPlot add(nzhccDisaggPlot plot) {
+		nzhccDisaggPlot prev = plots.asMap().putIfAbsent(plot.getKey(), plot);
+		return prev == null ? plot : prev;
+	}
+
+	/**
+	 * @return the plot with the given key, or null if unknown or expired
+	 */
+	public nzhccDisaggPlot get(String key) {
+		return plots.getIfPresent(key);
+	}
+}
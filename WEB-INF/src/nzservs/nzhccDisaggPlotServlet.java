@@ -0,0 +1,77 @@
+package nzservs;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.common.escape.Escaper;
+import com.google.common.html.HtmlEscapers;
+
+/**
+ * Serves the disaggregation results added to {@link nzhccDisaggPlotCache} by
+ * {@link nzhccServlet}. For the address <code>disaggPlot/&lt;key&gt;/</code>
+ * returned to the client, <code>DisaggregationPlot.png</code> is the plot,
+ * rendered in this JVM, and anything else is a page with the plot and the
+ * disaggregation details.
+ */
+@WebServlet ("/disaggPlot/*")
+public class nzhccDisaggPlotServlet extends HttpServlet {
+
+	public static final String PATH = "nzservs/disaggPlot/";
+
+	/**
+	 * @return the address of the given plot, relative to the application root
+	 */
+	public static String getWebAddr(nzhccDisaggPlot plot) {
+		return PATH + plot.getKey() + "/";
+	}
+
+	@Override
+	public void doGet(HttpServletRequest request, HttpServletResponse response) throws
+		ServletException, IOException {
+
+		// path is /<key>/<file>
+		String path = request.getPathInfo();
+		String[] parts = path == null ? new String[0] : path.split("/");
+		nzhccDisaggPlot plot = null;
+		if (parts.length >= 2)
+			plot = nzhccDisaggPlotCache.get(getServletContext()).get(parts[1]);
+		if (plot == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND,
+					"Disaggregation not found, it may have expired");
+			return;
+		}
+
+		if (parts.length >= 3 && parts[2].equals(nzhccDisaggPlot.PNG_NAME)) {
+			byte[] png = plot.getPNG();
+			response.setContentType("image/png");
+			response.setContentLength(png.length);
+			// the content of a key never changes
+			response.setHeader("Cache-Control", "public, max-age=86400");
+			response.getOutputStream().write(png);
+		} else {
+			writePage(plot, response);
+		}
+	}
+
+	private static void writePage(nzhccDisaggPlot plot, HttpServletResponse response) throws IOException {
+		Escaper esc = HtmlEscapers.htmlEscaper();
+		response.setContentType("text/html;charset=UTF-8");
+		PrintWriter out = response.getWriter();
+		out.println("<html><head><title>Disaggregation</title></head><body>");
+		out.println("<h3>Probability of Exceedance = " + Math.round(plot.disaggVal * 100) + "%</h3>");
+		out.println("<img src='" + nzhccDisaggPlot.PNG_NAME + "' />");
+		out.println("<h3>Disaggregation Results</h3><pre>" + esc.escape(plot.meanAndModeInfo) + "</pre>");
+		out.println("<h3>Parameters</h3><pre>" + esc.escape(plot.metadata) + "</pre>");
+		out.println("<h3>Bin Data</h3><pre>" + esc.escape(plot.binData) + "</pre>");
+		if (plot.sourceInfo != null && !plot.sourceInfo.isEmpty())
+			out.println("<h3>Source List</h3><pre>" + esc.escape(plot.sourceInfo) + "</pre>");
+		out.println("</body></html>");
+		out.flush();
+	}
+}
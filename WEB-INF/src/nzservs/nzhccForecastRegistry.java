@@ -0,0 +1,155 @@
+package nzservs;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.opensha.commons.param.Parameter;
+import org.opensha.commons.param.constraint.impl.StringConstraint;
+import org.opensha.sha.earthquake.AbstractERF;
+import org.opensha.sha.earthquake.util.SourceSpatialIndex;
+
+/**
+ * Servlet-lifecycle registry of pre-built earthquake rupture forecasts.
+ *
+ * Each (ERF class, background option, duration) combination is constructed and
+ * updated once, normally from <code>init()</code>, and then handed out to every
+ * request. Forecasts returned from here are shared and must be treated as
+ * read-only: callers must not change their parameters, time span or call
+ * <code>updateForecast()</code>. Use {@link #rebuild(Class, String, double)} to
+ * replace a forecast explicitly; requests already holding the old instance keep
+ * using it until they complete.
+ *
+ * A {@link SourceSpatialIndex} is built along with every forecast, so that the
+ * calculators of a request only go through the sources near its site.
+ */
+public class nzhccForecastRegistry {
+
+	private final Map<Key, AbstractERF> forecasts = new ConcurrentHashMap<Key, AbstractERF>();
+	// keyed by forecast instance (ERFs do not override equals)
+	private final Map<AbstractERF, SourceSpatialIndex> sourceIndexes =
+			new ConcurrentHashMap<AbstractERF, SourceSpatialIndex>();
+
+	/**
+	 * Returns the shared forecast for the given combination, building it on
+	 * first use if it was not created at <code>init()</code>.
+	 */
+	public <T extends AbstractERF> T getForecast(Class<T> erfClass, String backSeisOption, double duration) {
+		Key key = new Key(erfClass, backSeisOption, duration);
+		AbstractERF erf = forecasts.get(key);
+		if (erf == null) {
+			synchronized (this) {
+				erf = forecasts.get(key);
+				if (erf == null) {
+					erf = build(key);
+					publish(key, erf);
+				}
+			}
+		}
+		return erfClass.cast(erf);
+	}
+
+	/**
+	 * Builds (or re-builds) the forecast for the given combination and
+	 * publishes it to subsequent requests.
+	 */
+	public synchronized <T extends AbstractERF> T rebuild(Class<T> erfClass, String backSeisOption, double duration) {
+		Key key = new Key(erfClass, backSeisOption, duration);
+		AbstractERF erf = build(key);
+		publish(key, erf);
+		return erfClass.cast(erf);
+	}
+
+	/**
+	 * Returns the spatial index of the sources of a forecast handed out by this
+	 * registry, or null if the forecast is not (or no longer) registered.
+	 */
+	public SourceSpatialIndex getSourceIndex(AbstractERF erf) {
+		return sourceIndexes.get(erf);
+	}
+
+	/**
+	 * Drops every cached forecast; they will be re-built on next request.
+	 */
+	public synchronized void clear() {
+		forecasts.clear();
+		sourceIndexes.clear();
+	}
+
+	public int size() {
+		return forecasts.size();
+	}
+
+	/*
+	 * The index is added before the forecast so that a request never sees the
+	 * forecast without it.
+	 */
+	private void publish(Key key, AbstractERF erf) {
+		sourceIndexes.put(erf, new SourceSpatialIndex(erf));
+		AbstractERF old = forecasts.put(key, erf);
+		if (old != null && old != erf)
+			sourceIndexes.remove(old);
+	}
+
+	private static AbstractERF build(Key key) {
+		AbstractERF erf;
+		try {
+			erf = key.erfClass.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			// an InvocationTargetException holds what the constructor threw
+			throw new IllegalArgumentException("Could not instantiate forecast " + key.erfClass.getName(), e);
+		}
+		if (key.backSeisOption != null)
+			setBackSeisOption(erf, key.backSeisOption);
+		erf.getTimeSpan().setDuration(key.duration);
+		erf.updateForecast();
+		return erf;
+	}
+
+	/*
+	 * The NZ forecasts name their background seismicity parameter differently,
+	 * so look it up by the option it allows rather than by name.
+	 */
+	private static void setBackSeisOption(AbstractERF erf, String option) {
+		for (Parameter<?> param : erf.getAdjustableParameterList()) {
+			if (param.getConstraint() instanceof StringConstraint
+					&& ((StringConstraint) param.getConstraint()).isAllowed(option)) {
+				erf.setParameter(param.getName(), option);
+				return;
+			}
+		}
+		throw new IllegalArgumentException("Background option '" + option
+				+ "' is not supported by " + erf.getName());
+	}
+
+	private static final class Key {
+
+		private final Class<? extends AbstractERF> erfClass;
+		private final String backSeisOption;
+		private final double duration;
+
+		private Key(Class<? extends AbstractERF> erfClass, String backSeisOption, double duration) {
+			this.erfClass = erfClass;
+			this.backSeisOption = backSeisOption;
+			this.duration = duration;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key o = (Key) obj;
+			return erfClass.equals(o.erfClass)
+					&& (backSeisOption == null ? o.backSeisOption == null : backSeisOption.equals(o.backSeisOption))
+					&& Double.doubleToLongBits(duration) == Double.doubleToLongBits(o.duration);
+		}
+
+		@Override
+		public int hashCode() {
+			long bits = Double.doubleToLongBits(duration);
+			int result = erfClass.hashCode();
+			result = 31 * result + (backSeisOption == null ? 0 : backSeisOption.hashCode());
+			result = 31 * result + (int) (bits ^ (bits >>> 32));
+			return result;
+		}
+	}
+}
@@ -0,0 +1,344 @@
+package nzservs;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.geo.GriddedRegion;
+import org.opensha.commons.geo.Location;
+import org.opensha.sha.calc.MultiSiteHazardCurveCalculator;
+import org.opensha.sha.earthquake.ERF;
+import org.opensha.sha.earthquake.rupForecastImpl.NewZealand.NewZealandERF2010;
+import org.opensha.sha.imr.param.IntensityMeasureParams.PeriodParam;
+
+/**
+ * Hazard curves precomputed on a regular latitude / longitude grid over New
+ * Zealand, for a few Vs30 values and periods, so that approximate curves can
+ * be served without a calculation. The grid is made offline by
+ * {@link #main(String[])}, which calculates the curves of the nodes of a
+ * rectangular {@link GriddedRegion} with {@link MultiSiteHazardCurveCalculator}
+ * and the settings of {@link nzhccWorker}, and is memory-mapped by the servlet.
+ *
+ * Curves are given for the Z1.0 of each Vs30 that the web page defaults to
+ * (Chiou and Young, to 3 significant figures); other Z1.0, Vs30 and period
+ * values are not interpolated and must be calculated. Within the grid, the
+ * curve of a location is interpolated bilinearly between the 4 surrounding
+ * nodes, in log space of the probabilities (linearly where one of them is 0).
+ *
+ * The file holds a header with the grid, the x values, the site classes and
+ * periods and the calculation key of the worker that made it, followed by
+ * the y values as floats, ordered by period, site class, latitude row,
+ * longitude column and x value. A grid is only used if its calculation key
+ * matches that of the servlet, so a grid made with another forecast or other
+ * settings is never served.
+ */
+public class nzhccHazardGrid {
+
+	/** System property with the path of the grid file used by the servlet. */
+	public static final String FILE_PROPERTY = "nzservs.hazardGridFile";
+
+	private static final int FILE_MAGIC = 0x4e5a4847;
+	private static final int FILE_VERSION = 1;
+
+	// grid values are matched to requests within this tolerance
+	private static final double TOLERANCE = 1e-6;
+
+	// default extent of the grid, as allowed by the web page
+	protected static final double DEFAULT_MIN_LAT = -48;
+	protected static final double DEFAULT_MAX_LAT = -34;
+	protected static final double DEFAULT_MIN_LON = 166;
+	protected static final double DEFAULT_MAX_LON = 179;
+
+	private final String calculationKey;
+	private final double minLat, minLon, spacing;
+	private final int numLat, numLon;
+	private final double[] xValues;
+	private final double[] vs30s, z1s, periods;
+	private final FloatBuffer yValues;
+
+	private nzhccHazardGrid(ByteBuffer buffer) throws IOException {
+		if (buffer.getInt() != FILE_MAGIC || buffer.getInt() != FILE_VERSION)
+			throw new IOException("Not a hazard grid file of version " + FILE_VERSION);
+		byte[] keyBytes = new byte[buffer.getInt()];
+		buffer.get(keyBytes);
+		calculationKey = new String(keyBytes, "UTF-8");
+		minLat = buffer.getDouble();
+		minLon = buffer.getDouble();
+		spacing = buffer.getDouble();
+		numLat = buffer.getInt();
+		numLon = buffer.getInt();
+		xValues = getDoubles(buffer);
+		vs30s = getDoubles(buffer);
+		z1s = getDoubles(buffer);
+		periods = getDoubles(buffer);
+		long size = (long) periods.length * vs30s.length * numLat * numLon * xValues.length;
+		if (buffer.remaining() != size * 4)
+			throw new IOException("Hazard grid file has " + buffer.remaining()
+					+ " bytes of data, expected " + size * 4);
+		yValues = buffer.slice().asFloatBuffer();
+	}
+
+	private static double[] getDoubles(ByteBuffer buffer) {
+		double[] values = new double[buffer.getInt()];
+		for (int i = 0; i < values.length; i++)
+			values[i] = buffer.getDouble();
+		return values;
+	}
+
+	/**
+	 * Maps the grid of the given file.
+	 */
+	public static nzhccHazardGrid load(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new nzhccHazardGrid(buffer);
+		} finally {
+			// the mapping stays valid once the file is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return the file set with the {@link #FILE_PROPERTY} system property, or
+	 * null if no grid is to be used
+	 */
+	public static File getConfiguredFile() {
+		String path = System.getProperty(FILE_PROPERTY);
+		if (path == null || path.trim().isEmpty())
+			return null;
+		return new File(path.trim());
+	}
+
+	/**
+	 * @return the key of the worker the curves were calculated with, see
+	 * {@link nzhccWorker#getCalculationKey(ERF)}
+	 */
+	public String getCalculationKey() {
+		return calculationKey;
+	}
+
+	/**
+	 * Returns the hazard curve of the site interpolated from the grid, with
+	 * real (not log) x values, or null if the grid does not cover the
+	 * location, Vs30, Z1.0 or period.
+	 */
+	public ArbitrarilyDiscretizedFunc getHazardCurve(double lat, double lon,
+			double vs30, double z1, double period) {
+		int p = indexOf(periods, period);
+		int c = indexOf(vs30s, vs30);
+		if (p < 0 || c < 0 || !matches(z1s[c], z1))
+			return null;
+
+		double latPos = (lat - minLat) / spacing;
+		double lonPos = (lon - minLon) / spacing;
+		if (latPos < -TOLERANCE || lonPos < -TOLERANCE
+				|| latPos > numLat - 1 + TOLERANCE || lonPos > numLon - 1 + TOLERANCE)
+			return null;
+		// the lower left node of the cell, keeping the last row and column inside
+		int i = Math.min(Math.max((int) Math.floor(latPos), 0), Math.max(numLat - 2, 0));
+		int j = Math.min(Math.max((int) Math.floor(lonPos), 0), Math.max(numLon - 2, 0));
+		double u = numLat > 1 ? Math.min(Math.max(latPos - i, 0), 1) : 0;
+		double v = numLon > 1 ? Math.min(Math.max(lonPos - j, 0), 1) : 0;
+		int i1 = Math.min(i + 1, numLat - 1);
+		int j1 = Math.min(j + 1, numLon - 1);
+
+		int numX = xValues.length;
+		int block = (p * vs30s.length + c) * numLat;
+		int n00 = ((block + i) * numLon + j) * numX;
+		int n01 = ((block + i) * numLon + j1) * numX;
+		int n10 = ((block + i1) * numLon + j) * numX;
+		int n11 = ((block + i1) * numLon + j1) * numX;
+		double w00 = (1 - u) * (1 - v), w01 = (1 - u) * v, w10 = u * (1 - v), w11 = u * v;
+
+		ArbitrarilyDiscretizedFunc func = new ArbitrarilyDiscretizedFunc();
+		for (int k = 0; k < numX; k++) {
+			double y00 = yValues.get(n00 + k), y01 = yValues.get(n01 + k);
+			double y10 = yValues.get(n10 + k), y11 = yValues.get(n11 + k);
+			// nodes outside of the calculated region are NaN
+			if (Double.isNaN(y00 + y01 + y10 + y11))
+				return null;
+			double y;
+			if (y00 > 0 && y01 > 0 && y10 > 0 && y11 > 0)
+				y = Math.exp(w00 * Math.log(y00) + w01 * Math.log(y01)
+						+ w10 * Math.log(y10) + w11 * Math.log(y11));
+			else
+				y = w00 * y00 + w01 * y01 + w10 * y10 + w11 * y11;
+			func.set(xValues[k], y);
+		}
+		return func;
+	}
+
+	private static int indexOf(double[] values, double value) {
+		for (int i = 0; i < values.length; i++)
+			if (matches(values[i], value))
+				return i;
+		return -1;
+	}
+
+	private static boolean matches(double gridValue, double value) {
+		return Math.abs(gridValue - value) <= TOLERANCE * Math.max(1, Math.abs(gridValue));
+	}
+
+	/**
+	 * The Z1.0 (m) the web page defaults to for the given Vs30, from the
+	 * relationship of Chiou and Young (2008), to 3 significant figures.
+	 */
+	public static double getDefaultZ1(double vs30) {
+		double lnZ1 = 28.5 - 3.82 / 8 * Math.log(Math.pow(vs30, 8) + Math.pow(378.7, 8));
+		return new BigDecimal(Math.exp(lnZ1)).round(new MathContext(3)).doubleValue();
+	}
+
+	/**
+	 * Calculates the grid and writes it to a file.
+	 *
+	 * @param file - the file to write
+	 * @param region - rectangular region with the grid nodes
+	 * @param vs30s - Vs30 values (m/s), each with its default Z1.0
+	 * @param periods - SA periods (s)
+	 * @param pool - pool for the calculation, or null for a serial calculation
+	 */
+	public static void write(File file, GriddedRegion region, double[] vs30s, double[] periods,
+			ForkJoinPool pool) throws IOException {
+		nzhccForecastRegistry registry = new nzhccForecastRegistry();
+		NewZealandERF2010 forecast = registry.getForecast(NewZealandERF2010.class,
+				NewZealandERF2010.FAULT_AND_BACK_SEIS, nzhccServlet.duration);
+		nzhccWorker worker = new nzhccWorker();
+
+		double spacing = region.getSpacing();
+		double minLat = region.getMinGridLat();
+		double minLon = region.getMinGridLon();
+		int numLat = (int) Math.round((region.getMaxGridLat() - minLat) / spacing) + 1;
+		int numLon = (int) Math.round((region.getMaxGridLon() - minLon) / spacing) + 1;
+
+		double[] z1s = new double[vs30s.length];
+		for (int c = 0; c < vs30s.length; c++)
+			z1s[c] = getDefaultZ1(vs30s[c]);
+
+		ArbitrarilyDiscretizedFunc logXValues = new ArbitrarilyDiscretizedFunc();
+		nzhccWorker.initHazXvalues(logXValues);
+		int numX = logXValues.size();
+
+		// the row and column of each node, as the region may leave some out
+		int numNodes = region.getNodeCount();
+		int[] nodeCells = new int[numNodes];
+		for (int n = 0; n < numNodes; n++) {
+			Location loc = region.locationForIndex(n);
+			int i = (int) Math.round((loc.getLatitude() - minLat) / spacing);
+			int j = (int) Math.round((loc.getLongitude() - minLon) / spacing);
+			nodeCells[n] = i * numLon + j;
+		}
+
+		MultiSiteHazardCurveCalculator multiCalc = new MultiSiteHazardCurveCalculator(worker.calc);
+		multiCalc.setForkJoinPool(pool);
+		multiCalc.setSourceIndex(registry.getSourceIndex(forecast));
+
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			byte[] keyBytes = worker.getCalculationKey(forecast).getBytes("UTF-8");
+			out.writeInt(keyBytes.length);
+			out.write(keyBytes);
+			out.writeDouble(minLat);
+			out.writeDouble(minLon);
+			out.writeDouble(spacing);
+			out.writeInt(numLat);
+			out.writeInt(numLon);
+			double[] xValues = new double[numX];
+			for (int k = 0; k < numX; k++)
+				xValues[k] = Math.exp(logXValues.getX(k));
+			writeDoubles(out, xValues);
+			writeDoubles(out, vs30s);
+			writeDoubles(out, z1s);
+			writeDoubles(out, periods);
+
+			float[] block = new float[numLat * numLon * numX];
+			for (double period : periods) {
+				worker.imr.getParameter(PeriodParam.NAME).setValue(period);
+				for (int c = 0; c < vs30s.length; c++) {
+					double[] vs30 = new double[numNodes];
+					double[] z1 = new double[numNodes];
+					Arrays.fill(vs30, vs30s[c]);
+					Arrays.fill(z1, z1s[c]);
+					List<Site> sites = MultiSiteHazardCurveCalculator.createSites(
+							region.getNodeList(), vs30, z1);
+					DiscretizedFunc[] curves = multiCalc.getHazardCurves(
+							logXValues, sites, worker.imrMap, forecast);
+
+					Arrays.fill(block, Float.NaN);
+					for (int n = 0; n < numNodes; n++)
+						for (int k = 0; k < numX; k++)
+							block[nodeCells[n] * numX + k] = (float) curves[n].getY(k);
+					for (float y : block)
+						out.writeFloat(y);
+					System.out.println("Calculated period " + period + ", Vs30 " + vs30s[c]);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("Could not rename " + tmp + " to " + file);
+		}
+	}
+
+	private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+		out.writeInt(values.length);
+		for (double value : values)
+			out.writeDouble(value);
+	}
+
+	private static double[] parseDoubles(String list) {
+		String[] items = list.split(",");
+		double[] values = new double[items.length];
+		for (int i = 0; i < items.length; i++)
+			values[i] = Double.parseDouble(items[i].trim());
+		return values;
+	}
+
+	/**
+	 * Calculates a grid file. Arguments:
+	 * <code>&lt;file&gt; &lt;spacing&gt; &lt;vs30,...&gt; &lt;period,...&gt;
+	 * [&lt;minLat&gt; &lt;maxLat&gt; &lt;minLon&gt; &lt;maxLon&gt;]</code>
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 4 && args.length != 8) {
+			System.err.println("Usage: nzhccHazardGrid <file> <spacing> <vs30,...> <period,...>"
+					+ " [<minLat> <maxLat> <minLon> <maxLon>]");
+			System.exit(2);
+		}
+		double spacing = Double.parseDouble(args[1]);
+		double minLat = DEFAULT_MIN_LAT, maxLat = DEFAULT_MAX_LAT;
+		double minLon = DEFAULT_MIN_LON, maxLon = DEFAULT_MAX_LON;
+		if (args.length == 8) {
+			minLat = Double.parseDouble(args[4]);
+			maxLat = Double.parseDouble(args[5]);
+			minLon = Double.parseDouble(args[6]);
+			maxLon = Double.parseDouble(args[7]);
+		}
+		Location anchor = new Location(minLat, minLon);
+		GriddedRegion region = new GriddedRegion(anchor, new Location(maxLat, maxLon), spacing, anchor);
+		write(new File(args[0]), region, parseDoubles(args[2]), parseDoubles(args[3]), new ForkJoinPool());
+		System.out.println("Wrote " + args[0]);
+	}
+}
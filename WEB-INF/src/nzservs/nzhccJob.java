@@ -0,0 +1,98 @@
+package nzservs;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A calculation for one {@link nzhccRequest} run by {@link nzhccJobQueue},
+ * whose state and progress can be polled, and which can be cancelled, from
+ * other requests. Cancelling a running job interrupts its thread, which ends
+ * the hazard curve or disaggregation calculation after the source being
+ * computed.
+ */
+public class nzhccJob extends FutureTask<nzhccResponse> {
+
+	public enum State { QUEUED, RUNNING, DONE, FAILED, CANCELLED }
+
+	protected final String id;
+	protected final nzhccRequest req;
+
+	private volatile boolean started;
+
+	public nzhccJob(String id, nzhccRequest req, Callable<nzhccResponse> calculation) {
+		super(calculation);
+		this.id = id;
+		this.req = req;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	@Override
+	public void run() {
+		started = true;
+		super.run();
+	}
+
+	public State getState() {
+		if (isCancelled())
+			return State.CANCELLED;
+		if (isDone())
+			return getFailure() == null ? State.DONE : State.FAILED;
+		return started ? State.RUNNING : State.QUEUED;
+	}
+
+	/**
+	 * @return the state of the job, with its progress while running, its
+	 * response once done, or what went wrong if it failed
+	 */
+	public nzhccJobStatus getStatus() {
+		nzhccJobStatus status = new nzhccJobStatus();
+		status.id = id;
+		status.state = getState();
+		switch (status.state) {
+		case RUNNING:
+			status.phase = req.getPhase();
+			nzhccWorker worker = req.getWorker();
+			if (worker != null) {
+				status.currRuptures = worker.getCurrRuptures();
+				status.totRuptures = worker.getTotRuptures();
+			}
+			break;
+		case DONE:
+			status.result = getResult();
+			break;
+		case FAILED:
+			status.error = getFailure().toString();
+			break;
+		default:
+			break;
+		}
+		return status;
+	}
+
+	// the response of a job that is done
+	private nzhccResponse getResult() {
+		try {
+			return get();
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// the exception thrown by the calculation of a job that is done, or null
+	private Throwable getFailure() {
+		try {
+			get();
+			return null;
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			return e.getCause();
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package nzservs;
+
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs {@link nzhccJob}s on a fixed number of threads, with a bounded queue of
+ * waiting jobs; jobs submitted when the queue is full are rejected rather than
+ * piling up. Jobs are looked up by id, and are dropped (and cancelled if not
+ * done) when their status has not been asked for in {@link #getTimeout()}
+ * seconds, so that the calculations of clients that went away are stopped.
+ *
+ * The number of threads, queue size and timeout can be set with the
+ * {@link #THREADS_PROPERTY}, {@link #QUEUE_SIZE_PROPERTY} and
+ * {@link #TIMEOUT_PROPERTY} system properties.
+ */
+public class nzhccJobQueue {
+
+	/** System property with the number of jobs run at a time. */
+	public static final String THREADS_PROPERTY = "nzservs.jobThreads";
+
+	/** System property with the number of jobs that may wait to be run. */
+	public static final String QUEUE_SIZE_PROPERTY = "nzservs.jobQueueSize";
+
+	/** System property with the time in seconds jobs are kept without being polled. */
+	public static final String TIMEOUT_PROPERTY = "nzservs.jobTimeout";
+
+	protected static int defaultThreads = Runtime.getRuntime().availableProcessors();
+	protected static int defaultQueueSize = 32;
+	protected static long defaultTimeout = 60;
+
+	private final ThreadPoolExecutor executor;
+	private final Cache<String, nzhccJob> jobs;
+	private final long timeout;
+
+	/**
+	 * Creates a queue configured by the system properties, or the defaults.
+	 */
+	public nzhccJobQueue() {
+		this(Integer.getInteger(THREADS_PROPERTY, defaultThreads),
+				Integer.getInteger(QUEUE_SIZE_PROPERTY, defaultQueueSize),
+				Long.getLong(TIMEOUT_PROPERTY, defaultTimeout));
+	}
+
+	/**
+	 * @param threads - number of jobs run at a time
+	 * @param queueSize - number of jobs that may wait to be run
+	 * @param timeout - time in seconds jobs are kept without being polled
+	 */
+	public nzhccJobQueue(int threads, int queueSize, long timeout) {
+		this.timeout = timeout;
+		executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize),
+				new ThreadFactoryBuilder().setNameFormat("nzhcc-job-%d").setDaemon(true).build());
+		jobs = CacheBuilder.newBuilder()
+				.expireAfterAccess(timeout, TimeUnit.SECONDS)
+				.removalListener(new RemovalListener<String, nzhccJob>() {
+					@Override
+					public void onRemoval(RemovalNotification<String, nzhccJob> notification) {
+						cancel(notification.getValue());
+					}
+				})
+				.build();
+	}
+
+	/**
+	 * Queues a calculation for the given request.
+	 *
+	 * @return the job, whose id its status can be polled with
+	 * @throws RejectedExecutionException if the queue is full
+	 */
+	public nzhccJob submit(nzhccRequest req, Callable<nzhccResponse> calculation) {
+		// drop abandoned jobs first, making room in the queue
+		jobs.cleanUp();
+		nzhccJob job = new nzhccJob(UUID.randomUUID().toString(), req, calculation);
+		executor.execute(job);
+		jobs.put(job.getId(), job);
+		return job;
+	}
+
+	/**
+	 * @return the job with the given id, or null if there is none (or it was
+	 * dropped)
+	 */
+	public nzhccJob get(String id) {
+		jobs.cleanUp();
+		return jobs.getIfPresent(id);
+	}
+
+	/**
+	 * Cancels the job with the given id, which stays available for its status
+	 * to be polled.
+	 *
+	 * @return the job, or null if there is none
+	 */
+	public nzhccJob cancel(String id) {
+		nzhccJob job = get(id);
+		if (job != null)
+			cancel(job);
+		return job;
+	}
+
+	private void cancel(nzhccJob job) {
+		if (job.cancel(true))
+			executor.remove(job);
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * @return the number of jobs waiting to be run
+	 */
+	public int getQueuedJobs() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * Cancels all jobs and stops the threads.
+	 */
+	public void shutdown() {
+		jobs.invalidateAll();
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,21 @@
+package nzservs;
+
+/**
+ * State of an {@link nzhccJob}, as returned to the client; fields that do not
+ * apply to the state are left out.
+ */
+public class nzhccJobStatus {
+
+	protected String id;
+	protected nzhccJob.State state;
+	// while running: nzhccRequest.PHASE_* and how many of the ruptures of the
+	// phase have been gone through
+	protected String phase;
+	protected Integer currRuptures;
+	protected Integer totRuptures;
+	// when done
+	protected nzhccResponse result;
+	// when failed
+	protected String error;
+
+}
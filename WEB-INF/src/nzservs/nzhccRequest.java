@@ -0,0 +1,182 @@
+package nzservs;
+
+import org.apache.commons.lang3.SystemUtils;
+
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.geo.Location;
+import org.opensha.sha.calc.RuptureDataStore;
+import org.opensha.sha.earthquake.rupForecastImpl.NewZealand.NewZealandERF2010;
+import org.opensha.sha.earthquake.util.SourceSpatialIndex;
+import org.opensha.sha.faultSurface.cache.SiteDistanceTable;
+import org.opensha.sha.imr.param.SiteParams.*;
+
+/**
+ * Per-request state of a hazard / disaggregation calculation. One instance is
+ * created for every GET so that nothing is shared between concurrent requests
+ * except the read-only forecast.
+ */
+public class nzhccRequest {
+
+	/** {@link #getPhase()} while the hazard curve is calculated. */
+	public static final String PHASE_HAZARD_CURVE = "hazardCurve";
+	/** {@link #getPhase()} while the hazard is disaggregated. */
+	public static final String PHASE_DISAGGREGATION = "disaggregation";
+
+	protected final static double VS30_WARN_MIN = 150.0;
+	protected final static double VS30_WARN_MAX = 1800.0;
+	protected final static double DEPTH_1pt0_WARN_MIN = 0;
+	protected final static double DEPTH_1pt0_WARN_MAX = 10000;
+
+	protected double lat;
+	protected double lon;
+	protected double vs30;
+	protected double z1;
+	protected double period;
+
+	protected Site site;
+	protected NewZealandERF2010 forecast;
+	// spatial index of the sources of the forecast, shared like it (may be null)
+	protected SourceSpatialIndex sourceIndex;
+
+	// hazard curve with real (not log) x values, set by nzhccWorker
+	protected ArbitrarilyDiscretizedFunc func;
+
+	// filled in with the contributing ruptures when the hazard curve is calculated, so
+	// that the disaggregation need not go through the forecast again (may be null)
+	protected RuptureDataStore ruptureData;
+
+	// what is (or was last) calculated for the request, and the worker doing it while
+	// it is, set by nzhccWorker and read by other threads for progress reports
+	protected volatile String phase;
+	protected volatile nzhccWorker worker;
+
+	// rupture distances of the site, shared by the calculations of the request
+	private SiteDistanceTable siteDistances;
+
+	public nzhccRequest(double lat, double lon, double vs30, double z1, double period) {
+		this.lat = lat;
+		this.lon = lon;
+		this.vs30 = vs30;
+		this.z1 = z1;
+		this.period = period;
+		this.site = createSite();
+	}
+
+	private Site createSite() {
+
+		// Set site
+		Site site = new Site(new Location(lat, lon));
+
+		// Set site parameters
+		Vs30_Param vs30Param = new Vs30_Param(VS30_WARN_MIN, VS30_WARN_MAX);
+		Vs30_TypeParam vs30_TypeParam = new Vs30_TypeParam();
+		DepthTo1pt0kmPerSecParam depthTo1pt0kmPerSecParam
+			= new DepthTo1pt0kmPerSecParam(DEPTH_1pt0_WARN_MIN, DEPTH_1pt0_WARN_MAX);
+
+		vs30Param.setValue(vs30);
+		vs30_TypeParam.setValue(Vs30_TypeParam.VS30_TYPE_INFERRED);
+		depthTo1pt0kmPerSecParam.setValue(z1);
+
+		site.addParameter(vs30Param);
+		site.addParameter(vs30_TypeParam);
+		site.addParameter(depthTo1pt0kmPerSecParam);
+
+		return site;
+	}
+
+	public Site getSite() {
+		return site;
+	}
+
+	/**
+	 * Returns the distances between the site and the ruptures of the forecast,
+	 * creating the (initially empty) table on first call.
+	 */
+	public SiteDistanceTable getSiteDistances() {
+		if (siteDistances == null)
+			siteDistances = new SiteDistanceTable(forecast, site);
+		return siteDistances;
+	}
+
+	/**
+	 * @return {@link #PHASE_HAZARD_CURVE} or {@link #PHASE_DISAGGREGATION},
+	 * whichever was started last, or null before either
+	 */
+	public String getPhase() {
+		return phase;
+	}
+
+	/**
+	 * @return the worker calculating for the request, or null if none is
+	 */
+	public nzhccWorker getWorker() {
+		return worker;
+	}
+
+	public ArbitrarilyDiscretizedFunc getHazFunction() {
+		return func;
+	}
+
+	public String getMapParametersInfoAsHTML () {
+
+		String calcType = "Probabilistic";
+		String imrMetadata = "IMR = Bradley (2010); "
+				+ "Gaussian Truncation = None; "
+				+ "Tectonic Region = Active Shallow Crust; "
+				+ "Component = Average Horizontal; "
+				+ "Std Dev Type = Total";
+		String siteData = "Longitude = " + lon + "; "
+				+ "Latitude = " + lat + "; "
+				+ "Vs30 = " + vs30 + "; "
+				+ "Vs30 Type = Inferred; "
+				+ "Depth 1.0 km/sec = " + z1 + ";";
+		String imtData = "IMT = SA; "
+				+ "SA Period = " + period + "; "
+				+ "SA Damping = 5.0";
+		String erfData = "Eqk Rup Forecast = NewZealand_ERF_2010; "
+				+ "Background and Fault Seismicity = Fault and Background Sources; "
+				+ "Consider Epistemic Uncertainties = false";
+		String timeData = "Duration = 50.0";
+		String calcSettings = "Maximum Distance = 200.0; "
+				+ "Num Event Sets = 1; "
+				+ "Use Mag-Distance Filter? = false; "
+				+ "null; "
+				+ "Set TRT From Source? = false; "
+				+ "If source TRT not supported by IMR = Use TRT value already set in IMR; "
+				+ "Pt Src Dist Corr = None";
+
+		return "<br>" + "Cacluation Type = "
+				+ calcType
+				+ "<br><br>"
+				+ "IMR Param List:" + "<br>"
+				+ "---------------" + "<br>"
+				+ imrMetadata
+				+ "<br><br>"
+				+ "Site Param List: " + "<br>"
+				+ "----------------" + "<br>"
+				+ siteData
+				+ "<br><br>"
+				+ "IMT Param List: " + "<br>"
+				+ "---------------" + "<br>"
+				+ imtData
+				+ "<br><br>"
+				+ "Forecast Param List: " + "<br>"
+				+ "--------------------" + "<br>"
+				+ erfData
+				+ "<br><br>"
+				+ "TimeSpan Param List: " + "<br>"
+				+ "--------------------" + "<br>"
+				+ timeData
+				+ "<br><br>"
+				+ "Calculation Settings: " + "<br>"
+				+ "--------------------" + "<br>"
+				+ calcSettings;
+
+	}
+
+	public String getParametersInfoAsString() {
+		return getMapParametersInfoAsHTML().replaceAll("<br>",
+				SystemUtils.LINE_SEPARATOR);
+	}
+}
@@ -8,5 +8,7 @@ public class nzhccResponse {
 	
 	protected ArbitrarilyDiscretizedFunc hazFunction;
 	protected ArrayList<disaggWebResp> disaggWebAddrArray;	
+	// true if the curve was interpolated from the hazard grid, otherwise left out
+	protected Boolean approximate;
 	
-}
\ No newline at end of file
+}
\ No newline at end of file
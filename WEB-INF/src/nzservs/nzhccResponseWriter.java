@@ -0,0 +1,208 @@
+package nzservs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.opensha.commons.data.function.DiscretizedFunc;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Writes {@link nzhccResponse}s and {@link nzhccJobStatus}es straight to the
+ * servlet response, rather than serialising the objects with Gson first.
+ * <br><br>
+ * The JSON has a fixed layout, independent of the classes of the curve:
+ * <pre>
+ * {"hazFunction": {"x": [...], "y": [...]},
+ *  "approximate": true,
+ *  "disaggWebAddrArray": [{"disaggVal": 0.1, "disaggWebAddr": "..."}, ...]}
+ * </pre>
+ * where the fields that do not apply are left out. A job status has its id and
+ * state, and the phase, currRuptures and totRuptures while running, the result
+ * in the layout above once done, or the error if it failed.
+ * <br><br>
+ * Clients that send <code>Accept-Encoding: gzip</code> get the response
+ * gzipped. Clients that ask for {@link #BINARY_CONTENT_TYPE}, in the Accept
+ * header or with <code>format=binary</code>, get just the curve: the number of
+ * points as an int, then the x values and the y values as doubles, all little
+ * endian. Since that has no room for the disaggregation, a binary response to
+ * a request with disaggregation, or without a curve, is refused with 406 (Not
+ * Acceptable). Job statuses are always JSON.
+ */
+public class nzhccResponseWriter {
+
+	/** Parameter to ask for the response in {@link #FORMAT_BINARY}. */
+	public static final String FORMAT_PARAM = "format";
+
+	public static final String FORMAT_BINARY = "binary";
+
+	public static final String JSON_CONTENT_TYPE = "application/json";
+
+	public static final String BINARY_CONTENT_TYPE = "application/x-nzhcc-curve";
+
+	private nzhccResponseWriter() {}
+
+	/**
+	 * Writes the response in the format asked for by the request, or sends 406
+	 * if that is binary and the response is not just a curve.
+	 */
+	public static void write(HttpServletRequest request, HttpServletResponse response,
+			nzhccResponse resp) throws IOException {
+		if (isBinary(request)) {
+			if (resp.hazFunction == null || resp.disaggWebAddrArray != null) {
+				sendBinaryNotAcceptable(response);
+				return;
+			}
+			response.setContentType(BINARY_CONTENT_TYPE);
+			OutputStream out = getOutputStream(request, response);
+			writeBinary(out, resp.hazFunction);
+			out.close();
+			return;
+		}
+		JsonWriter out = getJsonWriter(request, response);
+		writeJson(out, resp);
+		out.close();
+	}
+
+	/**
+	 * Writes the status of a job as JSON.
+	 */
+	public static void write(HttpServletRequest request, HttpServletResponse response,
+			nzhccJobStatus status) throws IOException {
+		JsonWriter out = getJsonWriter(request, response);
+		writeJson(out, status);
+		out.close();
+	}
+
+	public static void writeJson(JsonWriter out, nzhccResponse resp) throws IOException {
+		out.beginObject();
+		if (resp.hazFunction != null) {
+			out.name("hazFunction");
+			writeJson(out, resp.hazFunction);
+		}
+		if (resp.approximate != null)
+			out.name("approximate").value(resp.approximate);
+		if (resp.disaggWebAddrArray != null) {
+			out.name("disaggWebAddrArray").beginArray();
+			for (disaggWebResp disagg : resp.disaggWebAddrArray) {
+				out.beginObject();
+				out.name("disaggVal").value(disagg.disaggVal);
+				out.name("disaggWebAddr").value(disagg.disaggWebAddr);
+				out.endObject();
+			}
+			out.endArray();
+		}
+		out.endObject();
+	}
+
+	public static void writeJson(JsonWriter out, nzhccJobStatus status) throws IOException {
+		out.beginObject();
+		out.name("id").value(status.id);
+		out.name("state").value(status.state.name());
+		if (status.phase != null)
+			out.name("phase").value(status.phase);
+		if (status.currRuptures != null)
+			out.name("currRuptures").value(status.currRuptures);
+		if (status.totRuptures != null)
+			out.name("totRuptures").value(status.totRuptures);
+		if (status.result != null) {
+			out.name("result");
+			writeJson(out, status.result);
+		}
+		if (status.error != null)
+			out.name("error").value(status.error);
+		out.endObject();
+	}
+
+	/**
+	 * Writes the curve as an object with arrays of its x and y values.
+	 */
+	public static void writeJson(JsonWriter out, DiscretizedFunc func) throws IOException {
+		int num = func.size();
+		out.beginObject();
+		out.name("x").beginArray();
+		for (int i = 0; i < num; i++)
+			out.value(func.getX(i));
+		out.endArray();
+		out.name("y").beginArray();
+		for (int i = 0; i < num; i++)
+			out.value(func.getY(i));
+		out.endArray();
+		out.endObject();
+	}
+
+	/**
+	 * Writes the number of points of the curve, then its x values and its y
+	 * values, little endian.
+	 */
+	public static void writeBinary(OutputStream out, DiscretizedFunc func) throws IOException {
+		int num = func.size();
+		ByteBuffer buf = ByteBuffer.allocate(4 + 16 * num).order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(num);
+		for (int i = 0; i < num; i++)
+			buf.putDouble(func.getX(i));
+		for (int i = 0; i < num; i++)
+			buf.putDouble(func.getY(i));
+		out.write(buf.array());
+	}
+
+	/**
+	 * Sends 406 (Not Acceptable) for a binary request that the curve alone
+	 * cannot answer, e.g. one with disaggregation.
+	 */
+	public static void sendBinaryNotAcceptable(HttpServletResponse response) throws IOException {
+		response.addHeader("Vary", "Accept, Accept-Encoding");
+		response.sendError(HttpServletResponse.SC_NOT_ACCEPTABLE,
+				"The binary format only holds a hazard curve without disaggregation");
+	}
+
+	/**
+	 * Returns whether the request asks for {@link #BINARY_CONTENT_TYPE}.
+	 */
+	public static boolean isBinary(HttpServletRequest request) {
+		if (FORMAT_BINARY.equals(request.getParameter(FORMAT_PARAM)))
+			return true;
+		String accept = request.getHeader("Accept");
+		return accept != null && accept.contains(BINARY_CONTENT_TYPE);
+	}
+
+	private static boolean acceptsGzip(HttpServletRequest request) {
+		String encoding = request.getHeader("Accept-Encoding");
+		return encoding != null && encoding.contains("gzip");
+	}
+
+	// the body of the response, gzipped if the client accepts it
+	private static OutputStream getOutputStream(HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		response.addHeader("Vary", "Accept, Accept-Encoding");
+		if (!acceptsGzip(request))
+			return response.getOutputStream();
+		response.setHeader("Content-Encoding", "gzip");
+		return new GZIPOutputStream(response.getOutputStream());
+	}
+
+	private static JsonWriter getJsonWriter(HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		response.setContentType(JSON_CONTENT_TYPE + "; charset=UTF-8");
+		response.addHeader("Vary", "Accept, Accept-Encoding");
+		Writer writer;
+		if (acceptsGzip(request)) {
+			response.setHeader("Content-Encoding", "gzip");
+			writer = new OutputStreamWriter(new GZIPOutputStream(response.getOutputStream()), "UTF-8");
+		} else
+			writer = response.getWriter();
+		JsonWriter out = new JsonWriter(writer);
+		// hazard values are finite, but don't fail a response if one isn't
+		out.setLenient(true);
+		return out;
+	}
+
+}
@@ -1,9 +1,13 @@
 package nzservs;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
@@ -11,299 +15,344 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import com.google.gson.Gson;
-
-import org.apache.commons.lang3.SystemUtils;
-
-import org.opensha.commons.data.Site;
-import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
-import org.opensha.commons.geo.Location;
-import org.opensha.sha.calc.*;
-import org.opensha.sha.earthquake.*;
+import org.opensha.sha.calc.RuptureDataStore;
 import org.opensha.sha.earthquake.rupForecastImpl.NewZealand.*;
-import org.opensha.sha.gcim.calc.*;
-import org.opensha.sha.gcim.imr.attenRelImpl.Bradley_2010_AttenRel;
-import org.opensha.sha.imr.ScalarIMR;
-import org.opensha.sha.imr.param.IntensityMeasureParams.*;
-import org.opensha.sha.imr.param.SiteParams.*;
-import org.opensha.sha.util.TectonicRegionType;
+import org.opensha.sha.gcim.imr.attenRelImpl.Bradley_2010_PointSourceTable;
 
+/**
+ * Hazard curve and disaggregation servlet. The servlet itself holds no request
+ * state: every GET gets its own {@link nzhccRequest} and runs on an
+ * {@link nzhccWorker} borrowed from a pool for the length of the calculation,
+ * so requests can be served concurrently. The pool has one worker per
+ * processor, or the number set with the {@link #WORKERS_PROPERTY} system
+ * property; requests wait for a worker when all of them are busy.
+ *
+ * Hazard curves are cached by {@link nzhccCurveCache}; set the
+ * {@link nzhccCurveCache#FILE_PROPERTY} system property to keep them on disk
+ * between deployments. The site location of every request is first snapped
+ * to the grid set with the {@link nzhccCurveCache#GRID_PROPERTY} system
+ * property (0.001 degrees by default), and everything is computed at the
+ * snapped location: the hazard curve, the disaggregation, and the
+ * interpolation in the hazard grid. Set it to 0 to use the locations as given.
+ *
+ * Requests with <code>approx=true</code> and no disaggregation are answered
+ * from the precomputed {@link nzhccHazardGrid} set with the
+ * {@link nzhccHazardGrid#FILE_PROPERTY} system property, if it covers the
+ * site and period; others are calculated. The web page sends it when its
+ * "use precomputed curves" box is checked.
+ *
+ * If the {@link #TABLE_TOLERANCE_PROPERTY} system property is set, the ground
+ * motions of point sources are interpolated from a
+ * {@link Bradley_2010_PointSourceTable} with that tolerance (in natural log
+ * units) rather than computed, which is kept in the file set with the
+ * {@link #TABLE_FILE_PROPERTY} system property if any.
+ * {@link nzhccTableCheck} reports the resulting deviation of the curves.
+ *
+ * The same calculations can be run as jobs: a POST with the parameters of a
+ * GET queues an {@link nzhccJob} and returns its id, the job's state and
+ * progress are polled by GETs with the {@link #JOB_PARAM} parameter, and a
+ * DELETE with it cancels the job. Jobs run on the threads of an
+ * {@link nzhccJobQueue}, which limits how many may wait, and stops those no
+ * longer polled.
+ *
+ * Responses are written by {@link nzhccResponseWriter}, which also serves the
+ * curve gzipped, or as binary doubles.
+ */
 @WebServlet ("/nzhccServlet")
 public class nzhccServlet extends HttpServlet {
-	
-	protected double lat;
-	protected double lon;
-	protected double vs30;
-	protected double z1;
-	protected double period;
-	protected double disaggVal;
-	
-	protected Location location;
-	protected Site site;
-	protected Map<TectonicRegionType, ScalarIMR> imrMap;
-	protected NewZealandERF2010 forecast;
-	
-	protected ArbitrarilyDiscretizedFunc func;
-	protected HazardCurveCalculatorAPI calc;
-	
-	protected String disagg;
-	protected nzhccResponse resp;
-	
+
+	/** System property with the tolerance of the point source table, if one is used. */
+	public static final String TABLE_TOLERANCE_PROPERTY = "nzservs.pointSourceTableTolerance";
+
+	/** System property with the path of the file the point source table is kept in. */
+	public static final String TABLE_FILE_PROPERTY = "nzservs.pointSourceTableFile";
+
+	/** System property with the number of workers calculations run on. */
+	public static final String WORKERS_PROPERTY = "nzservs.workers";
+
+	/** Parameter with the id of a job to poll or cancel. */
+	public static final String JOB_PARAM = "job";
+
 	protected static double duration = 50.0;
-	
-	protected final static double VS30_WARN_MIN = 150.0;
-	protected final static double VS30_WARN_MAX = 1800.0;
-	protected final static double DEPTH_1pt0_WARN_MIN = 0;
-	protected final static double DEPTH_1pt0_WARN_MAX = 10000;
-	
+
+	protected nzhccForecastRegistry forecastRegistry;
+
+	protected nzhccCurveCache curveCache;
+
+	// precomputed curves for approximate results (may be null)
+	protected nzhccHazardGrid hazardGrid;
+
+	// interpolated point source ground motions (may be null)
+	protected Bradley_2010_PointSourceTable pointSourceTable;
+
+	// calculations submitted by POST
+	protected nzhccJobQueue jobQueue;
+
+	// workers not in use; calculations take one and put it back when done
+	protected BlockingQueue<nzhccWorker> workers;
+
+	@Override
+	public void init() throws ServletException {
+
+		// before any worker is made
+		String tolerance = System.getProperty(TABLE_TOLERANCE_PROPERTY);
+		if (tolerance != null && !tolerance.trim().isEmpty()) {
+			double tol = Double.parseDouble(tolerance.trim());
+			String path = System.getProperty(TABLE_FILE_PROPERTY);
+			try {
+				if (path != null && !path.trim().isEmpty())
+					pointSourceTable = Bradley_2010_PointSourceTable.loadOrBuild(new File(path.trim()), tol);
+				else
+					pointSourceTable = new Bradley_2010_PointSourceTable(tol);
+				log("Point source table with " + pointSourceTable.size() + " values, max error "
+						+ pointSourceTable.getMaxError());
+			} catch (IOException e) {
+				log("Could not load or save point source table " + path, e);
+				pointSourceTable = new Bradley_2010_PointSourceTable(tol);
+			}
+		}
+
+		// Build the shared forecasts once; requests only read them
+		forecastRegistry = new nzhccForecastRegistry();
+		getForecast();
+
+		int numWorkers = Integer.getInteger(WORKERS_PROPERTY, Runtime.getRuntime().availableProcessors());
+		workers = new ArrayBlockingQueue<nzhccWorker>(numWorkers);
+		for (int i = 0; i < numWorkers; i++)
+			workers.add(new nzhccWorker(pointSourceTable));
+
+		jobQueue = new nzhccJobQueue();
+
+		curveCache = new nzhccCurveCache();
+		File cacheFile = nzhccCurveCache.getConfiguredFile();
+		if (cacheFile != null) {
+			try {
+				log("Loaded " + curveCache.load(cacheFile) + " hazard curves from " + cacheFile);
+			} catch (IOException e) {
+				log("Could not load hazard curves from " + cacheFile, e);
+			}
+		}
+
+		File gridFile = nzhccHazardGrid.getConfiguredFile();
+		if (gridFile != null) {
+			try {
+				nzhccHazardGrid grid = nzhccHazardGrid.load(gridFile);
+				// only serve curves calculated like those of the workers
+				if (grid.getCalculationKey().equals(workers.peek().getCalculationKey(getForecast())))
+					hazardGrid = grid;
+				else
+					log("Hazard grid " + gridFile + " was calculated with other settings, not used");
+			} catch (IOException e) {
+				log("Could not load hazard grid " + gridFile, e);
+			}
+		}
+	}
+
+	@Override
+	public void destroy() {
+		if (jobQueue != null)
+			jobQueue.shutdown();
+		// the workers hold IMRs and calculators, drop them with the servlet
+		if (workers != null)
+			workers.clear();
+		if (curveCache == null)
+			return;
+		log("Hazard curve cache: " + curveCache.size() + " curves, " + curveCache.getStats());
+		File cacheFile = nzhccCurveCache.getConfiguredFile();
+		if (cacheFile != null) {
+			try {
+				curveCache.save(cacheFile);
+			} catch (IOException e) {
+				log("Could not save hazard curves to " + cacheFile, e);
+			}
+		}
+	}
+
 	@Override
-	public void doGet(HttpServletRequest request, HttpServletResponse response) throws 
+	public void doGet(HttpServletRequest request, HttpServletResponse response) throws
 		ServletException, IOException {
-		
-        lat = Double.parseDouble(request.getParameter("lat"));
-        lon = Double.parseDouble(request.getParameter("lon"));
-        vs30 = Double.parseDouble(request.getParameter("vs30"));
-        z1 = Double.parseDouble(request.getParameter("z1pt0"));
-        period = Double.parseDouble(request.getParameter("period"));
-        getHazardCurve();
-        
-        resp = new nzhccResponse();
-        resp.hazFunction = func;
-        
-        if (request.getParameterMap().containsKey("disaggval")) {
-        	
-        	String[] disaggValArray = request.getParameterValues("disaggval");
+
+        String jobId = request.getParameter(JOB_PARAM);
+        if (jobId != null) {
+        	writeJobStatus(request, response, jobQueue.get(jobId));
+        	return;
+        }
+
+        double[] disaggVals = getDisaggVals(request);
+        // don't calculate what can't be written
+        if (disaggVals != null && nzhccResponseWriter.isBinary(request)) {
+        	nzhccResponseWriter.sendBinaryNotAcceptable(response);
+        	return;
+        }
+
+        nzhccRequest req = createRequest(request);
+        nzhccResponse resp = calculate(req, Boolean.parseBoolean(request.getParameter("approx")),
+        		disaggVals);
+
+        nzhccResponseWriter.write(request, response, resp);
+	}
+
+	/**
+	 * Queues the calculation of a GET with the same parameters as an
+	 * {@link nzhccJob}, and returns its status, with the id it can be polled
+	 * with by a GET with the {@link #JOB_PARAM} parameter, or cancelled with
+	 * by a DELETE. Responds with 503 if too many calculations are queued.
+	 */
+	@Override
+	public void doPost(HttpServletRequest request, HttpServletResponse response) throws
+		ServletException, IOException {
+
+        final nzhccRequest req = createRequest(request);
+        final boolean approx = Boolean.parseBoolean(request.getParameter("approx"));
+        final double[] disaggVals = getDisaggVals(request);
+
+        nzhccJob job;
+        try {
+        	job = jobQueue.submit(req, new Callable<nzhccResponse>() {
+        		@Override
+        		public nzhccResponse call() {
+        			return calculate(req, approx, disaggVals);
+        		}
+        	});
+        } catch (RejectedExecutionException e) {
+        	response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+        			"Too many calculations queued, please try again later");
+        	return;
+        }
+        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        writeJobStatus(request, response, job);
+	}
+
+	/**
+	 * Cancels the job given by the {@link #JOB_PARAM} parameter, stopping its
+	 * calculation, and returns its status.
+	 */
+	@Override
+	public void doDelete(HttpServletRequest request, HttpServletResponse response) throws
+		ServletException, IOException {
+        writeJobStatus(request, response, jobQueue.cancel(request.getParameter(JOB_PARAM)));
+	}
+
+	private void writeJobStatus(HttpServletRequest request, HttpServletResponse response,
+			nzhccJob job) throws IOException {
+        if (job == null) {
+        	response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such job, or it has expired");
+        	return;
+        }
+        nzhccResponseWriter.write(request, response, job.getStatus());
+	}
+
+	/**
+	 * Calculates the hazard curve of the request, and disaggregates it at the
+	 * given probabilities of exceedance if any, on a worker from the pool.
+	 *
+	 * @param approx - whether the curve may be taken from the hazard grid
+	 * (only used without disaggregation)
+	 * @param disaggVals - probabilities of exceedance, or null
+	 * @throws CancellationException if the thread was interrupted
+	 */
+	protected nzhccResponse calculate(nzhccRequest req, boolean approx, double[] disaggVals) {
+
+        nzhccResponse resp = new nzhccResponse();
+
+        boolean disagg = disaggVals != null;
+        if (hazardGrid != null && !disagg && approx)
+        	req.func = hazardGrid.getHazardCurve(req.lat, req.lon, req.vs30, req.z1, req.period);
+        if (req.func != null) {
+        	resp.approximate = true;
+        	resp.hazFunction = req.func;
+        	return resp;
+        }
+
+        nzhccWorker worker;
+        try {
+        	worker = workers.take();
+        } catch (InterruptedException e) {
+        	Thread.currentThread().interrupt();
+        	throw new CancellationException("Interrupted waiting for a worker");
+        }
+        try {
+        	calculate(worker, req, disaggVals, resp);
+        } finally {
+        	workers.add(worker);
+        }
+        return resp;
+	}
+
+	private void calculate(nzhccWorker worker, nzhccRequest req, double[] disaggVals,
+			nzhccResponse resp) {
+
+        boolean disagg = disaggVals != null;
+        // keep the ruptures of the hazard calculation for the disaggregation
+        if (disagg)
+        	req.ruptureData = new RuptureDataStore();
+        worker.getHazardCurve(req, curveCache);
+
+        resp.hazFunction = req.func;
+
+        if (disagg) {
+
+        	// one pass over the forecast for all of the values
+        	nzhccDisaggPlot[] plots = worker.getDisaggregatedCurves(req, disaggVals);
+        	nzhccDisaggPlotCache plotCache = nzhccDisaggPlotCache.get(getServletContext());
+
             ArrayList<disaggWebResp> dwaArray = new ArrayList<disaggWebResp>();
-        	
-        	for (int i = 0; i < disaggValArray.length; i++) {        	
-	        	disaggVal = Double.parseDouble(disaggValArray[i]) / 100;
-	        	System.out.println(disaggVal);
-	            getDisaggregatedCurve();
-	            
+        	for (int i = 0; i < disaggVals.length; i++) {
 	            disaggWebResp dwResp = new disaggWebResp();
-	            dwResp.disaggVal = disaggVal;
-	            dwResp.disaggWebAddr = disagg;
+	            dwResp.disaggVal = disaggVals[i];
+	            dwResp.disaggWebAddr = nzhccDisaggPlotServlet.getWebAddr(plotCache.add(plots[i]));
 	            dwaArray.add(dwResp);
         	}
 
         	resp.disaggWebAddrArray = dwaArray;
         }
-
-        Gson gson = new Gson();
-        String json = gson.toJson(resp);
-        
-        response.setContentType("application/json");        
-        response.getWriter().write(json);        
-	}
-	
-	public void getHazardCurve () {
-	
-		// Set site
-		location = new Location(lat, lon);
-		site = new Site(location);
-		
-		// Set site parameters		
-		Vs30_Param vs30Param = new Vs30_Param(VS30_WARN_MIN, VS30_WARN_MAX);
-		Vs30_TypeParam vs30_TypeParam = new Vs30_TypeParam();
-		DepthTo1pt0kmPerSecParam depthTo1pt0kmPerSecParam 
-			= new DepthTo1pt0kmPerSecParam(DEPTH_1pt0_WARN_MIN, DEPTH_1pt0_WARN_MAX);
-		
-		vs30Param.setValue(vs30);
-		vs30_TypeParam.setValue(Vs30_TypeParam.VS30_TYPE_INFERRED);
-		depthTo1pt0kmPerSecParam.setValue(z1);
-		
-		site.addParameter(vs30Param);
-		site.addParameter(vs30_TypeParam);
-		site.addParameter(depthTo1pt0kmPerSecParam);
-
-		// Set IMR
-		ScalarIMR imr = new Bradley_2010_AttenRel(null);
-		imr.setParamDefaults();
-		
-		// Set SA to IMR
-		imr.setIntensityMeasure(SA_Param.NAME);
-		imr.getParameter(PeriodParam.NAME).setValue(period);		
-		
-		// Set site to IMR
-		imr.setSite(site);
-		
-		// Create IMR Map
-		TectonicRegionType trt = TectonicRegionType.ACTIVE_SHALLOW;
-		imrMap = new HashMap<TectonicRegionType, ScalarIMR>();
-		imrMap.put(trt, imr);
-		
-		// Set ERF
-		forecast = new NewZealandERF2010();
-		forecast.setParameter(forecast.FAULT_AND_BACK_SEIS_NAME, forecast.FAULT_AND_BACK_SEIS);	
-		
-		// Set default duration
-		forecast.getTimeSpan().setDuration(duration);
-		forecast.updateForecast();
-		
-		// Initialise hazard function
-		func = new ArbitrarilyDiscretizedFunc();
-		initHazXvalues(func);
-		
-		// Initialise hazard curve calculator
-		calc = new HazardCurveCalculator();
-		
-		// Initialise magnitude distance cutoff function
-		double[] cutoffMags = {0, 5, 6, 7, 8, 9};
-		double[] cutoffDists = {-1e-16, 40, 80, 150, 250, 500};
-		ArbitrarilyDiscretizedFunc magDistfunc = new ArbitrarilyDiscretizedFunc();
-		
-		for (int i = 0; i < cutoffMags.length; i++) {
-			magDistfunc.set(cutoffDists[i], cutoffMags[i]);
-		}
-		
-		calc.setMagDistCutoffFunc(magDistfunc);
-		
-		// Run hazard curve analysis
-		func = (ArbitrarilyDiscretizedFunc) calc.getHazardCurve(func, site, imrMap, (ERF) forecast);
-		func = toggleHazFuncLogValues(func);
-		
-	}
-	
-	public void getDisaggregatedCurve () {
-		
-		double minMag = 5.0;
-		double deltaMag = 0.25;
-		int numMag = 14; // 8.5 Mw
-		double minDist = 0.1;
-		double deltaDist = 10.0;
-		int numDist = 15;
-		int numSourcesForDisag = 100;
-		double maxZAxis = 50;
-		boolean showSourceDistances = false;
-		
-		// Initialise disaggregation calculator
-		DisaggregationCalculatorAPI disaggCalc = new DisaggregationCalculator();
-		disaggCalc.setDistanceRange(minDist, numDist, deltaDist);
-		disaggCalc.setMagRange(minMag, numMag, deltaMag);
-		disaggCalc.setNumSourcestoShow(numSourcesForDisag);
-		disaggCalc.setShowDistances(showSourceDistances);
-		
-		double imlVal = func.getFirstInterpolatedX_inLogXLogYDomain(disaggVal);
-		double probVal = disaggVal;
-		
-		long time = System.nanoTime();
-		long t;
-		
-		disaggCalc.disaggregate(Math.log(imlVal), site, imrMap, (AbstractERF) forecast,
-				calc.getMaxSourceDistance(), calc.getMagDistCutoffFunc());
-//		t = System.nanoTime() - time;
-//		System.out.println(t);
-		
-		disaggCalc.setMaxZAxisForPlot(maxZAxis);
-//		t = System.nanoTime() - time;
-//		System.out.println(t);
-		
-		String disaggregationPlotWebAddr = 
-				disaggCalc.getDisaggregationPlotUsingServlet(getParametersInfoAsString());
-//		t = System.nanoTime() - time;
-//		System.out.println(t);
-		
-//		String disaggregationString = disaggCalc.getMeanAndModeInfo();
-//		String sourceDisaggregationList = disaggCalc.getDisaggregationSourceInfo();
-//		String binData = disaggCalc.getBinData();
-//		String metadata = getMapParametersInfoAsHTML();		
-//		String modeString = "Disaggregation Results for Prob = " + probVal
-//		+ " (for IML = " + (float) imlVal + ")";
-//		modeString += "\n" + disaggregationString;
-		
-		disagg = disaggregationPlotWebAddr;
-			
 	}
-	
-	public String getMapParametersInfoAsHTML () {
-		
-		String calcType = "Probabilistic";
-		String imrMetadata = "IMR = Bradley (2010); "
-				+ "Gaussian Truncation = None; "
-				+ "Tectonic Region = Active Shallow Crust; "
-				+ "Component = Average Horizontal; "
-				+ "Std Dev Type = Total";
-		String siteData = "Longitude = " + lon + "; "
-				+ "Latitude = " + lat + "; "
-				+ "Vs30 = " + vs30 + "; "
-				+ "Vs30 Type = Inferred; "
-				+ "Depth 1.0 km/sec = " + z1 + ";";
-		String imtData = "IMT = SA; "
-				+ "SA Period = " + period + "; "
-				+ "SA Damping = 5.0";
-		String erfData = "Eqk Rup Forecast = NewZealand_ERF_2010; "
-				+ "Background and Fault Seismicity = Fault and Background Sources; "
-				+ "Consider Epistemic Uncertainties = false";
-		String timeData = "Duration = 50.0";
-		String calcSettings = "Maximum Distance = 200.0; "
-				+ "Num Event Sets = 1; "
-				+ "Use Mag-Distance Filter? = false; "
-				+ "null; "
-				+ "Set TRT From Source? = false; "
-				+ "If source TRT not supported by IMR = Use TRT value already set in IMR; "
-				+ "Pt Src Dist Corr = None";
-		
-		return "<br>" + "Cacluation Type = " 
-				+ calcType
-				+ "<br><br>" 
-				+ "IMR Param List:" + "<br>" 
-				+ "---------------" + "<br>"
-				+ imrMetadata
-				+ "<br><br>"
-				+ "Site Param List: " + "<br>"
-				+ "----------------" + "<br>"
-				+ siteData
-				+ "<br><br>"
-				+ "IMT Param List: " + "<br>"
-				+ "---------------" + "<br>"
-				+ imtData
-				+ "<br><br>"
-				+ "Forecast Param List: " + "<br>"
-				+ "--------------------" + "<br>"
-				+ erfData
-				+ "<br><br>"
-				+ "TimeSpan Param List: " + "<br>"
-				+ "--------------------" + "<br>"
-				+ timeData
-				+ "<br><br>"
-				+ "Calculation Settings: " + "<br>"
-				+ "--------------------" + "<br>"
-				+ calcSettings;
 
+	/**
+	 * Creates the context for the calculation of the site and period parameters
+	 * of the request.
+	 */
+	protected nzhccRequest createRequest(HttpServletRequest request) {
+		return createRequest(
+				Double.parseDouble(request.getParameter("lat")),
+				Double.parseDouble(request.getParameter("lon")),
+				Double.parseDouble(request.getParameter("vs30")),
+				Double.parseDouble(request.getParameter("z1pt0")),
+				Double.parseDouble(request.getParameter("period")));
 	}
-	
-	public String getParametersInfoAsString() {
-		return getMapParametersInfoAsHTML().replaceAll("<br>",
-				SystemUtils.LINE_SEPARATOR);
+
+	/**
+	 * @return the probabilities of exceedance of the disaggval parameters
+	 * (given in %), or null if there are none
+	 */
+	protected static double[] getDisaggVals(HttpServletRequest request) {
+		String[] disaggValArray = request.getParameterValues("disaggval");
+		if (disaggValArray == null)
+			return null;
+		double[] disaggVals = new double[disaggValArray.length];
+		for (int i = 0; i < disaggValArray.length; i++)
+			disaggVals[i] = Double.parseDouble(disaggValArray[i]) / 100;
+		return disaggVals;
 	}
 
-	private static void initHazXvalues (ArbitrarilyDiscretizedFunc hazFunction) {		
-		/** initialize the x values of the hazard curve */
-		
-		int num = 100;
-		double xi = Math.log(0.0001);
-		double xn = Math.log(10);
-		double step = (xn - xi) / num;
-		double xValue;
-		
-		for (int i = 0; i <= num; i++) {
-			xValue = xi + i * step;
-			hazFunction.set(xValue, 1.0);
-		}		
+	/**
+	 * Creates the context for a single calculation, attached to the shared forecast.
+	 * The location is snapped to the grid of the hazard curve cache, and the
+	 * calculations of the request are done at the snapped location.
+	 */
+	public nzhccRequest createRequest(double lat, double lon, double vs30, double z1, double period) {
+		nzhccRequest req = new nzhccRequest(nzhccCurveCache.snap(lat), nzhccCurveCache.snap(lon),
+				vs30, z1, period);
+		req.forecast = getForecast();
+		req.sourceIndex = forecastRegistry.getSourceIndex(req.forecast);
+		return req;
 	}
 
-	private static ArbitrarilyDiscretizedFunc toggleHazFuncLogValues(ArbitrarilyDiscretizedFunc tempFunc) {
-		/** Convert the x values of the hazard curve from log to the real numbers */
-		
-		int numPoints = tempFunc.size();
-		double x, y;
-		ArbitrarilyDiscretizedFunc hazFunction = new ArbitrarilyDiscretizedFunc();
-		
-		for(int i = 0; i < numPoints; i++){
-			x = Math.exp(tempFunc.getX(i));
-			y = tempFunc.getY(i);
-			hazFunction.set(x,y);
-		}
-		return hazFunction;
+	protected NewZealandERF2010 getForecast() {
+		// shared and pre-built, must not be modified by requests
+		if (forecastRegistry == null)
+			forecastRegistry = new nzhccForecastRegistry();
+		return forecastRegistry.getForecast(NewZealandERF2010.class,
+				NewZealandERF2010.FAULT_AND_BACK_SEIS, duration);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,100 @@
+package nzservs;
+
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.sha.gcim.imr.attenRelImpl.Bradley_2010_PointSourceTable;
+
+/**
+ * Reports how far the hazard curves calculated with a
+ * {@link Bradley_2010_PointSourceTable} are from the exact curves, for a set
+ * of sites, site classes and periods, and how long each takes:
+ *
+ * <pre>java nzservs.nzhccTableCheck [tolerance]</pre>
+ *
+ * For each curve it prints the largest absolute difference in probability of
+ * exceedance, the largest relative difference where the exact probability is
+ * at least {@link #MIN_PROB}, and the relative difference in the IML at 10%
+ * and 2% in 50 years; the largest of each over all curves is printed at the
+ * end.
+ */
+public class nzhccTableCheck {
+
+	// relative differences are only taken where curves are at least this
+	protected static double MIN_PROB = 1e-4;
+
+	// Auckland, Wellington, Christchurch, Taupo, Dunedin
+	protected static double[][] sites = {
+		{-36.85, 174.76}, {-41.3, 174.8}, {-43.53, 172.63}, {-38.69, 176.07}, {-45.87, 170.5}};
+	protected static double[] vs30s = {250, 400, 760};
+	protected static double[] periods = {0.1, 0.2, 1.0, 3.0};
+	protected static double[] poes = {0.1, 0.02};
+
+	public static void main(String[] args) {
+
+		double tolerance = args.length > 0 ? Double.parseDouble(args[0])
+				: Bradley_2010_PointSourceTable.DEFAULT_TOLERANCE;
+
+		long start = System.currentTimeMillis();
+		Bradley_2010_PointSourceTable table = new Bradley_2010_PointSourceTable(tolerance);
+		System.out.println("table: tolerance " + tolerance + ", " + table.size() + " values, max error "
+				+ table.getMaxError() + ", built in " + (System.currentTimeMillis() - start) + " ms");
+
+		nzhccServlet serv = new nzhccServlet();
+		nzhccWorker exactWorker = new nzhccWorker();
+		nzhccWorker tableWorker = new nzhccWorker(table);
+
+		// the first curves include loading the forecast and JIT compilation
+		exactWorker.getHazardCurve(serv.createRequest(sites[0][0], sites[0][1], vs30s[0],
+				nzhccHazardGrid.getDefaultZ1(vs30s[0]), periods[0]));
+		tableWorker.getHazardCurve(serv.createRequest(sites[0][0], sites[0][1], vs30s[0],
+				nzhccHazardGrid.getDefaultZ1(vs30s[0]), periods[0]));
+
+		double maxAbs = 0, maxRel = 0, maxIML = 0;
+		long exactTime = 0, tableTime = 0;
+		for (double[] site : sites) {
+			for (double vs30 : vs30s) {
+				for (double period : periods) {
+					double z1 = nzhccHazardGrid.getDefaultZ1(vs30);
+
+					nzhccRequest exact = serv.createRequest(site[0], site[1], vs30, z1, period);
+					long t = System.nanoTime();
+					exactWorker.getHazardCurve(exact);
+					exactTime += System.nanoTime() - t;
+
+					nzhccRequest approx = serv.createRequest(site[0], site[1], vs30, z1, period);
+					t = System.nanoTime();
+					tableWorker.getHazardCurve(approx);
+					tableTime += System.nanoTime() - t;
+
+					double abs = 0, rel = 0, iml = 0;
+					for (int i = 0; i < exact.func.size(); i++) {
+						double p = exact.func.getY(i);
+						double diff = Math.abs(approx.func.getY(i) - p);
+						abs = Math.max(abs, diff);
+						if (p >= MIN_PROB)
+							rel = Math.max(rel, diff / p);
+					}
+					for (double poe : poes)
+						iml = Math.max(iml, getRelativeDiff(exact.func, approx.func, poe));
+
+					System.out.println(site[0] + "," + site[1] + " vs30=" + vs30 + " T=" + period
+							+ ": abs " + (float) abs + ", rel " + (float) rel + ", IML rel " + (float) iml);
+					maxAbs = Math.max(maxAbs, abs);
+					maxRel = Math.max(maxRel, rel);
+					maxIML = Math.max(maxIML, iml);
+				}
+			}
+		}
+		System.out.println("max: abs " + (float) maxAbs + ", rel " + (float) maxRel + ", IML rel " + (float) maxIML);
+		System.out.println("time: exact " + exactTime / 1000000 + " ms, table " + tableTime / 1000000 + " ms");
+	}
+
+	private static double getRelativeDiff(ArbitrarilyDiscretizedFunc exact,
+			ArbitrarilyDiscretizedFunc approx, double poe) {
+		if (poe > exact.getY(0) || poe < exact.getY(exact.size() - 1))
+			return 0;
+		double exactIML = exact.getFirstInterpolatedX_inLogXLogYDomain(poe);
+		double approxIML = approx.getFirstInterpolatedX_inLogXLogYDomain(poe);
+		return Math.abs(approxIML - exactIML) / exactIML;
+	}
+
+}
@@ -0,0 +1,307 @@
+package nzservs;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.sha.calc.*;
+import org.opensha.sha.earthquake.*;
+import org.opensha.sha.earthquake.rupForecastImpl.NewZealand.NewZealandERF2010;
+import org.opensha.sha.gcim.calc.*;
+import org.opensha.sha.gcim.imr.attenRelImpl.Bradley_2010_AttenRel;
+import org.opensha.sha.gcim.imr.attenRelImpl.Bradley_2010_PointSourceTable;
+import org.opensha.sha.imr.ScalarIMR;
+import org.opensha.sha.imr.param.IntensityMeasureParams.*;
+import org.opensha.sha.util.TectonicRegionType;
+
+/**
+ * Reusable IMR and hazard curve calculator for the servlet. The IMR and
+ * calculator are mutated during a calculation, so a worker must only ever be
+ * used by one thread at a time. nzhccServlet keeps a bounded pool of workers
+ * (one per processor, or {@link nzhccServlet#WORKERS_PROPERTY}); a
+ * calculation takes a worker from the pool, waiting if all are busy, and
+ * returns it when done.
+ * All request specific state lives in {@link nzhccRequest}.
+ */
+public class nzhccWorker {
+
+	protected final ScalarIMR imr;
+	protected final Map<TectonicRegionType, ScalarIMR> imrMap;
+	protected final HazardCurveCalculator calc;
+	// interpolated point source ground motions, or null if computed exactly
+	protected final Bradley_2010_PointSourceTable pointSourceTable;
+	// calculator of the disaggregation being computed, for progress reports
+	private volatile DisaggregationCalculatorAPI disaggCalc;
+
+	public nzhccWorker() {
+		this(null);
+	}
+
+	/**
+	 * @param pointSourceTable - table the ground motions of point sources are
+	 * interpolated from, or null to compute them exactly
+	 */
+	public nzhccWorker(Bradley_2010_PointSourceTable pointSourceTable) {
+
+		// Set IMR
+		Bradley_2010_AttenRel bradley = new Bradley_2010_AttenRel(null);
+		bradley.setParamDefaults();
+		bradley.setPointSourceTable(pointSourceTable);
+		imr = bradley;
+		this.pointSourceTable = pointSourceTable;
+
+		// Set SA to IMR
+		imr.setIntensityMeasure(SA_Param.NAME);
+
+		// Create IMR Map
+		imrMap = new HashMap<TectonicRegionType, ScalarIMR>();
+		imrMap.put(TectonicRegionType.ACTIVE_SHALLOW, imr);
+
+		// Initialise hazard curve calculator
+		calc = new HazardCurveCalculator();
+
+		// Initialise magnitude distance cutoff function
+		double[] cutoffMags = {0, 5, 6, 7, 8, 9};
+		double[] cutoffDists = {-1e-16, 40, 80, 150, 250, 500};
+		ArbitrarilyDiscretizedFunc magDistfunc = new ArbitrarilyDiscretizedFunc();
+
+		for (int i = 0; i < cutoffMags.length; i++) {
+			magDistfunc.set(cutoffDists[i], cutoffMags[i]);
+		}
+
+		calc.setMagDistCutoffFunc(magDistfunc);
+	}
+
+	/**
+	 * Computes the hazard curve for the request and stores it in
+	 * <code>req.func</code>, filling in <code>req.ruptureData</code> if set.
+	 *
+	 * @throws CancellationException if the thread was interrupted, which ends
+	 * the calculation early
+	 */
+	public void getHazardCurve (nzhccRequest req) {
+
+		// Set SA period and site to IMR
+		imr.getParameter(PeriodParam.NAME).setValue(req.period);
+		imr.setSite(req.site);
+
+		// Initialise hazard function
+		ArbitrarilyDiscretizedFunc func = new ArbitrarilyDiscretizedFunc();
+		initHazXvalues(func);
+
+		// Run hazard curve analysis, keeping the rupture distances for the disaggregation
+		calc.setSiteDistances(req.getSiteDistances());
+		calc.setSourceIndex(req.sourceIndex);
+		calc.setRuptureDataStore(req.ruptureData);
+		req.phase = nzhccRequest.PHASE_HAZARD_CURVE;
+		req.worker = this;
+		try {
+			func = (ArbitrarilyDiscretizedFunc) calc.getHazardCurve(func, req.site, imrMap, (ERF) req.forecast);
+		} finally {
+			calc.setRuptureDataStore(null);
+			req.worker = null;
+		}
+		// the curve of a stopped calculation is incomplete
+		if (Thread.currentThread().isInterrupted())
+			throw new CancellationException("Hazard curve calculation interrupted");
+		req.func = toggleHazFuncLogValues(func);
+	}
+
+	/**
+	 * Sets <code>req.func</code> to the cached hazard curve of the request,
+	 * computing and caching it if not cached yet.
+	 */
+	public void getHazardCurve (nzhccRequest req, nzhccCurveCache curveCache) {
+
+		String key = getCurveKey(req);
+		double[] yValues = curveCache.get(key);
+		if (yValues != null) {
+			ArbitrarilyDiscretizedFunc func = new ArbitrarilyDiscretizedFunc();
+			initHazXvalues(func);
+			if (yValues.length == func.size()) {
+				for (int i = 0; i < yValues.length; i++)
+					func.set(i, yValues[i]);
+				req.func = toggleHazFuncLogValues(func);
+				return;
+			}
+		}
+
+		getHazardCurve(req);
+		yValues = new double[req.func.size()];
+		for (int i = 0; i < yValues.length; i++)
+			yValues[i] = req.func.getY(i);
+		curveCache.put(key, yValues);
+	}
+
+	/**
+	 * Returns a key describing everything the hazard curve of the request
+	 * depends on: the forecast, the IMR, the calculator settings and the site.
+	 */
+	protected String getCurveKey(nzhccRequest req) {
+		imr.getParameter(PeriodParam.NAME).setValue(req.period);
+		StringBuilder key = new StringBuilder(getCalculationKey(req.forecast));
+		key.append('|')
+			.append(imr.getIntensityMeasure().getIndependentParameterList().getParameterListMetadataString()).append('|')
+			.append(req.lat).append('|')
+			.append(req.lon).append('|')
+			.append(req.vs30).append('|')
+			.append(req.z1);
+		return key.toString();
+	}
+
+	/**
+	 * Returns a key describing what the hazard curves of this worker depend on
+	 * apart from the intensity measure (period) and the site: the forecast, the
+	 * IMR and the calculator settings.
+	 */
+	protected String getCalculationKey(ERF forecast) {
+		StringBuilder key = new StringBuilder();
+		key.append(forecast.getName()).append('|')
+			.append(forecast.getAdjustableParameterList().getParameterListMetadataString()).append('|')
+			.append(forecast.getTimeSpan().getDuration()).append('|')
+			.append(forecast.getNumSources()).append('|');
+		// the parameters do not change when the source model files do
+		if (forecast instanceof NewZealandERF2010)
+			key.append(Long.toHexString(((NewZealandERF2010) forecast).getSourceModelChecksum())).append('|');
+		key
+			.append(imr.getName()).append('|')
+			.append(imr.getOtherParams().getParameterListMetadataString()).append('|')
+			.append(calc.getAdjustableParams().getParameterListMetadataString()).append('|');
+		// the metadata above does not include the points of the cutoff function
+		ArbitrarilyDiscretizedFunc magDistFunc = calc.getMagDistCutoffFunc();
+		for (int i = 0; i < magDistFunc.size(); i++)
+			key.append(magDistFunc.getX(i)).append(',').append(magDistFunc.getY(i)).append(';');
+		if (pointSourceTable != null)
+			key.append("|pointSourceTable=").append(pointSourceTable.getTolerance());
+		return key.toString();
+	}
+
+	/**
+	 * Disaggregates the hazard of the request at the given probability of
+	 * exceedance; <code>getHazardCurve</code> must have been called first.
+	 *
+	 * @return disaggregation results and plot
+	 */
+	public nzhccDisaggPlot getDisaggregatedCurve (nzhccRequest req, double disaggVal) {
+		return getDisaggregatedCurves(req, new double[] {disaggVal})[0];
+	}
+
+	/**
+	 * Disaggregates the hazard of the request at each of the given probabilities
+	 * of exceedance; <code>getHazardCurve</code> must have been called first. The
+	 * forecast and IMR are only gone through once, whatever the number of values,
+	 * and not at all if the hazard curve calculation filled in the rupture data of
+	 * the request (it does not when the curve was cached).
+	 *
+	 * @return disaggregation results and plots, in the order of the values
+	 * @throws CancellationException if the thread was interrupted, which ends
+	 * the calculation early
+	 */
+	public nzhccDisaggPlot[] getDisaggregatedCurves (nzhccRequest req, double[] disaggVals) {
+
+		double minMag = 5.0;
+		double deltaMag = 0.25;
+		int numMag = 14; // 8.5 Mw
+		double minDist = 0.1;
+		double deltaDist = 10.0;
+		int numDist = 15;
+		int numSourcesForDisag = 100;
+		double maxZAxis = 50;
+		boolean showSourceDistances = false;
+
+		// Initialise disaggregation calculator
+		DisaggregationCalculatorAPI disaggCalc = new DisaggregationCalculator();
+		disaggCalc.setDistanceRange(minDist, numDist, deltaDist);
+		disaggCalc.setMagRange(minMag, numMag, deltaMag);
+		disaggCalc.setNumSourcestoShow(numSourcesForDisag);
+		disaggCalc.setShowDistances(showSourceDistances);
+		disaggCalc.setSiteDistances(req.getSiteDistances());
+		disaggCalc.setSourceIndex(req.sourceIndex);
+
+		// Set SA period and site to IMR, as a disaggregation may not follow
+		// the hazard curve of the same request on this worker
+		imr.getParameter(PeriodParam.NAME).setValue(req.period);
+		imr.setSite(req.site);
+
+		req.phase = nzhccRequest.PHASE_DISAGGREGATION;
+		this.disaggCalc = disaggCalc;
+		req.worker = this;
+		try {
+			if (req.ruptureData != null && req.ruptureData.isFor(req.forecast, req.site))
+				disaggCalc.setRuptureData(req.ruptureData);
+			else
+				disaggCalc.computeRuptureData(req.site, imrMap, (AbstractERF) req.forecast,
+						calc.getMaxSourceDistance(), calc.getMagDistCutoffFunc());
+		} finally {
+			req.worker = null;
+			this.disaggCalc = null;
+		}
+		if (Thread.currentThread().isInterrupted())
+			throw new CancellationException("Disaggregation interrupted");
+
+		String metadata = req.getParametersInfoAsString();
+		nzhccDisaggPlot[] plots = new nzhccDisaggPlot[disaggVals.length];
+		for (int i = 0; i < disaggVals.length; i++) {
+			double imlVal = req.func.getFirstInterpolatedX_inLogXLogYDomain(disaggVals[i]);
+
+			disaggCalc.disaggregateRuptureData(Math.log(imlVal));
+
+			disaggCalc.setMaxZAxisForPlot(maxZAxis);
+
+			// plotted by nzhccDisaggPlotServlet when requested
+			plots[i] = new nzhccDisaggPlot(disaggVals[i], disaggCalc.getDisaggPlotData(), metadata,
+					disaggCalc.getMeanAndModeInfo(), disaggCalc.getBinData(),
+					disaggCalc.getDisaggregationSourceInfo());
+		}
+		return plots;
+	}
+
+	/**
+	 * @return the number of ruptures gone through by the calculation running on
+	 * this worker; may be called from any thread
+	 */
+	public int getCurrRuptures() {
+		DisaggregationCalculatorAPI disagg = disaggCalc;
+		return disagg != null ? disagg.getCurrRuptures() : calc.getCurrRuptures();
+	}
+
+	/**
+	 * @return the number of ruptures of the calculation running on this worker;
+	 * may be called from any thread
+	 */
+	public int getTotRuptures() {
+		DisaggregationCalculatorAPI disagg = disaggCalc;
+		return disagg != null ? disagg.getTotRuptures() : calc.getTotRuptures();
+	}
+
+	static void initHazXvalues (ArbitrarilyDiscretizedFunc hazFunction) {
+		/** initialize the x values of the hazard curve */
+
+		int num = 100;
+		double xi = Math.log(0.0001);
+		double xn = Math.log(10);
+		double step = (xn - xi) / num;
+		double xValue;
+
+		for (int i = 0; i <= num; i++) {
+			xValue = xi + i * step;
+			hazFunction.set(xValue, 1.0);
+		}
+	}
+
+	static ArbitrarilyDiscretizedFunc toggleHazFuncLogValues(ArbitrarilyDiscretizedFunc tempFunc) {
+		/** Convert the x values of the hazard curve from log to the real numbers */
+
+		int numPoints = tempFunc.size();
+		double x, y;
+		ArbitrarilyDiscretizedFunc hazFunction = new ArbitrarilyDiscretizedFunc();
+
+		for(int i = 0; i < numPoints; i++){
+			x = Math.exp(tempFunc.getX(i));
+			y = tempFunc.getY(i);
+			hazFunction.set(x,y);
+		}
+		return hazFunction;
+	}
+}
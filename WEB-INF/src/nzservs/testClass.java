@@ -1,35 +1,30 @@
 package nzservs;
 
-import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
-
 import com.google.gson.Gson;
 
 public class testClass {
-	
+
 	public static void main(String[] args) {
-		
+
 		nzhccServlet serv = new nzhccServlet();
+		nzhccWorker worker = new nzhccWorker();
 		nzhccResponse resp = new nzhccResponse();
-		
-		serv.lon = 174.8;
-		serv.lat = -41.3;
-		serv.vs30 = 250;
-		serv.z1 = 320;
-		serv.period = 1.0;
-		
-		serv.disaggVal = 0.5;
-		
-		serv.getHazardCurve();		
-        resp.hazFunction = serv.func;
-        
-		//serv.getDisaggregatedCurve();
-        //resp.disaggWebAddr = serv.disagg;
+
+		// lat, lon, vs30, z1, period
+		nzhccRequest req = serv.createRequest(-41.3, 174.8, 250, 320, 1.0);
+
+		double disaggVal = 0.5;
+
+		worker.getHazardCurve(req);
+        resp.hazFunction = req.func;
+
+		//worker.getDisaggregatedCurve(req, disaggVal);
 
         Gson gson = new Gson();
         String json = gson.toJson(resp);
-        
+
         System.out.println(json);
-		
+
 	}
 
-}
\ No newline at end of file
+}
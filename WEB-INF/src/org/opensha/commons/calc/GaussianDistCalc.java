@@ -168,6 +168,90 @@ public final class GaussianDistCalc {
 	}
 
 
+	/**
+	 * This is the same as getCDF(), but computes the -16 power by repeated squaring
+	 * rather than with Math.pow(), which is several times faster.  The approximation is
+	 * the same (Abramowitz and Stegun 26.2.19, which has a maximum absolute error of
+	 * 1.5e-7 against the exact CDF; see getCDF() for the relative error in the lower tail),
+	 * and the results differ from getCDF() only by rounding: the relative difference is
+	 * below 1e-14 for all SRVs between +/- 40 (see test_getCDF_Fast()).
+	 */
+	public static double getCDF_Fast(double standRandVariable) {
+		double val = Math.abs(standRandVariable);
+		double p = (((((d6*val+d5)*val+d4)*val+d3)*val+d2)*val+d1)*val+1;
+		p *= p;   // ^2
+		p *= p;   // ^4
+		p *= p;   // ^8
+		p *= p;   // ^16
+		double result = 0.5 / p;
+		if(standRandVariable < 0) return result;
+		else                      return 1.0-result;
+	}
+
+
+	/**
+	 * This fills in the exceedance probabilities of the given values for a Gaussian
+	 * distribution with the given mean and standard deviation, i.e.
+	 * probs[i] = getExceedProb((values[i]-mean)/stdDev, truncType, truncLevel) for i < num,
+	 * except that the CDF is computed with getCDF_Fast().  The truncation arguments are
+	 * checked, and the CDF at the truncation levels computed, once per call rather than
+	 * once per value.  If stdDev is zero the probability is 1 for values up to the mean and
+	 * 0 above it.  The values and probs arrays may be the same array.
+	 *
+	 * @param mean
+	 * @param stdDev
+	 * @param values - values to compute the exceedance probabilities of (e.g., log IMLs)
+	 * @param probs - array to put the probabilities in
+	 * @param num - number of values
+	 * @param truncType  set 0 for none, 1 for upper only, and 2 for two sided
+	 * @param truncLevel in units of SRV (must be positive, and can't = 0.0 for truncType = 2)
+	 */
+	public static void getExceedProbs(double mean, double stdDev, double[] values, double[] probs,
+			int num, int truncType, double truncLevel) {
+
+		if(truncType == 2) {
+			if(truncLevel <= 0.0)
+				throw new RuntimeException("GaussianDistCalc.getExceedProbs(): truncLevel must be greater than zero for truncType=2");
+		}
+		else if(truncType == 1) {
+			if(truncLevel < 0.0)
+				throw new RuntimeException("GaussianDistCalc.getExceedProbs(): truncLevel cannot be negative");
+		}
+		else if(truncType != 0)
+			throw new RuntimeException("GaussianDistCalc.getExceedProbs(): truncType must be 0, 1, or 2");
+
+		int i;
+		if(stdDev == 0) {
+			for(i=0; i<num; i++)
+				probs[i] = values[i] > mean ? 0.0 : 1.0;
+		}
+		else if(truncType == 0) {
+			for(i=0; i<num; i++)
+				probs[i] = 1.0 - getCDF_Fast((values[i]-mean)/stdDev);
+		}
+		else if(truncType == 1) {
+			double pUp = getCDF_Fast(truncLevel);
+			for(i=0; i<num; i++) {
+				double srv = (values[i]-mean)/stdDev;
+				probs[i] = srv > truncLevel ? 0.0 : 1.0 - getCDF_Fast(srv)/pUp;
+			}
+		}
+		else {
+			double pUp = getCDF_Fast(truncLevel);
+			double pLow = getCDF_Fast(-truncLevel);
+			for(i=0; i<num; i++) {
+				double srv = (values[i]-mean)/stdDev;
+				if(srv > truncLevel)
+					probs[i] = 0.0;
+				else if(srv < -truncLevel)
+					probs[i] = 1.0;
+				else
+					probs[i] = (pUp-getCDF_Fast(srv))/(pUp-pLow);
+			}
+		}
+	}
+
+
 	/**
 	 * This returns the standardized random variable (SRV) associated with the
 	 * given exceedance probability.  The tolerance specifies the accuracy of the
@@ -586,6 +670,81 @@ public final class GaussianDistCalc {
 	}
 
 
+	/**
+	 * This compares getCDF_Fast() with getCDF() between +/- 40 SRVs (in steps of 0.001)
+	 * and prints the maximum absolute and relative differences.
+	 */
+	public static void test_getCDF_Fast() {
+		double maxAbs = 0, maxRel = 0;
+		for(int i=-40000; i<=40000; i++) {
+			double srv = i/1000.0;
+			double cdf = getCDF(srv);
+			double diff = Math.abs(getCDF_Fast(srv)-cdf);
+			maxAbs = Math.max(maxAbs, diff);
+			if(cdf > 0)
+				maxRel = Math.max(maxRel, diff/cdf);
+		}
+		System.out.println("getCDF_Fast() vs getCDF(): max abs diff="+maxAbs+"; max rel diff="+maxRel);
+	}
+
+
+	/**
+	 * This compares the speed of getExceedProbs() with computing the same exceedance
+	 * probabilities one at a time with getExceedProb() (as done per IML by
+	 * AttenuationRelationship), and times getCDF() against getCDF_Fast(), for hazard
+	 * curves of 20 IMLs over a range of means and standard deviations.  (getCDF_Alt() is
+	 * not included as it needs the edu.uah.math.psol.distributions package; see below.)
+	 */
+	public static void testSpeed_getExceedProbs() {
+		int numIMLs = 20, numRups = 200000, numRuns = 5;
+		double[] imls = new double[numIMLs];
+		for(int i=0; i<numIMLs; i++)
+			imls[i] = Math.log(0.001) + i*(Math.log(3.0)-Math.log(0.001))/(numIMLs-1);
+		double[] probs = new double[numIMLs];
+		double sum = 0;   // so that the loops can't be optimized away
+
+		for(int truncType=0; truncType<=2; truncType+=2) {
+			double truncLevel = 3.0;
+			for(int run=0; run<numRuns; run++) {   // the first runs are JIT warm up
+				long start = System.nanoTime();
+				for(int r=0; r<numRups; r++) {
+					double mean = -4.0 + 4.0*r/numRups, stdDev = 0.4 + 0.4*r/numRups;
+					for(int i=0; i<numIMLs; i++)
+						sum += getExceedProb((imls[i]-mean)/stdDev, truncType, truncLevel);
+				}
+				long scalar = System.nanoTime()-start;
+
+				start = System.nanoTime();
+				for(int r=0; r<numRups; r++) {
+					double mean = -4.0 + 4.0*r/numRups, stdDev = 0.4 + 0.4*r/numRups;
+					getExceedProbs(mean, stdDev, imls, probs, numIMLs, truncType, truncLevel);
+					sum += probs[numIMLs/2];
+				}
+				long batch = System.nanoTime()-start;
+
+				if(run == numRuns-1)
+					System.out.println("truncType="+truncType+": getExceedProb() per IML: "+scalar/numRups+
+							" ns/curve; getExceedProbs(): "+batch/numRups+" ns/curve");
+			}
+		}
+
+		int num = numRups*numIMLs;
+		for(int run=0; run<numRuns; run++) {
+			long start = System.nanoTime();
+			for(int i=0; i<num; i++)
+				sum += getCDF(-7.5+15.0*i/num);
+			long slow = System.nanoTime()-start;
+			start = System.nanoTime();
+			for(int i=0; i<num; i++)
+				sum += getCDF_Fast(-7.5+15.0*i/num);
+			long fast = System.nanoTime()-start;
+			if(run == numRuns-1)
+				System.out.println("getCDF(): "+(double)slow/num+" ns/call; getCDF_Fast(): "+(double)fast/num+" ns/call");
+		}
+		System.out.println("(checksum "+sum+")");
+	}
+
+
 	/**
 	 * This tests the influence of tolerance on performance.  Tolerances of
 	 * 0.1 and 1e-3 take about the same amount of time; tolerance of 1e-6 takes
@@ -722,6 +881,8 @@ public final class GaussianDistCalc {
 		//     test_symmetry_getStandRandVar();
 		//     testSpeed_getStandRandVar();
 		//     test2_getStandRandVar() ;
+		//     test_getCDF_Fast();
+		//     testSpeed_getExceedProbs();
 	}
 
 
@@ -140,4 +140,19 @@ public class LightFixedXFunc extends AbstractDiscretizedFunc {
 		return null;
 	}
 
+	/**
+	 * @return the x values array backing this function (not a copy, must not be modified)
+	 */
+	public double[] getXVals() {
+		return xVals;
+	}
+
+	/**
+	 * @return the y values array backing this function (not a copy, changes are reflected in
+	 * this function)
+	 */
+	public double[] getYVals() {
+		return yVals;
+	}
+
 }
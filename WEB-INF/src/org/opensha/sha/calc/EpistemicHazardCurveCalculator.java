@@ -0,0 +1,309 @@
+package org.opensha.sha.calc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.ArbDiscrEmpiricalDistFunc;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.param.Parameter;
+import org.opensha.commons.util.ExceptionUtils;
+import org.opensha.sha.earthquake.ERF;
+import org.opensha.sha.earthquake.EpistemicListERF;
+import org.opensha.sha.earthquake.IndependentEpistemicListERF;
+import org.opensha.sha.imr.ScalarIMR;
+import org.opensha.sha.util.IMRUtils;
+import org.opensha.sha.util.TectonicRegionType;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * <p>Title: EpistemicHazardCurveCalculator</p>
+ * <p>Description: This computes the hazard curve of every branch of an
+ * {@link EpistemicListERF} at one site, and their weighted mean, fractile and
+ * coefficient of variation curves.</p>
+ * <p>
+ * If the list is an {@link IndependentEpistemicListERF}, branches are built and
+ * calculated concurrently on {@link #setNumThreads(int)} threads, each with its own
+ * calculator and clone of the IMRs. Each thread only holds the ERF of the branch it is
+ * working on, so at most that many branch ERFs are in memory at once whatever the
+ * number of branches. Other lists are calculated one branch at a time, since their
+ * {@link EpistemicListERF#getERF(int)} may return the same instance for every branch.
+ * <p>
+ * Only the y values of the branch curves are kept. The mean and COV are accumulated as
+ * branches complete, and a {@link BranchListener} may be set to follow the statistics
+ * while the calculation runs.
+ * <p>
+ * Calculation settings are copied from the given HazardCurveCalculator; its pool,
+ * distance table and source index are not used since they belong to a single ERF.
+ */
+public class EpistemicHazardCurveCalculator {
+
+	protected final static String C = "EpistemicHazardCurveCalculator";
+	protected final static boolean D = false;
+
+	/**
+	 * Receives each branch curve as it is calculated. Calls are made in turn (never
+	 * concurrently), but from the calculation threads and in any branch order.
+	 */
+	public interface BranchListener {
+
+		/**
+		 * @param index - index of the branch in the list
+		 * @param curve - hazard curve of the branch
+		 * @param curves - statistics of the branches calculated so far, including this one
+		 */
+		public void branchCalculated(int index, DiscretizedFunc curve, EpistemicCurves curves);
+	}
+
+	private HazardCurveCalculator calc;
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+	private BranchListener listener;
+
+	/**
+	 * @param calc - calculator providing the calculation settings
+	 */
+	public EpistemicHazardCurveCalculator(HazardCurveCalculator calc) {
+		this.calc = calc;
+	}
+
+	/**
+	 * Sets the number of branches built and calculated at once, which is also the
+	 * maximum number of branch ERFs in memory.
+	 */
+	public void setNumThreads(int numThreads) {
+		Preconditions.checkArgument(numThreads > 0, "number of threads must be > 0");
+		this.numThreads = numThreads;
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * Sets the listener called as each branch is calculated, or null for none.
+	 */
+	public void setBranchListener(BranchListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * This computes the hazard curve of every branch of the list at the site.
+	 *
+	 * @param xValues - function with the (log) IMLs as x values; it is not modified
+	 * @param site - site with all parameters needed by the IMRs
+	 * @param imrMap - IMRs, cloned for each branch calculated concurrently
+	 * @param erfList - the list, updated if it is not an {@link IndependentEpistemicListERF}
+	 * @return the branch curves and their statistics
+	 */
+	public EpistemicCurves getHazardCurves(DiscretizedFunc xValues, Site site,
+			Map<TectonicRegionType, ScalarIMR> imrMap, EpistemicListERF erfList) {
+		int numERFs = erfList.getNumERFs();
+		double[] weights = new double[numERFs];
+		for (int i=0; i<numERFs; i++)
+			weights[i] = erfList.getERF_RelativeWeight(i);
+		EpistemicCurves curves = new EpistemicCurves(xValues, weights);
+
+		if (!(erfList instanceof IndependentEpistemicListERF) || numThreads == 1) {
+			for (int i=0; i<numERFs; i++) {
+				ERF erf = erfList instanceof IndependentEpistemicListERF
+						? ((IndependentEpistemicListERF)erfList).createERF(i) : erfList.getERF(i);
+				addBranch(curves, i, getBranchCalc().getHazardCurve(
+						xValues.deepClone(), site, imrMap, erf));
+			}
+			return curves;
+		}
+
+		// the tasks only make their ERF once running, so the queue holds no forecasts
+		ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>(numERFs);
+			for (int i=0; i<numERFs; i++)
+				futures.add(exec.submit(new BranchTask((IndependentEpistemicListERF)erfList,
+						i, xValues, site, imrMap, curves)));
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		} catch (ExecutionException e) {
+			throw ExceptionUtils.asRuntimeException(e.getCause());
+		} finally {
+			exec.shutdownNow();
+		}
+		return curves;
+	}
+
+	/*
+	 * A new calculator with the settings of the one given at construction
+	 */
+	private HazardCurveCalculator getBranchCalc() {
+		HazardCurveCalculator branchCalc = new HazardCurveCalculator();
+		for (Parameter<?> param : calc.getAdjustableParams())
+			branchCalc.getAdjustableParams().setValue(param.getName(), param.getValue());
+		return branchCalc;
+	}
+
+	private void addBranch(EpistemicCurves curves, int index, DiscretizedFunc curve) {
+		synchronized (curves) {
+			curves.add(index, curve);
+			if (listener != null)
+				listener.branchCalculated(index, curve, curves);
+		}
+	}
+
+	private class BranchTask implements Callable<Void> {
+
+		private final IndependentEpistemicListERF erfList;
+		private final int index;
+		private final DiscretizedFunc xValues;
+		private final Site site;
+		private final Map<TectonicRegionType, ScalarIMR> imrMap;
+		private final EpistemicCurves curves;
+
+		private BranchTask(IndependentEpistemicListERF erfList, int index,
+				DiscretizedFunc xValues, Site site, Map<TectonicRegionType, ScalarIMR> imrMap,
+				EpistemicCurves curves) {
+			this.erfList = erfList;
+			this.index = index;
+			this.xValues = xValues;
+			this.site = site;
+			this.imrMap = imrMap;
+			this.curves = curves;
+		}
+
+		@Override
+		public Void call() {
+			ERF erf = erfList.createERF(index);
+			Map<TectonicRegionType, ScalarIMR> branchIMRs = IMRUtils.cloneIMR_Map(imrMap);
+			DiscretizedFunc curve = getBranchCalc().getHazardCurve(
+					xValues.deepClone(), site, branchIMRs, erf);
+			if (D) System.out.println(C+": branch "+index+" done");
+			addBranch(curves, index, curve);
+			return null;
+		}
+	}
+
+	/**
+	 * The hazard curves of the branches of a list and their weighted statistics. The
+	 * statistics of the branches added so far can be read at any time; this class is
+	 * thread safe.
+	 */
+	public static class EpistemicCurves {
+
+		private final DiscretizedFunc xValues;
+		private final double[] weights;
+		// y values of each branch, null until calculated
+		private final double[][] branchVals;
+		private int numBranches;
+		// sums of the weights, weighted values and weighted squared values
+		private double weightSum;
+		private final double[] sum, sumSq;
+
+		private EpistemicCurves(DiscretizedFunc xValues, double[] weights) {
+			this.xValues = xValues;
+			this.weights = weights;
+			branchVals = new double[weights.length][];
+			sum = new double[xValues.size()];
+			sumSq = new double[xValues.size()];
+		}
+
+		private synchronized void add(int index, DiscretizedFunc curve) {
+			Preconditions.checkState(branchVals[index] == null, "branch %s added twice", index);
+			double[] vals = new double[curve.size()];
+			double w = weights[index];
+			for (int k=0; k<vals.length; k++) {
+				vals[k] = curve.getY(k);
+				sum[k] += w*vals[k];
+				sumSq[k] += w*vals[k]*vals[k];
+			}
+			branchVals[index] = vals;
+			weightSum += w;
+			numBranches++;
+		}
+
+		/**
+		 * @return the number of branches of the list
+		 */
+		public int getNumBranches() {
+			return weights.length;
+		}
+
+		/**
+		 * @return the number of branches calculated so far
+		 */
+		public synchronized int getNumCalculated() {
+			return numBranches;
+		}
+
+		/**
+		 * @return the hazard curve of the branch, or null if not calculated yet
+		 */
+		public synchronized DiscretizedFunc getBranchCurve(int index) {
+			if (branchVals[index] == null)
+				return null;
+			return toFunc(branchVals[index]);
+		}
+
+		/**
+		 * @return the weighted mean of the branch curves calculated so far
+		 */
+		public synchronized DiscretizedFunc getMeanCurve() {
+			double[] mean = new double[sum.length];
+			for (int k=0; k<mean.length; k++)
+				mean[k] = weightSum > 0 ? sum[k]/weightSum : Double.NaN;
+			return toFunc(mean);
+		}
+
+		/**
+		 * @return the coefficient of variation (weighted standard deviation over
+		 * weighted mean) of the branch curves calculated so far, NaN where the mean is 0
+		 */
+		public synchronized DiscretizedFunc getCOV_Curve() {
+			double[] cov = new double[sum.length];
+			for (int k=0; k<cov.length; k++) {
+				double mean = sum[k]/weightSum;
+				double var = Math.max(sumSq[k]/weightSum - mean*mean, 0);
+				cov[k] = mean > 0 ? Math.sqrt(var)/mean : Double.NaN;
+			}
+			return toFunc(cov);
+		}
+
+		/**
+		 * This returns the weighted fractile of the branch curves calculated so far,
+		 * interpolated at each x value as in
+		 * {@link ArbDiscrEmpiricalDistFunc#getInterpolatedFractile(double)}.
+		 *
+		 * @param fraction - a value between 0 and 1
+		 * @return the fractile curve
+		 */
+		public synchronized DiscretizedFunc getFractileCurve(double fraction) {
+			Preconditions.checkArgument(fraction >= 0 && fraction <= 1,
+					"fraction must be between 0 and 1");
+			Preconditions.checkState(numBranches > 0, "no branch calculated yet");
+			double[] vals = new double[sum.length];
+			for (int k=0; k<vals.length; k++) {
+				ArbDiscrEmpiricalDistFunc dist = new ArbDiscrEmpiricalDistFunc();
+				for (int i=0; i<branchVals.length; i++)
+					if (branchVals[i] != null)
+						dist.set(branchVals[i][k], weights[i]);
+				vals[k] = dist.getInterpolatedFractile(fraction);
+			}
+			return toFunc(vals);
+		}
+
+		private DiscretizedFunc toFunc(double[] vals) {
+			ArbitrarilyDiscretizedFunc func = new ArbitrarilyDiscretizedFunc();
+			for (int k=0; k<vals.length; k++)
+				func.set(xValues.getX(k), vals[k]);
+			return func;
+		}
+	}
+
+}
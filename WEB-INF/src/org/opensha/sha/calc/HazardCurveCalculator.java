@@ -21,16 +21,23 @@ package org.opensha.sha.calc;
 
 
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.opensha.commons.calc.GaussianDistCalc;
 import org.opensha.commons.data.Site;
 import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
 import org.opensha.commons.data.function.DiscretizedFunc;
 import org.opensha.commons.data.function.LightFixedXFunc;
 import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.LocationUtils;
 import org.opensha.commons.param.Parameter;
 import org.opensha.commons.param.ParameterList;
 import org.opensha.commons.param.event.ParameterChangeWarningEvent;
@@ -48,12 +55,21 @@ import org.opensha.sha.earthquake.ERF;
 import org.opensha.sha.earthquake.EqkRupture;
 import org.opensha.sha.earthquake.ProbEqkRupture;
 import org.opensha.sha.earthquake.ProbEqkSource;
+import org.opensha.sha.earthquake.rupForecastImpl.PointEqkSource;
 import org.opensha.sha.earthquake.rupForecastImpl.Frankel96.Frankel96_EqkRupForecast;
+import org.opensha.sha.earthquake.util.SourceSpatialIndex;
 import org.opensha.sha.faultSurface.PointSurface;
+import org.opensha.sha.faultSurface.cache.SiteDistanceTable;
 import org.opensha.sha.faultSurface.utils.PtSrcDistCorr;
 import org.opensha.sha.imr.AttenuationRelationship;
+import org.opensha.sha.imr.FastExceedProbIMR;
+import org.opensha.sha.imr.MultiPeriodIMR;
+import org.opensha.sha.imr.PointSourceExceedProbIMR;
+import org.opensha.sha.imr.PrecomputedDistancesIMR;
 import org.opensha.sha.imr.ScalarIMR;
 import org.opensha.sha.imr.attenRelImpl.BJF_1997_AttenRel;
+import org.opensha.sha.imr.param.IntensityMeasureParams.PeriodParam;
+import org.opensha.sha.util.IMRUtils;
 import org.opensha.sha.util.TRTUtils;
 import org.opensha.sha.util.TectonicRegionType;
 
@@ -107,12 +123,28 @@ implements HazardCurveCalculatorAPI, ParameterChangeWarningListener{
 
 	private ParameterList adjustableParams;
 
-	// misc counting and index variables
-	protected int currRuptures = -1;
-	protected int totRuptures=0;
+	// misc counting and index variables (the rupture counts are read by other threads
+	// for progress reports)
+	protected final AtomicInteger currRuptures = new AtomicInteger(-1);
+	protected volatile int totRuptures=0;
 	protected int sourceIndex;
 	protected int numSources;
 
+	// set by stopCalc() to end the current calculation
+	private volatile boolean stopRequested;
+
+	// pool for source-parallel calculations (null for the serial calculation)
+	private ForkJoinPool forkJoinPool;
+
+	// distances of the site being calculated, shared with other calculators (may be null)
+	private SiteDistanceTable siteDistances;
+
+	// spatial index of the sources of the ERF (may be null)
+	private SourceSpatialIndex sourceIndexer;
+
+	// filled in with the contributing ruptures of each serial calculation (may be null)
+	private RuptureDataStore ruptureData;
+
 
 	/**
 	 * creates the HazardCurveCalculator object
@@ -198,6 +230,152 @@ implements HazardCurveCalculatorAPI, ParameterChangeWarningListener{
 	}
 
 
+	/**
+	 * Sets the pool used to split the sources of
+	 * {@link #getHazardCurve(DiscretizedFunc, Site, Map, ERF)} across threads, or null
+	 * (the default) for the serial calculation. See
+	 * {@link #getHazardCurveParallel(DiscretizedFunc, Site, Map, ERF)} for how results
+	 * compare to the serial calculation.
+	 */
+	public void setForkJoinPool(ForkJoinPool forkJoinPool) {
+		this.forkJoinPool = forkJoinPool;
+	}
+
+	public ForkJoinPool getForkJoinPool() {
+		return forkJoinPool;
+	}
+
+	/**
+	 * Sets a table of the distances between a site and the ruptures of an ERF, or null
+	 * (the default) to measure the rupture surfaces in every calculation. The table is
+	 * only used by calculations for its own ERF and site location, and is filled in by
+	 * them, so that other calculators for the same site can reuse the distances.
+	 */
+	public void setSiteDistances(SiteDistanceTable siteDistances) {
+		this.siteDistances = siteDistances;
+	}
+
+	public SiteDistanceTable getSiteDistances() {
+		return siteDistances;
+	}
+
+	/**
+	 * Sets a store to be filled in with the rate, mean, standard deviation, distance
+	 * and magnitude of each contributing rupture by
+	 * {@link #getHazardCurve(DiscretizedFunc, Site, Map, ERF)}, or null (the default)
+	 * to keep none. The store is filled in on the serial and parallel paths alike (the
+	 * parallel tasks fill in stores of their own, which are merged in source order).
+	 * <p>
+	 * With a store, point sources are computed rupture by rupture rather than with
+	 * {@link PointSourceExceedProbIMR}, as that only gives the exceedance probabilities
+	 * and the store needs the mean and standard deviation of every rupture. This costs
+	 * a rupture and surface per point source rupture, which is less than what the store
+	 * saves on the disaggregations of the site; the hazard curve is the same.
+	 */
+	public void setRuptureDataStore(RuptureDataStore ruptureData) {
+		this.ruptureData = ruptureData;
+	}
+
+	public RuptureDataStore getRuptureDataStore() {
+		return ruptureData;
+	}
+
+	/**
+	 * @return the site distance table if it is for the given ERF and site, else null
+	 */
+	private SiteDistanceTable getSiteDistances(Site site, ERF eqkRupForecast) {
+		if (siteDistances != null && siteDistances.isFor(eqkRupForecast, site))
+			return siteDistances;
+		return null;
+	}
+
+	/**
+	 * Sets a spatial index of the sources of an ERF, or null (the default) to check the
+	 * distance of every source. The index is only used by calculations for its own ERF,
+	 * which then only go through the sources it returns as candidates for the site. As
+	 * every source within the maximum distance is a candidate, the curves do not change.
+	 */
+	public void setSourceIndex(SourceSpatialIndex sourceIndexer) {
+		this.sourceIndexer = sourceIndexer;
+	}
+
+	public SourceSpatialIndex getSourceIndex() {
+		return sourceIndexer;
+	}
+
+	/**
+	 * @return the indices of the sources that may be within the maximum distance of the
+	 * site, in ascending order; all of them unless an index is set for the ERF
+	 */
+	private int[] getCandidateSources(Site site, ERF eqkRupForecast, double maxDistance) {
+		if (sourceIndexer != null && sourceIndexer.isFor(eqkRupForecast))
+			return sourceIndexer.getCandidateSources(site.getLocation(), maxDistance);
+		int[] candidates = new int[eqkRupForecast.getNumSources()];
+		for (int i = 0; i < candidates.length; i++)
+			candidates[i] = i;
+		return candidates;
+	}
+
+	/**
+	 * @return the number of ruptures of each source of the ERF, from the index if it is
+	 * for the ERF
+	 */
+	private int[] getSourceNumRuptures(ERF eqkRupForecast) {
+		if (sourceIndexer != null && sourceIndexer.isFor(eqkRupForecast))
+			return sourceIndexer.getNumRuptures();
+		int[] numRuptures = new int[eqkRupForecast.getNumSources()];
+		for (int i = 0; i < numRuptures.length; i++)
+			numRuptures[i] = eqkRupForecast.getSource(i).getNumRuptures();
+		return numRuptures;
+	}
+
+	/**
+	 * @return the number of ruptures of all the sources of the ERF, from the index if
+	 * it is for the ERF
+	 */
+	private int getTotNumRuptures(ERF eqkRupForecast) {
+		if (sourceIndexer != null && sourceIndexer.isFor(eqkRupForecast))
+			return sourceIndexer.getTotNumRuptures();
+		int numRuptureTotal = 0;
+		for (int numRuptures : getSourceNumRuptures(eqkRupForecast))
+			numRuptureTotal += numRuptures;
+		return numRuptureTotal;
+	}
+
+	/**
+	 * This fills in the conditional probabilities of exceedance for the rupture, without
+	 * setting the rupture in the IMR if it can evaluate the rupture directly, and with the
+	 * given distances if it can take them.
+	 */
+	static DiscretizedFunc getExceedProbabilities(ScalarIMR imr, EqkRupture rupture,
+			SiteDistanceTable.Distances rupDists, DiscretizedFunc condProbFunc) {
+		if (rupDists != null && imr instanceof PrecomputedDistancesIMR)
+			return ((PrecomputedDistancesIMR)imr).getExceedProbabilities(rupture, rupDists, condProbFunc);
+		if (imr instanceof FastExceedProbIMR)
+			return ((FastExceedProbIMR)imr).getExceedProbabilities(rupture, condProbFunc);
+		imr.setEqkRupture(rupture);
+		return imr.getExceedProbabilities(condProbFunc);
+	}
+
+	/**
+	 * This sets the rupture in the IMR, adds its mean, standard deviation and distance to
+	 * the rupture data store, and fills in its conditional probabilities of exceedance
+	 * from them.
+	 */
+	private static void addRuptureData(RuptureDataStore ruptureData, ScalarIMR imr, EqkRupture rupture,
+			SiteDistanceTable.Distances rupDists, Site site, int rupIndex, double qkProb,
+			LightFixedXFunc condProbFunc) {
+		IMRUtils.setEqkRupture(imr, rupture, rupDists);
+		double mean = imr.getMean();
+		double stdDev = imr.getStdDev();
+		double distRup = rupDists != null ? rupDists.getDistanceRup()
+				: rupture.getRuptureSurface().getDistanceRup(site.getLocation());
+		ruptureData.addRupture(rupIndex, qkProb, mean, stdDev, distRup, rupture.getMag());
+		int s = ruptureData.getNumSources() - 1;
+		GaussianDistCalc.getExceedProbs(mean, stdDev, condProbFunc.getXVals(), condProbFunc.getYVals(),
+				condProbFunc.size(), ruptureData.getTruncType(s), ruptureData.getTruncLevel(s));
+	}
+
 	@Override
 	public DiscretizedFunc getAnnualizedRates(DiscretizedFunc hazFunction, double years) {
 		DiscretizedFunc annualizedRateFunc = (DiscretizedFunc)hazFunction.deepClone();
@@ -225,6 +403,9 @@ implements HazardCurveCalculatorAPI, ParameterChangeWarningListener{
 			Map<TectonicRegionType, ScalarIMR> imrMap, 
 			ERF eqkRupForecast){
 
+		if (forkJoinPool != null)
+			return getHazardCurveParallel(hazFunction, site, imrMap, eqkRupForecast);
+
 		//	  System.out.println("Haz Curv Calc: maxDistanceParam.getValue()="+maxDistanceParam.getValue().toString());
 		//	  System.out.println("Haz Curv Calc: numStochEventSetRealizationsParam.getValue()="+numStochEventSetRealizationsParam.getValue().toString());
 		//	  System.out.println("Haz Curv Calc: includeMagDistFilterParam.getValue()="+includeMagDistFilterParam.getValue().toString());
@@ -236,7 +417,9 @@ implements HazardCurveCalculatorAPI, ParameterChangeWarningListener{
 		if (setTRTinIMR_FromSource)
 			trtOrigVals = TRTUtils.getTRTsSetInIMRs(imrMap);
 
-		this.currRuptures = -1;
+		currRuptures.set(-1);
+		stopRequested = false;
+		Thread calcThread = Thread.currentThread();
 		
 		PtSrcDistCorr.Type distCorrType = getPtSrcDistCorrType();
 
@@ -249,15 +432,18 @@ implements HazardCurveCalculatorAPI, ParameterChangeWarningListener{
 //		DiscretizedFunc condProbFunc = hazFunction.deepClone();
 //		DiscretizedFunc sourceHazFunc = hazFunction.deepClone();
 		DiscretizedFunc condProbFunc = new LightFixedXFunc(hazFunction);
-		DiscretizedFunc sourceHazFunc = new LightFixedXFunc(hazFunction);
 
 		// declare some varibles used in the calculation
 		double qkProb, distance;
-		int k;
 
 		// get the number of points
 		int numPoints = hazFunction.size();
 
+		// the log of the probability of non-exceedance, and the hazard of the current
+		// non-poisson source (see addPoissonRupture)
+		double[] logSurvival = new double[numPoints];
+		double[] sourceHaz = new double[numPoints];
+
 		// define distance filtering stuff
 		double maxDistance = maxDistanceParam.getValue();
 		boolean includeMagDistFilter = includeMagDistFilterParam.getValue();
@@ -278,28 +464,37 @@ implements HazardCurveCalculatorAPI, ParameterChangeWarningListener{
 
 
 		// compute the total number of ruptures for updating the progress bar
-		totRuptures = 0;
-		sourceIndex =0;
-		for(sourceIndex=0;sourceIndex<numSources;++sourceIndex)
-			totRuptures+=eqkRupForecast.getSource(sourceIndex).getNumRuptures();
+		int[] srcNumRuptures = getSourceNumRuptures(eqkRupForecast);
+		int numRuptureTotal = 0;
+		for (int numRuptures : srcNumRuptures)
+			numRuptureTotal += numRuptures;
+		totRuptures = numRuptureTotal;
 		//System.out.println("Total number of ruptures:"+ totRuptures);
 
+		if (ruptureData != null)
+			ruptureData.clear(eqkRupForecast, site, srcNumRuptures);
+
 
 		// init the current rupture number (also for progress bar)
-		currRuptures = 0;
+		currRuptures.set(0);
 		int numRupRejected =0;
 
-		// initialize the hazard function to 1.0
-		initDiscretizeValues(hazFunction, 1.0);
-
 		// this boolean will tell us whether a source was actually used
 		// (e.g., all sources could be outside MAX_DISTANCE, leading to numerical problems)
 		boolean sourceUsed = false;
 
+		// filled in by sources that support rupture reuse (e.g., point sources)
+		ProbEqkRupture reusableRup = new ProbEqkRupture();
+
+		SiteDistanceTable siteDists = getSiteDistances(site, eqkRupForecast);
+		int[] candidates = getCandidateSources(site, eqkRupForecast, maxDistance);
+
 		if (D) System.out.println(C+": starting hazard curve calculation");
 
-		// loop over sources
-		for(sourceIndex=0;sourceIndex < numSources ;sourceIndex++) {
+		// loop over sources (that may be close enough; stopCalc() ends the loop)
+		sourceIndex = 0;
+		for(int c=0; c<candidates.length && !isStopped(calcThread); c++) {
+			sourceIndex = candidates[c];
 
 			//if (sourceIndex%1000 ==0) System.out.println("SourceIdx: " + sourceIndex);
 			
@@ -316,11 +511,14 @@ implements HazardCurveCalculatorAPI, ParameterChangeWarningListener{
 			}
 
 			// compute the source's distance from the site and skip if it's too far away
-			distance = source.getMinDistance(site);
+			if (siteDists != null)
+				distance = siteDists.getMinDistance(sourceIndex, source);
+			else
+				distance = source.getMinDistance(site);
 
 			// apply distance cutoff to source
 			if(distance > maxDistance) {
-				currRuptures += source.getNumRuptures();  //update progress bar for skipped ruptures
+				currRuptures.addAndGet(source.getNumRuptures());  //update progress bar for skipped ruptures
 				continue;
 			}
 			//System.out.println(" dist: " + distance);
@@ -335,15 +533,41 @@ implements HazardCurveCalculatorAPI, ParameterChangeWarningListener{
 
 			// initialize the source hazard function to 0.0 if it's a non-poisson source
 			if(!poissonSource)
-				initDiscretizeValues(sourceHazFunc, 0.0);
+				Arrays.fill(sourceHaz, 0.0);
 
 			// get the number of ruptures for the current source
 			int numRuptures = source.getNumRuptures();
 
+			if (ruptureData != null)
+				ruptureData.addSource(sourceIndex, source, imr);
+
+			// do point sources in a single loop over their magnitudes (see addPointSource)
+			if(source instanceof PointEqkSource && imr instanceof PointSourceExceedProbIMR
+					&& ruptureData == null) {
+				try {
+					if(addPointSource((PointSourceExceedProbIMR)imr, (PointEqkSource)source, site.getLocation(),
+							includeMagDistFilter ? magThresh : Double.NEGATIVE_INFINITY, distCorrType,
+							logSurvival, sourceHaz, condProbFunc))
+						sourceUsed = true;
+				} catch (Throwable t) {
+					System.err.println("Error occured while calculating hazard curve " +
+							"for point source:  "+sourceIndex);
+					System.err.println("Source Name: "+source.getName());
+					System.err.println("ERF: "+eqkRupForecast.getName());
+					System.err.println("IMR: "+imr.getName());
+					System.err.println("Site: "+site);
+					ExceptionUtils.throwAsRuntimeException(t);
+				}
+				if(!poissonSource)
+					addNonPoissonSource(logSurvival, sourceHaz);
+				currRuptures.addAndGet(numRuptures);
+				continue;
+			}
+
 			// loop over these ruptures
-			for(int n=0; n < numRuptures ; n++,++currRuptures) {
+			for(int n=0; n < numRuptures ; n++, currRuptures.incrementAndGet()) {
 				
-				EqkRupture rupture = source.getRupture(n);
+				EqkRupture rupture = source.getRupture(n, reusableRup);
 
 				try {
 					// get the rupture probability
@@ -362,32 +586,21 @@ implements HazardCurveCalculatorAPI, ParameterChangeWarningListener{
 					// indicate that a source has been used (put here because of above filter)
 					sourceUsed = true;
 
-					// set the EqkRup in the IMR
-					imr.setEqkRupture(rupture);
-
 					// get the conditional probability of exceedance from the IMR
-					condProbFunc = imr.getExceedProbabilities(condProbFunc);
+					SiteDistanceTable.Distances rupDists = null;
+					if (siteDists != null)
+						rupDists = siteDists.getDistances(sourceIndex, source, n, rupture);
+					if (ruptureData != null)
+						addRuptureData(ruptureData, imr, rupture, rupDists, site, n, qkProb, (LightFixedXFunc)condProbFunc);
+					else
+						condProbFunc = getExceedProbabilities(imr, rupture, rupDists, condProbFunc);
 					
 					// For poisson source
-					if(poissonSource) {
-						/* First make sure the probability isn't 1.0 (or too close); otherwise rates are
-					infinite and all IMLs will be exceeded (because of ergodic assumption).  This
-					can happen if the number of expected events (over the timespan) exceeds ~37,
-					because at this point 1.0-Math.exp(-num) = 1.0 by numerical precision (and thus,
-					an infinite number of events).  The number 30 used in the check below provides a
-					safe margin.
-						 */
-						if(Math.log(1.0-qkProb) < -30.0)
-							throw new RuntimeException("Error: The probability for this ProbEqkRupture ("+qkProb+
-							") is too high for a Possion source (~infinite number of events)");
-
-						for(k=0;k<numPoints;k++)
-							hazFunction.set(k,hazFunction.getY(k)*Math.pow(1-qkProb,condProbFunc.getY(k)));
-					}
+					if(poissonSource)
+						addPoissonRupture(logSurvival, qkProb, condProbFunc);
 					// For non-Poissin source
 					else
-						for(k=0;k<numPoints;k++)
-							sourceHazFunc.set(k,sourceHazFunc.getY(k) + qkProb*condProbFunc.getY(k));
+						addRupture(sourceHaz, qkProb, condProbFunc);
 				} catch (Throwable t) {
 					System.err.println("Error occured while calculating hazard curve " +
 							"for rupture:  "+sourceIndex+" "+n);
@@ -396,24 +609,24 @@ implements HazardCurveCalculatorAPI, ParameterChangeWarningListener{
 					System.err.println("ERF: "+eqkRupForecast.getName());
 					System.err.println("IMR: "+imr.getName());
 					System.err.println("Site: "+site);
-					System.err.println("Curve: "+hazFunction);
+					System.err.println("Log non-exceedance curve: "+Arrays.toString(logSurvival));
 					//System.err.println("RupM: "+source.getRupture(n).getMag());
 					ExceptionUtils.throwAsRuntimeException(t);
 				}
 			}
 			// for non-poisson source:
 			if(!poissonSource)
-				for(k=0;k<numPoints;k++)
-					hazFunction.set(k,hazFunction.getY(k)*(1-sourceHazFunc.getY(k)));
+				addNonPoissonSource(logSurvival, sourceHaz);
+		}
+		// sources that were not candidates are skipped too
+		if (!isStopped(calcThread)) {
+			currRuptures.set(totRuptures);
+			if (ruptureData != null)
+				ruptureData.setComplete();
 		}
 
-		int i;
 		// finalize the hazard function
-		if(sourceUsed)
-			for(i=0;i<numPoints;++i)
-				hazFunction.set(i,1-hazFunction.getY(i));
-		else
-			this.initDiscretizeValues(hazFunction, 0.0);
+		setHazardCurve(hazFunction, logSurvival, sourceUsed);
 
 		if (D) System.out.println(C+"hazFunction.toString"+hazFunction.toString());
 
@@ -426,6 +639,562 @@ implements HazardCurveCalculatorAPI, ParameterChangeWarningListener{
 		return hazFunction;
 	}
 
+	/**
+	 * This adds the log of the probability that a rupture of a Poisson source does not
+	 * cause exceedance, condProb*ln(1-qkProb), to each IML of the given log
+	 * non-exceedance curve.  Hazard curves are accumulated this way (and converted with
+	 * {@link #setHazardCurve(DiscretizedFunc, double[], boolean)} at the end) rather than
+	 * by multiplying in pow(1-qkProb, condProb) for every rupture, which saves a Math.pow
+	 * call per IML and rupture, and gives partial curves that can simply be added.
+	 * <p>
+	 * The probability must not be 1.0 (or too close); otherwise rates are infinite
+	 * and all IMLs will be exceeded (because of ergodic assumption).  This can happen if
+	 * the number of expected events (over the timespan) exceeds ~37, because at this point
+	 * 1.0-Math.exp(-num) = 1.0 by numerical precision (and thus, an infinite number of
+	 * events).  The number 30 used in the check below provides a safe margin.
+	 *
+	 * @param logSurvival - log non-exceedance probability for each IML
+	 * @param qkProb - rupture probability
+	 * @param condProbFunc - conditional exceedance probability for each IML
+	 */
+	protected static void addPoissonRupture(double[] logSurvival, double qkProb,
+			DiscretizedFunc condProbFunc) {
+		double lnNonExceed = Math.log1p(-qkProb);
+		if(lnNonExceed < -30.0)
+			throw new RuntimeException("Error: The probability for this ProbEqkRupture ("+qkProb+
+			") is too high for a Possion source (~infinite number of events)");
+		int numPoints = logSurvival.length;
+		if (condProbFunc instanceof LightFixedXFunc) {
+			double[] condProbs = ((LightFixedXFunc)condProbFunc).getYVals();
+			for(int k=0;k<numPoints;k++)
+				logSurvival[k] += condProbs[k]*lnNonExceed;
+		} else {
+			for(int k=0;k<numPoints;k++)
+				logSurvival[k] += condProbFunc.getY(k)*lnNonExceed;
+		}
+	}
+
+	/**
+	 * This adds the hazard of every rupture of a point source that is not below the
+	 * magnitude threshold, as the rupture loop of
+	 * {@link #getHazardCurve(DiscretizedFunc, Site, Map, ERF)} does, but without making
+	 * ruptures or surfaces. The horizontal distance to the site is computed once for the
+	 * source, since all its ruptures are at the same latitude and longitude; for each
+	 * rupture only the point-source distance correction (for its magnitude) and the depth
+	 * are applied to it, and the IMR is evaluated from these primitive values.  Ruptures
+	 * of a Poisson source are added to logSurvival, and those of a non-Poisson source to
+	 * sourceHaz (see {@link #addNonPoissonSource(double[], double[])}).
+	 *
+	 * @return true if any rupture was above the magnitude threshold
+	 */
+	protected static boolean addPointSource(PointSourceExceedProbIMR imr, PointEqkSource source,
+			Location siteLoc, double magThresh, PtSrcDistCorr.Type distCorrType,
+			double[] logSurvival, double[] sourceHaz, DiscretizedFunc condProbFunc) {
+		boolean poissonSource = source.isSourcePoissonian();
+		boolean corrected = distCorrType != PtSrcDistCorr.Type.NONE;
+		double horzDist = LocationUtils.horzDistanceFast(source.getLocation(), siteLoc);
+		double distJB = horzDist, distRup = Double.NaN, depth = Double.NaN;
+		boolean used = false;
+		int numRuptures = source.getNumRuptures();
+		for(int n=0; n<numRuptures; n++) {
+			double mag = source.getMag(n);
+			if(mag < magThresh)
+				continue;
+			used = true;
+
+			double rupDepth = source.getRuptureDepth(n);
+			if(corrected) {
+				distJB = horzDist * PtSrcDistCorr.getCorrection(horzDist, mag, distCorrType);
+				distRup = Math.sqrt(rupDepth * rupDepth + distJB * distJB);
+			} else if(rupDepth != depth) {
+				distRup = Math.sqrt(rupDepth * rupDepth + distJB * distJB);
+			}
+			depth = rupDepth;
+
+			condProbFunc = imr.getExceedProbabilities(mag, source.getRake(n), source.getDip(n),
+					depth, distRup, distJB, condProbFunc);
+			if(poissonSource)
+				addPoissonRupture(logSurvival, source.getProbability(n), condProbFunc);
+			else
+				addRupture(sourceHaz, source.getProbability(n), condProbFunc);
+		}
+		return used;
+	}
+
+	/**
+	 * This adds qkProb*condProb to the given source hazard for each IML, for a rupture of
+	 * a non-poisson source.
+	 */
+	protected static void addRupture(double[] sourceHaz, double qkProb, DiscretizedFunc condProbFunc) {
+		int numPoints = sourceHaz.length;
+		if (condProbFunc instanceof LightFixedXFunc) {
+			double[] condProbs = ((LightFixedXFunc)condProbFunc).getYVals();
+			for(int k=0;k<numPoints;k++)
+				sourceHaz[k] += qkProb*condProbs[k];
+		} else {
+			for(int k=0;k<numPoints;k++)
+				sourceHaz[k] += qkProb*condProbFunc.getY(k);
+		}
+	}
+
+	/**
+	 * This adds the log of the non-exceedance probability of a non-poisson source
+	 * (its summed rupture hazard) to the log non-exceedance curve.
+	 */
+	protected static void addNonPoissonSource(double[] logSurvival, double[] sourceHaz) {
+		for(int k=0;k<logSurvival.length;k++)
+			logSurvival[k] += Math.log1p(-sourceHaz[k]);
+	}
+
+	/**
+	 * This sets the y values of the hazard function to the exceedance probabilities for
+	 * the given log non-exceedance curve, 1-exp(logSurvival), or to zero if no source was used.
+	 */
+	protected void setHazardCurve(DiscretizedFunc hazFunction, double[] logSurvival,
+			boolean sourceUsed) {
+		if(sourceUsed)
+			for(int k=0;k<logSurvival.length;++k)
+				hazFunction.set(k,-Math.expm1(logSurvival[k]));
+		else
+			initDiscretizeValues(hazFunction, 0.0);
+	}
+
+	/**
+	 * This computes hazard curves for several SA periods in a single pass over the ERF.
+	 * Source distance filtering, rupture construction and the propagation distances
+	 * (computed when the rupture is set in the IMR) are done once per rupture, and each
+	 * period is then evaluated for that rupture. IMRs implementing {@link MultiPeriodIMR}
+	 * evaluate all periods directly from the tabulated period index (where period 0 is
+	 * PGA); for other IMRs the SA period parameter is changed for each period and
+	 * restored at the end. The magnitude-distance filter, point source distance
+	 * correction and TRT settings are applied as in
+	 * {@link #getHazardCurve(DiscretizedFunc, Site, Map, ERF)}, and each curve is the
+	 * same as that method would return for its period.
+	 *
+	 * @param hazFunctions - one function per period, with the (log) IMLs as x values
+	 * @param periods - SA periods, in the same order as hazFunctions
+	 * @param site
+	 * @param imrMap
+	 * @param eqkRupForecast
+	 * @return the given hazFunctions, filled in
+	 */
+	public List<DiscretizedFunc> getHazardCurves(
+			List<DiscretizedFunc> hazFunctions,
+			List<Double> periods,
+			Site site,
+			Map<TectonicRegionType, ScalarIMR> imrMap, 
+			ERF eqkRupForecast){
+
+		Preconditions.checkArgument(hazFunctions.size() == periods.size(),
+				"number of hazard functions and periods must match");
+		int numIMTs = periods.size();
+
+		boolean setTRTinIMR_FromSource = setTRTinIMR_FromSourceParam.getValue();
+		HashMap<ScalarIMR, TectonicRegionType> trtOrigVals = null;
+		if (setTRTinIMR_FromSource)
+			trtOrigVals = TRTUtils.getTRTsSetInIMRs(imrMap);
+
+		currRuptures.set(-1);
+		stopRequested = false;
+		Thread calcThread = Thread.currentThread();
+
+		PtSrcDistCorr.Type distCorrType = getPtSrcDistCorrType();
+
+		DiscretizedFunc[] condProbFuncs = new DiscretizedFunc[numIMTs];
+		double[][] logSurvival = new double[numIMTs][];
+		double[][] sourceHaz = new double[numIMTs][];
+		for (int m=0; m<numIMTs; m++) {
+			condProbFuncs[m] = new LightFixedXFunc(hazFunctions.get(m));
+			logSurvival[m] = new double[hazFunctions.get(m).size()];
+			sourceHaz[m] = new double[hazFunctions.get(m).size()];
+		}
+
+		double qkProb, distance;
+		int k, m;
+
+		double maxDistance = maxDistanceParam.getValue();
+		boolean includeMagDistFilter = includeMagDistFilterParam.getValue();
+		double magThresh=0.0;
+
+		// initialize IMRs, and look up the period indices or remember the original period
+		Map<ScalarIMR, int[]> periodIndices = new HashMap<ScalarIMR, int[]>();
+		Map<ScalarIMR, Object> origPeriods = new HashMap<ScalarIMR, Object>();
+		for (ScalarIMR imr:imrMap.values()) {
+			imr.resetParameterEventListeners();
+			imr.setUserMaxDistance(maxDistance);
+			imr.setSite(site);
+			if (imr instanceof MultiPeriodIMR) {
+				int[] indices = new int[numIMTs];
+				for (m=0; m<numIMTs; m++)
+					indices[m] = ((MultiPeriodIMR)imr).getPeriodIndex(periods.get(m));
+				periodIndices.put(imr, indices);
+			} else {
+				origPeriods.put(imr, imr.getParameter(PeriodParam.NAME).getValue());
+			}
+		}
+
+		numSources = eqkRupForecast.getNumSources();
+
+		totRuptures = getTotNumRuptures(eqkRupForecast);
+
+		currRuptures.set(0);
+
+		boolean sourceUsed = false;
+		ProbEqkRupture reusableRup = new ProbEqkRupture();
+		SiteDistanceTable siteDists = getSiteDistances(site, eqkRupForecast);
+		int[] candidates = getCandidateSources(site, eqkRupForecast, maxDistance);
+
+		sourceIndex = 0;
+		for(int c=0; c<candidates.length && !isStopped(calcThread); c++) {
+			sourceIndex = candidates[c];
+
+			ProbEqkSource source = eqkRupForecast.getSource(sourceIndex);
+			TectonicRegionType trt = source.getTectonicRegionType();
+
+			ScalarIMR imr = TRTUtils.getIMRforTRT(imrMap, trt);
+			int[] imrPeriodIndices = periodIndices.get(imr);
+
+			if(setTRTinIMR_FromSource) {
+				TRTUtils.setTRTinIMR(imr, trt, nonSupportedTRT_OptionsParam, trtOrigVals.get(imr));
+			}
+
+			if (siteDists != null)
+				distance = siteDists.getMinDistance(sourceIndex, source);
+			else
+				distance = source.getMinDistance(site);
+
+			if(distance > maxDistance) {
+				currRuptures.addAndGet(source.getNumRuptures());
+				continue;
+			}
+
+			if(includeMagDistFilter) {
+				magThresh = magDistCutoffParam.getValue().getInterpolatedY(distance);
+			}
+
+			boolean poissonSource = source.isSourcePoissonian();
+
+			if(!poissonSource)
+				for (m=0; m<numIMTs; m++)
+					Arrays.fill(sourceHaz[m], 0.0);
+
+			int numRuptures = source.getNumRuptures();
+
+			for(int n=0; n < numRuptures ; n++, currRuptures.incrementAndGet()) {
+
+				EqkRupture rupture = source.getRupture(n, reusableRup);
+
+				try {
+					qkProb = ((ProbEqkRupture)rupture).getProbability();
+
+					if(includeMagDistFilter && rupture.getMag() < magThresh)
+						continue;
+
+					if(rupture.getRuptureSurface() instanceof PointSurface)
+						((PointSurface)rupture.getRuptureSurface()).setDistCorrMagAndType(rupture.getMag(), distCorrType);
+
+					sourceUsed = true;
+
+					// set the EqkRup in the IMR (this computes the distances once for all periods)
+					SiteDistanceTable.Distances rupDists = null;
+					if (siteDists != null)
+						rupDists = siteDists.getDistances(sourceIndex, source, n, rupture);
+					IMRUtils.setEqkRupture(imr, rupture, rupDists);
+
+					if(poissonSource && Math.log(1.0-qkProb) < -30.0)
+						throw new RuntimeException("Error: The probability for this ProbEqkRupture ("+qkProb+
+						") is too high for a Possion source (~infinite number of events)");
+
+					for (m=0; m<numIMTs; m++) {
+						DiscretizedFunc condProbFunc = condProbFuncs[m];
+						if (imrPeriodIndices != null) {
+							((MultiPeriodIMR)imr).getExceedProbabilities(imrPeriodIndices[m], condProbFunc);
+						} else {
+							imr.getParameter(PeriodParam.NAME).setValue(periods.get(m));
+							imr.getExceedProbabilities(condProbFunc);
+						}
+
+						if(poissonSource)
+							addPoissonRupture(logSurvival[m], qkProb, condProbFunc);
+						else
+							addRupture(sourceHaz[m], qkProb, condProbFunc);
+					}
+				} catch (Throwable t) {
+					System.err.println("Error occured while calculating hazard curves " +
+							"for rupture:  "+sourceIndex+" "+n);
+					System.err.println("Source Name: "+source.getName());
+					System.err.println("ERF: "+eqkRupForecast.getName());
+					System.err.println("IMR: "+imr.getName());
+					System.err.println("Site: "+site);
+					System.err.println("Periods: "+periods);
+					ExceptionUtils.throwAsRuntimeException(t);
+				}
+			}
+			if(!poissonSource)
+				for (m=0; m<numIMTs; m++)
+					addNonPoissonSource(logSurvival[m], sourceHaz[m]);
+		}
+		if (!isStopped(calcThread))
+			currRuptures.set(totRuptures);
+
+		// finalize the hazard functions
+		for (m=0; m<numIMTs; m++)
+			setHazardCurve(hazFunctions.get(m), logSurvival[m], sourceUsed);
+
+		// restore the period and TRT parameters in IMRs
+		for (Map.Entry<ScalarIMR, Object> entry : origPeriods.entrySet())
+			entry.getKey().getParameter(PeriodParam.NAME).setValue(entry.getValue());
+		if (trtOrigVals != null)
+			TRTUtils.resetTRTsInIMRs(trtOrigVals);
+
+		return hazFunctions;
+	}
+
+	/**
+	 * Source-parallel version of {@link #getHazardCurve(DiscretizedFunc, Site, Map, ERF)},
+	 * used when a pool has been set with {@link #setForkJoinPool(ForkJoinPool)}.
+	 * <p>
+	 * Sources are dealt out round-robin to one task per pool thread (fault sources come
+	 * first in most ERFs, so contiguous blocks balance badly). Each task works on its own
+	 * clone of the IMRs (see {@link IMRUtils#cloneIMR(ScalarIMR)}) and accumulates the log
+	 * of the probability of non-exceedance for its sources, as the serial loop does (see
+	 * {@link #addPoissonRupture(double[], double, DiscretizedFunc)}). The partial curves
+	 * are then added in task order, so the result does not depend on thread scheduling.
+	 * <p>
+	 * The result is not bit-for-bit identical to the serial loop as the terms are summed
+	 * in a different order; the relative difference is of order numRuptures*1e-16. A
+	 * rupture data store is filled in with the same values as by the serial loop.
+	 * {@link #stopCalc()}, or interrupting the calling thread, ends the tasks after the
+	 * sources they are computing.
+	 */
+	protected DiscretizedFunc getHazardCurveParallel(
+			DiscretizedFunc hazFunction,
+			Site site,
+			Map<TectonicRegionType, ScalarIMR> imrMap,
+			ERF eqkRupForecast){
+
+		currRuptures.set(-1);
+		stopRequested = false;
+
+		double maxDistance = maxDistanceParam.getValue();
+
+		// initialize IMRs w/ max distance and site (also done on each clone below)
+		for (ScalarIMR imr:imrMap.values()) {
+			imr.resetParameterEventListeners();
+			imr.setUserMaxDistance(maxDistance);
+			imr.setSite(site);
+		}
+
+		numSources = eqkRupForecast.getNumSources();
+		int[] srcNumRuptures = null;
+		if (ruptureData != null) {
+			srcNumRuptures = getSourceNumRuptures(eqkRupForecast);
+			ruptureData.clear(eqkRupForecast, site, srcNumRuptures);
+		}
+		totRuptures = getTotNumRuptures(eqkRupForecast);
+		currRuptures.set(0);
+
+		SiteDistanceTable siteDists = getSiteDistances(site, eqkRupForecast);
+		int[] candidates = getCandidateSources(site, eqkRupForecast, maxDistance);
+
+		int numTasks = forkJoinPool.getParallelism();
+		List<SourceStrideTask> tasks = new ArrayList<SourceStrideTask>(numTasks);
+		for (int t=0; t<numTasks; t++) {
+			Map<TectonicRegionType, ScalarIMR> taskIMRs = IMRUtils.cloneIMR_Map(imrMap);
+			for (ScalarIMR imr:taskIMRs.values()) {
+				imr.setUserMaxDistance(maxDistance);
+				imr.setSite(site);
+			}
+			RuptureDataStore taskData = null;
+			if (ruptureData != null) {
+				taskData = new RuptureDataStore();
+				taskData.clear(eqkRupForecast, site, srcNumRuptures);
+			}
+			SourceStrideTask task = new SourceStrideTask(t, numTasks, taskIMRs,
+					hazFunction, site, eqkRupForecast, siteDists, candidates, taskData,
+					Thread.currentThread());
+			tasks.add(task);
+			forkJoinPool.execute(task);
+		}
+
+		// combine the partial log-survival curves
+		int numPoints = hazFunction.size();
+		double[] logSurvival = new double[numPoints];
+		boolean sourceUsed = false;
+		for (SourceStrideTask task : tasks) {
+			double[] partial = task.join();
+			for(int k=0;k<numPoints;k++)
+				logSurvival[k] += partial[k];
+			sourceUsed |= task.sourceUsed;
+		}
+		if (!isStopped(Thread.currentThread())) {
+			currRuptures.set(totRuptures);
+			if (ruptureData != null) {
+				List<RuptureDataStore> parts = new ArrayList<RuptureDataStore>(numTasks);
+				for (SourceStrideTask task : tasks)
+					parts.add(task.ruptureData);
+				ruptureData.addSources(parts);
+				ruptureData.setComplete();
+			}
+		}
+
+		// finalize the hazard function
+		setHazardCurve(hazFunction, logSurvival, sourceUsed);
+
+		return hazFunction;
+	}
+
+	/**
+	 * Computes the log of the probability of non-exceedance for every <code>stride</code>'th
+	 * candidate source starting at <code>first</code>, with its own IMRs, and fills in its
+	 * own rupture data store if it has one.
+	 */
+	private class SourceStrideTask extends RecursiveTask<double[]> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int first, stride;
+		private final Map<TectonicRegionType, ScalarIMR> imrMap;
+		private final DiscretizedFunc hazFunction;
+		private final Site site;
+		private final ERF eqkRupForecast;
+		private final SiteDistanceTable siteDists;
+		private final int[] candidates;
+		private final RuptureDataStore ruptureData;
+		private final Thread calcThread;
+
+		// calculator settings, read on the calling thread
+		private final double maxDistance = maxDistanceParam.getValue();
+		private final boolean includeMagDistFilter = includeMagDistFilterParam.getValue();
+		private final ArbitrarilyDiscretizedFunc magDistFunc = magDistCutoffParam.getValue();
+		private final boolean setTRTinIMR_FromSource = setTRTinIMR_FromSourceParam.getValue();
+		private final PtSrcDistCorr.Type distCorrType = getPtSrcDistCorrType();
+
+		private boolean sourceUsed = false;
+
+		private SourceStrideTask(int first, int stride, Map<TectonicRegionType, ScalarIMR> imrMap,
+				DiscretizedFunc hazFunction, Site site, ERF eqkRupForecast, SiteDistanceTable siteDists,
+				int[] candidates, RuptureDataStore ruptureData, Thread calcThread) {
+			this.first = first;
+			this.stride = stride;
+			this.imrMap = imrMap;
+			this.hazFunction = hazFunction;
+			this.site = site;
+			this.eqkRupForecast = eqkRupForecast;
+			this.siteDists = siteDists;
+			this.candidates = candidates;
+			this.ruptureData = ruptureData;
+			this.calcThread = calcThread;
+		}
+
+		@Override
+		protected double[] compute() {
+			int numPoints = hazFunction.size();
+			double[] logSurvival = new double[numPoints];
+			double[] sourceHaz = new double[numPoints];
+			DiscretizedFunc condProbFunc = new LightFixedXFunc(hazFunction);
+
+			HashMap<ScalarIMR, TectonicRegionType> trtOrigVals = null;
+			if (setTRTinIMR_FromSource)
+				trtOrigVals = TRTUtils.getTRTsSetInIMRs(imrMap);
+
+			double magThresh = 0.0;
+			int k;
+			ProbEqkRupture reusableRup = new ProbEqkRupture();
+
+			for(int c=first; c<candidates.length && !isStopped(calcThread); c+=stride) {
+				int s = candidates[c];
+
+				ProbEqkSource source = eqkRupForecast.getSource(s);
+				currRuptures.addAndGet(source.getNumRuptures());
+				TectonicRegionType trt = source.getTectonicRegionType();
+				ScalarIMR imr = TRTUtils.getIMRforTRT(imrMap, trt);
+				if(setTRTinIMR_FromSource)
+					TRTUtils.setTRTinIMR(imr, trt, nonSupportedTRT_OptionsParam, trtOrigVals.get(imr));
+
+				double distance;
+				if (siteDists != null)
+					distance = siteDists.getMinDistance(s, source);
+				else
+					distance = source.getMinDistance(site);
+				if(distance > maxDistance)
+					continue;
+				if(includeMagDistFilter)
+					magThresh = magDistFunc.getInterpolatedY(distance);
+
+				boolean poissonSource = source.isSourcePoissonian();
+				if(!poissonSource)
+					for(k=0;k<numPoints;k++)
+						sourceHaz[k] = 0.0;
+
+				if (ruptureData != null)
+					ruptureData.addSource(s, source, imr);
+
+				if(source instanceof PointEqkSource && imr instanceof PointSourceExceedProbIMR
+						&& ruptureData == null) {
+					try {
+						if(addPointSource((PointSourceExceedProbIMR)imr, (PointEqkSource)source, site.getLocation(),
+								includeMagDistFilter ? magThresh : Double.NEGATIVE_INFINITY, distCorrType,
+								logSurvival, sourceHaz, condProbFunc))
+							sourceUsed = true;
+					} catch (Throwable t) {
+						System.err.println("Error occured while calculating hazard curve " +
+								"for point source:  "+s);
+						System.err.println("Source Name: "+source.getName());
+						System.err.println("ERF: "+eqkRupForecast.getName());
+						System.err.println("IMR: "+imr.getName());
+						System.err.println("Site: "+site);
+						ExceptionUtils.throwAsRuntimeException(t);
+					}
+					if(!poissonSource)
+						addNonPoissonSource(logSurvival, sourceHaz);
+					continue;
+				}
+
+				int numRuptures = source.getNumRuptures();
+				for(int n=0; n < numRuptures ; n++) {
+					EqkRupture rupture = source.getRupture(n, reusableRup);
+					try {
+						double qkProb = ((ProbEqkRupture)rupture).getProbability();
+
+						if(includeMagDistFilter && rupture.getMag() < magThresh)
+							continue;
+
+						if(rupture.getRuptureSurface() instanceof PointSurface)
+							((PointSurface)rupture.getRuptureSurface()).setDistCorrMagAndType(rupture.getMag(), distCorrType);
+
+						sourceUsed = true;
+
+						SiteDistanceTable.Distances rupDists = null;
+						if (siteDists != null)
+							rupDists = siteDists.getDistances(s, source, n, rupture);
+						if (ruptureData != null)
+							addRuptureData(ruptureData, imr, rupture, rupDists, site, n, qkProb,
+									(LightFixedXFunc)condProbFunc);
+						else
+							condProbFunc = getExceedProbabilities(imr, rupture, rupDists, condProbFunc);
+
+						if(poissonSource)
+							addPoissonRupture(logSurvival, qkProb, condProbFunc);
+						else
+							addRupture(sourceHaz, qkProb, condProbFunc);
+					} catch (Throwable t) {
+						System.err.println("Error occured while calculating hazard curve " +
+								"for rupture:  "+s+" "+n);
+						System.err.println("Source Name: "+source.getName());
+						System.err.println("ERF: "+eqkRupForecast.getName());
+						System.err.println("IMR: "+imr.getName());
+						System.err.println("Site: "+site);
+						ExceptionUtils.throwAsRuntimeException(t);
+					}
+				}
+				if(!poissonSource)
+					addNonPoissonSource(logSurvival, sourceHaz);
+			}
+			return logSurvival;
+		}
+	}
+
 	@Override
 	public DiscretizedFunc getAverageEventSetHazardCurve(DiscretizedFunc hazFunction,
 			Site site, ScalarIMR imr, 
@@ -443,13 +1212,13 @@ implements HazardCurveCalculatorAPI, ParameterChangeWarningListener{
 		initDiscretizeValues(hazFunction, 0);
 		int numPts=hazCurve.size();
 		// for progress bar
-		currRuptures=0;
+		currRuptures.set(0);
 		//	  totRuptures=numEventSets;
 
 		for(int i=0;i<numEventSets;i++) {
 			List<EqkRupture> events = eqkRupForecast.drawRandomEventSet();
 			if(i==0) totRuptures = events.size()*numEventSets; // this is an approximate total number of events
-			currRuptures+=events.size();
+			currRuptures.addAndGet(events.size());
 			getEventSetHazardCurve( hazCurve,site, imr, events, false);
 			for(int x=0; x<numPts; x++)
 				hazFunction.set(x, hazFunction.getY(x)+hazCurve.getY(x));
@@ -488,7 +1257,7 @@ implements HazardCurveCalculatorAPI, ParameterChangeWarningListener{
 		// progress bar stuff
 		if(updateCurrRuptures) {
 			totRuptures = totRups;
-			currRuptures = 0;
+			currRuptures.set(0);
 		}
 
 		// initialize the hazard function to 1.0 (initial total non-exceedance probability)
@@ -507,7 +1276,7 @@ implements HazardCurveCalculatorAPI, ParameterChangeWarningListener{
 		// loop over ruptures
 		for(int n=0; n < totRups ; n++) {
 
-			if(updateCurrRuptures)++currRuptures;
+			if(updateCurrRuptures) currRuptures.incrementAndGet();
 
 			EqkRupture rupture = eqkRupList.get(n);
 			
@@ -593,7 +1362,7 @@ implements HazardCurveCalculatorAPI, ParameterChangeWarningListener{
 
 	@Override
 	public int getCurrRuptures(){
-		return this.currRuptures;
+		return currRuptures.get();
 	}
 
 	@Override
@@ -601,9 +1370,21 @@ implements HazardCurveCalculatorAPI, ParameterChangeWarningListener{
 		return this.totRuptures;
 	}
 
+	/**
+	 * Ends the current calculation after the source being computed; the curve then only
+	 * includes the sources computed so far. This may be called from any thread. The
+	 * calculations also end if the calculating thread is interrupted.
+	 */
 	@Override
 	public void stopCalc(){
-		sourceIndex = numSources;
+		stopRequested = true;
+	}
+
+	/**
+	 * @return true if the calculation on the given thread is to end
+	 */
+	private boolean isStopped(Thread calcThread) {
+		return stopRequested || calcThread.isInterrupted();
 	}
 
 	/**
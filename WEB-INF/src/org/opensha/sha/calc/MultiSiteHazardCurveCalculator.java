@@ -0,0 +1,488 @@
+package org.opensha.sha.calc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.data.function.LightFixedXFunc;
+import org.opensha.commons.data.xyz.GriddedGeoDataSet;
+import org.opensha.commons.geo.GriddedRegion;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.LocationList;
+import org.opensha.commons.geo.LocationUtils;
+import org.opensha.commons.util.ExceptionUtils;
+import org.opensha.sha.calc.params.NonSupportedTRT_OptionsParam;
+import org.opensha.sha.calc.params.SetTRTinIMR_FromSourceParam;
+import org.opensha.sha.earthquake.ERF;
+import org.opensha.sha.earthquake.ProbEqkRupture;
+import org.opensha.sha.earthquake.ProbEqkSource;
+import org.opensha.sha.earthquake.rupForecastImpl.PointEqkSource;
+import org.opensha.sha.earthquake.util.SourceSpatialIndex;
+import org.opensha.sha.faultSurface.PointSurface;
+import org.opensha.sha.faultSurface.RuptureSurface;
+import org.opensha.sha.faultSurface.cache.SiteDistanceTable;
+import org.opensha.sha.faultSurface.utils.PtSrcDistCorr;
+import org.opensha.sha.imr.PointSourceExceedProbIMR;
+import org.opensha.sha.imr.ScalarIMR;
+import org.opensha.sha.imr.param.SiteParams.DepthTo1pt0kmPerSecParam;
+import org.opensha.sha.imr.param.SiteParams.Vs30_Param;
+import org.opensha.sha.imr.param.SiteParams.Vs30_TypeParam;
+import org.opensha.sha.util.IMRUtils;
+import org.opensha.sha.util.TRTUtils;
+import org.opensha.sha.util.TectonicRegionType;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * <p>Title: MultiSiteHazardCurveCalculator</p>
+ * <p>Description: This computes hazard curves for many sites (e.g. the nodes of a
+ * GriddedRegion) in one pass over the ERF, and hazard maps from those curves.</p>
+ * <p>
+ * Sites are bucketed into square tiles of {@link #setTileSize(double)} degrees. Each tile
+ * only goes through the sources that a {@link SourceSpatialIndex} returns as candidates
+ * within the max distance plus the tile radius of its center; of those, a source is only
+ * considered for a tile if its distance to the tile center, less the tile radius, is
+ * within the max distance, and then only for the sites of that tile within the max
+ * distance, as measured by a {@link SiteDistanceTable} of each site. The index is the one
+ * set with {@link #setSourceIndex(SourceSpatialIndex)} or that of the calculator if they
+ * are for the ERF, else one is built for the calculation. The ruptures of a source
+ * are generated once per tile, and each is evaluated for all of the sites of the tile
+ * before the next is generated, as sources may reuse one rupture object for all of them. Tiles are computed in
+ * parallel on the pool set with {@link #setForkJoinPool(ForkJoinPool)} (or serially if
+ * none is set), each with its own clones of the IMRs for each of its sites.
+ * <p>
+ * Calculation settings (max distance, mag-distance filter, point source distance
+ * correction and TRT options) are taken from the given HazardCurveCalculator, and each
+ * curve equals what that calculator returns for the site, up to the rounding of the
+ * log-space accumulation (see {@link HazardCurveCalculator#getHazardCurveParallel}).
+ */
+public class MultiSiteHazardCurveCalculator {
+
+	protected final static String C = "MultiSiteHazardCurveCalculator";
+	protected final static boolean D = false;
+
+	// margin (km) added to the tile radius when filtering sources by tile
+	private final static double TILE_DIST_MARGIN = 1.0;
+
+	private HazardCurveCalculator calc;
+	private ForkJoinPool forkJoinPool;
+	private double tileSize = 0.5;
+	private SourceSpatialIndex sourceIndex;
+
+	/**
+	 * @param calc - calculator providing the calculation settings
+	 */
+	public MultiSiteHazardCurveCalculator(HazardCurveCalculator calc) {
+		this.calc = calc;
+	}
+
+	/**
+	 * Sets the pool used to compute tiles in parallel, or null for a serial calculation.
+	 */
+	public void setForkJoinPool(ForkJoinPool forkJoinPool) {
+		this.forkJoinPool = forkJoinPool;
+	}
+
+	/**
+	 * Sets the width (in degrees of latitude and longitude) of the site tiles.
+	 */
+	public void setTileSize(double tileSize) {
+		Preconditions.checkArgument(tileSize > 0, "tile size must be > 0");
+		this.tileSize = tileSize;
+	}
+
+	public double getTileSize() {
+		return tileSize;
+	}
+
+	/**
+	 * Sets the spatial index of the sources of the ERF, or null to use that of the
+	 * calculator, or build one for each calculation if it has none for the ERF.
+	 */
+	public void setSourceIndex(SourceSpatialIndex sourceIndex) {
+		this.sourceIndex = sourceIndex;
+	}
+
+	public SourceSpatialIndex getSourceIndex() {
+		return sourceIndex;
+	}
+
+	/*
+	 * The index set, or that of the calculator, if for the ERF; else a new one
+	 */
+	private SourceSpatialIndex getSourceIndex(ERF erf) {
+		if (sourceIndex != null && sourceIndex.isFor(erf))
+			return sourceIndex;
+		SourceSpatialIndex calcIndex = calc.getSourceIndex();
+		if (calcIndex != null && calcIndex.isFor(erf))
+			return calcIndex;
+		return new SourceSpatialIndex(erf);
+	}
+
+	/**
+	 * This creates a site for each location with Vs30 (inferred) and depth to
+	 * Vs=1.0 km/sec parameters set from the given arrays.
+	 *
+	 * @param locs - site locations, e.g. <code>region.getNodeList()</code>
+	 * @param vs30 - Vs30 (m/s) for each location
+	 * @param z1p0 - depth to Vs=1.0 km/sec (m) for each location, or null for none
+	 * @return list of sites
+	 */
+	public static List<Site> createSites(LocationList locs, double[] vs30, double[] z1p0) {
+		Preconditions.checkArgument(vs30.length == locs.size(), "need one Vs30 per location");
+		Preconditions.checkArgument(z1p0 == null || z1p0.length == locs.size(),
+				"need one Z1.0 per location");
+		List<Site> sites = new ArrayList<Site>(locs.size());
+		for (int i=0; i<locs.size(); i++) {
+			Site site = new Site(locs.get(i));
+
+			Vs30_Param vs30Param = new Vs30_Param();
+			vs30Param.setValue(vs30[i]);
+			site.addParameter(vs30Param);
+
+			Vs30_TypeParam vs30_TypeParam = new Vs30_TypeParam();
+			vs30_TypeParam.setValue(Vs30_TypeParam.VS30_TYPE_INFERRED);
+			site.addParameter(vs30_TypeParam);
+
+			DepthTo1pt0kmPerSecParam depthParam = new DepthTo1pt0kmPerSecParam();
+			depthParam.setValue(z1p0 == null ? null : z1p0[i]);
+			site.addParameter(depthParam);
+
+			sites.add(site);
+		}
+		return sites;
+	}
+
+	/**
+	 * This computes the hazard curves for all sites of the region.
+	 *
+	 * @see #getHazardCurves(DiscretizedFunc, List, Map, ERF)
+	 */
+	public DiscretizedFunc[] getHazardCurves(DiscretizedFunc xValues, GriddedRegion region,
+			double[] vs30, double[] z1p0, Map<TectonicRegionType, ScalarIMR> imrMap, ERF erf) {
+		return getHazardCurves(xValues, createSites(region.getNodeList(), vs30, z1p0), imrMap, erf);
+	}
+
+	/**
+	 * This computes the hazard curves for all the given sites.
+	 *
+	 * @param xValues - function with the (log) IMLs as x values; it is not modified
+	 * @param sites - sites with all parameters needed by the IMRs
+	 * @param imrMap - IMRs, cloned for each tile
+	 * @param erf - updated forecast, only read
+	 * @return one hazard curve per site, in the same order as the sites
+	 */
+	public DiscretizedFunc[] getHazardCurves(DiscretizedFunc xValues, List<Site> sites,
+			Map<TectonicRegionType, ScalarIMR> imrMap, ERF erf) {
+
+		int numPoints = xValues.size();
+		double[][] logSurvival = new double[sites.size()][numPoints];
+		boolean[] siteUsed = new boolean[sites.size()];
+		SourceSpatialIndex index = getSourceIndex(erf);
+
+		List<TileTask> tasks = new ArrayList<TileTask>();
+		for (List<Integer> tile : buildTiles(sites))
+			tasks.add(new TileTask(tile, sites, xValues, imrMap, erf, index, logSurvival, siteUsed));
+
+		if (D) System.out.println(C+": "+sites.size()+" sites in "+tasks.size()+" tiles");
+
+		if (forkJoinPool == null) {
+			for (TileTask task : tasks)
+				task.compute();
+		} else {
+			for (TileTask task : tasks)
+				forkJoinPool.execute(task);
+			for (TileTask task : tasks)
+				task.join();
+		}
+
+		DiscretizedFunc[] curves = new DiscretizedFunc[sites.size()];
+		for (int i=0; i<sites.size(); i++) {
+			ArbitrarilyDiscretizedFunc curve = new ArbitrarilyDiscretizedFunc();
+			for (int k=0; k<numPoints; k++)
+				curve.set(xValues.getX(k), siteUsed[i] ? -Math.expm1(logSurvival[i][k]) : 0.0);
+			curves[i] = curve;
+		}
+		return curves;
+	}
+
+	/**
+	 * This returns a hazard map for each return period: the IML with a probability of
+	 * exceedance of 1-exp(-duration/returnPeriod), interpolated in log-log space from
+	 * curves computed with log IMLs as x values. Nodes whose curve never reaches that
+	 * probability are set to NaN.
+	 *
+	 * @param region - region the curves were computed for
+	 * @param curves - hazard curves, one per node of the region
+	 * @param returnPeriods - return periods in years
+	 * @param duration - duration (years) of the forecast the curves were computed with
+	 * @return one map per return period
+	 */
+	public static List<GriddedGeoDataSet> getHazardMaps(GriddedRegion region,
+			DiscretizedFunc[] curves, double[] returnPeriods, double duration) {
+		Preconditions.checkArgument(curves.length == region.getNodeCount(),
+				"need one curve per region node");
+		List<GriddedGeoDataSet> maps = new ArrayList<GriddedGeoDataSet>(returnPeriods.length);
+		for (double returnPeriod : returnPeriods) {
+			double prob = 1-Math.exp(-duration/returnPeriod);
+			GriddedGeoDataSet map = new GriddedGeoDataSet(region, true);
+			for (int i=0; i<curves.length; i++)
+				map.set(region.getLocation(i), getIML_AtProb(curves[i], prob));
+			maps.add(map);
+		}
+		return maps;
+	}
+
+	/*
+	 * IML for the given probability from a curve with log IMLs as x values
+	 */
+	private static double getIML_AtProb(DiscretizedFunc curve, double prob) {
+		for (int k=0; k<curve.size()-1; k++) {
+			double y1 = curve.getY(k);
+			double y2 = curve.getY(k+1);
+			if (y1 >= prob && y2 <= prob) {
+				if (y1 == y2 || y2 <= 0)
+					return Math.exp(curve.getX(k));
+				double x1 = curve.getX(k);
+				double x2 = curve.getX(k+1);
+				double x = x1 + (x2-x1)*(Math.log(prob)-Math.log(y1))/(Math.log(y2)-Math.log(y1));
+				return Math.exp(x);
+			}
+		}
+		return Double.NaN;
+	}
+
+	/*
+	 * Groups site indices by lat/lon cell
+	 */
+	private List<List<Integer>> buildTiles(List<Site> sites) {
+		Map<Long, List<Integer>> tiles = new LinkedHashMap<Long, List<Integer>>();
+		for (int i=0; i<sites.size(); i++) {
+			Location loc = sites.get(i).getLocation();
+			long row = (long)Math.floor(loc.getLatitude()/tileSize);
+			long col = (long)Math.floor(loc.getLongitude()/tileSize);
+			Long key = (row << 32) ^ (col & 0xffffffffL);
+			List<Integer> tile = tiles.get(key);
+			if (tile == null) {
+				tile = new ArrayList<Integer>();
+				tiles.put(key, tile);
+			}
+			tile.add(i);
+		}
+		return new ArrayList<List<Integer>>(tiles.values());
+	}
+
+	/**
+	 * Accumulates the log-survival curves of the sites of one tile. Each tile writes
+	 * only to the rows of its own sites, so no synchronization is needed.
+	 */
+	private class TileTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<Integer> siteIndices;
+		private final List<Site> sites;
+		private final DiscretizedFunc xValues;
+		private final Map<TectonicRegionType, ScalarIMR> imrMap;
+		private final ERF erf;
+		private final SourceSpatialIndex index;
+		private final double[][] logSurvival;
+		private final boolean[] siteUsed;
+
+		// calculator settings, read on the calling thread
+		private final double maxDistance = calc.getMaxSourceDistance();
+		private final ArbitrarilyDiscretizedFunc magDistFunc = calc.getMagDistCutoffFunc();
+		private final PtSrcDistCorr.Type distCorrType = calc.getPtSrcDistCorrType();
+		private final boolean setTRTinIMR_FromSource = (Boolean)calc.getAdjustableParams()
+				.getValue(SetTRTinIMR_FromSourceParam.NAME);
+		private final NonSupportedTRT_OptionsParam nonSupportedTRT_OptionsParam =
+			(NonSupportedTRT_OptionsParam)calc.getAdjustableParams().getParameter(NonSupportedTRT_OptionsParam.NAME);
+
+		private TileTask(List<Integer> siteIndices, List<Site> sites, DiscretizedFunc xValues,
+				Map<TectonicRegionType, ScalarIMR> imrMap, ERF erf, SourceSpatialIndex index,
+				double[][] logSurvival, boolean[] siteUsed) {
+			this.siteIndices = siteIndices;
+			this.sites = sites;
+			this.xValues = xValues;
+			this.imrMap = imrMap;
+			this.erf = erf;
+			this.index = index;
+			this.logSurvival = logSurvival;
+			this.siteUsed = siteUsed;
+		}
+
+		@Override
+		protected void compute() {
+			int numPoints = xValues.size();
+			int numTileSites = siteIndices.size();
+
+			// IMRs for each site of the tile, so that the site is only set once
+			List<Map<TectonicRegionType, ScalarIMR>> siteIMRs =
+				new ArrayList<Map<TectonicRegionType, ScalarIMR>>(numTileSites);
+			HashMap<ScalarIMR, TectonicRegionType> trtOrigVals = new HashMap<ScalarIMR, TectonicRegionType>();
+			for (int j=0; j<numTileSites; j++) {
+				Map<TectonicRegionType, ScalarIMR> imrs = IMRUtils.cloneIMR_Map(imrMap);
+				for (ScalarIMR imr : imrs.values()) {
+					imr.resetParameterEventListeners();
+					imr.setUserMaxDistance(maxDistance);
+					imr.setSite(sites.get(siteIndices.get(j)));
+				}
+				if (setTRTinIMR_FromSource)
+					trtOrigVals.putAll(TRTUtils.getTRTsSetInIMRs(imrs));
+				siteIMRs.add(imrs);
+			}
+
+			// tile center and radius, used to skip sources for the whole tile
+			double latSum = 0, lonSum = 0;
+			for (int i : siteIndices) {
+				latSum += sites.get(i).getLocation().getLatitude();
+				lonSum += sites.get(i).getLocation().getLongitude();
+			}
+			Site center = new Site(new Location(latSum/numTileSites, lonSum/numTileSites));
+			double radius = 0;
+			for (int i : siteIndices)
+				radius = Math.max(radius, LocationUtils.horzDistance(center.getLocation(), sites.get(i).getLocation()));
+
+			// distances of the sites of the tile, dropped with the tile
+			SiteDistanceTable[] distTables = new SiteDistanceTable[numTileSites];
+			for (int j=0; j<numTileSites; j++)
+				distTables[j] = new SiteDistanceTable(erf, sites.get(siteIndices.get(j)));
+
+			DiscretizedFunc condProbFunc = new LightFixedXFunc(xValues);
+			double[] siteDists = new double[numTileSites];
+			double[][] sourceHaz = null;
+			double[] magThresh = new double[numTileSites];
+			ScalarIMR[] imrs = new ScalarIMR[numTileSites];
+			SiteDistanceTable.Distances[] surfDists = new SiteDistanceTable.Distances[numTileSites];
+
+			int[] candidates = index.getCandidateSources(center.getLocation(),
+					maxDistance + radius + TILE_DIST_MARGIN);
+			for (int s : candidates) {
+				ProbEqkSource source = erf.getSource(s);
+
+				// filter for the whole tile (triangle inequality on the min distance)
+				if (source.getMinDistance(center) - radius - TILE_DIST_MARGIN > maxDistance)
+					continue;
+
+				// then for each site
+				boolean anySite = false;
+				for (int j=0; j<numTileSites; j++) {
+					siteDists[j] = distTables[j].getMinDistance(s, source);
+					anySite |= siteDists[j] <= maxDistance;
+				}
+				if (!anySite)
+					continue;
+
+				TectonicRegionType trt = source.getTectonicRegionType();
+				for (int j=0; j<numTileSites; j++) {
+					imrs[j] = TRTUtils.getIMRforTRT(siteIMRs.get(j), trt);
+					if (setTRTinIMR_FromSource && siteDists[j] <= maxDistance)
+						TRTUtils.setTRTinIMR(imrs[j], trt, nonSupportedTRT_OptionsParam, trtOrigVals.get(imrs[j]));
+				}
+
+				boolean poissonSource = source.isSourcePoissonian();
+				if (!poissonSource && sourceHaz == null)
+					sourceHaz = new double[numTileSites][numPoints];
+
+				// point sources are done for each site without ruptures (see
+				// HazardCurveCalculator.addPointSource)
+				boolean pointSource = source instanceof PointEqkSource
+						&& imrs[0] instanceof PointSourceExceedProbIMR;
+
+				for (int j=0; j<numTileSites; j++) {
+					if (siteDists[j] > maxDistance)
+						continue;
+					magThresh[j] = magDistFunc == null ? 0.0 : magDistFunc.getInterpolatedY(siteDists[j]);
+					if (!poissonSource)
+						for (int k=0; k<numPoints; k++)
+							sourceHaz[j][k] = 0.0;
+					if (!pointSource)
+						continue;
+
+					int siteIndex = siteIndices.get(j);
+					Site site = sites.get(siteIndex);
+					ScalarIMR imr = imrs[j];
+					try {
+						if (HazardCurveCalculator.addPointSource((PointSourceExceedProbIMR)imr,
+								(PointEqkSource)source, site.getLocation(),
+								magDistFunc == null ? Double.NEGATIVE_INFINITY : magThresh[j], distCorrType,
+								logSurvival[siteIndex], poissonSource ? null : sourceHaz[j], condProbFunc))
+							siteUsed[siteIndex] = true;
+					} catch (Throwable t) {
+						System.err.println("Error occured while calculating hazard curve " +
+								"for point source:  "+s);
+						System.err.println("Source Name: "+source.getName());
+						System.err.println("IMR: "+imr.getName());
+						System.err.println("Site: "+site);
+						ExceptionUtils.throwAsRuntimeException(t);
+					}
+				}
+
+				// each rupture is evaluated for all sites of the tile before the next
+				// is generated, as the source may return the same (mutable) rupture.
+				// The distances are kept while consecutive ruptures share a surface,
+				// since the surface's own cache only holds a few sites
+				int numRuptures = pointSource ? 0 : source.getNumRuptures();
+				RuptureSurface lastSurface = null;
+				for (int n=0; n<numRuptures; n++) {
+					ProbEqkRupture rupture = source.getRupture(n);
+					double qkProb = rupture.getProbability();
+					RuptureSurface surface = rupture.getRuptureSurface();
+					if (surface instanceof PointSurface) {
+						((PointSurface)surface).setDistCorrMagAndType(rupture.getMag(), distCorrType);
+						lastSurface = null;
+					} else if (surface != lastSurface) {
+						Arrays.fill(surfDists, null);
+						lastSurface = surface;
+					}
+
+					for (int j=0; j<numTileSites; j++) {
+						if (siteDists[j] > maxDistance)
+							continue;
+						if (magDistFunc != null && rupture.getMag() < magThresh[j])
+							continue;
+						int siteIndex = siteIndices.get(j);
+						Site site = sites.get(siteIndex);
+						ScalarIMR imr = imrs[j];
+						try {
+							siteUsed[siteIndex] = true;
+							if (lastSurface != null && surfDists[j] == null) {
+								Location loc = site.getLocation();
+								surfDists[j] = new SiteDistanceTable.Distances(surface.getDistanceRup(loc),
+										surface.getDistanceJB(loc), surface.getDistanceSeis(loc),
+										surface.getDistanceX(loc));
+							}
+							condProbFunc = HazardCurveCalculator.getExceedProbabilities(imr, rupture,
+									lastSurface == null ? null : surfDists[j], condProbFunc);
+
+							if (poissonSource)
+								HazardCurveCalculator.addPoissonRupture(logSurvival[siteIndex], qkProb, condProbFunc);
+							else
+								HazardCurveCalculator.addRupture(sourceHaz[j], qkProb, condProbFunc);
+						} catch (Throwable t) {
+							System.err.println("Error occured while calculating hazard curve " +
+									"for rupture:  "+s+" "+n);
+							System.err.println("Source Name: "+source.getName());
+							System.err.println("IMR: "+imr.getName());
+							System.err.println("Site: "+site);
+							ExceptionUtils.throwAsRuntimeException(t);
+						}
+					}
+				}
+
+				if (!poissonSource)
+					for (int j=0; j<numTileSites; j++)
+						if (siteDists[j] <= maxDistance)
+							HazardCurveCalculator.addNonPoissonSource(logSurvival[siteIndices.get(j)], sourceHaz[j]);
+			}
+		}
+	}
+}
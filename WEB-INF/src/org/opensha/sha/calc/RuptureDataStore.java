@@ -0,0 +1,365 @@
+package org.opensha.sha.calc;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.opensha.commons.calc.GaussianDistCalc;
+import org.opensha.commons.data.Site;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.param.ParameterList;
+import org.opensha.sha.earthquake.AbstractERF;
+import org.opensha.sha.earthquake.ERF;
+import org.opensha.sha.earthquake.ProbEqkSource;
+import org.opensha.sha.imr.AttenuationRelationship;
+import org.opensha.sha.imr.ScalarIMR;
+import org.opensha.sha.imr.param.OtherParams.SigmaTruncLevelParam;
+import org.opensha.sha.imr.param.OtherParams.SigmaTruncTypeParam;
+
+/**
+ * The rate, IMR mean and standard deviation, rupture distance and magnitude of each
+ * rupture of one ERF that contributes to the hazard at one site, for one intensity
+ * measure. A {@link HazardCurveCalculator} given a store fills it in as it calculates
+ * the hazard curve, so that the hazard can then be disaggregated at any IML (or
+ * probability of exceedance read off the curve), and the sources ranked by their
+ * contribution, without going through the ERF or evaluating the IMR again.
+ * <br><br>
+ * Ruptures are kept in columns of primitive arrays, grouped by source: the ruptures of
+ * stored source s are those in [{@link #getFirstRupture(int) getFirstRupture(s)},
+ * <code>getFirstRupture(s+1)</code>). Only the sources within the maximum distance of
+ * the calculation, and ruptures that passed the mag-dist filter, are stored.
+ * <br><br>
+ * Rates are the equivalent Poisson rates over the duration of the forecast,
+ * -ln(1-prob), as all sources are assumed to be Poissonian. They are deliberately not
+ * annualized: the disaggregation calculators report the rates of the ruptures over the
+ * forecast duration, which is what the store is used for; divide by the duration of
+ * the time span of the ERF to get annual rates.
+ * <br><br>
+ * This class is not thread safe.
+ */
+public class RuptureDataStore {
+
+	private static final int INITIAL_RUPTURES = 1024;
+	private static final int INITIAL_SOURCES = 128;
+
+	private ERF erf;
+	private Site site;
+	private Location siteLoc;
+	private int forecastVersion;
+	private boolean complete;
+
+	// number of ruptures of every source of the ERF (not just the stored ones)
+	private int[] erfNumRuptures;
+
+	private int numRups;
+	private int[] rupIndex;
+	private double[] rupRate, rupMean, rupStdDev, rupDist, rupMag;
+
+	private int numSrcs;
+	private int[] srcIndex, srcFirstRup;
+	private ProbEqkSource[] sources;
+	private int[] srcTruncTypes;
+	private double[] srcTruncLevels;
+
+	public RuptureDataStore() {
+		rupIndex = new int[INITIAL_RUPTURES];
+		rupRate = new double[INITIAL_RUPTURES];
+		rupMean = new double[INITIAL_RUPTURES];
+		rupStdDev = new double[INITIAL_RUPTURES];
+		rupDist = new double[INITIAL_RUPTURES];
+		rupMag = new double[INITIAL_RUPTURES];
+		srcIndex = new int[INITIAL_SOURCES];
+		srcFirstRup = new int[INITIAL_SOURCES + 1];
+		sources = new ProbEqkSource[INITIAL_SOURCES];
+		srcTruncTypes = new int[INITIAL_SOURCES];
+		srcTruncLevels = new double[INITIAL_SOURCES];
+	}
+
+	/**
+	 * Empties the store to be filled in for the given ERF and site.
+	 *
+	 * @param erf
+	 * @param site
+	 * @param erfNumRuptures - number of ruptures of each source of the ERF
+	 */
+	public void clear(ERF erf, Site site, int[] erfNumRuptures) {
+		this.erf = erf;
+		this.site = site;
+		this.siteLoc = site.getLocation();
+		this.forecastVersion = AbstractERF.getForecastVersion(erf);
+		this.erfNumRuptures = erfNumRuptures;
+		numRups = 0;
+		numSrcs = 0;
+		srcFirstRup[0] = 0;
+		Arrays.fill(sources, null);
+		complete = false;
+	}
+
+	/**
+	 * Starts the ruptures of a source; the truncation of the IMR is that of its
+	 * {@link SigmaTruncTypeParam} and {@link SigmaTruncLevelParam}, if it has them.
+	 *
+	 * @param sourceIndex - index of the source in the ERF
+	 * @param source - the source, as returned by the ERF
+	 * @param imr - the IMR used for the source
+	 */
+	public void addSource(int sourceIndex, ProbEqkSource source, ScalarIMR imr) {
+		int truncType = getTruncType(imr);
+		addSource(sourceIndex, source, truncType, truncType == 0 ? 0 : getTruncLevel(imr));
+	}
+
+	private void addSource(int sourceIndex, ProbEqkSource source, int truncType, double truncLevel) {
+		if (numSrcs == srcIndex.length) {
+			int size = 2 * srcIndex.length;
+			srcIndex = Arrays.copyOf(srcIndex, size);
+			srcFirstRup = Arrays.copyOf(srcFirstRup, size + 1);
+			sources = Arrays.copyOf(sources, size);
+			srcTruncTypes = Arrays.copyOf(srcTruncTypes, size);
+			srcTruncLevels = Arrays.copyOf(srcTruncLevels, size);
+		}
+		srcIndex[numSrcs] = sourceIndex;
+		srcFirstRup[numSrcs] = numRups;
+		sources[numSrcs] = source;
+		srcTruncTypes[numSrcs] = truncType;
+		srcTruncLevels[numSrcs] = truncLevel;
+		numSrcs++;
+		srcFirstRup[numSrcs] = numRups;
+	}
+
+	/**
+	 * Adds a rupture of the source last added.
+	 *
+	 * @param rupIndex - index of the rupture in its source
+	 * @param qkProb - probability of the rupture
+	 * @param mean - IMR mean
+	 * @param stdDev - IMR standard deviation
+	 * @param distRup - rupture distance
+	 * @param mag - magnitude
+	 */
+	public void addRupture(int rupIndex, double qkProb, double mean, double stdDev,
+			double distRup, double mag) {
+		// the equiv. Poisson rate over the time interval (not annualized, see above)
+		addRuptureRate(rupIndex, -Math.log1p(-qkProb), mean, stdDev, distRup, mag);
+	}
+
+	private void addRuptureRate(int rupIndex, double rate, double mean, double stdDev,
+			double distRup, double mag) {
+		if (numRups == this.rupIndex.length) {
+			int size = 2 * numRups;
+			this.rupIndex = Arrays.copyOf(this.rupIndex, size);
+			rupRate = Arrays.copyOf(rupRate, size);
+			rupMean = Arrays.copyOf(rupMean, size);
+			rupStdDev = Arrays.copyOf(rupStdDev, size);
+			rupDist = Arrays.copyOf(rupDist, size);
+			rupMag = Arrays.copyOf(rupMag, size);
+		}
+		this.rupIndex[numRups] = rupIndex;
+		rupRate[numRups] = rate;
+		rupMean[numRups] = mean;
+		rupStdDev[numRups] = stdDev;
+		rupDist[numRups] = distRup;
+		rupMag[numRups] = mag;
+		numRups++;
+		srcFirstRup[numSrcs] = numRups;
+	}
+
+	/**
+	 * Adds the sources of the given stores, which must have been filled in for
+	 * disjoint sets of sources of the ERF (each in ascending order), in ascending
+	 * order of their index in the ERF, so that the store is the same as if a single
+	 * calculation had filled it in.
+	 *
+	 * @param parts
+	 */
+	public void addSources(List<RuptureDataStore> parts) {
+		int[] next = new int[parts.size()];
+		while (true) {
+			int best = -1;
+			for (int p = 0; p < next.length; p++) {
+				RuptureDataStore part = parts.get(p);
+				if (next[p] < part.numSrcs && (best < 0 ||
+						part.srcIndex[next[p]] < parts.get(best).srcIndex[next[best]]))
+					best = p;
+			}
+			if (best < 0)
+				return;
+			RuptureDataStore part = parts.get(best);
+			int s = next[best]++;
+			addSource(part.srcIndex[s], part.sources[s], part.srcTruncTypes[s], part.srcTruncLevels[s]);
+			for (int r = part.srcFirstRup[s]; r < part.srcFirstRup[s+1]; r++)
+				addRuptureRate(part.rupIndex[r], part.rupRate[r], part.rupMean[r],
+						part.rupStdDev[r], part.rupDist[r], part.rupMag[r]);
+		}
+	}
+
+	/**
+	 * Marks the store as holding every contributing rupture; a calculation that is
+	 * stopped or fails leaves it incomplete.
+	 */
+	public void setComplete() {
+		complete = true;
+	}
+
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return true if the store holds all the contributing ruptures of the given ERF
+	 * instance, whose sources have not been rebuilt since, for a site at the same
+	 * location as the given one
+	 */
+	public boolean isFor(ERF erf, Site site) {
+		return complete && this.erf == erf && AbstractERF.getForecastVersion(erf) == forecastVersion
+				&& siteLoc.equals(site.getLocation());
+	}
+
+	public ERF getERF() {
+		return erf;
+	}
+
+	public Site getSite() {
+		return site;
+	}
+
+	/**
+	 * @return the number of ruptures of each source of the ERF, including those
+	 * that are not stored; the array must not be modified
+	 */
+	public int[] getERFNumRuptures() {
+		return erfNumRuptures;
+	}
+
+	public int getNumRuptures() {
+		return numRups;
+	}
+
+	public int getNumSources() {
+		return numSrcs;
+	}
+
+	/** @return the index in the ERF of stored source s */
+	public int getSourceIndex(int s) {
+		return srcIndex[s];
+	}
+
+	/** @return stored source s, as returned by the ERF */
+	public ProbEqkSource getSource(int s) {
+		return sources[s];
+	}
+
+	/** @return the index of the first rupture of stored source s (or the number of
+	 * ruptures for s = {@link #getNumSources()}) */
+	public int getFirstRupture(int s) {
+		return srcFirstRup[s];
+	}
+
+	/** @return the truncation type of stored source s: 0 for none, 1 for one sided
+	 * and 2 for two sided, as for {@link GaussianDistCalc#getExceedProb(double, int, double)} */
+	public int getTruncType(int s) {
+		return srcTruncTypes[s];
+	}
+
+	/** @return the truncation level of stored source s, in standard deviations */
+	public double getTruncLevel(int s) {
+		return srcTruncLevels[s];
+	}
+
+	/** @return the index of stored rupture r in its source */
+	public int getRuptureIndex(int r) {
+		return rupIndex[r];
+	}
+
+	/** @return the equivalent Poisson rate of stored rupture r over the duration of
+	 * the forecast (not annualized) */
+	public double getRate(int r) {
+		return rupRate[r];
+	}
+
+	public double getMean(int r) {
+		return rupMean[r];
+	}
+
+	public double getStdDev(int r) {
+		return rupStdDev[r];
+	}
+
+	public double getDistanceRup(int r) {
+		return rupDist[r];
+	}
+
+	public double getMag(int r) {
+		return rupMag[r];
+	}
+
+	/**
+	 * @param s - stored source
+	 * @param r - stored rupture of the source
+	 * @param iml - the (log) intensity measure level
+	 * @return the probability that rupture r exceeds the IML, should it occur
+	 */
+	public double getExceedProbability(int s, int r, double iml) {
+		return AttenuationRelationship.getExceedProbability(rupMean[r], rupStdDev[r], iml,
+				srcTruncTypes[s], srcTruncLevels[s]);
+	}
+
+	/**
+	 * @param iml - the (log) intensity measure level
+	 * @return the rate at which each stored source exceeds the IML, over the
+	 * duration of the forecast
+	 */
+	public double[] getSourceExceedRates(double iml) {
+		double[] rates = new double[numSrcs];
+		for (int s = 0; s < numSrcs; s++) {
+			double rate = 0;
+			for (int r = srcFirstRup[s]; r < srcFirstRup[s+1]; r++)
+				rate += rupRate[r] * getExceedProbability(s, r, iml);
+			rates[s] = rate;
+		}
+		return rates;
+	}
+
+	/**
+	 * @param iml - the (log) intensity measure level
+	 * @return the stored sources in decreasing order of the rate at which they
+	 * exceed the IML
+	 */
+	public int[] getSourceRanking(double iml) {
+		final double[] rates = getSourceExceedRates(iml);
+		Integer[] order = new Integer[numSrcs];
+		for (int s = 0; s < numSrcs; s++)
+			order[s] = s;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer s1, Integer s2) {
+				return Double.compare(rates[s2], rates[s1]);
+			}
+		});
+		int[] ranking = new int[numSrcs];
+		for (int s = 0; s < numSrcs; s++)
+			ranking[s] = order[s];
+		return ranking;
+	}
+
+	/**
+	 * @return the truncation type of the IMR (see
+	 * {@link AttenuationRelationship#getTruncType(SigmaTruncTypeParam)}), 0 if it has
+	 * no {@link SigmaTruncTypeParam}
+	 */
+	public static int getTruncType(ScalarIMR imr) {
+		ParameterList otherParams = imr.getOtherParams();
+		if (!otherParams.containsParameter(SigmaTruncTypeParam.NAME))
+			return 0;
+		return AttenuationRelationship.getTruncType(
+				(SigmaTruncTypeParam)otherParams.getParameter(SigmaTruncTypeParam.NAME));
+	}
+
+	/**
+	 * @return the truncation level of the IMR, in standard deviations
+	 */
+	public static double getTruncLevel(ScalarIMR imr) {
+		return AttenuationRelationship.getTruncLevel(
+				(SigmaTruncLevelParam)imr.getOtherParams().getParameter(SigmaTruncLevelParam.NAME));
+	}
+
+}
@@ -0,0 +1,362 @@
+package org.opensha.sha.calc.disaggregation;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * <p>Title: DisaggregationPlotRenderer</p>
+ * <p>Description: Draws the 3D magnitude-distance-epsilon bar chart of a
+ * disaggregation in the JVM with Java2D, so that no GMT installation or
+ * remote plot servlet is needed. The layout follows the GMT script of
+ * <code>DisaggregationCalculator.createGMTScriptForDisaggregationPlot</code>:
+ * distance along the front, magnitude going back, stacked epsilon bars with
+ * the same colors, and an epsilon legend below the plot.</p>
+ */
+public class DisaggregationPlotRenderer {
+
+	public static final int DEFAULT_WIDTH = 700;
+	public static final int DEFAULT_HEIGHT = 620;
+
+	// same as the GMT plot
+	private static final Color[] EPSILON_COLORS = {
+		new Color(215, 38, 3),
+		new Color(252, 94, 62),
+		new Color(252, 180, 158),
+		new Color(254, 220, 210),
+		new Color(217, 217, 255),
+		new Color(151, 151, 255),
+		new Color(0, 0, 255),
+		new Color(0, 0, 170)};
+
+	private static final String[] EPSILON_LABELS = {
+		"e<-2", "-2<e<-1", "-1<e<-0.5", "-0.5<e<0",
+		"0<e<0.5", "0.5<e<1", "1<e<2", "2<e"};
+
+	private static final int NUM_Z_TICKS = 5;
+
+	// axis lengths relative to each other (GMT used 4.5, 4.0 & 2.5 inches)
+	private static final double X_AXIS_LENGTH = 4.5;
+	private static final double Y_AXIS_LENGTH = 4.0;
+	private static final double Z_AXIS_LENGTH = 2.5;
+
+	// view direction
+	private static final double AZIMUTH = Math.toRadians(-30);
+	private static final double ELEVATION = Math.toRadians(30);
+
+	private final DisaggregationPlotData data;
+	private final int width, height;
+
+	private double minDist, maxDist, minMag, maxMag, zTick, maxZ;
+	private double scale, originX, originY;
+
+	public DisaggregationPlotRenderer(DisaggregationPlotData data) {
+		this(data, DEFAULT_WIDTH, DEFAULT_HEIGHT);
+	}
+
+	public DisaggregationPlotRenderer(DisaggregationPlotData data, int width, int height) {
+		this.data = data;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Renders the plot as PNG
+	 * @return the PNG file contents
+	 * @throws IOException
+	 */
+	public byte[] getPNG() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(getImage(), "png", out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Renders the plot
+	 * @return image of the plot
+	 */
+	public BufferedImage getImage() {
+		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = img.createGraphics();
+		try {
+			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+			g.setColor(Color.WHITE);
+			g.fillRect(0, 0, width, height);
+			draw(g);
+		} finally {
+			g.dispose();
+		}
+		return img;
+	}
+
+	private void draw(Graphics2D g) {
+		double[] dist_binEdges = data.getDist_binEdges();
+		double[] mag_binEdges = data.getMag_binEdges();
+		double[][][] pdf3D = data.getPdf3D();
+		int numE = data.getNUM_E();
+
+		minDist = dist_binEdges[0];
+		maxDist = dist_binEdges[dist_binEdges.length-1];
+		minMag = mag_binEdges[0];
+		maxMag = mag_binEdges[mag_binEdges.length-1];
+
+		// compute z-axis tick spacing & max z value
+		zTick = Math.ceil(data.getMaxContrEpsilonForGMT_Plot()/NUM_Z_TICKS);
+		maxZ = zTick * NUM_Z_TICKS;
+		Preconditions.checkState(maxZ > 0, "disagg max z val must be greater than 0!");
+
+		setTransform();
+
+		drawBackWalls(g);
+
+		// ordering here is important: back to front
+		g.setStroke(new BasicStroke(0.5f));
+		for (int i = 0; i < dist_binEdges.length-1; ++i) {
+			for (int j = mag_binEdges.length - 2; j >= 0; --j) {
+				// leave some space between bars
+				double dGap = 0.05 * (dist_binEdges[i+1] - dist_binEdges[i]);
+				double mGap = 0.05 * (mag_binEdges[j+1] - mag_binEdges[j]);
+				double d0 = dist_binEdges[i] + dGap, d1 = dist_binEdges[i+1] - dGap;
+				double m0 = mag_binEdges[j] + mGap, m1 = mag_binEdges[j+1] - mGap;
+				double base = 0;
+				for (int k = 0; k < numE; ++k) {
+					double contribution = pdf3D[i][j][k];
+					if (contribution > 0.0 && base < maxZ) {
+						double top = Math.min(base + contribution, maxZ);
+						drawBar(g, d0, d1, m0, m1, base, top, EPSILON_COLORS[k % EPSILON_COLORS.length]);
+						base = top;
+					}
+				}
+			}
+		}
+
+		drawAxes(g);
+		drawLegend(g, numE);
+	}
+
+	/**
+	 * Sets the scale and origin so that the projected plot box fits the upper part
+	 * of the image (the rest is for the legend).
+	 */
+	private void setTransform() {
+		scale = 1;
+		originX = 0;
+		originY = 0;
+		double minX = Double.MAX_VALUE, maxX = -Double.MAX_VALUE;
+		double minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		double[] dists = {minDist, maxDist};
+		double[] mags = {minMag, maxMag};
+		double[] zs = {0, maxZ};
+		for (double d : dists) {
+			for (double m : mags) {
+				for (double z : zs) {
+					Point2D pt = project(d, m, z);
+					minX = Math.min(minX, pt.getX());
+					maxX = Math.max(maxX, pt.getX());
+					minY = Math.min(minY, pt.getY());
+					maxY = Math.max(maxY, pt.getY());
+				}
+			}
+		}
+		double plotWidth = width - 180;
+		double plotHeight = height - 200;
+		scale = Math.min(plotWidth/(maxX-minX), plotHeight/(maxY-minY));
+		originX = 90 - minX*scale;
+		originY = 50 - minY*scale;
+	}
+
+	/**
+	 * Projects the given distance, magnitude & contribution to image coordinates
+	 */
+	private Point2D project(double dist, double mag, double z) {
+		double x = (dist-minDist)/(maxDist-minDist)*X_AXIS_LENGTH;
+		double y = (mag-minMag)/(maxMag-minMag)*Y_AXIS_LENGTH;
+		double h = z/maxZ*Z_AXIS_LENGTH;
+		double xr = x*Math.cos(AZIMUTH) - y*Math.sin(AZIMUTH);
+		double depth = x*Math.sin(AZIMUTH) + y*Math.cos(AZIMUTH);
+		double up = h*Math.cos(ELEVATION) + depth*Math.sin(ELEVATION);
+		return new Point2D.Double(originX + xr*scale, originY - up*scale);
+	}
+
+	private Path2D face(double[][] corners) {
+		Path2D path = new Path2D.Double();
+		for (int i = 0; i < corners.length; i++) {
+			Point2D pt = project(corners[i][0], corners[i][1], corners[i][2]);
+			if (i == 0)
+				path.moveTo(pt.getX(), pt.getY());
+			else
+				path.lineTo(pt.getX(), pt.getY());
+		}
+		path.closePath();
+		return path;
+	}
+
+	private void fillFace(Graphics2D g, Path2D face, Color color) {
+		g.setColor(color);
+		g.fill(face);
+		g.setColor(Color.BLACK);
+		g.draw(face);
+	}
+
+	/**
+	 * Draws the visible faces of a bar: the front (min mag), the near side (max dist)
+	 * and the top.
+	 */
+	private void drawBar(Graphics2D g, double d0, double d1, double m0, double m1,
+			double base, double top, Color color) {
+		fillFace(g, face(new double[][] {{d0, m0, base}, {d1, m0, base}, {d1, m0, top}, {d0, m0, top}}),
+				shade(color, 0.85));
+		fillFace(g, face(new double[][] {{d1, m0, base}, {d1, m1, base}, {d1, m1, top}, {d1, m0, top}}),
+				shade(color, 0.7));
+		fillFace(g, face(new double[][] {{d0, m0, top}, {d1, m0, top}, {d1, m1, top}, {d0, m1, top}}),
+				color);
+	}
+
+	private static Color shade(Color color, double factor) {
+		return new Color((int)(color.getRed()*factor), (int)(color.getGreen()*factor),
+				(int)(color.getBlue()*factor));
+	}
+
+	private void line(Graphics2D g, double d0, double m0, double z0, double d1, double m1, double z1) {
+		Point2D p0 = project(d0, m0, z0);
+		Point2D p1 = project(d1, m1, z1);
+		g.draw(new Line2D.Double(p0, p1));
+	}
+
+	/**
+	 * Draws the floor and the two back walls with their contribution grid lines
+	 */
+	private void drawBackWalls(Graphics2D g) {
+		g.setColor(new Color(235, 235, 235));
+		g.fill(face(new double[][] {{minDist, minMag, 0}, {minDist, maxMag, 0},
+				{minDist, maxMag, maxZ}, {minDist, minMag, maxZ}}));
+		g.fill(face(new double[][] {{minDist, maxMag, 0}, {maxDist, maxMag, 0},
+				{maxDist, maxMag, maxZ}, {minDist, maxMag, maxZ}}));
+		g.setColor(new Color(245, 245, 245));
+		g.fill(face(new double[][] {{minDist, minMag, 0}, {maxDist, minMag, 0},
+				{maxDist, maxMag, 0}, {minDist, maxMag, 0}}));
+
+		g.setColor(Color.GRAY);
+		g.setStroke(new BasicStroke(0.5f));
+		for (int k = 1; k <= NUM_Z_TICKS; k++) {
+			double z = k*zTick;
+			line(g, minDist, minMag, z, minDist, maxMag, z);
+			line(g, minDist, maxMag, z, maxDist, maxMag, z);
+		}
+		g.setColor(Color.BLACK);
+		g.setStroke(new BasicStroke(1f));
+		line(g, minDist, maxMag, 0, minDist, maxMag, maxZ);
+		line(g, maxDist, maxMag, 0, maxDist, maxMag, maxZ);
+		line(g, minDist, minMag, 0, minDist, minMag, maxZ);
+		line(g, minDist, minMag, 0, minDist, maxMag, 0);
+		line(g, minDist, maxMag, 0, maxDist, maxMag, 0);
+	}
+
+	/**
+	 * Draws the front axes with ticks and labels
+	 */
+	private void drawAxes(Graphics2D g) {
+		g.setColor(Color.BLACK);
+		g.setStroke(new BasicStroke(1f));
+		line(g, minDist, minMag, 0, maxDist, minMag, 0);
+		line(g, maxDist, minMag, 0, maxDist, maxMag, 0);
+
+		Font tickFont = new Font(Font.SANS_SERIF, Font.PLAIN, 11);
+		Font labelFont = new Font(Font.SANS_SERIF, Font.BOLD, 12);
+
+		// distance
+		double totDist = maxDist - minDist;
+		double xTick;
+		if(totDist<115) xTick = 10;
+		else if (totDist<225) xTick = 20;
+		else if (totDist<335) xTick = 30;
+		else if (totDist<445) xTick = 40;
+		else xTick = 50;
+		double tickLen = 0.04*(maxMag-minMag);
+		g.setFont(tickFont);
+		for (double d = Math.ceil(minDist/xTick)*xTick; d <= maxDist; d += xTick) {
+			line(g, d, minMag, 0, d, minMag-tickLen, 0);
+			drawString(g, formatTick(d), project(d, minMag-3*tickLen, 0), 0.5, 0.5);
+		}
+		g.setFont(labelFont);
+		drawString(g, "Rupture Distance (km)",
+				project((minDist+maxDist)/2, minMag-8*tickLen, 0), 0.5, 0.5);
+
+		// magnitude
+		double yTick = (maxMag-minMag) < 5 ? 0.5 : 1.0;
+		double distTickLen = 0.04*totDist;
+		g.setFont(tickFont);
+		for (double m = Math.ceil(minMag/yTick-1e-9)*yTick; m <= maxMag+1e-9; m += yTick) {
+			line(g, maxDist, m, 0, maxDist+distTickLen, m, 0);
+			drawString(g, formatTick(m), project(maxDist+2*distTickLen, m, 0), 0, 0.5);
+		}
+		g.setFont(labelFont);
+		drawString(g, "Magnitude", project(maxDist+7*distTickLen, (minMag+maxMag)/2, 0), 0, 0.5);
+
+		// contribution, on the left edge
+		g.setFont(tickFont);
+		for (int k = 0; k <= NUM_Z_TICKS; k++) {
+			double z = k*zTick;
+			line(g, minDist, minMag, z, minDist-distTickLen, minMag, z);
+			drawString(g, formatTick(z), project(minDist-2*distTickLen, minMag, z), 1, 0.5);
+		}
+		g.setFont(labelFont);
+		Point2D zLabel = project(minDist-2*distTickLen, minMag, maxZ/2);
+		AffineTransform orig = g.getTransform();
+		g.rotate(-Math.PI/2, zLabel.getX()-35, zLabel.getY());
+		drawString(g, "%Contribution", new Point2D.Double(zLabel.getX()-35, zLabel.getY()), 0.5, 0.5);
+		g.setTransform(orig);
+	}
+
+	/**
+	 * Draws one box per epsilon bin, with its range below
+	 */
+	private void drawLegend(Graphics2D g, int numE) {
+		int boxSize = 22;
+		int spacing = (width - 40) / numE;
+		int y = height - 70;
+		g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 11));
+		g.setStroke(new BasicStroke(0.5f));
+		for (int k = 0; k < numE; k++) {
+			int x = 20 + k*spacing + (spacing - boxSize)/2;
+			g.setColor(EPSILON_COLORS[k % EPSILON_COLORS.length]);
+			g.fillRect(x, y, boxSize, boxSize);
+			g.setColor(Color.BLACK);
+			g.drawRect(x, y, boxSize, boxSize);
+			if (k < EPSILON_LABELS.length)
+				drawString(g, EPSILON_LABELS[k], new Point2D.Double(x + boxSize/2.0, y + boxSize + 14), 0.5, 0.5);
+		}
+	}
+
+	/**
+	 * Draws the string with the given point at the given fractions of its width & height
+	 */
+	private static void drawString(Graphics2D g, String str, Point2D pt, double xAnchor, double yAnchor) {
+		FontMetrics fm = g.getFontMetrics();
+		float x = (float)(pt.getX() - xAnchor*fm.stringWidth(str));
+		float y = (float)(pt.getY() + fm.getAscent() - yAnchor*fm.getHeight());
+		g.drawString(str, x, y);
+	}
+
+	private static String formatTick(double val) {
+		if (Math.abs(val - Math.rint(val)) < 1e-9)
+			return Long.toString(Math.round(val));
+		return Double.toString(Math.round(val*100)/100d);
+	}
+
+}
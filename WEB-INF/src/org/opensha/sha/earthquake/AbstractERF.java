@@ -68,6 +68,9 @@ public abstract class AbstractERF implements
 	protected ArrayList<int[]> nthRupIndicesForSource;	// this gives the nth indices for a given source
 	protected int[] srcIndexForNthRup;
 	protected int[] rupIndexForNthRup;
+	
+	/** Number of times the sources have been rebuilt, see {@link #getForecastVersion()}. */
+	private volatile int forecastVersion;
 
 
 	/**
@@ -233,6 +236,34 @@ public abstract class AbstractERF implements
 		this.parameterChangeFlag = flag;
 	}
 
+	/**
+	 * Returns a number that changes whenever {@link #updateForecast()} rebuilds the
+	 * sources of this instance, so that data computed from the sources (e.g. a
+	 * SourceSpatialIndex) can tell that it is out of date. It is always 0 for
+	 * forecasts that do not call {@link #forecastUpdated()}.
+	 * @return
+	 */
+	public int getForecastVersion() {
+		return forecastVersion;
+	}
+
+	/**
+	 * This returns {@link #getForecastVersion()} for an AbstractERF, and 0 for
+	 * other ERFs
+	 * @param erf
+	 * @return
+	 */
+	public static int getForecastVersion(ERF erf) {
+		return erf instanceof AbstractERF ? ((AbstractERF)erf).getForecastVersion() : 0;
+	}
+
+	/**
+	 * To be called by {@link #updateForecast()} whenever it rebuilds the sources.
+	 */
+	protected void forecastUpdated() {
+		forecastVersion++;
+	}
+
 	/**
 	 * Update the forecast and save it in serialized mode into a file
 	 * @return
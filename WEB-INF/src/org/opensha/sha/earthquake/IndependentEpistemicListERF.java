@@ -0,0 +1,22 @@
+package org.opensha.sha.earthquake;
+
+/**
+ * An {@link EpistemicListERF} that can make a new, independent instance of each of
+ * its forecasts. Unlike {@link #getERF(int)}, which may return the same (re-updated)
+ * instance for every index, the forecasts returned here can be used by several
+ * threads at once, so the branches of the list can be built and calculated
+ * concurrently.
+ */
+public interface IndependentEpistemicListERF extends EpistemicListERF {
+
+	/**
+	 * Makes a new instance of the ERF in the list with the specified index, with the
+	 * settings and timespan of this list, and updates it. The returned ERF is not
+	 * used by this list afterwards. This may be called by several threads at once.
+	 *
+	 * @param index : index of Eqk rup forecast to make
+	 * @return the updated forecast
+	 */
+	public ERF createERF(int index);
+
+}
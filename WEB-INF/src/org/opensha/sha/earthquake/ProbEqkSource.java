@@ -149,6 +149,21 @@ public abstract class ProbEqkSource implements EqkSource, Named, Iterable<ProbEq
 	 */
 	public abstract ProbEqkRupture getRupture(int nRupture);
 
+	/**
+	 * Get the ith rupture for this source, reusing the given rupture object if the source
+	 * supports it (e.g. {@link org.opensha.sha.earthquake.rupForecastImpl.PointEqkSource}).
+	 * This avoids creating new objects in calculation loops; the returned rupture is only
+	 * valid until the next call with the same object, so it must not be kept.  Sources
+	 * that don't support reuse simply return getRupture(nRupture).
+	 *
+	 * @param nRupture  ith rupture
+	 * @param rupture  rupture to reuse (may be null), owned by the caller
+	 * @return the ith rupture, which may or may not be the given object
+	 */
+	public ProbEqkRupture getRupture(int nRupture, ProbEqkRupture rupture) {
+		return getRupture(nRupture);
+	}
+
 
 	/**
 	 * this function can be used if a clone is wanted instead of handle to class variable
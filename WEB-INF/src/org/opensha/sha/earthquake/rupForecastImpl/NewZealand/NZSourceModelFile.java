@@ -0,0 +1,586 @@
+package org.opensha.sha.earthquake.rupForecastImpl.NewZealand;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.opensha.commons.util.FileUtils;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+/**
+ * Pre-parsed binary form of the New Zealand source model text files, and the loader
+ * used by the New Zealand forecasts in place of parsing the text.
+ * <br><br>
+ * The background files (<code>NZBCK*.txt</code>, <code>NZ_BKmodeldraft.txt</code>)
+ * are stored as columns of the values used by the forecasts, which are read straight
+ * from the (memory mapped) file, so no objects are created for the background sources
+ * until the forecast makes them. The 2010 fault file format
+ * (<code>NZ_FLTmodel_2010.txt</code>) is stored record by record; the fault files are
+ * small, so they are read into {@link Fault}s.
+ * <br><br>
+ * For a text resource <code>name.txt</code>, {@link #getBackgroundSources(String)} and
+ * {@link #getFaultSources(String)} use, in this order:
+ * <ul>
+ * <li>the model already loaded by this JVM for the resource; models are immutable and
+ * shared by all forecasts (e.g. the branches of the epistemic forecasts)</li>
+ * <li>the resource <code>name.txt.bin</code> next to the text, made with {@link #main(String[])}</li>
+ * <li>the binary file of the resource in the cache directory given by the
+ * {@value #CACHE_DIR_PROPERTY} system property, if it is set</li>
+ * <li>the text itself, which is then written to the cache directory, if any</li>
+ * </ul>
+ * A binary file is only used if it was made from a text of the same length and CRC-32;
+ * otherwise the text is parsed again. The values are the same whichever way they are
+ * loaded. The <code>resource.erfs.nz.bin</code> target of the ant build compiles the
+ * binary files of the models used by the forecasts next to the text files.
+ */
+public class NZSourceModelFile {
+
+	/** Suffix of the binary files, appended to the name of the text file. */
+	public static final String BIN_SUFFIX = ".bin";
+
+	/** System property for the cache directory of the binary files (none if not set). */
+	public static final String CACHE_DIR_PROPERTY = "opensha.nz.sourceModelCacheDir";
+
+	private static final int MAGIC = 0x4E5A534D; // "NZSM"
+	private static final int VERSION = 2;
+	private static final int BACKGROUND = 1;
+	private static final int FAULT = 2;
+	// magic, version, kind, text length, text CRC-32, number of sources
+	private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 8 + 4;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final Map<String, Object> loaded = new ConcurrentHashMap<String, Object>();
+
+	/**
+	 * Background (point) sources, one per line of the text file after the header. The
+	 * values are read from the underlying buffer on every call.
+	 */
+	public static class BackgroundSources {
+
+		// columns of doubles, in this order, then the number of mags and tectonic types
+		private static final int B_VAL = 0, MIN_MAG = 1, MAX_MAG = 2, TOT_CUM_RATE = 3,
+				LAT = 4, LON = 5, DEPTH = 6, RAKE = 7, DIP = 8, NUM_DOUBLES = 9;
+
+		private final ByteBuffer buf;
+		private final int size;
+		private final int start;
+		private final String[] tectonicTypes;
+
+		private BackgroundSources(ByteBuffer buf) {
+			this.buf = buf;
+			size = buf.getInt(HEADER_SIZE - 4);
+			buf.position(HEADER_SIZE);
+			tectonicTypes = new String[buf.getInt()];
+			for (int i = 0; i < tectonicTypes.length; i++)
+				tectonicTypes[i] = getString(buf);
+			start = buf.position();
+		}
+
+		public int size() {
+			return size;
+		}
+
+		/** Returns the CRC-32 of the text the sources were loaded from. */
+		public long getChecksum() {
+			return buf.getLong(20);
+		}
+
+		private double get(int column, int index) {
+			return buf.getDouble(start + 8 * (column * size + index));
+		}
+
+		public double getBValue(int index) {
+			return get(B_VAL, index);
+		}
+
+		public double getMinMag(int index) {
+			return get(MIN_MAG, index);
+		}
+
+		public double getMaxMag(int index) {
+			return get(MAX_MAG, index);
+		}
+
+		public double getTotCumRate(int index) {
+			return get(TOT_CUM_RATE, index);
+		}
+
+		public double getLatitude(int index) {
+			return get(LAT, index);
+		}
+
+		/**
+		 * @return the longitude as given in the file, which may be above 180
+		 */
+		public double getLongitude(int index) {
+			return get(LON, index);
+		}
+
+		public double getDepth(int index) {
+			return get(DEPTH, index);
+		}
+
+		public double getRake(int index) {
+			return get(RAKE, index);
+		}
+
+		public double getDip(int index) {
+			return get(DIP, index);
+		}
+
+		public int getNumMag(int index) {
+			return buf.getInt(start + 8 * NUM_DOUBLES * size + 4 * index);
+		}
+
+		/**
+		 * @return the tectonic type, or null if not given (in the older files)
+		 */
+		public String getTectonicType(int index) {
+			int type = buf.get(start + 8 * NUM_DOUBLES * size + 4 * size + index);
+			return type < 0 ? null : tectonicTypes[type];
+		}
+
+		/*
+		 * Parses the text; lines 0-4 are the header and source name.
+		 */
+		private static ByteBuffer parse(List<String> lines, long textLength, long textChecksum) {
+			int size = Math.max(lines.size() - 5, 0);
+			double[][] values = new double[NUM_DOUBLES][size];
+			int[] numMags = new int[size];
+			byte[] types = new byte[size];
+			List<String> typeNames = new ArrayList<String>();
+			for (int n = 0; n < size; n++) {
+				StringTokenizer st = new StringTokenizer(lines.get(n + 5));
+				st.nextToken(); // a value, not used
+				values[B_VAL][n] = Double.parseDouble(st.nextToken().trim());
+				values[MIN_MAG][n] = Double.parseDouble(st.nextToken().trim());
+				values[MAX_MAG][n] = Double.parseDouble(st.nextToken().trim());
+				numMags[n] = Integer.parseInt(st.nextToken().trim());
+				values[TOT_CUM_RATE][n] = Double.parseDouble(st.nextToken().trim());
+				values[LAT][n] = Double.parseDouble(st.nextToken().trim());
+				values[LON][n] = Double.parseDouble(st.nextToken().trim());
+				values[DEPTH][n] = Double.parseDouble(st.nextToken().trim());
+				values[RAKE][n] = Double.parseDouble(st.nextToken().trim());
+				values[DIP][n] = Double.parseDouble(st.nextToken().trim());
+				if (st.hasMoreTokens()) {
+					String type = st.nextToken();
+					int t = typeNames.indexOf(type);
+					if (t < 0) {
+						t = typeNames.size();
+						typeNames.add(type);
+					}
+					types[n] = (byte) t;
+				} else {
+					types[n] = -1;
+				}
+			}
+
+			int length = HEADER_SIZE + 4;
+			for (String name : typeNames)
+				length += 4 + name.getBytes(UTF8).length;
+			length += 8 * NUM_DOUBLES * size + 4 * size + size;
+			ByteBuffer buf = ByteBuffer.allocate(length);
+			putHeader(buf, BACKGROUND, textLength, textChecksum, size);
+			buf.putInt(typeNames.size());
+			for (String name : typeNames)
+				putString(buf, name);
+			for (double[] column : values)
+				for (double value : column)
+					buf.putDouble(value);
+			for (int numMag : numMags)
+				buf.putInt(numMag);
+			buf.put(types);
+			return buf;
+		}
+	}
+
+	/**
+	 * A fault source of the 2010 fault file format.
+	 */
+	public static class Fault {
+
+		final String name, tectonicType, faultType;
+		final double lengthMean, lengthSigma, dipMean, dipSigma, dipDir, rake;
+		final double bottomMean, bottomSigma, topMean, topMin, topMax;
+		final double slipRateMean, slipRateSigma, couplingCoeffMean, couplingCoeffSigma;
+		final double medianMag, medianRI;
+		final double[] traceLats, traceLons;
+
+		private Fault(String name, String tectonicType, String faultType, double[] values,
+				double[] traceLats, double[] traceLons) {
+			this.name = name;
+			this.tectonicType = tectonicType;
+			this.faultType = faultType;
+			int i = 0;
+			lengthMean = values[i++];
+			lengthSigma = values[i++];
+			dipMean = values[i++];
+			dipSigma = values[i++];
+			dipDir = values[i++];
+			rake = values[i++];
+			bottomMean = values[i++];
+			bottomSigma = values[i++];
+			topMean = values[i++];
+			topMin = values[i++];
+			topMax = values[i++];
+			slipRateMean = values[i++];
+			slipRateSigma = values[i++];
+			couplingCoeffMean = values[i++];
+			couplingCoeffSigma = values[i++];
+			medianMag = values[i++];
+			medianRI = values[i++];
+			this.traceLats = traceLats;
+			this.traceLons = traceLons;
+		}
+
+		private static final int NUM_VALUES = 17;
+
+		private double[] getValues() {
+			return new double[] {lengthMean, lengthSigma, dipMean, dipSigma, dipDir, rake,
+					bottomMean, bottomSigma, topMean, topMin, topMax, slipRateMean, slipRateSigma,
+					couplingCoeffMean, couplingCoeffSigma, medianMag, medianRI};
+		}
+	}
+
+	/**
+	 * The fault sources of a 2010 format fault file, in file order.
+	 */
+	public static class FaultSources {
+
+		private final Fault[] faults;
+		private final long checksum;
+
+		private FaultSources(ByteBuffer buf) {
+			checksum = buf.getLong(20);
+			buf.position(HEADER_SIZE);
+			faults = new Fault[buf.getInt(HEADER_SIZE - 4)];
+			for (int f = 0; f < faults.length; f++) {
+				String name = getString(buf);
+				String tectonicType = getString(buf);
+				String faultType = getString(buf);
+				double[] values = new double[Fault.NUM_VALUES];
+				for (int i = 0; i < values.length; i++)
+					values[i] = buf.getDouble();
+				int numLocs = buf.getInt();
+				double[] lats = new double[numLocs];
+				double[] lons = new double[numLocs];
+				for (int i = 0; i < numLocs; i++) {
+					lats[i] = buf.getDouble();
+					lons[i] = buf.getDouble();
+				}
+				faults[f] = new Fault(name, tectonicType, faultType, values, lats, lons);
+			}
+		}
+
+		public int size() {
+			return faults.length;
+		}
+
+		public Fault get(int index) {
+			return faults[index];
+		}
+
+		/** Returns the CRC-32 of the text the faults were loaded from. */
+		public long getChecksum() {
+			return checksum;
+		}
+
+		/*
+		 * Parses the text as NewZealandERF2010 always has: the records start after the
+		 * 15 header lines, and the line following each trace is skipped.
+		 */
+		private static ByteBuffer parse(List<String> lines, long textLength, long textChecksum) {
+			List<Fault> faults = new ArrayList<Fault>();
+			int size = lines.size();
+			for (int i = 15; i < size; ++i) {
+				String sourceName = lines.get(i);
+				if (sourceName.trim().equals(""))
+					continue;
+				StringTokenizer st = new StringTokenizer(sourceName);
+				String srcCode = st.nextToken();
+				++i;
+				st = new StringTokenizer(lines.get(i));
+				String tectonicType = st.nextToken();
+				String faultType = st.nextToken();
+				++i;
+				// rows 3 to 11 hold 2, 2, 1, 1, 2, 3, 2, 2 and 2 values
+				int[] numValues = {2, 2, 1, 1, 2, 3, 2, 2, 2};
+				double[] values = new double[Fault.NUM_VALUES];
+				int v = 0;
+				for (int row = 0; row < numValues.length; row++, ++i) {
+					st = new StringTokenizer(lines.get(i));
+					for (int k = 0; k < numValues[row]; k++)
+						values[v++] = Double.parseDouble(st.nextToken().trim());
+				}
+				st = new StringTokenizer(lines.get(i));
+				int numLocs = Integer.parseInt(st.nextToken().trim());
+				double[] lats = new double[numLocs];
+				double[] lons = new double[numLocs];
+				int numLinesDone = i;
+				for (i = i + 1; i <= (numLinesDone + numLocs); ++i) {
+					st = new StringTokenizer(lines.get(i));
+					lons[i - numLinesDone - 1] = Double.parseDouble(st.nextToken().trim());
+					lats[i - numLinesDone - 1] = Double.parseDouble(st.nextToken().trim());
+				}
+				faults.add(new Fault(srcCode, tectonicType, faultType, values, lats, lons));
+			}
+
+			int length = HEADER_SIZE;
+			for (Fault fault : faults) {
+				length += 4 + fault.name.getBytes(UTF8).length;
+				length += 4 + fault.tectonicType.getBytes(UTF8).length;
+				length += 4 + fault.faultType.getBytes(UTF8).length;
+				length += 8 * Fault.NUM_VALUES + 4 + 16 * fault.traceLats.length;
+			}
+			ByteBuffer buf = ByteBuffer.allocate(length);
+			putHeader(buf, FAULT, textLength, textChecksum, faults.size());
+			for (Fault fault : faults) {
+				putString(buf, fault.name);
+				putString(buf, fault.tectonicType);
+				putString(buf, fault.faultType);
+				for (double value : fault.getValues())
+					buf.putDouble(value);
+				buf.putInt(fault.traceLats.length);
+				for (int i = 0; i < fault.traceLats.length; i++) {
+					buf.putDouble(fault.traceLats[i]);
+					buf.putDouble(fault.traceLons[i]);
+				}
+			}
+			return buf;
+		}
+	}
+
+	/**
+	 * Returns the background sources of the given text resource (e.g.
+	 * <code>org/opensha/.../NZBCK211_OpenSHA.txt</code>).
+	 */
+	public static BackgroundSources getBackgroundSources(String resourceName) throws IOException {
+		Object model = loaded.get(resourceName);
+		if (model == null) {
+			synchronized (NZSourceModelFile.class) {
+				model = loaded.get(resourceName);
+				if (model == null) {
+					model = new BackgroundSources(load(resourceName, BACKGROUND));
+					loaded.put(resourceName, model);
+				}
+			}
+		}
+		return (BackgroundSources) model;
+	}
+
+	/**
+	 * Returns the fault sources of the given text resource, which must be in the 2010
+	 * fault file format (e.g. <code>org/opensha/.../NZ_FLTmodel_2010.txt</code>).
+	 */
+	public static FaultSources getFaultSources(String resourceName) throws IOException {
+		Object model = loaded.get(resourceName);
+		if (model == null) {
+			synchronized (NZSourceModelFile.class) {
+				model = loaded.get(resourceName);
+				if (model == null) {
+					model = new FaultSources(load(resourceName, FAULT));
+					loaded.put(resourceName, model);
+				}
+			}
+		}
+		return (FaultSources) model;
+	}
+
+	private static ByteBuffer load(String resourceName, int kind) throws IOException {
+		URL textURL = NZSourceModelFile.class.getResource("/" + resourceName);
+		if (textURL == null)
+			throw new FileNotFoundException("Source model not found: " + resourceName);
+		// reading the text is cheap next to parsing it
+		byte[] text = toByteArray(textURL);
+		long textChecksum = getChecksum(text);
+
+		// compiled next to the text
+		URL binURL = NZSourceModelFile.class.getResource("/" + resourceName + BIN_SUFFIX);
+		if (binURL != null) {
+			ByteBuffer buf = read(binURL);
+			if (isValid(buf, kind, text.length, textChecksum))
+				return buf;
+		}
+
+		// compiled to the cache by an earlier load
+		File cacheFile = getCacheFile(resourceName);
+		if (cacheFile != null && cacheFile.isFile()) {
+			try {
+				ByteBuffer buf = map(cacheFile);
+				if (isValid(buf, kind, text.length, textChecksum))
+					return buf;
+			} catch (IOException e) {
+				// parse the text instead
+			}
+		}
+
+		return parse(text, kind, textChecksum, cacheFile, resourceName);
+	}
+
+	/*
+	 * Parses the text into the binary form, written to the cache file if not null.
+	 */
+	private static ByteBuffer parse(byte[] text, int kind, long textChecksum, File cacheFile,
+			String resourceName) throws IOException {
+		List<String> lines = FileUtils.loadStream(new ByteArrayInputStream(text));
+		ByteBuffer buf = kind == BACKGROUND
+				? BackgroundSources.parse(lines, text.length, textChecksum)
+				: FaultSources.parse(lines, text.length, textChecksum);
+		if (cacheFile != null) {
+			try {
+				write(buf, cacheFile);
+			} catch (IOException e) {
+				System.err.println("Could not cache source model " + resourceName + ": " + e);
+			}
+		}
+		return buf;
+	}
+
+	private static File getCacheFile(String resourceName) {
+		String dir = System.getProperty(CACHE_DIR_PROPERTY);
+		if (dir == null || dir.trim().isEmpty())
+			return null;
+		return new File(dir, resourceName.replace('/', '_') + BIN_SUFFIX);
+	}
+
+	private static boolean isValid(ByteBuffer buf, int kind, long textLength, long textChecksum) {
+		return buf.capacity() >= HEADER_SIZE
+				&& buf.getInt(0) == MAGIC
+				&& buf.getInt(4) == VERSION
+				&& buf.getInt(8) == kind
+				&& buf.getLong(12) == textLength
+				&& buf.getLong(20) == textChecksum;
+	}
+
+	private static long getChecksum(byte[] text) {
+		CRC32 crc = new CRC32();
+		crc.update(text);
+		return crc.getValue();
+	}
+
+	private static void putHeader(ByteBuffer buf, int kind, long textLength, long textChecksum,
+			int size) {
+		buf.putInt(MAGIC);
+		buf.putInt(VERSION);
+		buf.putInt(kind);
+		buf.putLong(textLength);
+		buf.putLong(textChecksum);
+		buf.putInt(size);
+	}
+
+	private static void putString(ByteBuffer buf, String str) {
+		byte[] bytes = str.getBytes(UTF8);
+		buf.putInt(bytes.length);
+		buf.put(bytes);
+	}
+
+	private static String getString(ByteBuffer buf) {
+		byte[] bytes = new byte[buf.getInt()];
+		buf.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/*
+	 * Maps the file if it is one, else reads it.
+	 */
+	private static ByteBuffer read(URL url) throws IOException {
+		if ("file".equals(url.getProtocol())) {
+			try {
+				return map(new File(url.toURI()));
+			} catch (URISyntaxException e) {
+				// read it as any other URL
+			}
+		}
+		return ByteBuffer.wrap(toByteArray(url));
+	}
+
+	private static byte[] toByteArray(URL url) throws IOException {
+		InputStream is = url.openStream();
+		try {
+			return ByteStreams.toByteArray(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	private static ByteBuffer map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			// the mapping stays valid once the file is closed
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/*
+	 * Writes to a temporary file renamed into place, so that a concurrent load never
+	 * maps a partial file.
+	 */
+	private static void write(ByteBuffer buf, File file) throws IOException {
+		File dir = file.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not create " + dir);
+		File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+		try {
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				out.write(buf.array());
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)) {
+				file.delete();
+				if (!tmp.renameTo(file))
+					throw new IOException("Could not rename " + tmp + " to " + file);
+			}
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Compiles source model text files into binary files, to be put next to the text
+	 * files on the class path.
+	 * <br><br>
+	 * Usage: <code>NZSourceModelFile background|fault &lt;text file&gt; [&lt;binary file&gt;]</code>,
+	 * where the binary file defaults to the text file name with {@value #BIN_SUFFIX} appended.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2 || !(args[0].equals("background") || args[0].equals("fault"))) {
+			System.err.println("Usage: NZSourceModelFile background|fault <text file> [<binary file>]");
+			System.exit(2);
+		}
+		File textFile = new File(args[1]);
+		File binFile = new File(args.length > 2 ? args[2] : args[1] + BIN_SUFFIX);
+		byte[] text = Files.toByteArray(textFile);
+		ByteBuffer buf = parse(text, args[0].equals("background") ? BACKGROUND : FAULT,
+				getChecksum(text), null, textFile.getPath());
+		FileOutputStream out = new FileOutputStream(binFile);
+		try {
+			out.write(buf.array());
+		} finally {
+			out.close();
+		}
+		System.out.println("Wrote " + binFile + " (" + buf.capacity() + " bytes)");
+	}
+
+}
@@ -80,12 +80,7 @@ public class NewZealandERF0909 extends AbstractERF {
 	private StringParameter backSeisParam;
 
 	private int numBkSources = 0;
-	private ArrayList<String> bkSourceNames = new ArrayList<String>();
-	private ArrayList<Location> bkSourceLocation = new ArrayList<Location>();
-	private ArrayList<IncrementalMagFreqDist> bkMagFD = new ArrayList<IncrementalMagFreqDist>();
-	private ArrayList<Double> bkRake = new ArrayList<Double>(); 
-	private ArrayList<Double> bkDip = new ArrayList<Double>(); 
-	private ArrayList<Double> bkMinMag = new ArrayList<Double>(); 
+	private NZSourceModelFile.BackgroundSources bkSources;
 		
 	private ArrayList<String> sourceNames = new ArrayList<String>();
 	private ArrayList<Double> sourceMags = new ArrayList<Double>();
@@ -136,51 +131,22 @@ public class NewZealandERF0909 extends AbstractERF {
 
 	private void createBackRegion(){
 		try {
-			ArrayList<String> fileLines = FileUtils.loadJarFile(BG_FILE_NAME);
-			int size = fileLines.size();
-			int j=4;
-			String sourceName = fileLines.get(j);
-			StringTokenizer st = new StringTokenizer(sourceName);
-			String srcCode = st.nextToken();
-			int srcCodeLength = srcCode.length();
-			String sourceNameString = sourceName.substring(srcCodeLength);
-
-			for(int i=5;i<size;++i){ 
-				++numBkSources;
-				String magDistInfo  = fileLines.get(i);
-				st = new StringTokenizer(magDistInfo);
-				double aVal = Double.parseDouble(st.nextToken().trim());
-				double bVal = Double.parseDouble(st.nextToken().trim());
-				double minMag = Double.parseDouble(st.nextToken().trim());
-				double maxMag = Double.parseDouble(st.nextToken().trim());
-				int numMag = Integer.parseInt(st.nextToken().trim());
-				double totCumRate = Double.parseDouble(st.nextToken().trim());
-				double lat = Double.parseDouble(st.nextToken().trim());
-				double lon = Double.parseDouble(st.nextToken().trim());
-				double depth = Double.parseDouble(st.nextToken().trim());
-				double rake  = Double.parseDouble(st.nextToken().trim());
-				double dip   = Double.parseDouble(st.nextToken().trim());
-				IncrementalMagFreqDist backgroundMagDist = new GutenbergRichterMagFreqDist(bVal,totCumRate,minMag,maxMag,numMag);
-				Location bckLocation = new Location(lat,lon,depth);
-				
-				this.bkSourceNames.add("backgroundSource"+numBkSources);
-				this.bkSourceLocation.add(bckLocation);
-				this.bkMagFD.add(backgroundMagDist);
-				this.bkRake.add(rake);
-				this.bkDip.add(dip);
-				this.bkMinMag.add(minMag);
-			}
-
-
+			//The sources are only made (by mkBackRegion) if they are included
+			bkSources = NZSourceModelFile.getBackgroundSources(BG_FILE_NAME);
+			numBkSources = bkSources.size();
 		}catch(IOException e){
 			e.printStackTrace();
 		}
 	}
 	
 	private void mkBackRegion(){
-		for(int srcIndex=0; srcIndex<bkSourceNames.size(); ++srcIndex) {
-			PointEqkSource rupSource = new PointEqkSource(this.bkSourceLocation.get(srcIndex),this.bkMagFD.get(srcIndex),
-					timeSpan.getDuration(),this.bkRake.get(srcIndex),this.bkDip.get(srcIndex),this.bkMinMag.get(srcIndex));
+		for(int srcIndex=0; srcIndex<numBkSources; ++srcIndex) {
+			Location bckLocation = new Location(bkSources.getLatitude(srcIndex),bkSources.getLongitude(srcIndex),bkSources.getDepth(srcIndex));
+			double minMag = bkSources.getMinMag(srcIndex);
+			IncrementalMagFreqDist backgroundMagDist = new GutenbergRichterMagFreqDist(bkSources.getBValue(srcIndex),
+					bkSources.getTotCumRate(srcIndex),minMag,bkSources.getMaxMag(srcIndex),bkSources.getNumMag(srcIndex));
+			PointEqkSource rupSource = new PointEqkSource(bckLocation,backgroundMagDist,
+					timeSpan.getDuration(),bkSources.getRake(srcIndex),bkSources.getDip(srcIndex),minMag);
 			allSources.add(rupSource);
 		}
 	}
@@ -333,6 +299,7 @@ public class NewZealandERF0909 extends AbstractERF {
 			if(bgVal.equals(BACK_SEIS_INCLUDE)){
 				mkBackRegion();
 			}
+			forecastUpdated();
 		}
 		parameterChangeFlag = false;
 	}
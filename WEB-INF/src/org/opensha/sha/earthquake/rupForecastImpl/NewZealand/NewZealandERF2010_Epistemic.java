@@ -19,6 +19,7 @@ import org.opensha.commons.param.impl.StringParameter;
 import org.opensha.commons.util.FileUtils;
 import org.opensha.sha.earthquake.AbstractEpistemicListERF;
 import org.opensha.sha.earthquake.ERF;
+import org.opensha.sha.earthquake.IndependentEpistemicListERF;
 import org.opensha.sha.magdist.GutenbergRichterMagFreqDist;
 import org.opensha.sha.util.TectonicRegionType;
 
@@ -37,7 +38,7 @@ import org.opensha.sha.util.TectonicRegionType;
  * @version 1.0
  */
 
-public class NewZealandERF2010_Epistemic  extends AbstractEpistemicListERF{
+public class NewZealandERF2010_Epistemic  extends AbstractEpistemicListERF implements IndependentEpistemicListERF{
 	public static final String  NAME = new String("NewZealand_ERF_2010_Epistemic");
 	protected NewZealandERF2010 newZealand2010ERF = new NewZealandERF2010();
 	private final static double DURATION_DEFAULT = 1;
@@ -251,6 +252,23 @@ public class NewZealandERF2010_Epistemic  extends AbstractEpistemicListERF{
 	}
 
 
+	/**
+	 * Make a new realization of the forecast, independent of the one
+	 * returned by getERF (the source models are only loaded once, so this
+	 * is about as fast as getERF)
+	 * 
+	 * @param index : index of Eqk rup forecast to make
+	 * @return
+	 */
+	public ERF createERF(int index) {
+		NewZealandERF2010 erf = new NewZealandERF2010();
+		erf.setAdjParams(adjustableParams);
+		erf.getTimeSpan().setDuration(this.timeSpan.getDuration());
+		erf.updateForecast();
+		return erf;
+	}
+
+
 	/**
 	 * get the weight of the ERF at the specified index. 
 	 * It always returns 1 because we are doing Monte Carlo simulations
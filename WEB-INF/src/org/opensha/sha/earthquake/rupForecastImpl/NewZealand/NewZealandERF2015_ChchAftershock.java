@@ -22,7 +22,6 @@ package org.opensha.sha.earthquake.rupForecastImpl.NewZealand;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.StringTokenizer;
 
 import org.opensha.commons.calc.magScalingRelations.magScalingRelImpl.HanksBakun2002_MagAreaRel;
 import org.opensha.commons.data.TimeSpan;
@@ -36,7 +35,6 @@ import org.opensha.commons.param.event.ParameterChangeEvent;
 import org.opensha.commons.param.impl.BooleanParameter;
 import org.opensha.commons.param.impl.DoubleParameter;
 import org.opensha.commons.param.impl.StringParameter;
-import org.opensha.commons.util.FileUtils;
 import org.opensha.sha.earthquake.AbstractERF;
 import org.opensha.sha.earthquake.ProbEqkSource;
 import org.opensha.sha.earthquake.rupForecastImpl.FaultRuptureSource;
@@ -137,9 +135,7 @@ public class NewZealandERF2015_ChchAftershock extends AbstractERF{
 	private DoubleParameter epistemicMagScalingUncertaintyProportionParam;
 
 	private int numBkSources = 0;
-	private ArrayList<String> bkSourceNames = new ArrayList<String>();
-	private ArrayList<String> bkSourceTectonicTypes = new ArrayList<String>();
-	private ArrayList<Location> bkSourceLocation = new ArrayList<Location>();
+	private NZSourceModelFile.BackgroundSources bkSources;
 	private ArrayList<GriddedRegion> bkSourceRegion = new ArrayList<GriddedRegion>();
 	private ArrayList<Double> bkBValMeans = new ArrayList<Double>();
 	private ArrayList<Double> bkBValSigmas = new ArrayList<Double>();
@@ -147,10 +143,6 @@ public class NewZealandERF2015_ChchAftershock extends AbstractERF{
 	private ArrayList<Double> bkMoRateSigmas = new ArrayList<Double>();
 	private ArrayList<Double> bkMMaxMeans = new ArrayList<Double>();
 	private ArrayList<Double> bkMMaxSigmas = new ArrayList<Double>();
-	private ArrayList<Double> bkMMins = new ArrayList<Double>();
-	private ArrayList<IncrementalMagFreqDist> bkMagFD = new ArrayList<IncrementalMagFreqDist>();
-	private ArrayList<Double> bkRake = new ArrayList<Double>(); 
-	private ArrayList<Double> bkDip = new ArrayList<Double>(); 
 	private ArrayList<ProbEqkSource> allSources = new ArrayList<ProbEqkSource>();
 	private GutenbergRichterMagFreqDist backgroundMagDist;
 	private GriddedRegion backgroundRegion;
@@ -193,6 +185,7 @@ public class NewZealandERF2015_ChchAftershock extends AbstractERF{
 	//mag scaling relationships
 	private static final HanksBakun2002_MagAreaRel hanksBakunMwAreaScaling = new HanksBakun2002_MagAreaRel();
 
+	private NZSourceModelFile.FaultSources faultSources;
 	private ArrayList<EvenlyGriddedSurface> sourceGriddedSurface = new ArrayList<EvenlyGriddedSurface>();
 	//mu - shear stiffness in N/m^2
 	private static final double mu = 3.0*Math.pow(10.,10.);
@@ -204,7 +197,7 @@ public class NewZealandERF2015_ChchAftershock extends AbstractERF{
 		timeSpan.addParameterChangeListener(this);
 		timeSpan.setDuration(1);
 		
-		createFaultSurfaces();
+		loadFaultSources();
 		createBackRegion();
 		initAdjParams();
 		// Create adjustable parameter list
@@ -323,58 +316,29 @@ public class NewZealandERF2015_ChchAftershock extends AbstractERF{
 		try {
 			
 			//TODO : have yet to implement epistemic uncertainty random generation here yet
-			ArrayList<String> fileLines = FileUtils.loadJarFile(BG_FILE_NAME);
-			int size = fileLines.size();
-			int j=4;
-			String sourceName = fileLines.get(j);
-			StringTokenizer st = new StringTokenizer(sourceName);
-			String srcCode = st.nextToken();
-			int srcCodeLength = srcCode.length();
-			String sourceNameString = sourceName.substring(srcCodeLength);
-
-			for(int i=5;i<size;++i){ 
-				++numBkSources;
-				String magDistInfo  = fileLines.get(i);
-				st = new StringTokenizer(magDistInfo);
-				double aVal = Double.parseDouble(st.nextToken().trim());
-				double bVal = Double.parseDouble(st.nextToken().trim());
-				double minMag = Double.parseDouble(st.nextToken().trim());
-				double maxMag = Double.parseDouble(st.nextToken().trim());
-				int numMag = Integer.parseInt(st.nextToken().trim());
-				double totCumRate = Double.parseDouble(st.nextToken().trim());
-				double lat = Double.parseDouble(st.nextToken().trim());
-				double lon = Double.parseDouble(st.nextToken().trim());
-				if (lon>180.0) lon=lon-360.0; //Ensure that in range [-180,180]
-				double depth = Double.parseDouble(st.nextToken().trim());
-				double rake  = Double.parseDouble(st.nextToken().trim());
-				double dip   = Double.parseDouble(st.nextToken().trim());
-				String tectonicType = st.nextToken();
-				
-				
-				IncrementalMagFreqDist backgroundMagDist = new GutenbergRichterMagFreqDist(bVal,totCumRate,minMag,maxMag,numMag);
-				Location bckLocation = new Location(lat,lon,depth);
-				
-				this.bkSourceNames.add("backgroundSource"+numBkSources);
-				this.bkSourceTectonicTypes.add(tectonicType);
-				incrementTectonicTypeCounters(tectonicType);
-				this.bkSourceLocation.add(bckLocation);
-				this.bkMagFD.add(backgroundMagDist);
-				this.bkRake.add(rake);
-				this.bkDip.add(dip);
-				this.bkMMins.add(minMag);
-			}
+			//The sources are only made (by mkBackRegion) if they are included
+			bkSources = NZSourceModelFile.getBackgroundSources(BG_FILE_NAME);
+			numBkSources = bkSources.size();
+			for(int i=0;i<numBkSources;++i)
+				incrementTectonicTypeCounters(bkSources.getTectonicType(i));
 		}catch(IOException e){
 			e.printStackTrace();
 		}
 	}
 	
 	private void mkBackRegion(){
-		for(int srcIndex=0; srcIndex<bkSourceNames.size(); ++srcIndex) {
+		for(int srcIndex=0; srcIndex<numBkSources; ++srcIndex) {
+			double lon = bkSources.getLongitude(srcIndex);
+			if (lon>180.0) lon=lon-360.0; //Ensure that in range [-180,180]
+			Location bckLocation = new Location(bkSources.getLatitude(srcIndex),lon,bkSources.getDepth(srcIndex));
+			double minMag = bkSources.getMinMag(srcIndex);
+			IncrementalMagFreqDist backgroundMagDist = new GutenbergRichterMagFreqDist(bkSources.getBValue(srcIndex),
+					bkSources.getTotCumRate(srcIndex),minMag,bkSources.getMaxMag(srcIndex),bkSources.getNumMag(srcIndex));
 				
-			PointEqkSource rupSource = new PointEqkSource(this.bkSourceLocation.get(srcIndex),this.bkMagFD.get(srcIndex),
-					timeSpan.getDuration(),this.bkRake.get(srcIndex),this.bkDip.get(srcIndex),this.bkMMins.get(srcIndex));
+			PointEqkSource rupSource = new PointEqkSource(bckLocation,backgroundMagDist,
+					timeSpan.getDuration(),bkSources.getRake(srcIndex),bkSources.getDip(srcIndex),minMag);
 			//Tectonic type of source
-			String tectType = this.bkSourceTectonicTypes.get(srcIndex);
+			String tectType = bkSources.getTectonicType(srcIndex);
 			setTectonicTypeOfSource(rupSource,tectType);
 			
 			
@@ -384,119 +348,37 @@ public class NewZealandERF2015_ChchAftershock extends AbstractERF{
 
 	/**
 	 * 
-	 * Read the file and create fault surfaces
+	 * Read the fault sources (the surfaces are made by mkFaultSurfaces)
 	 *
 	 */
-	private void createFaultSurfaces(){
+	private void loadFaultSources(){
 		try {
-			ArrayList<String> fileLines = FileUtils.loadJarFile(FAULT_SOURCE_FILENAME);
-			int size = fileLines.size();
-			for(int i=15;i<size;++i){ 
-				String sourceName = fileLines.get(i);
-				if(sourceName.trim().equals(""))
-					continue;
-				StringTokenizer st = new StringTokenizer(sourceName);
-				String srcCode = st.nextToken();
-				++i;
-				
-				String sourceTectFltType = fileLines.get(i);
-				st = new StringTokenizer(sourceTectFltType);
-				String tectonicType = st.nextToken();
-				String faultType = st.nextToken();	
-				++i;
-				
-				String sourceLengthInfo = fileLines.get(i);
-				st = new StringTokenizer(sourceLengthInfo);
-				double lengthMean = Double.parseDouble(st.nextToken().trim());
-				double lengthSigma = Double.parseDouble(st.nextToken().trim());
-				++i;
-				
-				String sourceDipInfo = fileLines.get(i);
-				st = new StringTokenizer(sourceDipInfo);
-				double dipMean = Double.parseDouble(st.nextToken().trim());
-				double dipSigma = Double.parseDouble(st.nextToken().trim());
-				++i;
-				
-				String sourceDipDirInfo = fileLines.get(i);
-				st = new StringTokenizer(sourceDipDirInfo);
-				double dipDir = Double.parseDouble(st.nextToken().trim());
-				++i;
-				
-				String sourceRakeInfo = fileLines.get(i);
-				st = new StringTokenizer(sourceRakeInfo);
-				double rake = Double.parseDouble(st.nextToken().trim());
-				++i;
-				
-				String sourceBottomInfo = fileLines.get(i);
-				st = new StringTokenizer(sourceBottomInfo);
-				double bottomMean = Double.parseDouble(st.nextToken().trim());
-				double bottomSigma = Double.parseDouble(st.nextToken().trim());
-				++i;
-				
-				String sourceTopInfo = fileLines.get(i);
-				st = new StringTokenizer(sourceTopInfo);
-				double topMean = Double.parseDouble(st.nextToken().trim());
-				double topMin = Double.parseDouble(st.nextToken().trim());
-				double topMax = Double.parseDouble(st.nextToken().trim());
-				++i;
-				
-				String sourceSlipRateInfo = fileLines.get(i);
-				st = new StringTokenizer(sourceSlipRateInfo);
-				double slipRateMean = Double.parseDouble(st.nextToken().trim());
-				double slipRateSigma = Double.parseDouble(st.nextToken().trim());
-				++i;
-				
-				String couplingCoeffInfo = fileLines.get(i);
-				st = new StringTokenizer(couplingCoeffInfo);
-				double couplingCoeffMean = Double.parseDouble(st.nextToken().trim());
-				double couplingCoeffSigma = Double.parseDouble(st.nextToken().trim());
-				++i;
-				
-				String medianMwRivalues = fileLines.get(i);
-				st = new StringTokenizer(medianMwRivalues);
-				double medianMag = Double.parseDouble(st.nextToken().trim());
-				double medianRI = Double.parseDouble(st.nextToken().trim());
-				double medianAnnualRate = 1./medianRI;
-				++i;
-				
-				String numSourceLoc = fileLines.get(i);
-				st = new StringTokenizer(numSourceLoc);
-				int numSourceLocations = Integer.parseInt(st.nextToken().trim());			
-				FaultTrace fltTrace = new FaultTrace(srcCode);
-				int numLinesDone = i;
-				for(i=i+1;i<=(numLinesDone+numSourceLocations);++i){
-					String location = fileLines.get(i);
-					st = new StringTokenizer(location);
-					double lon = Double.parseDouble(st.nextToken().trim());
-					double lat = Double.parseDouble(st.nextToken().trim());
-					fltTrace.add(new Location(lat,lon));
-				}
-				
-				EvenlyGriddedSurface surface = new StirlingGriddedSurface(fltTrace,dipMean,topMean,bottomMean,DEFAULT_GRID_SPACING,dipDir);
-				sourceNames.add(srcCode);
-				this.sourceTectonicTypes.add(tectonicType);
-				incrementTectonicTypeCounters(tectonicType);
-				this.sourceFaultTypes.add(faultType);
-				this.sourceLengthMeans.add(lengthMean);
-				this.sourceLengthSigmas.add(lengthSigma);
-				this.sourceDipMeans.add(dipMean);
-				this.sourceDipSigmas.add(dipSigma);
-				this.sourceDipDirs.add(dipDir);
-				this.sourceRakes.add(rake);
-				this.sourceDipMeans.add(dipMean);
-				this.sourceDipSigmas.add(dipSigma);
-				this.sourceTopMeans.add(topMean);
-				this.sourceTopMins.add(topMin);
-				this.sourceTopMaxs.add(topMax);
-				this.sourceBottomMeans.add(bottomMean);
-				this.sourceBottomSigmas.add(bottomSigma);
-				this.sourceSlipRateMeans.add(slipRateMean);
-				this.sourceSlipRateSigmas.add(slipRateSigma);
-				this.sourceCouplingCoeffMeans.add(couplingCoeffMean);
-				this.sourceCouplingCoeffSigmas.add(couplingCoeffSigma);
-				this.sourceMedianMags.add(medianMag);
-				this.sourceMedianAnnualRates.add(medianAnnualRate);
-				this.sourceGriddedSurface.add(surface);
+			faultSources = NZSourceModelFile.getFaultSources(FAULT_SOURCE_FILENAME);
+			for(int i=0;i<faultSources.size();++i){ 
+				NZSourceModelFile.Fault fault = faultSources.get(i);
+				sourceNames.add(fault.name);
+				this.sourceTectonicTypes.add(fault.tectonicType);
+				incrementTectonicTypeCounters(fault.tectonicType);
+				this.sourceFaultTypes.add(fault.faultType);
+				this.sourceLengthMeans.add(fault.lengthMean);
+				this.sourceLengthSigmas.add(fault.lengthSigma);
+				this.sourceDipMeans.add(fault.dipMean);
+				this.sourceDipSigmas.add(fault.dipSigma);
+				this.sourceDipDirs.add(fault.dipDir);
+				this.sourceRakes.add(fault.rake);
+				this.sourceDipMeans.add(fault.dipMean);
+				this.sourceDipSigmas.add(fault.dipSigma);
+				this.sourceTopMeans.add(fault.topMean);
+				this.sourceTopMins.add(fault.topMin);
+				this.sourceTopMaxs.add(fault.topMax);
+				this.sourceBottomMeans.add(fault.bottomMean);
+				this.sourceBottomSigmas.add(fault.bottomSigma);
+				this.sourceSlipRateMeans.add(fault.slipRateMean);
+				this.sourceSlipRateSigmas.add(fault.slipRateSigma);
+				this.sourceCouplingCoeffMeans.add(fault.couplingCoeffMean);
+				this.sourceCouplingCoeffSigmas.add(fault.couplingCoeffSigma);
+				this.sourceMedianMags.add(fault.medianMag);
+				this.sourceMedianAnnualRates.add(1./fault.medianRI);
 			}
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
@@ -505,6 +387,22 @@ public class NewZealandERF2015_ChchAftershock extends AbstractERF{
 
 	}
 
+	/**
+	 * Make the gridded surfaces of the faults, unless already made
+	 */
+	private void mkFaultSurfaces() {
+		if (sourceGriddedSurface.size() == sourceNames.size())
+			return;
+		for(int i=0;i<faultSources.size();++i){ 
+			NZSourceModelFile.Fault fault = faultSources.get(i);
+			FaultTrace fltTrace = new FaultTrace(fault.name);
+			for(int j=0;j<fault.traceLats.length;++j)
+				fltTrace.add(new Location(fault.traceLats[j],fault.traceLons[j]));
+			EvenlyGriddedSurface surface = new StirlingGriddedSurface(fltTrace,fault.dipMean,fault.topMean,fault.bottomMean,DEFAULT_GRID_SPACING,fault.dipDir);
+			this.sourceGriddedSurface.add(surface);
+		}
+	}
+
 	/**
 	 * Make Fault Sources
 	 *
@@ -518,6 +416,8 @@ public class NewZealandERF2015_ChchAftershock extends AbstractERF{
 		double z_subductionInterface = zrand.getRandomValue();
 		double z_volcanic = zrand.getRandomValue();
 
+		mkFaultSurfaces();
+
 		//create random fault properties
 		for(int srcIndex=0; srcIndex<sourceNames.size(); ++srcIndex) {
 			EvenlyGriddedSurface surface = this.sourceGriddedSurface.get(srcIndex);
@@ -844,6 +744,7 @@ public class NewZealandERF2015_ChchAftershock extends AbstractERF{
 				mkBackRegion();
 
 			makeTectonicRegionList();
+			forecastUpdated();
 	}
 	
 	@Override
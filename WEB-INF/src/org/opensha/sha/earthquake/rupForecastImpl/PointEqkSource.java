@@ -31,9 +31,13 @@ import org.opensha.sha.earthquake.ProbEqkRupture;
 import org.opensha.sha.earthquake.ProbEqkSource;
 import org.opensha.sha.earthquake.griddedForecast.HypoMagFreqDistAtLoc;
 import org.opensha.sha.faultSurface.AbstractEvenlyGriddedSurface;
+import org.opensha.sha.faultSurface.PointSurface;
 import org.opensha.sha.faultSurface.RuptureSurface;
+import org.opensha.sha.faultSurface.utils.PtSrcDistCorr;
 import org.opensha.sha.magdist.IncrementalMagFreqDist;
 
+import com.google.common.primitives.Doubles;
+
 /**
  * <p>Title: PointEqkSource </p>
  * <p>Description: This makes a point source based on the inputs of the various constructors:</p>
@@ -45,6 +49,12 @@ import org.opensha.sha.magdist.IncrementalMagFreqDist;
  * are ignored, as are those with zero rates.  If magnitude/probability have
  * been given, the source has only one rupture and is not Poissonian.</p>
  *
+ * <p>The rupture probabilities (and the depths for the variable depth case) are computed
+ * once when the source is made (and again if the duration changes), so getRupture(int)
+ * only has to fill in a rupture.  Calculation loops can use getRupture(int, ProbEqkRupture)
+ * to fill in the same rupture object for every magnitude; this doesn't modify the source,
+ * so a source can be shared between threads as long as each has its own rupture.</p>
+ *
  * @author Edward Field
  * @version 1.0
  */
@@ -62,17 +72,15 @@ public class PointEqkSource extends ProbEqkSource implements java.io.Serializabl
 	private double duration=Double.NaN;
 	private double minMag = Double.NaN;
 
-	// to hold the non-zero mags and rates
-	private ArrayList<Double> mags, rates, rakes, dips;
+	// to hold the non-zero mags and rates, and the probabilities for the duration
+	private double[] mags, rates, probs;
+	// these only apply if variableDepthRakeAndDip
+	private double[] rakes, dips;
+	private Location[] rupLocations;
 	private boolean variableDepthRakeAndDip = false;
 	private ArbitrarilyDiscretizedFunc aveRupTopVersusMag;
 	private double defaultHypoDepth;
 
-	/**
-	 * this only applies to non-poissonian sources
-	 */
-	private double probability;
-
 
 	/**
 	 * Constructor specifying the Location, the IncrementalMagFreqDist, the duration,
@@ -93,6 +101,7 @@ public class PointEqkSource extends ProbEqkSource implements java.io.Serializabl
 		setMagsAndRates(magFreqDist);
 
 		isPoissonian = true;
+		setProbabilities();
 
 		/*if( D ) System.out.println("PointEqkSource Constructor: totNumRups="+magsAndRates.getNum()+
                                "; aveDip="+probEqkRupture.getRuptureSurface().getAveDip()+
@@ -134,6 +143,7 @@ public class PointEqkSource extends ProbEqkSource implements java.io.Serializabl
 		this.location = hypoMagFreqDistAtLoc.getLocation().clone();
 		this.setAll(hypoMagFreqDistAtLoc);
 		this.variableDepthRakeAndDip = true;
+		setProbabilities();
 	}
 
 
@@ -149,12 +159,11 @@ public class PointEqkSource extends ProbEqkSource implements java.io.Serializabl
 		this.aveRake=aveRake;
 		this.aveDip=aveDip;
 
-		// add the one magnitude to the mags list
-		mags = new ArrayList();
-		mags.add(new Double(magnitude));
+		// the one magnitude and its probability
+		mags = new double[] {magnitude};
+		probs = new double[] {probability};
 
 		this.isPoissonian = false;
-		this.probability = probability;
 	}
 
 	/**
@@ -180,10 +189,10 @@ public class PointEqkSource extends ProbEqkSource implements java.io.Serializabl
 	private void setAll(HypoMagFreqDistAtLoc hypoMagFreqDistAtLoc) {
 
 		// make list of non-zero rates and mags (if mag >= minMag)
-		mags = new ArrayList();
-		rates = new ArrayList();
-		rakes = new ArrayList();
-		dips = new ArrayList();
+		ArrayList<Double> mags = new ArrayList<Double>();
+		ArrayList<Double> rates = new ArrayList<Double>();
+		ArrayList<Double> rakes = new ArrayList<Double>();
+		ArrayList<Double> dips = new ArrayList<Double>();
 		IncrementalMagFreqDist[] magFreqDists = hypoMagFreqDistAtLoc.getMagFreqDistList();
 		FocalMechanism[] focalMechanisms = hypoMagFreqDistAtLoc.getFocalMechanismList();
 		for (int i=0; i<magFreqDists.length; i++) {
@@ -198,6 +207,21 @@ public class PointEqkSource extends ProbEqkSource implements java.io.Serializabl
 				}
 			}
 		}
+		this.mags = Doubles.toArray(mags);
+		this.rates = Doubles.toArray(rates);
+		this.rakes = Doubles.toArray(rakes);
+		this.dips = Doubles.toArray(dips);
+
+		// the depth only depends on the mag, so the locations can be made here
+		rupLocations = new Location[this.mags.length];
+		for (int i=0; i<rupLocations.length; i++) {
+			double depth;
+			if(this.mags[i] < aveRupTopVersusMag.getMinX())
+				depth = defaultHypoDepth;
+			else
+				depth = aveRupTopVersusMag.getClosestYtoX(this.mags[i]);
+			rupLocations[i] = new Location(location.getLatitude(), location.getLongitude(), depth);
+		}
 	}
 
 
@@ -209,24 +233,78 @@ public class PointEqkSource extends ProbEqkSource implements java.io.Serializabl
 
 		// make list of non-zero rates and mags (if mag >= minMag)
 		//magsAndRates = new ArbitrarilyDiscretizedFunc();
-		mags = new ArrayList();
-		rates = new ArrayList();
+		ArrayList<Double> mags = new ArrayList<Double>();
+		ArrayList<Double> rates = new ArrayList<Double>();
 		for (int i=0; i<magFreqDist.size(); ++i){
 			if(magFreqDist.getY(i) > 0 && magFreqDist.getX(i) >= minMag){
 				mags.add(new Double(magFreqDist.getX(i)));
 				rates.add(new Double(magFreqDist.getY(i)));
 			}
 		}
+		this.mags = Doubles.toArray(mags);
+		this.rates = Doubles.toArray(rates);
 
 		// if (D) System.out.println(C+" numNonZeroMagDistPoints="+magsAndRates.getNum());
 	}
 
 
+	/**
+	 * This computes the Poisson probability of each rupture from its rate and the duration.
+	 */
+	private void setProbabilities() {
+		probs = new double[rates.length];
+		for (int i=0; i<rates.length; i++)
+			probs[i] = 1 - Math.exp(-duration*rates[i]);
+	}
+
+
 	/**
 	 * @return the number of rutures (equals number of mags with non-zero rates)
 	 */
 	public int getNumRuptures() {
-		return mags.size();
+		return mags.length;
+	}
+
+
+	/**
+	 * @return the magnitude of the nth rupture
+	 */
+	public double getMag(int nthRupture) {
+		return mags[nthRupture];
+	}
+
+
+	/**
+	 * @return the probability of the nth rupture (for the current duration if Poissonian)
+	 */
+	public double getProbability(int nthRupture) {
+		return probs[nthRupture];
+	}
+
+
+	/**
+	 * @return the rake of the nth rupture
+	 */
+	public double getRake(int nthRupture) {
+		return variableDepthRakeAndDip ? rakes[nthRupture] : aveRake;
+	}
+
+
+	/**
+	 * @return the dip of the nth rupture
+	 */
+	public double getDip(int nthRupture) {
+		return variableDepthRakeAndDip ? dips[nthRupture] : aveDip;
+	}
+
+
+	/**
+	 * This returns the depth of the nth rupture.  All ruptures are at the latitude and
+	 * longitude of {@link #getLocation()}, so only the depth differs between them.
+	 * @return the depth of the nth rupture
+	 */
+	public double getRuptureDepth(int nthRupture) {
+		return variableDepthRakeAndDip ? rupLocations[nthRupture].getDepth() : location.getDepth();
 	}
 
 
@@ -234,33 +312,45 @@ public class PointEqkSource extends ProbEqkSource implements java.io.Serializabl
 	 * This makes and returns the nth probEqkRupture for this source.
 	 */
 	public ProbEqkRupture getRupture(int nthRupture){
+		return getRupture(nthRupture, new ProbEqkRupture());
+	}
 
-		// set the magnitude
-		double mag = mags.get(nthRupture).doubleValue();
-		ProbEqkRupture probEqkRupture = new ProbEqkRupture();
-		probEqkRupture.setMag(mag);
 
-		// set the probability if it's Poissonian (otherwise this was already set)
-		if(isPoissonian)
-			probEqkRupture.setProbability(1 - Math.exp(-duration*((Double)rates.get(nthRupture)).doubleValue()));
-		else
-			probEqkRupture.setProbability(probability);
+	/**
+	 * This sets the given rupture to the nth probEqkRupture for this source and returns it.
+	 * If the rupture already has a PointSurface (i.e., it was set by this method before)
+	 * that surface is updated rather than replaced, with the point-source distance correction
+	 * reset to none; otherwise a new PointSurface is made.  Nothing in the source is changed.
+	 * @param nthRupture
+	 * @param probEqkRupture - rupture to set, or null to make a new one
+	 */
+	@Override
+	public ProbEqkRupture getRupture(int nthRupture, ProbEqkRupture probEqkRupture){
+		if (probEqkRupture == null)
+			probEqkRupture = new ProbEqkRupture();
 
-		// set the rake, depth, and dip if necessary
+		probEqkRupture.setMag(mags[nthRupture]);
+		probEqkRupture.setProbability(probs[nthRupture]);
+
+		// set the rake, location, and dip
+		Location rupLocation;
+		double rupDip;
 		if(variableDepthRakeAndDip) {
-			probEqkRupture.setAveRake(rakes.get(nthRupture).doubleValue());
-			double depth;
-			if(mag < this.aveRupTopVersusMag.getMinX())
-				depth = this.defaultHypoDepth;
-			else
-				depth = aveRupTopVersusMag.getClosestYtoX(mag);
-			//    	location.setDepth(depth);
-			location = new Location(
-					location.getLatitude(), location.getLongitude(), depth);
-			probEqkRupture.setPointSurface(location, dips.get(nthRupture).doubleValue());
+			probEqkRupture.setAveRake(rakes[nthRupture]);
+			rupLocation = rupLocations[nthRupture];
+			rupDip = dips[nthRupture];
 		} else {
-			probEqkRupture.setPointSurface(location, aveDip);
 			probEqkRupture.setAveRake(aveRake);
+			rupLocation = location;
+			rupDip = aveDip;
+		}
+		if(probEqkRupture.getRuptureSurface() instanceof PointSurface) {
+			PointSurface surface = (PointSurface)probEqkRupture.getRuptureSurface();
+			surface.setLocation(rupLocation);
+			surface.setAveDip(rupDip);
+			surface.setDistCorrMagAndType(Double.NaN, PtSrcDistCorr.Type.NONE);
+		} else {
+			probEqkRupture.setPointSurface(rupLocation, rupDip);
 		}
 
 		// return the ProbEqkRupture
@@ -275,6 +365,8 @@ public class PointEqkSource extends ProbEqkSource implements java.io.Serializabl
 	 */
 	public void setDuration(double duration) {
 		this.duration=duration;
+		if(isPoissonian)
+			setProbabilities();
 	}
 
 
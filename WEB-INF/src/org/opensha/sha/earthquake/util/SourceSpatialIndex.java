@@ -0,0 +1,268 @@
+package org.opensha.sha.earthquake.util;
+
+import static org.opensha.commons.geo.GeoTools.EARTH_RADIUS_MEAN;
+import static org.opensha.commons.geo.GeoTools.TO_DEG;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.opensha.commons.geo.Location;
+import org.opensha.sha.earthquake.AbstractERF;
+import org.opensha.sha.earthquake.ERF;
+import org.opensha.sha.earthquake.ProbEqkSource;
+import org.opensha.sha.earthquake.rupForecastImpl.FaultRuptureSource;
+import org.opensha.sha.earthquake.rupForecastImpl.PointEqkSource;
+import org.opensha.sha.faultSurface.RuptureSurface;
+
+/**
+ * A grid of latitude / longitude cells over the sources of an ERF, used to find the
+ * sources that may be within a given distance of a site without calling
+ * {@link ProbEqkSource#getMinDistance(org.opensha.commons.data.Site)} on every source
+ * of the ERF.
+ * <br><br>
+ * Every source is put in each cell overlapped by the bounding box of the locations its
+ * minimum distance is measured to. The candidates returned for a site are the sources of
+ * the cells overlapping the bounding box of a circle of the given radius around the site,
+ * which is a superset of the sources within that distance; calculators must still check
+ * the minimum distance of every candidate. Sources of other types than
+ * {@link PointEqkSource} and {@link FaultRuptureSource} are always returned as
+ * candidates, since their minimum distance may be measured in any way.
+ * <br><br>
+ * The index also keeps the number of ruptures of each source, so that calculators
+ * do not have to go through all the sources of the ERF to count them.
+ * <br><br>
+ * The index assumes that the ERF is not updated while it is in use; it is no longer
+ * {@link #isFor(ERF)} the ERF once the sources have been rebuilt (see
+ * {@link AbstractERF#getForecastVersion()}). This class is thread safe once constructed.
+ */
+public class SourceSpatialIndex {
+
+	/** Default cell size, in degrees. */
+	public static final double DEFAULT_CELL_SIZE = 0.25;
+
+	// relative and absolute margins added to the query box, in degrees, so that
+	// rounding can not drop a source right at the cutoff distance
+	private static final double MARGIN_REL = 1e-6;
+	private static final double MARGIN_ABS = 1e-6;
+
+	private final ERF erf;
+	private final int numSources;
+	private final int forecastVersion;
+	private final double cellSize;
+	private final int[] numRuptures;
+	private final int totNumRuptures;
+
+	private final double minLat, minLon;
+	private final int numLatCells, numLonCells;
+	// source indices of each cell in ascending order, null for empty cells
+	private final int[][] cells;
+	// sources that are not indexed
+	private final int[] unindexed;
+
+	public SourceSpatialIndex(ERF erf) {
+		this(erf, DEFAULT_CELL_SIZE);
+	}
+
+	/**
+	 * @param erf - the ERF, which must have been updated
+	 * @param cellSize - size of the cells, in degrees
+	 */
+	public SourceSpatialIndex(ERF erf, double cellSize) {
+		if (!(cellSize > 0))
+			throw new IllegalArgumentException("Cell size must be positive: " + cellSize);
+		this.erf = erf;
+		this.numSources = erf.getNumSources();
+		this.forecastVersion = AbstractERF.getForecastVersion(erf);
+		this.cellSize = cellSize;
+
+		// bounding boxes of the sources, null if not indexed
+		double[][] boxes = new double[numSources][];
+		List<Integer> others = new ArrayList<Integer>();
+		double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+		double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+		numRuptures = new int[numSources];
+		int totNumRuptures = 0;
+		for (int s = 0; s < numSources; s++) {
+			ProbEqkSource source = erf.getSource(s);
+			numRuptures[s] = source.getNumRuptures();
+			totNumRuptures += numRuptures[s];
+			double[] box = getBoundingBox(source);
+			if (box == null) {
+				others.add(s);
+				continue;
+			}
+			boxes[s] = box;
+			minLat = Math.min(minLat, box[0]);
+			maxLat = Math.max(maxLat, box[1]);
+			minLon = Math.min(minLon, box[2]);
+			maxLon = Math.max(maxLon, box[3]);
+		}
+		this.totNumRuptures = totNumRuptures;
+		unindexed = new int[others.size()];
+		for (int i = 0; i < unindexed.length; i++)
+			unindexed[i] = others.get(i);
+
+		if (unindexed.length == numSources) {
+			this.minLat = this.minLon = 0;
+			numLatCells = numLonCells = 0;
+			cells = new int[0][];
+			return;
+		}
+		this.minLat = minLat;
+		this.minLon = minLon;
+		numLatCells = getCell(maxLat, minLat) + 1;
+		numLonCells = getCell(maxLon, minLon) + 1;
+
+		// count the sources of each cell first so that the cells can be filled in
+		// ascending source order without lists
+		int[] counts = new int[numLatCells * numLonCells];
+		for (int s = 0; s < numSources; s++) {
+			if (boxes[s] == null)
+				continue;
+			for (int i = getCell(boxes[s][0], minLat); i <= getCell(boxes[s][1], minLat); i++)
+				for (int j = getCell(boxes[s][2], minLon); j <= getCell(boxes[s][3], minLon); j++)
+					counts[i * numLonCells + j]++;
+		}
+		cells = new int[counts.length][];
+		for (int c = 0; c < counts.length; c++)
+			if (counts[c] > 0)
+				cells[c] = new int[counts[c]];
+		int[] filled = new int[counts.length];
+		for (int s = 0; s < numSources; s++) {
+			if (boxes[s] == null)
+				continue;
+			for (int i = getCell(boxes[s][0], minLat); i <= getCell(boxes[s][1], minLat); i++) {
+				for (int j = getCell(boxes[s][2], minLon); j <= getCell(boxes[s][3], minLon); j++) {
+					int c = i * numLonCells + j;
+					cells[c][filled[c]++] = s;
+				}
+			}
+		}
+	}
+
+	/*
+	 * The bounding box (min lat, max lat, min lon, max lon) of the locations the
+	 * minimum distance of the source is measured to, or null if unknown. The exact
+	 * classes are checked since subclasses could measure their distance differently.
+	 */
+	private static double[] getBoundingBox(ProbEqkSource source) {
+		if (source.getClass() == PointEqkSource.class) {
+			Location loc = ((PointEqkSource) source).getLocation();
+			return new double[] {loc.getLatitude(), loc.getLatitude(),
+					loc.getLongitude(), loc.getLongitude()};
+		} else if (source.getClass() == FaultRuptureSource.class) {
+			// the corner locations used for the minimum distance are either grid
+			// points or perimeter points of the surface
+			RuptureSurface surface = source.getSourceSurface();
+			double[] box = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+					Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+			addToBoundingBox(box, surface.getEvenlyDiscritizedListOfLocsOnSurface());
+			addToBoundingBox(box, surface.getPerimeter());
+			return box[0] <= box[1] ? box : null;
+		}
+		return null;
+	}
+
+	private static void addToBoundingBox(double[] box, Iterable<Location> locs) {
+		for (Location loc : locs) {
+			box[0] = Math.min(box[0], loc.getLatitude());
+			box[1] = Math.max(box[1], loc.getLatitude());
+			box[2] = Math.min(box[2], loc.getLongitude());
+			box[3] = Math.max(box[3], loc.getLongitude());
+		}
+	}
+
+	private int getCell(double value, double min) {
+		return (int) Math.floor((value - min) / cellSize);
+	}
+
+	public ERF getERF() {
+		return erf;
+	}
+
+	/**
+	 * @return the number of ruptures of each source of the ERF (a copy)
+	 */
+	public int[] getNumRuptures() {
+		return numRuptures.clone();
+	}
+
+	/**
+	 * @return the number of ruptures of all the sources of the ERF
+	 */
+	public int getTotNumRuptures() {
+		return totNumRuptures;
+	}
+
+	/**
+	 * @return true if this index can be used for the given ERF, that is if it was built
+	 * for the same ERF instance, the sources have not been rebuilt since and their
+	 * number has not changed
+	 */
+	public boolean isFor(ERF erf) {
+		return this.erf == erf && AbstractERF.getForecastVersion(erf) == forecastVersion
+				&& erf.getNumSources() == numSources;
+	}
+
+	/**
+	 * Returns the indices, in ascending order, of the sources that may be within the
+	 * given horizontal distance of the location. Sources beyond the distance may be
+	 * included, but none within it are left out.
+	 *
+	 * @param loc - the site location
+	 * @param maxDistance - the maximum distance, in km
+	 * @return the candidate source indices
+	 */
+	public int[] getCandidateSources(Location loc, double maxDistance) {
+		// angular radius of the circle around the site
+		double angle = maxDistance / EARTH_RADIUS_MEAN;
+		double latRad = loc.getLatRad();
+		double dLat = angle * TO_DEG;
+		dLat += dLat * MARGIN_REL + MARGIN_ABS;
+		// half width of the circle in longitude, all longitudes if it covers a pole
+		double dLon = Double.POSITIVE_INFINITY;
+		double sinRatio = Math.sin(angle) / Math.cos(latRad);
+		if (angle < Math.PI / 2 && Math.abs(latRad) + angle < Math.PI / 2 && sinRatio < 1) {
+			dLon = Math.asin(sinRatio) * TO_DEG;
+			dLon += dLon * MARGIN_REL + MARGIN_ABS;
+		}
+
+		BitSet found = new BitSet(numSources);
+		for (int s : unindexed)
+			found.set(s);
+		if (numLatCells > 0) {
+			int i0 = Math.max(getCell(loc.getLatitude() - dLat, minLat), 0);
+			int i1 = Math.min(getCell(loc.getLatitude() + dLat, minLat), numLatCells - 1);
+			if (Double.isInfinite(dLon) || dLon >= 180) {
+				addCells(found, i0, i1, 0, numLonCells - 1);
+			} else {
+				// the source longitudes may be given in either of the -180..180 or
+				// 0..360 conventions
+				for (int shift = -360; shift <= 360; shift += 360) {
+					double lon = loc.getLongitude() + shift;
+					int j0 = Math.max(getCell(lon - dLon, minLon), 0);
+					int j1 = Math.min(getCell(lon + dLon, minLon), numLonCells - 1);
+					addCells(found, i0, i1, j0, j1);
+				}
+			}
+		}
+
+		int[] candidates = new int[found.cardinality()];
+		for (int s = found.nextSetBit(0), i = 0; s >= 0; s = found.nextSetBit(s + 1), i++)
+			candidates[i] = s;
+		return candidates;
+	}
+
+	private void addCells(BitSet found, int i0, int i1, int j0, int j1) {
+		for (int i = i0; i <= i1; i++) {
+			for (int j = j0; j <= j1; j++) {
+				int[] cell = cells[i * numLonCells + j];
+				if (cell != null)
+					for (int s : cell)
+						found.set(s);
+			}
+		}
+	}
+
+}
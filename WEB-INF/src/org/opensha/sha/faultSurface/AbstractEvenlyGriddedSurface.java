@@ -35,6 +35,7 @@ import org.opensha.sha.faultSurface.cache.SurfaceCachingPolicy;
 import org.opensha.sha.faultSurface.cache.SurfaceDistanceCache;
 import org.opensha.sha.faultSurface.cache.SurfaceDistances;
 import org.opensha.sha.faultSurface.utils.GriddedSurfaceUtils;
+import org.opensha.sha.faultSurface.utils.PackedSurfaceLocations;
 
 import com.google.common.base.Preconditions;
 
@@ -73,6 +74,9 @@ implements EvenlyGriddedSurface, CacheEnabledSurface, Serializable {
 	// create cache using default caching policy
 	private SurfaceDistanceCache cache = SurfaceCachingPolicy.build(this);
 	
+	// locations packed for the distance calculations, built when first needed
+	private transient volatile PackedSurfaceLocations packedLocs;
+	
 	// no argument constructor needed by subclasses
 	public AbstractEvenlyGriddedSurface() {}
 	
@@ -198,6 +202,39 @@ implements EvenlyGriddedSurface, CacheEnabledSurface, Serializable {
 		return GriddedSurfaceUtils.getMinDistanceBetweenSurfaces(surface, this);
 	}
 	
+	/**
+	 * Returns the locations of this surface packed into arrays for the distance
+	 * calculations of {@link GriddedSurfaceUtils}. They are built on the first call,
+	 * and again after the locations of the surface are changed.
+	 * @return
+	 */
+	public PackedSurfaceLocations getPackedLocations() {
+		PackedSurfaceLocations locs = packedLocs;
+		if (locs == null) {
+			locs = new PackedSurfaceLocations(this);
+			packedLocs = locs;
+		}
+		return locs;
+	}
+	
+	@Override
+	public void set(int row, int column, Location obj) throws ArrayIndexOutOfBoundsException {
+		super.set(row, column, obj);
+		packedLocs = null;
+	}
+	
+	@Override
+	protected void setNumRowsAndNumCols(int numRows, int numCols) {
+		super.setNumRowsAndNumCols(numRows, numCols);
+		packedLocs = null;
+	}
+	
+	@Override
+	public void clear() {
+		super.clear();
+		packedLocs = null;
+	}
+	
 	public SurfaceDistances calcDistances(Location loc) {
 		double[] dCalc = GriddedSurfaceUtils.getPropagationDistances(this, loc);
 		return new SurfaceDistances(dCalc[0], dCalc[1], dCalc[2]);
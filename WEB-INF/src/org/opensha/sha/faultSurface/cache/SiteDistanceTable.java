@@ -0,0 +1,129 @@
+package org.opensha.sha.faultSurface.cache;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.opensha.commons.data.Site;
+import org.opensha.commons.geo.Location;
+import org.opensha.sha.earthquake.AbstractERF;
+import org.opensha.sha.earthquake.EqkRupture;
+import org.opensha.sha.earthquake.ERF;
+import org.opensha.sha.earthquake.ProbEqkSource;
+import org.opensha.sha.faultSurface.PointSurface;
+import org.opensha.sha.faultSurface.RuptureSurface;
+
+/**
+ * Distances from one site to the sources and ruptures of one ERF, keyed by source and
+ * rupture index. Unlike the caches of {@link CacheEnabledSurface}, which belong to a
+ * surface object and only hold a few locations, a table holds every rupture of the ERF
+ * for a single site. It is filled as the distances are first asked for, so it can be
+ * handed to the hazard curve, disaggregation and GCIM calculators of one site in turn
+ * and each surface is only measured once.
+ * <br><br>
+ * Ruptures with a {@link PointSurface} are not stored, since their distances depend on
+ * the point source distance correction of the calculator and are cheap to compute
+ * anyway. The table assumes that the ERF is not updated while it is in use; it is no
+ * longer {@link #isFor(ERF, Site)} the ERF once the sources have been rebuilt (see
+ * {@link AbstractERF#getForecastVersion()}).
+ * <br><br>
+ * This class is thread safe.
+ */
+public class SiteDistanceTable {
+
+	/**
+	 * Surface distances with the distance X, as used by most IMRs.
+	 */
+	public static class Distances extends SurfaceDistances {
+
+		private final double distanceX;
+
+		public Distances(double distanceRup, double distanceJB,
+				double distanceSeis, double distanceX) {
+			super(distanceRup, distanceJB, distanceSeis);
+			this.distanceX = distanceX;
+		}
+
+		public double getDistanceX() {
+			return distanceX;
+		}
+	}
+
+	private final ERF erf;
+	private final int forecastVersion;
+	private final Site site;
+	private final Location siteLoc;
+
+	private final AtomicReferenceArray<Double> minDists;
+	private final AtomicReferenceArray<Distances[]> rupDists;
+
+	public SiteDistanceTable(ERF erf, Site site) {
+		this.erf = erf;
+		this.forecastVersion = AbstractERF.getForecastVersion(erf);
+		this.site = site;
+		this.siteLoc = site.getLocation();
+		int numSources = erf.getNumSources();
+		minDists = new AtomicReferenceArray<Double>(numSources);
+		rupDists = new AtomicReferenceArray<Distances[]>(numSources);
+	}
+
+	public ERF getERF() {
+		return erf;
+	}
+
+	public Site getSite() {
+		return site;
+	}
+
+	/**
+	 * @return true if this table can be used for the given ERF and site, that is if
+	 * it was built for the same ERF instance, the sources have not been rebuilt since,
+	 * and a site at the same location
+	 */
+	public boolean isFor(ERF erf, Site site) {
+		return this.erf == erf && AbstractERF.getForecastVersion(erf) == forecastVersion
+				&& siteLoc.equals(site.getLocation());
+	}
+
+	/**
+	 * @param sourceIndex - index of the source in the ERF
+	 * @param source - the source, as returned by the ERF
+	 * @return the minimum distance between the source and the site
+	 */
+	public double getMinDistance(int sourceIndex, ProbEqkSource source) {
+		Double dist = minDists.get(sourceIndex);
+		if (dist == null) {
+			dist = source.getMinDistance(site);
+			minDists.set(sourceIndex, dist);
+		}
+		return dist;
+	}
+
+	/**
+	 * @param sourceIndex - index of the source in the ERF
+	 * @param source - the source, as returned by the ERF
+	 * @param rupIndex - index of the rupture in the source
+	 * @param rupture - the rupture, as returned by the source
+	 * @return the distances between the rupture surface and the site, or null if the
+	 * rupture has a point surface
+	 */
+	public Distances getDistances(int sourceIndex, ProbEqkSource source,
+			int rupIndex, EqkRupture rupture) {
+		RuptureSurface surface = rupture.getRuptureSurface();
+		if (surface instanceof PointSurface)
+			return null;
+		Distances[] dists = rupDists.get(sourceIndex);
+		if (dists == null) {
+			rupDists.compareAndSet(sourceIndex, null, new Distances[source.getNumRuptures()]);
+			dists = rupDists.get(sourceIndex);
+		}
+		// a race only computes the same distances twice; the fields are final so a
+		// Distances is complete once visible
+		Distances rupDist = dists[rupIndex];
+		if (rupDist == null) {
+			rupDist = new Distances(surface.getDistanceRup(siteLoc), surface.getDistanceJB(siteLoc),
+					surface.getDistanceSeis(siteLoc), surface.getDistanceX(siteLoc));
+			dists[rupIndex] = rupDist;
+		}
+		return rupDist;
+	}
+
+}
@@ -1,5 +1,7 @@
 package org.opensha.sha.faultSurface.utils;
 
+import static org.opensha.commons.geo.GeoTools.EARTH_RADIUS_MEAN;
+
 import java.awt.Color;
 import java.awt.geom.Area;
 import java.awt.geom.Path2D;
@@ -14,6 +16,7 @@ import org.opensha.commons.geo.LocationUtils;
 import org.opensha.commons.geo.LocationVector;
 import org.opensha.commons.geo.Region;
 import org.opensha.commons.geo.RegionUtils;
+import org.opensha.sha.faultSurface.AbstractEvenlyGriddedSurface;
 import org.opensha.sha.faultSurface.CompoundSurface;
 import org.opensha.sha.faultSurface.EvenlyGriddedSurface;
 import org.opensha.sha.faultSurface.FaultTrace;
@@ -35,6 +38,10 @@ public class GriddedSurfaceUtils {
 	/** minimum depth for Campbell model */
 	final static double SEIS_DEPTH = DistanceSeisParameter.SEIS_DEPTH;
 	
+	// relative margin on the lower bounds of the early-out tests, so that rounding
+	// can't skip a location that the full calculation would have used
+	private final static double BOUND_TOLERANCE = 1e-10;
+	
 	
 	/**
 	 * This computes distRup, distJB, & distSeis, which are available in the returned
@@ -45,28 +52,228 @@ public class GriddedSurfaceUtils {
 	 */
 	public static double[] getPropagationDistances(EvenlyGriddedSurface surface, Location loc) {
 		
-		Location loc1 = loc;
-		Location loc2;
-		double distJB = Double.MAX_VALUE;
-		double distSeis = Double.MAX_VALUE;
-		double distRup = Double.MAX_VALUE;
-		
-		double horzDist, vertDist, rupDist;
+		double distJB, distSeis, distRup;
 
 		// flag to project to seisDepth if only one row and depth is below seisDepth
 		boolean projectToDepth = false;
 		if (surface.getNumRows() == 1 && surface.getLocation(0,0).getDepth() < SEIS_DEPTH)
 			projectToDepth = true;
 
-		// get locations to iterate over depending on dip
-		ListIterator<Location> it;
-		if(surface.getAveDip() > 89) {
-			it = surface.getColumnIterator(0);
-			if (surface.getLocation(0,0).getDepth() < SEIS_DEPTH)
-				projectToDepth = true;
+		// only the top row is used if vertical
+		boolean vertical = surface.getAveDip() > 89;
+		if (vertical && surface.getLocation(0,0).getDepth() < SEIS_DEPTH)
+			projectToDepth = true;
+		int numRows = vertical ? 1 : surface.getNumRows();
+		
+		// use the packed locations of the surface (or of its parent if it's a subset) if available
+		PackedSurfaceLocations packedLocs = null;
+		int startRow = 0, startCol = 0;
+		if (surface instanceof AbstractEvenlyGriddedSurface) {
+			packedLocs = ((AbstractEvenlyGriddedSurface)surface).getPackedLocations();
+		} else if (surface instanceof GriddedSubsetSurface) {
+			GriddedSubsetSurface subset = (GriddedSubsetSurface)surface;
+			if (subset.getParentSurface() instanceof AbstractEvenlyGriddedSurface) {
+				packedLocs = ((AbstractEvenlyGriddedSurface)subset.getParentSurface()).getPackedLocations();
+				startRow = subset.getStartRow();
+				startCol = subset.getStartCol();
+			}
+		}
+		
+		if (packedLocs != null) {
+			double[] dists = new double[3];
+			getPropagationDistances(packedLocs, startRow, startCol, numRows, surface.getNumCols(),
+					loc, projectToDepth, dists);
+			distRup = dists[0];
+			distJB = dists[1];
+			distSeis = dists[2];
+		} else {
+			// get locations to iterate over depending on dip
+			ListIterator<Location> it;
+			if(vertical)
+				it = surface.getColumnIterator(0);
+			else
+				it = surface.getLocationsIterator();
+			double[] dists = getPropagationDistances(it, loc, projectToDepth);
+			distRup = dists[0];
+			distJB = dists[1];
+			distSeis = dists[2];
 		}
-		else
-			it = surface.getLocationsIterator();
+
+		if(D) {
+			System.out.println(C+": distRup = " + distRup);
+			System.out.println(C+": distSeis = " + distSeis);
+			System.out.println(C+": distJB = " + distJB);
+		}
+		
+		// Check whether small values of distJB should really be zero
+		if(distJB <surface.getAveGridSpacing()) { // check this first since the next steps could take time
+			
+			// first identify whether it's a frankel type surface
+			boolean frankelTypeSurface=false;
+			if(surface instanceof FrankelGriddedSurface) {
+				frankelTypeSurface = true;
+			}
+			else if(surface instanceof GriddedSubsetSurface) {
+				if(((GriddedSubsetSurface)surface).getParentSurface() instanceof FrankelGriddedSurface) {
+					frankelTypeSurface = true;
+				}
+			}
+					
+			if (frankelTypeSurface) {
+				if (isDjbZeroFrankel(surface, distJB)) distJB = 0;
+			} else {
+				if (isDjbZero(surface.getPerimeter(), loc)) distJB = 0;
+			}
+		}
+
+		double[] results = {distRup, distJB, distSeis};
+		
+		return results;
+
+	}
+	
+	/**
+	 * This computes distRup, distJB & distSeis between the given location and the
+	 * locations of the given window of a packed surface, and puts them in elements 0, 1
+	 * and 2 of the given array. The values are those of the location iterator of the
+	 * surface, before distJB is checked for being inside the surface projection. Nothing
+	 * is allocated.
+	 * <br><br>
+	 * Rows and locations are skipped when a lower bound of their horizontal distance,
+	 * from the bounding box of the row, is too large to give a smaller value of any of
+	 * the distances. The bound takes the smallest cosine of latitude of the row, so
+	 * that no cosine is computed for skipped locations.
+	 * @param locs - packed surface locations
+	 * @param startRow - first row of the window
+	 * @param startCol - first column of the window
+	 * @param numRows - number of rows in the window
+	 * @param numCols - number of columns in the window
+	 * @param loc - site location
+	 * @param projectToDepth - whether shallow locations are projected to the seis depth
+	 * @param distances - array of at least 3 elements for the results
+	 */
+	public static void getPropagationDistances(PackedSurfaceLocations locs, int startRow,
+			int startCol, int numRows, int numCols, Location loc, boolean projectToDepth,
+			double[] distances) {
+		
+		double[] latRad = locs.getLatRad();
+		double[] lonRad = locs.getLonRad();
+		double[] depth = locs.getDepth();
+		double[] rowMinLatRad = locs.getRowMinLatRad();
+		double[] rowMaxLatRad = locs.getRowMaxLatRad();
+		double[] rowMinLonRad = locs.getRowMinLonRad();
+		double[] rowMaxLonRad = locs.getRowMaxLonRad();
+		int locsNumCols = locs.getNumCols();
+		
+		double lat1 = loc.getLatRad();
+		double lon1 = loc.getLonRad();
+		double depth1 = loc.getDepth();
+		
+		double distJB = Double.MAX_VALUE;
+		// squared values until the end
+		double distSeis = Double.MAX_VALUE;
+		double distRup = Double.MAX_VALUE;
+		// the largest of the squared distances; a location can't give a smaller value
+		// of any of them if its squared horizontal distance is larger than this
+		double maxDistSq = Double.POSITIVE_INFINITY;
+		
+		double horzDist, vertDist, rupDist, dLat, dLon, lat2, boundSq, minCos;
+		
+		for (int r=startRow; r<startRow+numRows; r++) {
+			
+			// the cosine of the mean latitude of the site and any location of the row is
+			// at least that of the largest absolute latitude
+			minCos = Math.cos(Math.max(Math.abs(lat1),
+					Math.max(Math.abs(rowMinLatRad[r]), Math.abs(rowMaxLatRad[r]))));
+			
+			// lower bound of the distance to the bounding box of the row
+			if (lat1 < rowMinLatRad[r])
+				dLat = rowMinLatRad[r] - lat1;
+			else if (lat1 > rowMaxLatRad[r])
+				dLat = lat1 - rowMaxLatRad[r];
+			else
+				dLat = 0;
+			if (lon1 < rowMinLonRad[r])
+				dLon = (rowMinLonRad[r] - lon1) * minCos;
+			else if (lon1 > rowMaxLonRad[r])
+				dLon = (lon1 - rowMaxLonRad[r]) * minCos;
+			else
+				dLon = 0;
+			boundSq = EARTH_RADIUS_MEAN * EARTH_RADIUS_MEAN * (dLat * dLat + dLon * dLon)
+					* (1 - BOUND_TOLERANCE);
+			if (boundSq > maxDistSq)
+				continue;
+			
+			int end = r*locsNumCols + startCol + numCols;
+			for (int i=r*locsNumCols + startCol; i<end; i++) {
+				
+				lat2 = latRad[i];
+				dLat = lat1 - lat2;
+				dLon = (lon1 - lonRad[i]) * minCos;
+				boundSq = EARTH_RADIUS_MEAN * EARTH_RADIUS_MEAN * (dLat * dLat + dLon * dLon)
+						* (1 - BOUND_TOLERANCE);
+				if (boundSq > maxDistSq)
+					continue;
+				
+				// get the vertical distance
+				vertDist = depth[i] - depth1;
+				
+				// horizontal distance as in LocationUtils.horzDistanceFast
+				dLon = (lon1 - lonRad[i]) * Math.cos((lat1 + lat2) * 0.5);
+				horzDist = EARTH_RADIUS_MEAN * Math.sqrt((dLat * dLat) + (dLon * dLon));
+				
+				boolean changed = false;
+				
+				if(horzDist < distJB) {
+					distJB = horzDist;
+					changed = true;
+				}
+				
+				rupDist = horzDist * horzDist + vertDist * vertDist;
+				if(rupDist < distRup) {
+					distRup = rupDist;
+					changed = true;
+				}
+				
+				if (depth[i] >= SEIS_DEPTH) {
+					if (rupDist < distSeis) {
+						distSeis = rupDist;
+						changed = true;
+					}
+				}
+				// take care of shallow line or point source case
+				else if(projectToDepth) {
+					rupDist = horzDist * horzDist + SEIS_DEPTH * SEIS_DEPTH;
+					if (rupDist < distSeis) {
+						distSeis = rupDist;
+						changed = true;
+					}
+				}
+				
+				if (changed)
+					maxDistSq = Math.max(distJB * distJB, Math.max(distRup, distSeis));
+			}
+		}
+		
+		distances[0] = Math.pow(distRup,0.5);
+		distances[1] = distJB;
+		distances[2] = Math.pow(distSeis,0.5);
+	}
+	
+	/**
+	 * This computes distRup, distJB & distSeis between the given location and the
+	 * locations of the given iterator, without checking whether distJB should be zero.
+	 */
+	private static double[] getPropagationDistances(ListIterator<Location> it, Location loc,
+			boolean projectToDepth) {
+		
+		Location loc1 = loc;
+		Location loc2;
+		double distJB = Double.MAX_VALUE;
+		double distSeis = Double.MAX_VALUE;
+		double distRup = Double.MAX_VALUE;
+		
+		double horzDist, vertDist, rupDist;
 
 		while( it.hasNext() ){
 
@@ -98,33 +305,6 @@ public class GriddedSurfaceUtils {
 		distRup = Math.pow(distRup,0.5);
 		distSeis = Math.pow(distSeis,0.5);
 
-		if(D) {
-			System.out.println(C+": distRup = " + distRup);
-			System.out.println(C+": distSeis = " + distSeis);
-			System.out.println(C+": distJB = " + distJB);
-		}
-		
-		// Check whether small values of distJB should really be zero
-		if(distJB <surface.getAveGridSpacing()) { // check this first since the next steps could take time
-			
-			// first identify whether it's a frankel type surface
-			boolean frankelTypeSurface=false;
-			if(surface instanceof FrankelGriddedSurface) {
-				frankelTypeSurface = true;
-			}
-			else if(surface instanceof GriddedSubsetSurface) {
-				if(((GriddedSubsetSurface)surface).getParentSurface() instanceof FrankelGriddedSurface) {
-					frankelTypeSurface = true;
-				}
-			}
-					
-			if (frankelTypeSurface) {
-				if (isDjbZeroFrankel(surface, distJB)) distJB = 0;
-			} else {
-				if (isDjbZero(surface.getPerimeter(), loc)) distJB = 0;
-			}
-		}
-
 		double[] results = {distRup, distJB, distSeis};
 		
 		return results;
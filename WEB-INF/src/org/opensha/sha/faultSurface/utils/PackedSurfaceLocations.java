@@ -0,0 +1,103 @@
+package org.opensha.sha.faultSurface.utils;
+
+import org.opensha.commons.geo.Location;
+import org.opensha.sha.faultSurface.EvenlyGriddedSurface;
+
+/**
+ * The locations of an {@link EvenlyGriddedSurface} packed into arrays of latitude and
+ * longitude (in radians) and depth, in row major order (the location at row r and column
+ * c is at index r*numCols + c). The latitude and longitude ranges of every row are also
+ * kept, as bounding boxes for the early-out tests of
+ * {@link GriddedSurfaceUtils#getPropagationDistances(PackedSurfaceLocations, int, int, int, int, Location, boolean, double[])}.
+ * <br><br>
+ * The arrays are returned without copying and must not be modified.
+ */
+public class PackedSurfaceLocations {
+
+	private final int numRows, numCols;
+	private final double[] latRad, lonRad, depth;
+	private final double[] rowMinLatRad, rowMaxLatRad, rowMinLonRad, rowMaxLonRad;
+
+	public PackedSurfaceLocations(EvenlyGriddedSurface surface) {
+		numRows = surface.getNumRows();
+		numCols = surface.getNumCols();
+		int size = numRows * numCols;
+		latRad = new double[size];
+		lonRad = new double[size];
+		depth = new double[size];
+		rowMinLatRad = new double[numRows];
+		rowMaxLatRad = new double[numRows];
+		rowMinLonRad = new double[numRows];
+		rowMaxLonRad = new double[numRows];
+		for (int r = 0; r < numRows; r++) {
+			double minLat = Double.POSITIVE_INFINITY;
+			double maxLat = Double.NEGATIVE_INFINITY;
+			double minLon = Double.POSITIVE_INFINITY;
+			double maxLon = Double.NEGATIVE_INFINITY;
+			for (int c = 0; c < numCols; c++) {
+				Location loc = surface.getLocation(r, c);
+				int i = r * numCols + c;
+				latRad[i] = loc.getLatRad();
+				lonRad[i] = loc.getLonRad();
+				depth[i] = loc.getDepth();
+				if (latRad[i] < minLat) minLat = latRad[i];
+				if (latRad[i] > maxLat) maxLat = latRad[i];
+				if (lonRad[i] < minLon) minLon = lonRad[i];
+				if (lonRad[i] > maxLon) maxLon = lonRad[i];
+			}
+			rowMinLatRad[r] = minLat;
+			rowMaxLatRad[r] = maxLat;
+			rowMinLonRad[r] = minLon;
+			rowMaxLonRad[r] = maxLon;
+		}
+	}
+
+	public int getNumRows() {
+		return numRows;
+	}
+
+	public int getNumCols() {
+		return numCols;
+	}
+
+	public double[] getLatRad() {
+		return latRad;
+	}
+
+	public double[] getLonRad() {
+		return lonRad;
+	}
+
+	public double[] getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return the minimum latitude (in radians) of each row
+	 */
+	public double[] getRowMinLatRad() {
+		return rowMinLatRad;
+	}
+
+	/**
+	 * @return the maximum latitude (in radians) of each row
+	 */
+	public double[] getRowMaxLatRad() {
+		return rowMaxLatRad;
+	}
+
+	/**
+	 * @return the minimum longitude (in radians) of each row
+	 */
+	public double[] getRowMinLonRad() {
+		return rowMinLonRad;
+	}
+
+	/**
+	 * @return the maximum longitude (in radians) of each row
+	 */
+	public double[] getRowMaxLonRad() {
+		return rowMaxLonRad;
+	}
+
+}
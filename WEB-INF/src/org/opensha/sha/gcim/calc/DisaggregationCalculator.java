@@ -38,15 +38,19 @@ import org.opensha.commons.mapping.gmt.GMT_MapGenerator;
 import org.opensha.commons.param.Parameter;
 import org.opensha.commons.param.WarningParameter;
 import org.opensha.commons.util.ServerPrefUtils;
+import org.opensha.sha.calc.RuptureDataStore;
 import org.opensha.sha.calc.disaggregation.DisaggregationPlotData;
 import org.opensha.sha.calc.disaggregation.DisaggregationSourceRuptureComparator;
 import org.opensha.sha.calc.disaggregation.DisaggregationSourceRuptureInfo;
 import org.opensha.sha.earthquake.AbstractERF;
 import org.opensha.sha.earthquake.ProbEqkRupture;
 import org.opensha.sha.earthquake.ProbEqkSource;
+import org.opensha.sha.earthquake.util.SourceSpatialIndex;
+import org.opensha.sha.faultSurface.cache.SiteDistanceTable;
 import org.opensha.sha.imr.AttenuationRelationship;
 import org.opensha.sha.imr.ScalarIMR;
 import org.opensha.sha.imr.param.PropagationEffectParams.DistanceRupParameter;
+import org.opensha.sha.util.IMRUtils;
 import org.opensha.sha.util.TRTUtils;
 import org.opensha.sha.util.TectonicRegionType;
 
@@ -106,17 +110,29 @@ implements DisaggregationCalculatorAPI {
 
 	private double totalRate, outOfBoundsRate;
 
-	private int currRuptures = -1;
-	private int totRuptures=0;
+	// progress of computeRuptureData(), read by other threads
+	private volatile int currRuptures = -1;
+	private volatile int totRuptures=0;
+
+	// set by stopCalc() to end computeRuptureData()
+	private volatile boolean stopRequested;
 
 	//gets the number of sources to be shown in the disaggregation window
 	private int numSourcesToShow = 0;
 	
 	private boolean showDistances = true;
 
+	private SiteDistanceTable siteDistances;
+
+	private SourceSpatialIndex sourceIndex;
+
 	//stores the source Disagg info
 	private String sourceDisaggInfo;
 
+	// rupture data from computeRuptureData() or setRuptureData(), for the ruptures
+	// that passed the filters
+	private RuptureDataStore rupData;
+
 	//Disaggregation Plot Img Name
 	public static final String DISAGGREGATION_PLOT_NAME = "DisaggregationPlot";
 	public static final String DISAGGREGATION_PLOT_IMG_NAME = DISAGGREGATION_PLOT_NAME +".jpg";
@@ -179,28 +195,31 @@ implements DisaggregationCalculatorAPI {
 			AbstractERF eqkRupForecast, double maxDist,
 			ArbitrarilyDiscretizedFunc magDistFilter) {
 
-		double rate, condProb;
+		// set iml in imr
+		Parameter<Double> im = TRTUtils.getFirstIMR(imrMap).getIntensityMeasure();
+		if (im instanceof WarningParameter<?>) {
+			WarningParameter<Double> warnIM = (WarningParameter<Double>)im;
+			warnIM.setValueIgnoreWarning(new Double(iml));
+		} else {
+			im.setValue(new Double(iml));
+		}
 
-		DecimalFormat f1 = new DecimalFormat("000000");
-		DecimalFormat f2 = new DecimalFormat("00.00");
+		computeRuptureData(site, imrMap, eqkRupForecast, maxDist, magDistFilter);
+		// false if stopped
+		if (!rupData.isComplete())
+			return false;
+		return disaggregateRuptureData(iml);
+	}
 
-		pdf3D = new double[dist_center.length][mag_center.length][NUM_E];
+	@Override
+	public void computeRuptureData(
+			Site site,
+			Map<TectonicRegionType, ScalarIMR> imrMap,
+			AbstractERF eqkRupForecast, double maxDist,
+			ArbitrarilyDiscretizedFunc magDistFilter) {
 
 		DistanceRupParameter distRup = new DistanceRupParameter();
 
-		String S = C + ": disaggregate(): ";
-
-		if (D) System.out.println(S + "STARTING DISAGGREGATION");
-
-		if (D) System.out.println(S + "iml = " + iml);
-
-		//    if( D )System.out.println(S + "deltaMag = " + deltaMag + "; deltaDist = " + deltaDist + "; deltaE = " + deltaE);
-		ArrayList<DisaggregationSourceRuptureInfo> disaggSourceList = null;
-		DisaggregationSourceRuptureComparator srcRupComparator = null;
-		if (this.numSourcesToShow > 0) {
-			disaggSourceList = new ArrayList<DisaggregationSourceRuptureInfo>();
-			srcRupComparator = new DisaggregationSourceRuptureComparator();
-		}
 		//resetting the Parameter change Listeners on the AttenuationRelationship
 		//parameters. This allows the Server version of our application to listen to the
 		//parameter changes.
@@ -218,27 +237,26 @@ implements DisaggregationCalculatorAPI {
 		for (ScalarIMR imr : imrMap.values())
 			imr.setUserMaxDistance(maxDist);
 
-		// set iml in imr
-		Parameter<Double> im = TRTUtils.getFirstIMR(imrMap).getIntensityMeasure();
-		if (im instanceof WarningParameter<?>) {
-			WarningParameter<Double> warnIM = (WarningParameter<Double>)im;
-			warnIM.setValueIgnoreWarning(new Double(iml));
-		} else {
-			im.setValue(new Double(iml));
-		}
-
 		// get total number of sources
 		int numSources = eqkRupForecast.getNumSources();
-		
-		if (storeRupProbEpsilons)
-			rupProbEpsilons = new double[numSources][][];
-
-//		HashMap<String, ArrayList<?>> sourceDissaggMap = new HashMap<String, ArrayList<?>>();
 
 		// compute the total number of ruptures for updating the progress bar
-		totRuptures = 0;
-		for (int i = 0; i < numSources; ++i)
-			totRuptures += eqkRupForecast.getSource(i).getNumRuptures();
+		currRuptures = -1;
+		stopRequested = false;
+		Thread calcThread = Thread.currentThread();
+		int[] srcNumRuptures;
+		int numRuptureTotal = 0;
+		if (sourceIndex != null && sourceIndex.isFor(eqkRupForecast)) {
+			srcNumRuptures = sourceIndex.getNumRuptures();
+			numRuptureTotal = sourceIndex.getTotNumRuptures();
+		} else {
+			srcNumRuptures = new int[numSources];
+			for (int i = 0; i < numSources; ++i) {
+				srcNumRuptures[i] = eqkRupForecast.getSource(i).getNumRuptures();
+				numRuptureTotal += srcNumRuptures[i];
+			}
+		}
+		totRuptures = numRuptureTotal;
 
 		// init the current rupture number (also for progress bar)
 		currRuptures = 0;
@@ -254,36 +272,36 @@ implements DisaggregationCalculatorAPI {
 			}
 		}
 
-		// initialize
-		Ebar = 0;
-		Mbar = 0;
-		Dbar = 0;
-		totalRate = 0;
-		outOfBoundsRate = 0;
+		rupData = new RuptureDataStore();
+		rupData.clear(eqkRupForecast, site, srcNumRuptures);
 
-		// initialize the PDF
-		for (int i = 0; i < dist_center.length; i++)
-			for (int j = 0; j < mag_center.length; j++)
-				for (int k = 0; k < NUM_E; k++)
-					pdf3D[i][j][k] = 0;
-		
-	    int numRupRejected =0;
+		// filled in by sources that support rupture reuse (e.g., point sources)
+		ProbEqkRupture reusableRup = new ProbEqkRupture();
+
+		SiteDistanceTable siteDists = null;
+		if (siteDistances != null && siteDistances.isFor(eqkRupForecast, site))
+			siteDists = siteDistances;
 
+		// only the sources that may be within the maximum distance, in order
+		int[] candidates = null;
+		if (sourceIndex != null && sourceIndex.isFor(eqkRupForecast))
+			candidates = sourceIndex.getCandidateSources(site.getLocation(), maxDist);
+		int numCandidates = candidates == null ? numSources : candidates.length;
 		
-		for (int i = 0; i < numSources; i++) {
+		for (int c = 0; c < numCandidates && !isStopped(calcThread); c++) {
+			int i = candidates == null ? c : candidates[c];
 
-			double sourceRate = 0;
 			// get source and get its distance from the site
 			ProbEqkSource source = eqkRupForecast.getSource(i);
 
-			String sourceName = source.getName();
 			int numRuptures = eqkRupForecast.getNumRuptures(i);
-			
-			if (storeRupProbEpsilons)
-				rupProbEpsilons[i] = new double[numRuptures][2];
 
 			// check the distance of the source
-			double distance = source.getMinDistance(site);
+			double distance;
+			if (siteDists != null)
+				distance = siteDists.getMinDistance(i, source);
+			else
+				distance = source.getMinDistance(site);
 			if (distance > maxDist) {
 				currRuptures += numRuptures;
 				continue;
@@ -298,73 +316,148 @@ implements DisaggregationCalculatorAPI {
 			TectonicRegionType trt = source.getTectonicRegionType();
 			ScalarIMR imr = TRTUtils.getIMRforTRT(imrMap, trt);
 
-//			if (numSourcesToShow > 0)
-//				sourceDissaggMap.put(sourceName, new ArrayList());
+			rupData.addSource(i, source, imr);
 
 			// loop over ruptures
 			for (int n = 0; n < numRuptures; n++, ++currRuptures) {
 
 				// get the rupture
-				ProbEqkRupture rupture = source.getRupture(n);
+				ProbEqkRupture rupture = source.getRupture(n, reusableRup);
 
-				double qkProb = rupture.getProbability();
-				
 			     // apply magThreshold if we're to use the mag-dist cutoff filter
-		        if(includeMagDistFilter && rupture.getMag() < magThresh) {
-		        	numRupRejected+=1;
+		        if(includeMagDistFilter && rupture.getMag() < magThresh)
 		        	continue;
-		        }
 
 				// set the rupture in the imr
-				imr.setEqkRupture(rupture);
+				SiteDistanceTable.Distances rupDists = null;
+				if (siteDists != null)
+					rupDists = siteDists.getDistances(i, source, n, rupture);
+				IMRUtils.setEqkRupture(imr, rupture, rupDists);
+
+				double dist;
+				if (rupDists != null) {
+					dist = rupDists.getDistanceRup();
+				} else {
+					distRup.setValue(rupture, site);
+					dist = ( (Double) distRup.getValue()).doubleValue();
+				}
+
+				rupData.addRupture(n, rupture.getProbability(), imr.getMean(), imr.getStdDev(),
+						dist, rupture.getMag());
+			}
+		}
+		// the rupture data is left incomplete if stopped
+		if (isStopped(calcThread))
+			return;
+		// sources that were not candidates are skipped too
+		currRuptures = totRuptures;
+		rupData.setComplete();
+	}
+
+	/**
+	 * Ends <code>computeRuptureData</code> after the source being computed. This may be
+	 * called from any thread; the calculation also ends if its thread is interrupted.
+	 */
+	@Override
+	public void stopCalc() {
+		stopRequested = true;
+	}
+
+	private boolean isStopped(Thread calcThread) {
+		return stopRequested || calcThread.isInterrupted();
+	}
+
+	@Override
+	public void setRuptureData(RuptureDataStore ruptureData) {
+		if (!ruptureData.isComplete())
+			throw new IllegalArgumentException("The rupture data store has not been filled in");
+		rupData = ruptureData;
+		totRuptures = 0;
+		for (int numRuptures : ruptureData.getERFNumRuptures())
+			totRuptures += numRuptures;
+		currRuptures = totRuptures;
+	}
+
+	@Override
+	public RuptureDataStore getRuptureData() {
+		return rupData;
+	}
+
+	@Override
+	public boolean disaggregateRuptureData(double iml) {
+
+		if (rupData == null || !rupData.isComplete())
+			throw new IllegalStateException("computeRuptureData() or setRuptureData() must be called first, "
+					+ "and not be stopped");
+
+		double rate, condProb;
+
+		DecimalFormat f1 = new DecimalFormat("000000");
+		DecimalFormat f2 = new DecimalFormat("00.00");
+
+		pdf3D = new double[dist_center.length][mag_center.length][NUM_E];
+
+		String S = C + ": disaggregateRuptureData(): ";
+
+		if (D) System.out.println(S + "STARTING DISAGGREGATION");
+
+		if (D) System.out.println(S + "iml = " + iml);
+
+		//    if( D )System.out.println(S + "deltaMag = " + deltaMag + "; deltaDist = " + deltaDist + "; deltaE = " + deltaE);
+		ArrayList<DisaggregationSourceRuptureInfo> disaggSourceList = null;
+		DisaggregationSourceRuptureComparator srcRupComparator = null;
+		if (this.numSourcesToShow > 0) {
+			disaggSourceList = new ArrayList<DisaggregationSourceRuptureInfo>();
+			srcRupComparator = new DisaggregationSourceRuptureComparator();
+		}
+
+		int[] srcNumRuptures = rupData.getERFNumRuptures();
+		int numSources = srcNumRuptures.length;
+		int numSrcs = rupData.getNumSources();
+		Site rupDataSite = rupData.getSite();
+		
+		if (storeRupProbEpsilons) {
+			rupProbEpsilons = new double[numSources][][];
+			for (int i = 0; i < numSources; i++)
+				rupProbEpsilons[i] = new double[srcNumRuptures[i]][2];
+		}
+
+		// initialize
+		Ebar = 0;
+		Mbar = 0;
+		Dbar = 0;
+		totalRate = 0;
+		outOfBoundsRate = 0;
+
+		for (int s = 0; s < numSrcs; s++) {
+
+			int i = rupData.getSourceIndex(s);
+			double sourceRate = 0;
+
+			for (int r = rupData.getFirstRupture(s); r < rupData.getFirstRupture(s+1); r++) {
+
+				double mean = rupData.getMean(r);
+				double stdDev = rupData.getStdDev(r);
 
 				// get the cond prob
-				condProb = imr.getExceedProbability();
+				condProb = rupData.getExceedProbability(s, r, iml);
 				// should the following throw an exception?
 				if (condProb == 0 && D)
 					System.out.println(S +
 							"Exceedance probability is zero! (thus the NaNs below)");
 
-				// get the mean, stdDev, epsilon, dist, and mag
-				epsilon = imr.getEpsilon();
-				distRup.setValue(rupture, site);
-				dist = ( (Double) distRup.getValue()).doubleValue();
-				mag = rupture.getMag();
+				// get the epsilon, dist, and mag
+				epsilon = (iml - mean)/stdDev;
+				dist = rupData.getDistanceRup(r);
+				mag = rupData.getMag(r);
 
 				// get the equiv. Poisson rate over the time interval (not annualized)
-				rate = -condProb * Math.log(1 - qkProb);
+				rate = condProb * rupData.getRate(r);
 				if (storeRupProbEpsilons) {
-					rupProbEpsilons[i][n][0] = rate;
-					rupProbEpsilons[i][n][1] = epsilon;
+					rupProbEpsilons[i][rupData.getRuptureIndex(r)][0] = rate;
+					rupProbEpsilons[i][rupData.getRuptureIndex(r)][1] = epsilon;
 				}
 
-
-				/*
-                   if( Double.isNaN(epsilon) && testNum < 1) {
-          System.out.println("srcName = " + sourceName +
-                             " src#=" + i +
-                             " rup#=" + n +
-                             " qkProb=" + (float)qkProb +
-                             " condProb=" + (float)condProb +
-                             " mean=" + (float)mean +
-                             " stdDev=" + (float)stdDev +
-                             " epsilon=" + (float)epsilon +
-                             " dist=" + (float)dist +
-                             " rate=" + (float)rate);
-          System.out.println(rupture.getMag()+"  "+rupture.getRuptureSurface().get(0,0).toString());
-          System.out.println(rupture.getRuptureSurface().getNumCols()+"  "+rupture.getRuptureSurface().getNumRows());
-          System.out.println(site.getLocation().toString());
-          Iterator it = site.getParametersIterator();
-          while(it.hasNext())
-            System.out.println( ((Parameter)it.next()).getMetadataString() );
-          PropagationEffect pe = new PropagationEffect();
-          pe.setAll(rupture,site);
-          System.out.println(pe.getParamValue(DistanceSeisParameter.NAME));
-
-          testNum += 1;
-                   }
-				 */
-
 				// proceed only if rate is greater than zero (avoids NaN epsilons & is faster)
 				if( rate > 0.0) {
 					// set the 3D array indices & check that all are in bounds
@@ -387,23 +480,11 @@ implements DisaggregationCalculatorAPI {
 					sourceRate += rate;
 
 				}
-				// create and add rupture info to source list
-				/*if (numSourcesToShow > 0) {
-            double eventRate = -Math.log(1 - qkProb); // this event rate is not annualized!
-            DisaggregationSourceRuptureInfo rupInfo = new
-                DisaggregationSourceRuptureInfo(null, eventRate, (float) rate, n,
-                mag,dist);
-            ( (ArrayList) sourceDissaggMap.get(sourceName)).add(rupInfo);
-          }*/
-
 			}
 			if (numSourcesToShow > 0) {
-				// sort the ruptures in this source according to contribution
-				//ArrayList sourceRupList = (ArrayList) sourceDissaggMap.get(sourceName);
-				//Collections.sort(sourceRupList,srcRupComparator);
 				// create the total rate info for this source
 				DisaggregationSourceRuptureInfo disaggInfo = new
-				DisaggregationSourceRuptureInfo(sourceName, (float) sourceRate, i, source);
+				DisaggregationSourceRuptureInfo(rupData.getSource(s).getName(), (float) sourceRate, i, rupData.getSource(s));
 				disaggSourceList.add(disaggInfo);
 			}
 		}
@@ -444,10 +525,10 @@ implements DisaggregationCalculatorAPI {
 					}
 					
 					ProbEqkRupture fakeRup = new ProbEqkRupture(mag, 0, 0, source.getSourceSurface(), null);
-					sourceDisaggInfo += "\t" + f2.format(fakeRup.getRuptureSurface().getDistanceRup(site.getLocation()))
-							+ "\t" + f2.format(fakeRup.getRuptureSurface().getDistanceX(site.getLocation()))
-							+ "\t" + f2.format(fakeRup.getRuptureSurface().getDistanceSeis(site.getLocation()))
-							+ "\t" + f2.format(fakeRup.getRuptureSurface().getDistanceJB(site.getLocation()));
+					sourceDisaggInfo += "\t" + f2.format(fakeRup.getRuptureSurface().getDistanceRup(rupDataSite.getLocation()))
+							+ "\t" + f2.format(fakeRup.getRuptureSurface().getDistanceX(rupDataSite.getLocation()))
+							+ "\t" + f2.format(fakeRup.getRuptureSurface().getDistanceSeis(rupDataSite.getLocation()))
+							+ "\t" + f2.format(fakeRup.getRuptureSurface().getDistanceJB(rupDataSite.getLocation()));
 				}
 				
 				sourceDisaggInfo += "\n";
@@ -496,7 +577,7 @@ implements DisaggregationCalculatorAPI {
 		// normalise the rates for each source by the total rate to get probability
 		if (storeRupProbEpsilons) {
 			for (int i=0; i<numSources; i++) {
-				for (int j=0; j<eqkRupForecast.getNumRuptures(i); j++) {
+				for (int j=0; j<srcNumRuptures[i]; j++) {
 					rupProbEpsilons[i][j][0] = rupProbEpsilons[i][j][0] / totalRate;
 				}
 			}
@@ -536,8 +617,6 @@ implements DisaggregationCalculatorAPI {
 				"; binNum = " + modeEpsilonBin);
 		//if( D ) System.out.println(S + "EpsMode = "  + E_mode3D + "; binNum = " + modeEpsilonBin);
 
-//System.out.println("numRupRejected="+numRupRejected);
-
 		return true;
 	}
 
@@ -813,11 +892,15 @@ implements DisaggregationCalculatorAPI {
 	 * @return String
 	 */
 	public String getDisaggregationPlotUsingServlet(String metadata) {
-		DisaggregationPlotData data = new DisaggregationPlotData(mag_center, mag_binEdges, dist_center, dist_binEdges,
-				maxContrEpsilonForGMT_Plot, NUM_E, pdf3D);
+		DisaggregationPlotData data = getDisaggPlotData();
 		disaggregationPlotImgWebAddr = openServletConnection(data, metadata);
 		return disaggregationPlotImgWebAddr;
 	}
+
+	public DisaggregationPlotData getDisaggPlotData() {
+		return new DisaggregationPlotData(mag_center, mag_binEdges, dist_center, dist_binEdges,
+				maxContrEpsilonForGMT_Plot, NUM_E, pdf3D);
+	}
 	
 	/**
 	 * This gets the pdf3D array
@@ -1108,6 +1191,14 @@ implements DisaggregationCalculatorAPI {
 		this.showDistances = showDistances;
 	}
 	
+	public void setSiteDistances(SiteDistanceTable siteDistances) {
+		this.siteDistances = siteDistances;
+	}
+	
+	public void setSourceIndex(SourceSpatialIndex sourceIndex) {
+		this.sourceIndex = sourceIndex;
+	}
+	
 	public void setStoreRupProbEpsilons(boolean storeRupProbEpsilons) {
 		this.storeRupProbEpsilons = storeRupProbEpsilons;
 	}
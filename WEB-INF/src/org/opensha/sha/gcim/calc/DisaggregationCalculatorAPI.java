@@ -25,7 +25,11 @@ import java.util.Map;
 
 import org.opensha.commons.data.Site;
 import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.sha.calc.RuptureDataStore;
+import org.opensha.sha.calc.disaggregation.DisaggregationPlotData;
 import org.opensha.sha.earthquake.AbstractERF;
+import org.opensha.sha.earthquake.util.SourceSpatialIndex;
+import org.opensha.sha.faultSurface.cache.SiteDistanceTable;
 import org.opensha.sha.imr.ScalarIMR;
 import org.opensha.sha.util.TectonicRegionType;
 
@@ -83,6 +87,53 @@ public interface DisaggregationCalculatorAPI {
 			double maxDist,ArbitrarilyDiscretizedFunc 
 			magDistFilter);
 
+	/**
+	 * This goes through the forecast once and stores the rate, mean, standard deviation,
+	 * distance and magnitude of each rupture that passes the distance and mag-dist
+	 * filters. The hazard can then be disaggregated at any number of IMLs with
+	 * <code>disaggregateRuptureData</code> without recomputing the IMR. The
+	 * intensity measure (e.g. SA period) must already be set in the IMRs.
+	 *
+	 * @param site: site parameter
+	 * @param imrMap: mapping of tectonic regions to IMR objects
+	 * @param eqkRupForecast: selected Earthquake rup forecast
+	 * @param maxDist: maximum source distance
+	 * @param magDistFilter: mag-dist cutoff function, or null for no cutoff
+	 */
+	public void computeRuptureData(Site site,
+			Map<TectonicRegionType, ScalarIMR> imrMap,
+			AbstractERF eqkRupForecast,
+			double maxDist,ArbitrarilyDiscretizedFunc 
+			magDistFilter);
+
+	/**
+	 * Disaggregates at the given IML using the data from the last
+	 * <code>computeRuptureData</code> call. The results are the same as those of
+	 * <code>disaggregate</code> at that IML, and are available through the same
+	 * methods until the next call.
+	 * Returns true if it was succesfully able to disaggregate above
+	 * a given IML else return false
+	 *
+	 * @param iml: the intensity measure level to disaggregate
+	 * @return boolean
+	 */
+	public boolean disaggregateRuptureData(double iml);
+
+	/**
+	 * Sets the rupture data to disaggregate with <code>disaggregateRuptureData</code>,
+	 * as filled in by a hazard curve calculation, instead of computing it with
+	 * <code>computeRuptureData</code>. The store must be complete, and is not copied.
+	 *
+	 * @param ruptureData: rupture data of the site, ERF and intensity measure
+	 */
+	public void setRuptureData(RuptureDataStore ruptureData);
+
+	/**
+	 * @return the rupture data of the last <code>computeRuptureData</code> or
+	 * <code>setRuptureData</code> call, or null if neither was called
+	 */
+	public RuptureDataStore getRuptureData();
+
 	/**
 	 * Sets the number of sources to be shown in the Disaggregation.
 	 * @param numSources int
@@ -97,6 +148,24 @@ public interface DisaggregationCalculatorAPI {
 	 */
 	public void setShowDistances(boolean showDistances);
 
+	/**
+	 * Sets a table of the distances between a site and the ruptures of an ERF, used by
+	 * <code>computeRuptureData</code> for that ERF and site instead of measuring the
+	 * rupture surfaces again, or null (the default) for no table.
+	 *
+	 * @param siteDistances
+	 */
+	public void setSiteDistances(SiteDistanceTable siteDistances);
+
+	/**
+	 * Sets a spatial index of the sources of an ERF, used by
+	 * <code>computeRuptureData</code> for that ERF to only check the distance of the
+	 * sources that may be close enough, or null (the default) for no index.
+	 *
+	 * @param sourceIndex
+	 */
+	public void setSourceIndex(SourceSpatialIndex sourceIndex);
+
 	/**
 	 * This sets the maximum distance of sources to be considered in the calculation
 	 * (as determined by the getMinDistance(Site) method of ProbEqkSource subclasses).
@@ -140,6 +209,13 @@ public interface DisaggregationCalculatorAPI {
 	 */
 	public boolean done();
 
+	/**
+	 * Ends a <code>computeRuptureData</code> or <code>disaggregate</code> call running on
+	 * another thread, leaving no rupture data to disaggregate. Interrupting the thread
+	 * of the calculation has the same effect.
+	 */
+	public void stopCalc();
+
 
 	/**
 	 * Creates the disaggregation plot using the GMT and return Disaggregation plot
@@ -150,6 +226,13 @@ public interface DisaggregationCalculatorAPI {
 	 */
 	public String getDisaggregationPlotUsingServlet(String metadata);
 
+	/**
+	 * Returns the data of the last disaggregation needed to plot it, e.g. with
+	 * <code>DisaggregationPlotRenderer</code>.
+	 * @return DisaggregationPlotData
+	 */
+	public DisaggregationPlotData getDisaggPlotData();
+
 
 	/**
 	 * Setting up the Mag Range
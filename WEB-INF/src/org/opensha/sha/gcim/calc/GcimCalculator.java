@@ -24,7 +24,11 @@ import java.io.IOException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.apache.commons.math3.random.GaussianRandomGenerator;
 import org.apache.commons.math3.random.NormalizedRandomGenerator;
@@ -33,9 +37,12 @@ import org.opensha.commons.data.Site;
 import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
 import org.opensha.commons.param.Parameter;
 import org.opensha.commons.param.Parameter;
+import org.opensha.sha.calc.RuptureDataStore;
 import org.opensha.sha.earthquake.AbstractERF;
 import org.opensha.sha.earthquake.ProbEqkRupture;
 import org.opensha.sha.earthquake.ProbEqkSource;
+import org.opensha.sha.earthquake.util.SourceSpatialIndex;
+import org.opensha.sha.faultSurface.cache.SiteDistanceTable;
 import org.opensha.sha.gcim.Utils;
 import org.opensha.sha.gcim.imCorrRel.ImCorrelationRelationship;
 import org.opensha.sha.imr.ScalarIMR;
@@ -43,13 +50,13 @@ import org.opensha.sha.imr.param.IntensityMeasureParams.PeriodParam;
 import org.opensha.sha.imr.param.IntensityMeasureParams.SA_InterpolatedParam;
 import org.opensha.sha.imr.param.IntensityMeasureParams.SA_Param;
 import org.opensha.sha.imr.param.PropagationEffectParams.DistanceRupParameter;
+import org.opensha.sha.util.IMRUtils;
 import org.opensha.sha.util.TRTUtils;
 import org.opensha.sha.util.TectonicRegionType;
 
 //import Jama.CholeskyDecomposition; //This JAMA one doesnt work!  
 import Jama.Matrix;
 
-import java.util.Random;
 
 
 /**
@@ -98,6 +105,15 @@ public class GcimCalculator {
 	private Site site;
 	private AbstractERF eqkRupForecast;
 	
+	private ForkJoinPool forkJoinPool;
+	private SiteDistanceTable siteDistances;
+	private SourceSpatialIndex sourceIndex;
+	private RuptureDataStore ruptureData;
+	private long randomSeed;
+	private boolean randomSeedSet = false;
+	// generator of getRandomSourceRupture
+	private SplittableRandom random;
+	
 	//public static final String OPENSHA_SERVLET_URL = ServletPrefs.OPENSHA_SERVLET_URL + "GcimPlotServlet";
 	
 	/**
@@ -109,6 +125,101 @@ public class GcimCalculator {
 		setApproxCDFvalues();
 	};
 	
+	/**
+	 * Sets the pool used to compute the IMi distributions of the ruptures drawn by
+	 * {@link #getGcimRealizations}, or null (the default) to compute them on the
+	 * calling thread. Each pool thread works on its own clones of the IMRs (see
+	 * {@link IMRUtils#cloneIMR(ScalarIMR)}), and the realizations do not depend on
+	 * the number of threads.
+	 */
+	public void setForkJoinPool(ForkJoinPool forkJoinPool) {
+		this.forkJoinPool = forkJoinPool;
+	}
+	
+	public ForkJoinPool getForkJoinPool() {
+		return forkJoinPool;
+	}
+	
+	/**
+	 * Sets a table of the distances between a site and the ruptures of an ERF, or null
+	 * (the default) for no table. When the GCIM is computed for the ERF and site of the
+	 * table, the distances are taken from it (and from the disaggregation) instead of
+	 * measuring the rupture surfaces again.
+	 */
+	public void setSiteDistances(SiteDistanceTable siteDistances) {
+		this.siteDistances = siteDistances;
+	}
+	
+	public SiteDistanceTable getSiteDistances() {
+		return siteDistances;
+	}
+	
+	/**
+	 * Sets the rupture data of a hazard curve calculation for IMj, or null (the default)
+	 * for none. When the rupture contributions are computed for the ERF and site of the
+	 * store, they are disaggregated from it without going through the ERF or IMRj again.
+	 * The store must be for the IMj the GCIM is conditioned on, with the same maximum
+	 * distance and mag-dist filter.
+	 */
+	public void setRuptureData(RuptureDataStore ruptureData) {
+		this.ruptureData = ruptureData;
+	}
+	
+	public RuptureDataStore getRuptureData() {
+		return ruptureData;
+	}
+	
+	/**
+	 * @return the site distance table if it is for the current ERF and site, else null
+	 */
+	private SiteDistanceTable getCurrentSiteDistances() {
+		if (siteDistances != null && siteDistances.isFor(eqkRupForecast, site))
+			return siteDistances;
+		return null;
+	}
+	
+	/**
+	 * Sets a spatial index of the sources of an ERF, or null (the default) for no index.
+	 * When the GCIM is computed for the ERF of the index, only the sources it returns as
+	 * candidates for the site are checked against the maximum distance (also by the
+	 * disaggregation).
+	 */
+	public void setSourceIndex(SourceSpatialIndex sourceIndex) {
+		this.sourceIndex = sourceIndex;
+	}
+	
+	public SourceSpatialIndex getSourceIndex() {
+		return sourceIndex;
+	}
+	
+	/**
+	 * @return the indices of the sources of the current ERF that may be within the given
+	 * distance of the current site, in ascending order
+	 */
+	private int[] getCandidateSources(double maxDist) {
+		if (sourceIndex != null && sourceIndex.isFor(eqkRupForecast))
+			return sourceIndex.getCandidateSources(site.getLocation(), maxDist);
+		int[] candidates = new int[eqkRupForecast.getNumSources()];
+		for (int i = 0; i < candidates.length; i++)
+			candidates[i] = i;
+		return candidates;
+	}
+	
+	/**
+	 * Sets the seed of the random numbers of {@link #getGcimRealizations} and
+	 * {@link #getRandomSourceRupture}, so that realizations can be reproduced. Without
+	 * a seed every call gives different realizations.
+	 */
+	public void setRandomSeed(long randomSeed) {
+		this.randomSeed = randomSeed;
+		this.randomSeedSet = true;
+		this.random = new SplittableRandom(randomSeed);
+	}
+	
+	private SplittableRandom newGenerator() {
+		return randomSeedSet ? new SplittableRandom(randomSeed) : new SplittableRandom();
+	}
+	
 	/**
 	 * This method gets the contribution of each rupture in the ERF toward the probability of IML=iml.  
 	 * It also creates a CDF for the sources and ruptures which is later used in simulating source/rups
@@ -129,14 +240,22 @@ public class GcimCalculator {
 		this.site = site;
 		this.eqkRupForecast = eqkRupForecast;
 		
-		//Call DisaggregationCalculator twice for IMj = imj and imj + deltaimj
+		//Disaggregate for IMj = imj and imj + deltaimj. The second one reuses the rupture
+		//means and std devs of the first, so the ERF and IMR are only gone through once
 		DisaggregationCalculator disaggCalc = new DisaggregationCalculator();
 		disaggCalc.setStoreRupProbEpsilons(true);
-		disaggCalc.disaggregate(iml, site, imrjMap, eqkRupForecast, maxDist, magDistFilter);
+		disaggCalc.setSiteDistances(siteDistances);
+		disaggCalc.setSourceIndex(sourceIndex);
+		if (ruptureData != null && ruptureData.isFor(eqkRupForecast, site)) {
+			disaggCalc.setRuptureData(ruptureData);
+			disaggCalc.disaggregateRuptureData(iml);
+		} else {
+			disaggCalc.disaggregate(iml, site, imrjMap, eqkRupForecast, maxDist, magDistFilter);
+		}
 		double disaggRupDetails1[][][] = disaggCalc.getRupProbEpsilons();
 		double trate_imj = disaggCalc.getTotalRate();
 		
-		disaggCalc.disaggregate(iml * 1.01, site, imrjMap, eqkRupForecast, maxDist, magDistFilter);
+		disaggCalc.disaggregateRuptureData(iml * 1.01);
 		double disaggRupDetails2[][][] = disaggCalc.getRupProbEpsilons();
 		double trate_imj2 = disaggCalc.getTotalRate();
 		
@@ -167,7 +286,9 @@ public class GcimCalculator {
 				for (int j=0; j<numRup; j++) {
 					pRup_IMj[i][j] = 0;
 					epsilonIMj[i][j] = 0;
+					rupCdf[i][j] = cumProb;
 				}
+				sourceCdf[i] = cumProb;
 				continue;
 			}
 			for (int j = 0; j < numRup; j++) {
@@ -259,17 +380,27 @@ public class GcimCalculator {
 		double magThresh=0.0;
 			
 		int numRupRejected =0;
-		//loop over all of the sources
+		SiteDistanceTable siteDists = getCurrentSiteDistances();
 		for (int i = 0; i < numSources; i++) {
+			int numRuptures = eqkRupForecast.getNumRuptures(i);
+			mulnIMi_RupIMj[i] = new double[numRuptures];
+			stdlnIMi_RupIMj[i] = new double[numRuptures];
+		}
+		//loop over the sources that may be close enough
+		int[] candidates = getCandidateSources(maxDist);
+		for (int c = 0; c < candidates.length; c++) {
+			int i = candidates[c];
 			// get source and all its details 
 			ProbEqkSource source = eqkRupForecast.getSource(i);
 
 			int numRuptures = eqkRupForecast.getNumRuptures(i);
-			mulnIMi_RupIMj[i] = new double[numRuptures];
-			stdlnIMi_RupIMj[i] = new double[numRuptures];
 			
 			// check the distance of the source
-			double distance = source.getMinDistance(site);
+			double distance;
+			if (siteDists != null)
+				distance = siteDists.getMinDistance(i, source);
+			else
+				distance = source.getMinDistance(site);
 			if (distance > maxDist) {
 				continue;
 			}		
@@ -294,7 +425,10 @@ public class GcimCalculator {
 		        }
 				
 				// set the rupture in the imr
-				imri.setEqkRupture(rupture);
+				SiteDistanceTable.Distances rupDists = null;
+				if (siteDists != null)
+					rupDists = siteDists.getDistances(i, source, j, rupture);
+				IMRUtils.setEqkRupture(imri, rupture, rupDists);
 
 				// get the unconditional mean, stdDev of lnIMi for the given rupture
 				mulnIMi_Rup = imri.getMean();
@@ -351,6 +485,13 @@ public class GcimCalculator {
 	 * The primary purpose of this method is to output random realizations of the IMi values 
 	 * which can then be used to select ground motion records for seismic response analysis
 	 * Returns true if it was successfully else return false
+	 * <p>
+	 * The conditional distribution of the IMi's is computed once for each distinct rupture
+	 * drawn (in parallel if a pool has been set with {@link #setForkJoinPool(ForkJoinPool)}),
+	 * and the cholesky decomposition of their correlation matrix once per tectonic region.
+	 * Each realization draws its random numbers from its own stream, split in turn from a
+	 * generator seeded by {@link #setRandomSeed(long)} if set, so the realizations are
+	 * drawn and computed in parallel on the pool and still only depend on the seed.
 	 *
 	 *@param numGcimRealizations: the number of random realizations of the IMi vector to compute
 	 * @param imri: selected IMRi object (that for which the distribution is desired i.e. IMi)
@@ -369,175 +510,421 @@ public class GcimCalculator {
 		randIMiRealizations = new double[numIMi][numGcimRealizations];
 		randIMiRealizationStdevs = new double[numIMi][numGcimRealizations];
 		
-		//Now loop over the number of different realizations desired
+		//Draw the random source/rupture and the uncorrelated standard normal variables of
+		//each realization from its own stream, so that they only depend on the seed
+		SplittableRandom generator = newGenerator();
+		SplittableRandom[] streams = new SplittableRandom[numGcimRealizations];
+		for (int m=0; m<numGcimRealizations; m++)
+			streams[m] = generator.split();
+		long[] realizationRups = new long[numGcimRealizations];
+		double[][] randArrays = new double[numGcimRealizations][numIMi];
+		List<RealizationStrideTask> drawTasks = new ArrayList<RealizationStrideTask>();
+		for (int t=0; t<getNumRealizationTasks(); t++)
+			drawTasks.add(new RealizationStrideTask(t, getNumRealizationTasks(), streams,
+					realizationRups, randArrays));
+		invokeAll(drawTasks);
+		
+		// index of each distinct source/rupture in the order they are first drawn
+		Map<Long, Integer> rupIndexes = new HashMap<Long, Integer>();
+		List<Long> rups = new ArrayList<Long>();
 		for (int m=0; m<numGcimRealizations; m++) {
-			
-			//Get a random earthquake source and rupture
-			boolean randSourceRupUpdated = getRandomSourceRupture(); 
-			ProbEqkSource source = eqkRupForecast.getSource(randSourceId);
-			ProbEqkRupture rupture = source.getRupture(randRupId);
-			
-			//For the given rupture obtain the conditional mean and variance of all of the IMis			
-			double[] mulnIMi_RandRupIMj = new double[numIMi];
-			double[] stdlnIMi_RandRupIMj = new double[numIMi];
-			double[] rho_lnIMilnIMj = new double[numIMi];
-			double[][] rho_lnIMilnIMk_lnIMj = new double[numIMi][numIMi]; 
-			
-			double[] mulnIMi_RandRup = new double [numIMi];
-			double[] stdlnIMi_RandRup = new double [numIMi];
-			
-			for (int i=0; i<numIMi; i++) {
+			long rup = realizationRups[m];
+			if (!rupIndexes.containsKey(rup)) {
+				rupIndexes.put(rup, rups.size());
+				rups.add(rup);
+			}
+		}
+		
+		//The correlations between lnIMi and lnIMj only depend on the tectonic region of the
+		//source, get them here as the correlation relationships are not thread safe
+		Map<TectonicRegionType, double[]> trtRhos = new HashMap<TectonicRegionType, double[]>();
+		for (long rup : rups) {
+			TectonicRegionType trt = eqkRupForecast.getSource(getSourceId(rup)).getTectonicRegionType();
+			if (!trtRhos.containsKey(trt)) {
+				double[] rho_lnIMilnIMj = new double[numIMi];
+				for (int i=0; i<numIMi; i++)
+					rho_lnIMilnIMj[i] = Utils.getIMCorrRelForTRT(imijCorrRels.get(i), trt).getImCorrelation();
+				trtRhos.put(trt, rho_lnIMilnIMj);
+			}
+		}
+		
+		//For each distinct rupture obtain the conditional mean and std dev of all of the IMis
+		double[][] mulnIMi_RupIMj = new double[rups.size()][];
+		double[][] stdlnIMi_RupIMj = new double[rups.size()][];
+		if (forkJoinPool == null || forkJoinPool.getParallelism() < 2 || rups.size() < 2) {
+			new RuptureStrideTask(0, 1, rups, imiAttenRels, trtRhos, maxDist,
+					mulnIMi_RupIMj, stdlnIMi_RupIMj).compute();
+		} else {
+			int numTasks = Math.min(forkJoinPool.getParallelism(), rups.size());
+			List<RuptureStrideTask> tasks = new ArrayList<RuptureStrideTask>(numTasks);
+			for (int t=0; t<numTasks; t++) {
+				ArrayList<Map<TectonicRegionType, ScalarIMR>> taskIMRs =
+					new ArrayList<Map<TectonicRegionType, ScalarIMR>>(numIMi);
+				for (int i=0; i<numIMi; i++)
+					taskIMRs.add(IMRUtils.cloneIMR_Map(imiAttenRels.get(i)));
+				RuptureStrideTask task = new RuptureStrideTask(t, numTasks, rups, taskIMRs,
+						trtRhos, maxDist, mulnIMi_RupIMj, stdlnIMi_RupIMj);
+				tasks.add(task);
+				forkJoinPool.execute(task);
+			}
+			for (RuptureStrideTask task : tasks)
+				task.join();
+		}
+		
+		//The conditional correlations only depend on the tectonic region of the source, so
+		//the cholesky decomposition is only done once for each
+		Map<TectonicRegionType, Matrix> trtLMatrices = new HashMap<TectonicRegionType, Matrix>();
+		for (long rup : rups) {
+			TectonicRegionType trt = eqkRupForecast.getSource(getSourceId(rup)).getTectonicRegionType();
+			if (!trtLMatrices.containsKey(trt))
+				trtLMatrices.put(trt, getCholeskyL(trtRhos.get(trt), trt, imikCorrRels));
+		}
+		
+		//Now compute the different realizations desired
+		List<RealizationStrideTask> tasks = new ArrayList<RealizationStrideTask>();
+		for (int t=0; t<getNumRealizationTasks(); t++)
+			tasks.add(new RealizationStrideTask(t, getNumRealizationTasks(), realizationRups,
+					randArrays, rupIndexes, trtLMatrices, mulnIMi_RupIMj, stdlnIMi_RupIMj));
+		invokeAll(tasks);
+		
+		gcimRealizationsComplete = true;
+		return gcimRealizationsComplete;
+	}
+	
+	/**
+	 * This returns the lower triangular cholesky factor of the correlation matrix of the
+	 * IMi's conditioned on IMj, for sources of the given tectonic region type
+	 * @param rho_lnIMilnIMj: correlations between lnIMi and lnIMj for the tectonic region type
+	 */
+	private Matrix getCholeskyL(double[] rho_lnIMilnIMj, TectonicRegionType trt,
+			ArrayList<? extends Map<TectonicRegionType, ImCorrelationRelationship>> imikCorrRels) {
+		
+		int numIMi = rho_lnIMilnIMj.length;
+		double[][] rho_lnIMilnIMk_lnIMj = new double[numIMi][numIMi]; 
+		
+		for (int i=0; i<numIMi; i++) {
+			//Now setup the covariance matrix between the different IMi's
+			rho_lnIMilnIMk_lnIMj[i][i]=1.0;
+			for (int k=0; k<i; k++) {
+				 //Determine the (unconditional) correlation between lnIMi and lnIMk 
+				int corrImikIndex = (i)*(i-1)/2+k;
+				Map<TectonicRegionType, ImCorrelationRelationship> corrImikMap = imikCorrRels.get(corrImikIndex);
+				//Get the correlation relation associated with the TRT
+				ImCorrelationRelationship imikCorrRel = Utils.getIMCorrRelForTRT(corrImikMap, trt);
+				//compute the correlation coefficient between lnIMi and lnIMk for the given source  
+				double rho_lnIMilnIMk = imikCorrRel.getImCorrelation();
+				//Now get the conditional correlation
+				rho_lnIMilnIMk_lnIMj[i][k]=(rho_lnIMilnIMk-rho_lnIMilnIMj[i]*rho_lnIMilnIMj[k])/Math.sqrt((1.0-Math.pow(rho_lnIMilnIMj[i],2))*(1.0-Math.pow(rho_lnIMilnIMj[k],2)));
+				//Then as conditional correlation matrix is symmetric
+				rho_lnIMilnIMk_lnIMj[k][i]=rho_lnIMilnIMk_lnIMj[i][k];
+			}
+		}
+		//determine the cholesky decomposition of the correlation matrix			
+		Matrix rho_lnIMilnIMk_lnIMj_matrix = new Matrix(rho_lnIMilnIMk_lnIMj);
+		CholeskyDecomposition cholDecomp = new CholeskyDecomposition(rho_lnIMilnIMk_lnIMj_matrix);
+//		CholeskyDecomposition cholDecomp = rho_lnIMilnIMk_lnIMj_matrix.chol(); //This JAMA .chol doesnt work well
+		
+		//Check if the matrix is PD then get L
+		if (cholDecomp.isSPD())
+			return cholDecomp.getL();
+		
+		corrMatrixPD = false;
+		corrMatrixNotPDString = getMatrixAsString(rho_lnIMilnIMk_lnIMj_matrix);
+		if (D) {
+			System.out.println("The corr matrix below is not PD");
+			rho_lnIMilnIMk_lnIMj_matrix.print(10,4);
+		}
+		//First compute the nearest PD matrix
+		NearPD nearPd = new NearPD();
+		nearPd.setKeepDiag(true);
+//		nearPd.setEigTol(1.e-6);
+		boolean success = nearPd.calcNearPD(rho_lnIMilnIMk_lnIMj_matrix);
+		normFrob = nearPd.getFrobNorm();
+		if (!success) {
+			throw new RuntimeException("Error: nearPD failed to converge, the correlation matrix maybe" +
+					" significantly different from a PD matrix, check that the correlation equations" +
+					"used are reasonable");
+		}
+		
+		Matrix rho_lnIMilnIMk_lnIMj_PDmatrix = nearPd.getX();
+		corrMatrixPDString = getMatrixAsString(rho_lnIMilnIMk_lnIMj_PDmatrix);
+		if (D) {
+			System.out.println("This is the nearest PD matrix to corr matrix");
+			rho_lnIMilnIMk_lnIMj_PDmatrix.print(10,6);
+		}
+		//Now get the CholDecomp of this nearest matrix
+		CholeskyDecomposition cholDecompPD = new CholeskyDecomposition(rho_lnIMilnIMk_lnIMj_PDmatrix);
+//		CholeskyDecomposition cholDecompPD = rho_lnIMilnIMk_lnIMj_PDmatrix.chol(); //THis JAMA one doesnt work
+		if (cholDecompPD.isSPD()) {
+			return cholDecompPD.getL();
+		} else {
+			throw new RuntimeException("Error: Even after NearPD the matrix is not PD");
+		}
+	}
+	
+	private static long getRupKey(int sourceId, int rupId) {
+		return ((long)sourceId << 32) | rupId;
+	}
+	
+	private static int getSourceId(long rupKey) {
+		return (int)(rupKey >>> 32);
+	}
+	
+	private static int getRuptureId(long rupKey) {
+		return (int)rupKey;
+	}
+	
+	private int getNumRealizationTasks() {
+		if (forkJoinPool == null || forkJoinPool.getParallelism() < 2)
+			return 1;
+		return Math.max(1, Math.min(forkJoinPool.getParallelism(), numGcimRealizations));
+	}
+	
+	/**
+	 * Computes the given tasks on the pool, or on the calling thread if there is only one
+	 */
+	private void invokeAll(List<? extends RecursiveAction> tasks) {
+		if (tasks.size() == 1) {
+			tasks.get(0).invoke();
+			return;
+		}
+		for (RecursiveAction task : tasks)
+			forkJoinPool.execute(task);
+		for (RecursiveAction task : tasks)
+			task.join();
+	}
+	
+	/**
+	 * Either draws the random source/rupture and the uncorrelated standard normal variables
+	 * of every <code>stride</code>'th realization starting at <code>first</code> from the
+	 * stream of the realization, or computes the IMi values of those realizations from
+	 * their draws.
+	 */
+	private class RealizationStrideTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final int first, stride;
+		private final SplittableRandom[] streams;
+		private final long[] realizationRups;
+		private final double[][] randArrays;
+		private final Map<Long, Integer> rupIndexes;
+		private final Map<TectonicRegionType, Matrix> trtLMatrices;
+		private final double[][] mulnIMi_RupIMj, stdlnIMi_RupIMj;
+		
+		// draws the realizations
+		private RealizationStrideTask(int first, int stride, SplittableRandom[] streams,
+				long[] realizationRups, double[][] randArrays) {
+			this(first, stride, streams, realizationRups, randArrays, null, null, null, null);
+		}
+		
+		// computes the realizations
+		private RealizationStrideTask(int first, int stride, long[] realizationRups,
+				double[][] randArrays, Map<Long, Integer> rupIndexes,
+				Map<TectonicRegionType, Matrix> trtLMatrices,
+				double[][] mulnIMi_RupIMj, double[][] stdlnIMi_RupIMj) {
+			this(first, stride, null, realizationRups, randArrays, rupIndexes, trtLMatrices,
+					mulnIMi_RupIMj, stdlnIMi_RupIMj);
+		}
+		
+		private RealizationStrideTask(int first, int stride, SplittableRandom[] streams,
+				long[] realizationRups, double[][] randArrays, Map<Long, Integer> rupIndexes,
+				Map<TectonicRegionType, Matrix> trtLMatrices,
+				double[][] mulnIMi_RupIMj, double[][] stdlnIMi_RupIMj) {
+			this.first = first;
+			this.stride = stride;
+			this.streams = streams;
+			this.realizationRups = realizationRups;
+			this.randArrays = randArrays;
+			this.rupIndexes = rupIndexes;
+			this.trtLMatrices = trtLMatrices;
+			this.mulnIMi_RupIMj = mulnIMi_RupIMj;
+			this.stdlnIMi_RupIMj = stdlnIMi_RupIMj;
+		}
+		
+		@Override
+		protected void compute() {
+			double totalProb = sourceCdf[sourceCdf.length-1];
+			for (int m=first; m<realizationRups.length; m+=stride) {
+				if (streams != null) {
+					//Get a random earthquake source and rupture
+					SplittableRandom stream = streams[m];
+					double randVal = stream.nextDouble() * totalProb;
+					int sourceId = getRandomSourceId(randVal);
+					realizationRups[m] = getRupKey(sourceId, getRandomRuptureId(sourceId, randVal));
+					for (int i=0; i<randArrays[m].length; i++)
+						randArrays[m][i] = nextGaussian(stream);
+					continue;
+				}
 				
-				//Get the IMi, AttenRel, CorrRel, (and period later if IMi is SA)
-				Map<TectonicRegionType, ScalarIMR> imriMap = imiAttenRels.get(i);
-				Map<TectonicRegionType, ImCorrelationRelationship> corrImijMap = imijCorrRels.get(i);
+				long rup = realizationRups[m];
+				int rupIndex = rupIndexes.get(rup);
+				TectonicRegionType trt = eqkRupForecast.getSource(getSourceId(rup)).getTectonicRegionType();
+				Matrix L_matrix = trtLMatrices.get(trt);
 				
-				//Set the site in imri
+				//the uncorrelated array of standard normal random variables
+				int numIMi = randArrays[m].length;
+				double[][] randArray = new double[numIMi][1];
+				for (int i=0; i<numIMi; i++) {
+					randArray[i][0] = randArrays[m][i];
+				}
+				Matrix randArray_matrix = new Matrix(randArray);
+				
+				//multiply by the cholesky decomposition to get correlation random variables
+				Matrix corrRandArray_matrix = L_matrix.times(randArray_matrix);
+				
+				//Compute the random realization of IMi
+				for (int i=0;i<numIMi; i++) {
+					randIMiRealizations[i][m]=Math.exp(mulnIMi_RupIMj[rupIndex][i]+stdlnIMi_RupIMj[rupIndex][i]*corrRandArray_matrix.get(i,0));
+					randIMiRealizationStdevs[i][m]=stdlnIMi_RupIMj[rupIndex][i];
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns a standard normal variable from the stream (the polar method, as
+	 * {@link java.util.Random#nextGaussian()} uses, without keeping the second value)
+	 */
+	private static double nextGaussian(SplittableRandom stream) {
+		double v1, v2, s;
+		do {
+			v1 = 2 * stream.nextDouble() - 1;
+			v2 = 2 * stream.nextDouble() - 1;
+			s = v1 * v1 + v2 * v2;
+		} while (s >= 1 || s == 0);
+		return v1 * Math.sqrt(-2 * Math.log(s) / s);
+	}
+	
+	/**
+	 * Computes the conditional mean and std dev of lnIMi given IMj for every
+	 * <code>stride</code>'th rupture of the list starting at <code>first</code>, with its
+	 * own IMRs.
+	 */
+	private class RuptureStrideTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final int first, stride;
+		private final List<Long> rups;
+		private final List<? extends Map<TectonicRegionType, ScalarIMR>> imiAttenRels;
+		private final Map<TectonicRegionType, double[]> trtRhos;
+		private final double maxDist;
+		private final double[][] mulnIMi_RupIMj, stdlnIMi_RupIMj;
+		
+		private RuptureStrideTask(int first, int stride, List<Long> rups,
+				List<? extends Map<TectonicRegionType, ScalarIMR>> imiAttenRels,
+				Map<TectonicRegionType, double[]> trtRhos,
+				double maxDist, double[][] mulnIMi_RupIMj, double[][] stdlnIMi_RupIMj) {
+			this.first = first;
+			this.stride = stride;
+			this.rups = rups;
+			this.imiAttenRels = imiAttenRels;
+			this.trtRhos = trtRhos;
+			this.maxDist = maxDist;
+			this.mulnIMi_RupIMj = mulnIMi_RupIMj;
+			this.stdlnIMi_RupIMj = stdlnIMi_RupIMj;
+		}
+		
+		@Override
+		protected void compute() {
+			int numIMi = imiAttenRels.size();
+			
+			//Set the site in imri
+			for (Map<TectonicRegionType, ScalarIMR> imriMap : imiAttenRels) {
 				for (ScalarIMR imri:imriMap.values()) {
 					imri.resetParameterEventListeners();
 					imri.setUserMaxDistance(maxDist);
 					imri.setSite(site);
-				}		
-
-			    // set the IMR according to the tectonic region of the source (if there is more than one)
-				TectonicRegionType trt = source.getTectonicRegionType();
-				ScalarIMR imri = TRTUtils.getIMRforTRT(imriMap, trt);
-				ImCorrelationRelationship imijCorrRel = Utils.getIMCorrRelForTRT(corrImijMap, trt);
-					
-				//compute the correlation coefficient between lnIMi and lnIMj for the given source  
-				rho_lnIMilnIMj[i] = imijCorrRel.getImCorrelation();
-							
-				// set the rupture in the imr
-				imri.setEqkRupture(rupture);
-
-				// get the unconditional mean, stdDev of lnIMi for the given rupture
-				mulnIMi_RandRup[i] = imri.getMean();
-				stdlnIMi_RandRup[i] = imri.getStdDev();
-						
-				// get the conditional mean, stdDev of lnIMi for the given rupture
-				mulnIMi_RandRupIMj[i] = mulnIMi_RandRup[i] + stdlnIMi_RandRup[i] * rho_lnIMilnIMj[i] *epsilonIMj[randSourceId][randRupId];
-				stdlnIMi_RandRupIMj[i] = stdlnIMi_RandRup[i] * Math.sqrt(1-Math.pow(rho_lnIMilnIMj[i],2.0));
-				
-				//Now setup the covariance matrix between the different IMi's
-				rho_lnIMilnIMk_lnIMj[i][i]=1.0;
-				for (int k=0; k<i; k++) {
-					 //Determine the (unconditional) correlation between lnIMi and lnIMk 
-					int corrImikIndex = (i)*(i-1)/2+k;
-					Map<TectonicRegionType, ImCorrelationRelationship> corrImikMap = imikCorrRels.get(corrImikIndex);
-					//Get the correlation relation associated with the TRT
-					ImCorrelationRelationship imikCorrRel = Utils.getIMCorrRelForTRT(corrImikMap, trt);
-					//compute the correlation coefficient between lnIMi and lnIMk for the given source  
-					double rho_lnIMilnIMk = imikCorrRel.getImCorrelation();
-					//Now get the conditional correlation
-					rho_lnIMilnIMk_lnIMj[i][k]=(rho_lnIMilnIMk-rho_lnIMilnIMj[i]*rho_lnIMilnIMj[k])/Math.sqrt((1.0-Math.pow(rho_lnIMilnIMj[i],2))*(1.0-Math.pow(rho_lnIMilnIMj[k],2)));
-					//Then as conditional correlation matrix is symmetric
-					rho_lnIMilnIMk_lnIMj[k][i]=rho_lnIMilnIMk_lnIMj[i][k];
 				}
 			}
-			//determine the cholesky decomposition of the correlation matrix			
-			Matrix rho_lnIMilnIMk_lnIMj_matrix = new Matrix(rho_lnIMilnIMk_lnIMj);
-			CholeskyDecomposition cholDecomp = new CholeskyDecomposition(rho_lnIMilnIMk_lnIMj_matrix);
-//			CholeskyDecomposition cholDecomp = rho_lnIMilnIMk_lnIMj_matrix.chol(); //This JAMA .chol doesnt work well
 			
-			//Check if the matrix is PD then get L
-			Matrix L_matrix;
-			if (cholDecomp.isSPD()) {
-				L_matrix = cholDecomp.getL();
-			} else {
-				corrMatrixPD = false;
-				corrMatrixNotPDString = getMatrixAsString(rho_lnIMilnIMk_lnIMj_matrix);
-				if (D) {
-					System.out.println("The corr matrix below is not PD");
-					rho_lnIMilnIMk_lnIMj_matrix.print(10,4);
-				}
-				//First compute the nearest PD matrix
-				NearPD nearPd = new NearPD();
-				nearPd.setKeepDiag(true);
-//				nearPd.setEigTol(1.e-6);
-				boolean success = nearPd.calcNearPD(rho_lnIMilnIMk_lnIMj_matrix);
-				normFrob = nearPd.getFrobNorm();
-				if (!success) {
-					throw new RuntimeException("Error: nearPD failed to converge, the correlation matrix maybe" +
-							" significantly different from a PD matrix, check that the correlation equations" +
-							"used are reasonable");
-				}
+			SiteDistanceTable siteDists = getCurrentSiteDistances();
+			for (int r=first; r<rups.size(); r+=stride) {
+				long rup = rups.get(r);
+				int sourceId = getSourceId(rup);
+				int rupId = getRuptureId(rup);
+				ProbEqkSource source = eqkRupForecast.getSource(sourceId);
+				ProbEqkRupture rupture = source.getRupture(rupId);
+				TectonicRegionType trt = source.getTectonicRegionType();
+				double[] rho_lnIMilnIMj = trtRhos.get(trt);
+				SiteDistanceTable.Distances rupDists = null;
+				if (siteDists != null)
+					rupDists = siteDists.getDistances(sourceId, source, rupId, rupture);
 				
-				Matrix rho_lnIMilnIMk_lnIMj_PDmatrix = nearPd.getX();
-				corrMatrixPDString = getMatrixAsString(rho_lnIMilnIMk_lnIMj_PDmatrix);
-				if (D) {
-					System.out.println("This is the nearest PD matrix to corr matrix");
-					rho_lnIMilnIMk_lnIMj_PDmatrix.print(10,6);
-				}
-				//Now get the CholDecomp of this nearest matrix
-				CholeskyDecomposition cholDecompPD = new CholeskyDecomposition(rho_lnIMilnIMk_lnIMj_PDmatrix);
-//				CholeskyDecomposition cholDecompPD = rho_lnIMilnIMk_lnIMj_PDmatrix.chol(); //THis JAMA one doesnt work
-				if (cholDecompPD.isSPD()) {
-					L_matrix = cholDecompPD.getL();
-				} else {
-					throw new RuntimeException("Error: Even after NearPD the matrix is not PD");
+				mulnIMi_RupIMj[r] = new double[numIMi];
+				stdlnIMi_RupIMj[r] = new double[numIMi];
+				for (int i=0; i<numIMi; i++) {
+					// set the IMR according to the tectonic region of the source (if there is more than one)
+					ScalarIMR imri = TRTUtils.getIMRforTRT(imiAttenRels.get(i), trt);
+					
+					// set the rupture in the imr
+					IMRUtils.setEqkRupture(imri, rupture, rupDists);
+					
+					// get the unconditional mean, stdDev of lnIMi for the given rupture
+					double mulnIMi_RandRup = imri.getMean();
+					double stdlnIMi_RandRup = imri.getStdDev();
+					
+					// get the conditional mean, stdDev of lnIMi for the given rupture
+					mulnIMi_RupIMj[r][i] = mulnIMi_RandRup + stdlnIMi_RandRup * rho_lnIMilnIMj[i] *epsilonIMj[sourceId][rupId];
+					stdlnIMi_RupIMj[r][i] = stdlnIMi_RandRup * Math.sqrt(1-Math.pow(rho_lnIMilnIMj[i],2.0));
 				}
 			}
-				
-//			L = cholesky(rho_lnIMilnIMk_lnIMj);
-
-			//compute an uncorrelated array of standard normal random variables
-//			Random generator = new Random();
-//			double[] randArray = new double[numIMi];
-//			for (int i=0; i<numIMi; i++) {
-//				randArray[i] = generator.nextGaussian();
-//			}
-			Random generator = new Random();
-			double[][] randArray = new double[numIMi][1];
-			for (int i=0; i<numIMi; i++) {
-				randArray[i][0] = generator.nextGaussian();
-			}
-			Matrix randArray_matrix = new Matrix(randArray);
-			
-			//multiply by the cholesky decomposition to get correlation random variables
-			Matrix corrRandArray_matrix = L_matrix.times(randArray_matrix);
-//			double[] corrRandArray = matrixVectorMultiplication(L, randArray);
-			
-			//Compute the random realization of IMi
-			for (int i=0;i<numIMi; i++) {
-				randIMiRealizations[i][m]=Math.exp(mulnIMi_RandRupIMj[i]+stdlnIMi_RandRupIMj[i]*corrRandArray_matrix.get(i,0));
-//				randIMiRealizations[i][m]=Math.exp(mulnIMi_RandRupIMj[i]+stdlnIMi_RandRupIMj[i]*corrRandArray[i]);
-				randIMiRealizationStdevs[i][m]=stdlnIMi_RandRupIMj[i];
-			}
 		}
-		
-		
-		gcimRealizationsComplete = true;
-		return gcimRealizationsComplete;
 	}
 	
 	/**
 	 * This method obtains a random earthquake rupture (from a correspondingly random source), based 
-	 * on the empirical CDF of the deaggregation results
+	 * on the empirical CDF of the deaggregation results, with the generator seeded by
+	 * {@link #setRandomSeed(long)} if set
 	 */
 	public boolean getRandomSourceRupture() {
-		//success flag
-		boolean randomSourceRupUpdated = false;
 		//get random number
-		double randVal = Math.random();
+		if (random == null)
+			random = newGenerator();
+		double randVal = random.nextDouble() * sourceCdf[sourceCdf.length-1];
 		//Determine the corresponding random source
-		int numSources = eqkRupForecast.getNumSources();
-		for (int i = 0; i < numSources; ++i) {
-			if (sourceCdf[i] > randVal) {
-				this.randSourceId = i;
-				break;
-			}
-		}
+		int sourceId = getRandomSourceId(randVal);
+		if (sourceId < 0)
+			return false;
+		this.randSourceId = sourceId;
 		//Determine the corresponding random rupture
-		int randRupId = 0;
-		int numRup = eqkRupForecast.getSource(randSourceId).getNumRuptures();
-		for (int j = 0; j < numRup; ++j) {
-			if (rupCdf[randSourceId][j] > randVal) {
-				this.randRupId = j;
-				randomSourceRupUpdated = true;
-				break;
-			}
+		int rupId = getRandomRuptureId(sourceId, randVal);
+		if (rupId < 0)
+			return false;
+		this.randRupId = rupId;
+		return true;
+	}
+	
+	/**
+	 * Returns the first source whose cumulative probability is above the given value
+	 * (a binary search of the source CDF), or -1 if there is none
+	 */
+	private int getRandomSourceId(double randVal) {
+		int index = getFirstIndexAbove(sourceCdf, randVal);
+		return index < sourceCdf.length ? index : -1;
+	}
+	
+	/**
+	 * Returns the first rupture of the source whose cumulative probability is above the
+	 * given value (a binary search of the rupture CDF), or -1 if there is none
+	 */
+	private int getRandomRuptureId(int sourceId, double randVal) {
+		double[] cdf = rupCdf[sourceId];
+		int index = getFirstIndexAbove(cdf, randVal);
+		return index < cdf.length ? index : -1;
+	}
+	
+	private static int getFirstIndexAbove(double[] cdf, double val) {
+		int low = 0, high = cdf.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (cdf[mid] > val)
+				high = mid;
+			else
+				low = mid + 1;
 		}
-		return randomSourceRupUpdated;
+		return low;
 	}
 	
 	/**
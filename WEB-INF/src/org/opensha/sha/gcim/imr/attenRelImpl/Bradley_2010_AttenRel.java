@@ -24,8 +24,10 @@ import java.net.URL;
 import java.util.HashMap;
 
 import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.DiscretizedFunc;
 import org.opensha.commons.exceptions.InvalidRangeException;
 import org.opensha.commons.exceptions.ParameterException;
+import org.opensha.commons.geo.Location;
 import org.opensha.commons.param.constraint.impl.DoubleConstraint;
 import org.opensha.commons.param.constraint.impl.DoubleDiscreteConstraint;
 import org.opensha.commons.param.constraint.impl.StringConstraint;
@@ -34,8 +36,16 @@ import org.opensha.commons.param.event.ParameterChangeListener;
 import org.opensha.commons.param.event.ParameterChangeWarningListener;
 import org.opensha.sha.earthquake.EqkRupture;
 import org.opensha.sha.faultSurface.AbstractEvenlyGriddedSurface;
+import org.opensha.sha.faultSurface.PointSurface;
 import org.opensha.sha.faultSurface.RuptureSurface;
+import org.opensha.sha.faultSurface.cache.SiteDistanceTable;
 import org.opensha.sha.imr.AttenuationRelationship;
+import org.opensha.sha.imr.FastExceedProbIMR;
+import org.opensha.sha.imr.MultiPeriodIMR;
+import org.opensha.sha.imr.PointSourceExceedProbIMR;
+import org.opensha.sha.imr.PrecomputedDistancesIMR;
+import org.opensha.sha.imr.ScalarIMR;
+import org.opensha.sha.imr.SharedStateIMR;
 import org.opensha.sha.imr.param.EqkRuptureParams.DipParam;
 import org.opensha.sha.imr.param.EqkRuptureParams.FaultTypeParam;
 import org.opensha.sha.imr.param.EqkRuptureParams.MagParam;
@@ -106,6 +116,17 @@ import org.opensha.sha.util.TectonicRegionType;
  * <p>
  * Verification - This model has been tested against: 1) a verification file
  * generated independently by Brendon Bradley (matlab)
+ * <p>
+ * The equations themselves work on primitive values only. The parameters are
+ * turned into these values by {@link #parameterChange(ParameterChangeEvent)},
+ * while {@link #getMeanAndStdDev(int, Inputs)} evaluates values held in an
+ * {@link Inputs} object directly, with no parameter events or object creation.
+ * The hazard calculators use the latter through {@link FastExceedProbIMR}, and
+ * through {@link PointSourceExceedProbIMR} for point sources.
+ * <p>
+ * If a {@link Bradley_2010_PointSourceTable} is set, lnYref of point source ruptures is
+ * interpolated from it rather than computed (see
+ * {@link #setPointSourceTable(Bradley_2010_PointSourceTable)}).
  * 
  * @author Brendon A. Bradley
  * @created July 2012
@@ -113,7 +134,8 @@ import org.opensha.sha.util.TectonicRegionType;
  */
 
 public class Bradley_2010_AttenRel extends AttenuationRelationship implements
-		ParameterChangeListener {
+		ParameterChangeListener, MultiPeriodIMR, FastExceedProbIMR, PrecomputedDistancesIMR,
+		PointSourceExceedProbIMR, SharedStateIMR {
 
 	private final static String C = "Bradley_2010_AttenRel";
 	private final static boolean D = false;
@@ -172,6 +194,10 @@ public class Bradley_2010_AttenRel extends AttenuationRelationship implements
 	protected double lnYref;
 	protected boolean lnYref_is_not_fresh;
 	private String tecRegType;
+	// used by getExceedProbabilities(EqkRupture, DiscretizedFunc)
+	private final Inputs fastInputs = new Inputs();
+	// lnYref of point sources, or null to compute it
+	private Bradley_2010_PointSourceTable pointSourceTable;
 
 	
 	protected final static double MAG_WARN_MIN = 4.0;
@@ -226,13 +252,25 @@ public class Bradley_2010_AttenRel extends AttenuationRelationship implements
 	@Override
 	public void setEqkRupture(EqkRupture eqkRupture)
 			throws InvalidRangeException {
+		setEqkRuptureParams(eqkRupture);
+		setPropagationEffectParams();
+	}
+
+	@Override
+	public void setEqkRupture(EqkRupture eqkRupture, SiteDistanceTable.Distances distances)
+			throws InvalidRangeException {
+		setEqkRuptureParams(eqkRupture);
+		if (site != null)
+			propEffectUpdate(distances.getDistanceRup(), distances.getDistanceJB(), distances.getDistanceX());
+	}
+
+	private void setEqkRuptureParams(EqkRupture eqkRupture) {
 		this.eqkRupture = eqkRupture;
 		magParam.setValueIgnoreWarning(eqkRupture.getMag());
 		setFaultTypeFromRake(eqkRupture.getAveRake());
 		RuptureSurface surface = eqkRupture.getRuptureSurface();
 		dipParam.setValue(surface.getAveDip());
 		rupTopDepthParam.setValueIgnoreWarning(surface.getAveRupTopDepth());
-		setPropagationEffectParams();
 	}
 
 	@Override
@@ -256,6 +294,13 @@ public class Bradley_2010_AttenRel extends AttenuationRelationship implements
 	
 	
 	private void propEffectUpdate() {
+		RuptureSurface surface = eqkRupture.getRuptureSurface();
+		Location siteLoc = site.getLocation();
+		propEffectUpdate(surface.getDistanceRup(siteLoc), surface.getDistanceJB(siteLoc),
+				surface.getDistanceX(siteLoc));
+	}
+
+	private void propEffectUpdate(double distRup, double dist_jb, double distX) {
 		
 		/*
 		 * This sets the two propagation-effect parameters (distanceRupParam and
@@ -268,9 +313,7 @@ public class Bradley_2010_AttenRel extends AttenuationRelationship implements
 		 * Ned Field, Norm Abrahamson, and Ken Campbell.
 		 */
 		
-		distanceRupParam.setValueIgnoreWarning(eqkRupture.getRuptureSurface().getDistanceRup(site.getLocation())); // this sets rRup too
-		double dist_jb = eqkRupture.getRuptureSurface().getDistanceJB(site.getLocation());
-		double distX = eqkRupture.getRuptureSurface().getDistanceX(site.getLocation());
+		distanceRupParam.setValueIgnoreWarning(distRup); // this sets rRup too
 		if(rRup>0.0) {
 			distRupMinusJB_OverRupParam.setValueIgnoreWarning((rRup-dist_jb)/rRup);
 			if(distX >= 0.0) {  // sign determines whether it's on the hanging wall (distX is always >= 0 in distRupMinusDistX_OverRupParam)
@@ -305,12 +348,20 @@ public class Bradley_2010_AttenRel extends AttenuationRelationship implements
 	 * @param rake in degrees
 	 */
 	protected void setFaultTypeFromRake(double rake) {
+		fltTypeParam.setValue(getFaultType(rake));
+	}
+
+	/**
+	 * @param rake in degrees
+	 * @return the style of faulting for the rake angle
+	 */
+	public static String getFaultType(double rake) {
 		if (rake > 30 && rake < 150) {
-			fltTypeParam.setValue(FLT_TYPE_REVERSE);
+			return FLT_TYPE_REVERSE;
 		} else if (rake > -120 && rake < -60) {
-			fltTypeParam.setValue(FLT_TYPE_NORMAL);
+			return FLT_TYPE_NORMAL;
 		} else {
-			fltTypeParam.setValue(FLT_TYPE_STRIKE_SLIP);
+			return FLT_TYPE_STRIKE_SLIP;
 		}
 	}
 
@@ -646,6 +697,13 @@ public class Bradley_2010_AttenRel extends AttenuationRelationship implements
 		if(lnYref_is_not_fresh)
 			compute_lnYref(iper, f_rv, f_nm, rRup, distRupMinusJB_OverRup, rTvz, distRupMinusDistX_OverRup, f_hw, dip, mag, depthTop);
 
+		return getMean(iper, lnYref, vs30, depthTo1pt0kmPerSec);
+	}
+
+	/*
+	 * Site response part of the mean, given lnYref for the same period index
+	 */
+	private static double getMean(int iper, double lnYref, double vs30, double depthTo1pt0kmPerSec) {
 
 		// set basinDepth default if depthTo1pt0kmPerSec is NaN 
 		// TODO currently not possible to set depthTo1pt0kmPerSec Param to NaN
@@ -667,8 +725,7 @@ public class Bradley_2010_AttenRel extends AttenuationRelationship implements
 		//Rock amplification factor v1
 		double v1;
 		if (iper<22) { //SA
-			double period=saPeriodParam.getValue();
-			v1 = Math.min(Math.max(1130.0*Math.pow(period/0.75,-0.11),1130.0),1800.0);
+			v1 = Math.min(Math.max(1130.0*Math.pow(period[iper]/0.75,-0.11),1130.0),1800.0);
 		}
 		else { //PGA
 			v1=1800;
@@ -704,6 +761,28 @@ public class Bradley_2010_AttenRel extends AttenuationRelationship implements
 	 */
 	protected void compute_lnYref(int iper, double f_rv, double f_nm, double rRup, double distRupMinusJB_OverRup, double rTvz,
 			double distRupMinusDistX_OverRup, double f_hw, double dip, double mag, double depthTop) {
+
+		lnYref = get_lnYrefForRupture(iper, f_rv, f_nm, rRup, distRupMinusJB_OverRup, rTvz, distRupMinusDistX_OverRup, f_hw, dip, mag, depthTop);
+		lnYref_is_not_fresh = false;
+
+	}
+
+	/*
+	 * lnYref for the current rupture, from the point source table if one is set and the
+	 * rupture is a point source
+	 */
+	private double get_lnYrefForRupture(int iper, double f_rv, double f_nm, double rRup, double distRupMinusJB_OverRup, double rTvz,
+			double distRupMinusDistX_OverRup, double f_hw, double dip, double mag, double depthTop) {
+		if (pointSourceTable != null && eqkRupture != null && eqkRupture.getRuptureSurface() instanceof PointSurface)
+			return pointSourceTable.get_lnYref(iper, f_rv, f_nm, depthTop, mag, rRup, rTvz);
+		return get_lnYref(iper, f_rv, f_nm, rRup, distRupMinusJB_OverRup, rTvz, distRupMinusDistX_OverRup, f_hw, dip, mag, depthTop);
+	}
+
+	/*
+	 * lnYref without touching the cached value (also used to build Bradley_2010_PointSourceTable)
+	 */
+	static double get_lnYref(int iper, double f_rv, double f_nm, double rRup, double distRupMinusJB_OverRup, double rTvz,
+			double distRupMinusDistX_OverRup, double f_hw, double dip, double mag, double depthTop) {
 		
 		// compute rJB
 		double distanceJB = rRup - distRupMinusJB_OverRup*rRup;
@@ -712,7 +791,7 @@ public class Bradley_2010_AttenRel extends AttenuationRelationship implements
 		double cosDelta = Math.cos(dip*Math.PI/180);
 		double altDist = Math.sqrt(distanceJB*distanceJB+depthTop*depthTop);
 
-		lnYref = 	c1[iper] + (c1a[iper]*f_rv+c1b[iper]*f_nm+c7[iper]*(Math.min(depthTop,c8[iper])-4.0)) +
+		return 	c1[iper] + (c1a[iper]*f_rv+c1b[iper]*f_nm+c7[iper]*(Math.min(depthTop,c8[iper])-4.0)) +
 
 		c2*(mag-6.0) + ((c2-c3[iper])/cn[iper])*Math.log(1.0 + Math.exp(cn[iper]*(cm[iper]-mag))) +
 
@@ -724,8 +803,6 @@ public class Bradley_2010_AttenRel extends AttenuationRelationship implements
 
 		c9[iper] * f_hw * Math.tanh(distX*cosDelta*cosDelta/c9a[iper]) * (1-altDist/(rRup+0.001));
 
-		lnYref_is_not_fresh = false;
-
 	}
 
 
@@ -750,13 +827,21 @@ public class Bradley_2010_AttenRel extends AttenuationRelationship implements
 	public double getStdDev(int iper, double vs30, double f_rv, double f_nm, double rRup, double distRupMinusJB_OverRup, double rtvz,
 			double distRupMinusDistX_OverRup, double f_hw, double dip, double mag, double depthTop, String stdDevType, double f_meas) {
 
+		if(lnYref_is_not_fresh)
+			compute_lnYref(iper, f_rv, f_nm, rRup, distRupMinusJB_OverRup, rtvz, distRupMinusDistX_OverRup, f_hw, dip, mag, depthTop);
+
+		return getStdDev(iper, lnYref, vs30, mag, stdDevType, f_meas);
+	}
+
+	/*
+	 * Standard deviation given lnYref for the same period index
+	 */
+	private static double getStdDev(int iper, double lnYref, double vs30, double mag, String stdDevType, double f_meas) {
+
 		double magTest = Math.min(Math.max(mag, 5.0), 7.0) - 5.0;
 
 		double tau = tau1[iper] + (tau2[iper]-tau1[iper])/2 * magTest;
 
-		if(lnYref_is_not_fresh)
-			compute_lnYref(iper, f_rv, f_nm, rRup, distRupMinusJB_OverRup, rtvz, distRupMinusDistX_OverRup, f_hw, dip, mag, depthTop);
-
 		double b = phi2[iper]*(Math.exp(phi3[iper]*(Math.min(vs30, 1130)-360)) - Math.exp(phi3[iper]*(1130-360)));  // Equation 10
 		double c = phi4[iper];   // Equation 10
 		double NLo = b*Math.exp(lnYref)/(Math.exp(lnYref)+c);
@@ -774,6 +859,262 @@ public class Bradley_2010_AttenRel extends AttenuationRelationship implements
 			return Double.NaN;
 	}
 
+	@Override
+	public int getPeriodIndex(double per) {
+		for (int i = 0; i < period.length-1; i++) {  // PGV (last index) has no period
+			if (period[i] == per)
+				return i;
+		}
+		throw new IllegalArgumentException(C + ": period " + per + " is not supported");
+	}
+
+	@Override
+	public double getMean(int iper) {
+		if (rRup > USER_MAX_DISTANCE) {
+			return VERY_SMALL_MEAN;
+		}
+		return getMean(iper, get_lnYref(iper), vs30, depthTo1pt0kmPerSec);
+	}
+
+	@Override
+	public double getStdDev(int iper) {
+		return getStdDev(iper, get_lnYref(iper), vs30, mag, stdDevType, f_meas);
+	}
+
+	@Override
+	public DiscretizedFunc getExceedProbabilities(int iper, DiscretizedFunc intensityMeasureLevels) {
+		double lnYrefP = get_lnYref(iper);
+		double mean = rRup > USER_MAX_DISTANCE ? VERY_SMALL_MEAN : getMean(iper, lnYrefP, vs30, depthTo1pt0kmPerSec);
+		double stdDev = getStdDev(iper, lnYrefP, vs30, mag, stdDevType, f_meas);
+		return getExceedProbabilities(mean, stdDev, intensityMeasureLevels);
+	}
+
+	/*
+	 * lnYref at the given period for the current rupture and site; the cached value
+	 * (for the period of the intensity measure parameter) is reused when it applies
+	 */
+	private double get_lnYref(int iper) {
+		if (iper == this.iper && !intensityMeasureChanged) {
+			if (lnYref_is_not_fresh)
+				compute_lnYref(iper, f_rv, f_nm, rRup, distRupMinusJB_OverRup, rTvz, distRupMinusDistX_OverRup, f_hw, dip, mag, depthTop);
+			return lnYref;
+		}
+		return get_lnYrefForRupture(iper, f_rv, f_nm, rRup, distRupMinusJB_OverRup, rTvz, distRupMinusDistX_OverRup, f_hw, dip, mag, depthTop);
+	}
+
+	/**
+	 * Primitive rupture and site values for {@link Bradley_2010_AttenRel#getMeanAndStdDev(int, Inputs)},
+	 * with the same meaning as the corresponding parameters. The fields can be set directly or
+	 * with the set methods, which convert rake and distances the same way the parameters do.
+	 * The mean and stdDev fields hold the result of the last evaluation. Each thread should use
+	 * its own instance.
+	 */
+	public static class Inputs {
+
+		public double mag, f_rv, f_nm, depthTop, dip;
+		public double rRup, distRupMinusJB_OverRup, distRupMinusDistX_OverRup, f_hw, rTvz;
+		public double vs30, f_meas, depthTo1pt0kmPerSec = Double.NaN;
+
+		public double mean, stdDev;
+
+		/**
+		 * Sets the style of faulting terms from the rake angle.
+		 * @param rake in degrees
+		 */
+		public void setRake(double rake) {
+			String fltType = getFaultType(rake);
+			f_rv = fltType.equals(FLT_TYPE_REVERSE) ? 1 : 0;
+			f_nm = fltType.equals(FLT_TYPE_NORMAL) ? 1 : 0;
+		}
+
+		/**
+		 * Sets the distance terms.
+		 * @param rRup - rupture distance
+		 * @param distJB - Joyner-Boore distance
+		 * @param distX - horizontal distance from the top edge of the rupture, positive on the hanging wall
+		 * @param volcanic - whether the source is in the TVZ
+		 */
+		public void setDistances(double rRup, double distJB, double distX, boolean volcanic) {
+			this.rRup = rRup;
+			if(rRup>0.0) {
+				distRupMinusJB_OverRup = (rRup-distJB)/rRup;
+				if(distX >= 0.0) {
+					distRupMinusDistX_OverRup = (rRup-distX)/rRup;
+					f_hw = 1.0;
+				}
+				else {
+					distRupMinusDistX_OverRup = (rRup+distX)/rRup;
+					f_hw = 0.0;
+				}
+			}
+			else {
+				distRupMinusJB_OverRup = 0;
+				distRupMinusDistX_OverRup = 0;
+				f_hw = 1.0;
+			}
+			rTvz = volcanic ? rRup : 0;
+		}
+
+		/**
+		 * Sets the site terms.
+		 * @param vs30
+		 * @param measured - whether Vs30 is measured rather than inferred
+		 * @param depthTo1pt0kmPerSec - depth in m, or NaN to compute it from vs30
+		 */
+		public void setSite(double vs30, boolean measured, double depthTo1pt0kmPerSec) {
+			this.vs30 = vs30;
+			this.f_meas = measured ? 1 : 0;
+			this.depthTo1pt0kmPerSec = depthTo1pt0kmPerSec;
+		}
+	}
+
+	/**
+	 * This sets the rupture terms of the given inputs from the rupture, and the distance
+	 * and site terms from the rupture and the current site (including its tectonic region
+	 * type). No parameters are changed and, unlike setEqkRupture, the values are not
+	 * checked against the parameter constraints.
+	 * @param inputs
+	 * @param eqkRupture
+	 */
+	public void setInputs(Inputs inputs, EqkRupture eqkRupture) {
+		RuptureSurface surface = eqkRupture.getRuptureSurface();
+		Location siteLoc = site.getLocation();
+		setInputs(inputs, eqkRupture, surface.getDistanceRup(siteLoc), surface.getDistanceJB(siteLoc),
+				surface.getDistanceX(siteLoc));
+	}
+
+	/**
+	 * This is the same as {@link #setInputs(Inputs, EqkRupture)}, except that the distance
+	 * terms are set from the given distances.
+	 * @param inputs
+	 * @param eqkRupture
+	 * @param distances - distances between the rupture surface and the current site
+	 */
+	public void setInputs(Inputs inputs, EqkRupture eqkRupture, SiteDistanceTable.Distances distances) {
+		setInputs(inputs, eqkRupture, distances.getDistanceRup(), distances.getDistanceJB(),
+				distances.getDistanceX());
+	}
+
+	private void setInputs(Inputs inputs, EqkRupture eqkRupture, double distRup, double distJB,
+			double distX) {
+		inputs.mag = eqkRupture.getMag();
+		inputs.setRake(eqkRupture.getAveRake());
+		RuptureSurface surface = eqkRupture.getRuptureSurface();
+		inputs.dip = surface.getAveDip();
+		inputs.depthTop = surface.getAveRupTopDepth();
+		inputs.setDistances(distRup, distJB, distX, tecRegType.equals(FLT_TEC_ENV_VOLCANIC));
+		inputs.vs30 = vs30;
+		inputs.f_meas = f_meas;
+		inputs.depthTo1pt0kmPerSec = depthTo1pt0kmPerSec;
+	}
+
+	/**
+	 * This computes the mean and standard deviation at the given period index for the
+	 * given inputs, and stores them in its mean and stdDev fields. Only the std dev type
+	 * and user max distance of this instance are used (its parameters and cached values
+	 * are neither read nor changed), and no objects are created.
+	 * @param iper - period index, from {@link #getPeriodIndex(double)}
+	 * @param inputs
+	 */
+	public void getMeanAndStdDev(int iper, Inputs inputs) {
+		double lnYrefP = get_lnYref(iper, inputs.f_rv, inputs.f_nm, inputs.rRup, inputs.distRupMinusJB_OverRup,
+				inputs.rTvz, inputs.distRupMinusDistX_OverRup, inputs.f_hw, inputs.dip, inputs.mag, inputs.depthTop);
+		setMeanAndStdDev(iper, inputs, lnYrefP);
+	}
+
+	/*
+	 * as getMeanAndStdDev(int, Inputs), with lnYref from the point source table if one is
+	 * set and the inputs are those of a point source
+	 */
+	private void getMeanAndStdDev(int iper, Inputs inputs, boolean pointSource) {
+		if (pointSource && pointSourceTable != null)
+			setMeanAndStdDev(iper, inputs, pointSourceTable.get_lnYref(iper, inputs.f_rv, inputs.f_nm,
+					inputs.depthTop, inputs.mag, inputs.rRup, inputs.rTvz));
+		else
+			getMeanAndStdDev(iper, inputs);
+	}
+
+	private void setMeanAndStdDev(int iper, Inputs inputs, double lnYrefP) {
+		if (inputs.rRup > USER_MAX_DISTANCE)
+			inputs.mean = VERY_SMALL_MEAN;
+		else
+			inputs.mean = getMean(iper, lnYrefP, inputs.vs30, inputs.depthTo1pt0kmPerSec);
+		inputs.stdDev = getStdDev(iper, lnYrefP, inputs.vs30, inputs.mag, stdDevType, inputs.f_meas);
+	}
+
+	@Override
+	public DiscretizedFunc getExceedProbabilities(EqkRupture eqkRupture,
+			DiscretizedFunc intensityMeasureLevels) {
+		if (intensityMeasureChanged) {
+			setCoeffIndex();// intensityMeasureChanged is set to false in this method
+			lnYref_is_not_fresh = true;
+		}
+		setInputs(fastInputs, eqkRupture);
+		getMeanAndStdDev(iper, fastInputs, eqkRupture.getRuptureSurface() instanceof PointSurface);
+		return getExceedProbabilities(fastInputs.mean, fastInputs.stdDev, intensityMeasureLevels);
+	}
+
+	@Override
+	public DiscretizedFunc getExceedProbabilities(EqkRupture eqkRupture,
+			SiteDistanceTable.Distances distances, DiscretizedFunc intensityMeasureLevels) {
+		if (intensityMeasureChanged) {
+			setCoeffIndex();// intensityMeasureChanged is set to false in this method
+			lnYref_is_not_fresh = true;
+		}
+		setInputs(fastInputs, eqkRupture, distances);
+		getMeanAndStdDev(iper, fastInputs, eqkRupture.getRuptureSurface() instanceof PointSurface);
+		return getExceedProbabilities(fastInputs.mean, fastInputs.stdDev, intensityMeasureLevels);
+	}
+
+	@Override
+	public DiscretizedFunc getExceedProbabilities(double mag, double rake, double dip,
+			double depth, double distRup, double distJB, DiscretizedFunc intensityMeasureLevels) {
+		if (intensityMeasureChanged) {
+			setCoeffIndex();// intensityMeasureChanged is set to false in this method
+			lnYref_is_not_fresh = true;
+		}
+		fastInputs.mag = mag;
+		fastInputs.setRake(rake);
+		fastInputs.dip = dip;
+		fastInputs.depthTop = depth;
+		// distance X is zero for a point surface
+		fastInputs.setDistances(distRup, distJB, 0.0, tecRegType.equals(FLT_TEC_ENV_VOLCANIC));
+		fastInputs.vs30 = vs30;
+		fastInputs.f_meas = f_meas;
+		fastInputs.depthTo1pt0kmPerSec = depthTo1pt0kmPerSec;
+		getMeanAndStdDev(iper, fastInputs, true);
+		return getExceedProbabilities(fastInputs.mean, fastInputs.stdDev, intensityMeasureLevels);
+	}
+
+	/**
+	 * This sets the table lnYref of point source ruptures is interpolated from, or null
+	 * to compute it exactly (the default). The table applies to ruptures with a
+	 * {@link PointSurface}, whether set with setEqkRupture or given to the
+	 * {@link FastExceedProbIMR} and {@link PointSourceExceedProbIMR} methods. Clones made
+	 * by {@link org.opensha.sha.util.IMRUtils#cloneIMR(org.opensha.sha.imr.ScalarIMR)} share it
+	 * (see {@link #copySharedState(ScalarIMR)}).
+	 * @param pointSourceTable
+	 */
+	public void setPointSourceTable(Bradley_2010_PointSourceTable pointSourceTable) {
+		this.pointSourceTable = pointSourceTable;
+		lnYref_is_not_fresh = true;
+	}
+
+	/**
+	 * @return the table lnYref of point sources is interpolated from, or null if computed
+	 */
+	public Bradley_2010_PointSourceTable getPointSourceTable() {
+		return pointSourceTable;
+	}
+
+	/**
+	 * This shares the point source table of the given IMR (see {@link SharedStateIMR}).
+	 */
+	@Override
+	public void copySharedState(ScalarIMR imr) {
+		setPointSourceTable(((Bradley_2010_AttenRel)imr).getPointSourceTable());
+	}
+
 	/**
 	 * This listens for parameter changes and updates the primitive parameters accordingly
 	 * @param e ParameterChangeEvent
@@ -0,0 +1,307 @@
+package org.opensha.sha.gcim.imr.attenRelImpl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * <b>Title:</b> Bradley_2010_PointSourceTable<br>
+ * <b>Description:</b> Tabulated values of lnYref (the reference rock motion of
+ * {@link Bradley_2010_AttenRel}) for point sources, so that hazard and
+ * disaggregation calculations interpolate rather than evaluate the full equation
+ * for each of the many background ruptures. Set it in an IMR with
+ * {@link Bradley_2010_AttenRel#setPointSourceTable(Bradley_2010_PointSourceTable)}.
+ * <p>
+ * For a point source, distance X is zero so the hanging wall term vanishes, and lnYref
+ * is the sum of a style of faulting and depth to top of rupture term, an anelastic
+ * attenuation term (linear in distance, including the TVZ distance), which are cheap
+ * and computed exactly, and of the magnitude scaling and geometric spreading terms,
+ * which only depend on magnitude and rupture distance. Only the latter are tabulated,
+ * for every period index, on a grid of magnitude and log rupture distance, and
+ * interpolated bilinearly.
+ * The table is therefore independent of the site: the site response terms of the mean
+ * and standard deviation are applied exactly to the interpolated lnYref, and the depth
+ * of the source only enters through the rupture distance. Values outside of the grid
+ * are computed exactly.
+ * <p>
+ * The grid spacing is set by an accuracy budget: starting from 0.1 magnitude units and
+ * 0.1 natural log units of distance, the spacing of each axis is halved until the
+ * interpolation error in lnYref (and so in the mean, in natural log units) at the
+ * midpoints of the grid cells is within the given tolerance for every period. The
+ * error that was reached is given by {@link #getMaxError()}.
+ * <p>
+ * The table is not changed once built, so it can be shared by any number of IMRs and
+ * threads. It can be saved to and loaded from a file, to skip building it at startup.
+ */
+public class Bradley_2010_PointSourceTable {
+
+	/** Default tolerance for the interpolation error in lnYref (natural log units). */
+	public static final double DEFAULT_TOLERANCE = 0.005;
+
+	// written at the start of the file; increment when the coefficients or the
+	// tabulated terms change so that old tables are not loaded
+	private static final int FILE_MAGIC = 0x42523130;
+	private static final int FILE_VERSION = 1;
+
+	// extent of the grid
+	private static final double MIN_MAG = 4.0;
+	private static final double MAX_MAG = 9.0;
+	private static final double MIN_DIST = 0.1;
+	private static final double MAX_DIST = 1000;
+
+	// spacings the grid is refined from
+	private static final double START_MAG_SPACING = 0.1;
+	private static final double START_LN_DIST_SPACING = 0.1;
+	private static final int MAX_REFINEMENTS = 8;
+
+	// depth to top of rupture for which the tabulated term excludes the depth term
+	private static final double REF_DEPTH_TOP = 4.0;
+
+	private final double tolerance;
+	private double maxError;
+	private double magSpacing, lnMinDist, lnDistSpacing;
+	private int numMag, numDist;
+	// [period index][mag index * numDist + distance index]
+	private double[][] values;
+
+	/**
+	 * Builds the table with the given accuracy budget.
+	 *
+	 * @param tolerance - maximum interpolation error in lnYref, in natural log units
+	 */
+	public Bradley_2010_PointSourceTable(double tolerance) {
+		Preconditions.checkArgument(tolerance > 0, "tolerance must be > 0");
+		this.tolerance = tolerance;
+		lnMinDist = Math.log(MIN_DIST);
+		magSpacing = START_MAG_SPACING;
+		lnDistSpacing = START_LN_DIST_SPACING;
+		for (int i = 0; ; i++) {
+			build();
+			double magError = getMaxError(true, false);
+			double distError = getMaxError(false, true);
+			maxError = Math.max(getMaxError(true, true), Math.max(magError, distError));
+			if (maxError <= tolerance)
+				break;
+			if (i == MAX_REFINEMENTS)
+				throw new IllegalStateException("Could not reach a tolerance of " + tolerance
+						+ " (error is " + maxError + ")");
+			// refine the axis with the larger error, or both if they are similar
+			if (magError >= distError / 2)
+				magSpacing /= 2;
+			if (distError >= magError / 2)
+				lnDistSpacing /= 2;
+		}
+	}
+
+	private Bradley_2010_PointSourceTable(double tolerance, double maxError) {
+		this.tolerance = tolerance;
+		this.maxError = maxError;
+	}
+
+	private void build() {
+		numMag = (int) Math.round((MAX_MAG - MIN_MAG) / magSpacing) + 1;
+		numDist = (int) Math.ceil((Math.log(MAX_DIST) - lnMinDist) / lnDistSpacing) + 1;
+		int numPer = Bradley_2010_AttenRel.period.length;
+		values = new double[numPer][numMag * numDist];
+		for (int iper = 0; iper < numPer; iper++) {
+			double[] vals = values[iper];
+			for (int m = 0; m < numMag; m++) {
+				double mag = MIN_MAG + m * magSpacing;
+				for (int r = 0; r < numDist; r++)
+					vals[m * numDist + r] = getMagDistTerm(iper, mag, Math.exp(lnMinDist + r * lnDistSpacing));
+			}
+		}
+	}
+
+	/*
+	 * Maximum difference between the interpolated and exact term, over all periods, at
+	 * the midpoints of the grid cells along the given axes (at the nodes of the other)
+	 */
+	private double getMaxError(boolean magMidpoints, boolean distMidpoints) {
+		double max = 0;
+		double dm = magMidpoints ? 0.5 : 0;
+		double dr = distMidpoints ? 0.5 : 0;
+		for (int iper = 0; iper < values.length; iper++) {
+			for (int m = 0; m < numMag - 1; m++) {
+				double mag = MIN_MAG + (m + dm) * magSpacing;
+				for (int r = 0; r < numDist - 1; r++) {
+					double rRup = Math.exp(lnMinDist + (r + dr) * lnDistSpacing);
+					double error = interpolate(iper, mag, rRup) - getMagDistTerm(iper, mag, rRup);
+					max = Math.max(max, Math.abs(error));
+				}
+			}
+		}
+		return max;
+	}
+
+	/*
+	 * lnYref of a point source less its style of faulting, depth and anelastic terms
+	 */
+	private static double getMagDistTerm(int iper, double mag, double rRup) {
+		return Bradley_2010_AttenRel.get_lnYref(iper, 0, 0, rRup, 0, 0, 1.0, 1.0, 90, mag, REF_DEPTH_TOP)
+				- getSourceTerm(iper, 0, 0, REF_DEPTH_TOP) - getAnelasticTerm(iper, mag, rRup, 0);
+	}
+
+	/*
+	 * the anelastic attenuation term of lnYref
+	 */
+	private static double getAnelasticTerm(int iper, double mag, double rRup, double rTvz) {
+		return (Bradley_2010_AttenRel.cg1[iper] + Bradley_2010_AttenRel.cg2[iper]
+				/ Math.cosh(Math.max(mag - Bradley_2010_AttenRel.cg3, 0.0)))
+				* (rRup + Bradley_2010_AttenRel.ctvz[iper] * rTvz);
+	}
+
+	/*
+	 * the style of faulting and depth to top of rupture terms of lnYref
+	 */
+	private static double getSourceTerm(int iper, double f_rv, double f_nm, double depthTop) {
+		return Bradley_2010_AttenRel.c1a[iper] * f_rv + Bradley_2010_AttenRel.c1b[iper] * f_nm
+				+ Bradley_2010_AttenRel.c7[iper] * (Math.min(depthTop, Bradley_2010_AttenRel.c8[iper]) - 4.0);
+	}
+
+	/*
+	 * the interpolated term, or NaN outside of the grid
+	 */
+	private double interpolate(int iper, double mag, double rRup) {
+		double mi = (mag - MIN_MAG) / magSpacing;
+		double ri = (Math.log(rRup) - lnMinDist) / lnDistSpacing;
+		if (!(mi >= 0 && mi <= numMag - 1 && ri >= 0 && ri <= numDist - 1))
+			return Double.NaN;
+		int m = Math.min((int) mi, numMag - 2);
+		int r = Math.min((int) ri, numDist - 2);
+		double fm = mi - m;
+		double fr = ri - r;
+		double[] vals = values[iper];
+		int i = m * numDist + r;
+		double low = vals[i] + fr * (vals[i + 1] - vals[i]);
+		double high = vals[i + numDist] + fr * (vals[i + numDist + 1] - vals[i + numDist]);
+		return low + fm * (high - low);
+	}
+
+	/**
+	 * This returns lnYref for a rupture with a distance X of zero, such as a point
+	 * source, interpolated from the table, or computed exactly if outside of it.
+	 *
+	 * @param iper - period index
+	 * @param f_rv - reverse faulting flag
+	 * @param f_nm - normal faulting flag
+	 * @param depthTop - depth to top of rupture
+	 * @param mag - magnitude
+	 * @param rRup - rupture distance
+	 * @param rTvz - distance in the TVZ
+	 * @return lnYref
+	 */
+	public double get_lnYref(int iper, double f_rv, double f_nm, double depthTop, double mag,
+			double rRup, double rTvz) {
+		double value = interpolate(iper, mag, rRup);
+		if (Double.isNaN(value))
+			return Bradley_2010_AttenRel.get_lnYref(iper, f_rv, f_nm, rRup, 0, rTvz, 1.0, 1.0, 90,
+					mag, depthTop);
+		return value + getSourceTerm(iper, f_rv, f_nm, depthTop) + getAnelasticTerm(iper, mag, rRup, rTvz);
+	}
+
+	/**
+	 * @return the tolerance the table was built for
+	 */
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	/**
+	 * @return the largest interpolation error in lnYref found when the table was built
+	 */
+	public double getMaxError() {
+		return maxError;
+	}
+
+	/**
+	 * @return the number of values in the table
+	 */
+	public int size() {
+		return values.length * numMag * numDist;
+	}
+
+	/**
+	 * Saves the table to the given file. The file is written under a temporary name
+	 * first, so that a failed save leaves the previous file.
+	 */
+	public void save(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeDouble(tolerance);
+			out.writeDouble(maxError);
+			out.writeDouble(magSpacing);
+			out.writeInt(numMag);
+			out.writeDouble(lnMinDist);
+			out.writeDouble(lnDistSpacing);
+			out.writeInt(numDist);
+			out.writeInt(values.length);
+			for (double[] vals : values)
+				for (double val : vals)
+					out.writeDouble(val);
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("Could not rename " + tmp + " to " + file);
+		}
+	}
+
+	/**
+	 * Loads a table saved with {@link #save(File)}.
+	 *
+	 * @return the table, or null if the file does not exist or is of another version
+	 */
+	public static Bradley_2010_PointSourceTable load(File file) throws IOException {
+		if (!file.isFile())
+			return null;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION)
+				return null;
+			Bradley_2010_PointSourceTable table =
+				new Bradley_2010_PointSourceTable(in.readDouble(), in.readDouble());
+			table.magSpacing = in.readDouble();
+			table.numMag = in.readInt();
+			table.lnMinDist = in.readDouble();
+			table.lnDistSpacing = in.readDouble();
+			table.numDist = in.readInt();
+			int numPer = in.readInt();
+			if (numPer != Bradley_2010_AttenRel.period.length)
+				return null;
+			table.values = new double[numPer][table.numMag * table.numDist];
+			for (double[] vals : table.values)
+				for (int i = 0; i < vals.length; i++)
+					vals[i] = in.readDouble();
+			return table;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Loads the table of the given file if it was built for the given tolerance, and
+	 * otherwise builds it and saves it to the file.
+	 */
+	public static Bradley_2010_PointSourceTable loadOrBuild(File file, double tolerance)
+			throws IOException {
+		Bradley_2010_PointSourceTable table = load(file);
+		if (table != null && table.getTolerance() == tolerance)
+			return table;
+		table = new Bradley_2010_PointSourceTable(tolerance);
+		table.save(file);
+		return table;
+	}
+}
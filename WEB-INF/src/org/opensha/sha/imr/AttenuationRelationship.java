@@ -29,6 +29,7 @@ import org.opensha.commons.calc.GaussianDistCalc;
 import org.opensha.commons.data.Site;
 import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
 import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.data.function.LightFixedXFunc;
 import org.opensha.commons.exceptions.IMRException;
 import org.opensha.commons.exceptions.ParameterException;
 import org.opensha.commons.geo.Location;
@@ -533,23 +534,32 @@ extends AbstractIMR implements ScalarIMR {
 	
 	public static double getExceedProbability(double mean, double stdDev, double iml,
 			SigmaTruncTypeParam sigmaTruncTypeParam, SigmaTruncLevelParam sigmaTruncLevelParam) {
+		int truncType = getTruncType(sigmaTruncTypeParam);
+		double truncLevel = truncType == 0 ? 0 : getTruncLevel(sigmaTruncLevelParam);
+		return getExceedProbability(mean, stdDev, iml, truncType, truncLevel);
+	}
+
+	/**
+	 * This computes the probability of exceeding the IM-level given the mean and
+	 * stdDev, for the truncation type and level as returned by
+	 * {@link #getTruncType(SigmaTruncTypeParam)} and
+	 * {@link #getTruncLevel(SigmaTruncLevelParam)}.
+	 * @param mean
+	 * @param stdDev
+	 * @param iml
+	 * @param truncType - 0 for none, 1 for one sided and 2 for two sided
+	 * @param truncLevel - truncation level in standard deviations
+	 * @return
+	 */
+	public static double getExceedProbability(double mean, double stdDev, double iml,
+			int truncType, double truncLevel) {
 
 		if (stdDev != 0) {
 			double stRndVar = (iml - mean) / stdDev;
 			// compute exceedance probability based on truncation type
-			if (sigmaTruncTypeParam == null ||
-					sigmaTruncTypeParam.getValue().equals(SigmaTruncTypeParam.SIGMA_TRUNC_TYPE_NONE)) {
+			if (truncType == 0)
 				return GaussianDistCalc.getExceedProb(stRndVar);
-			} else {
-				double numSig = ( (Double) ( (Parameter) sigmaTruncLevelParam).
-						getValue()).doubleValue();
-				if (sigmaTruncTypeParam.getValue().equals(SigmaTruncTypeParam.SIGMA_TRUNC_TYPE_1SIDED)) {
-					return GaussianDistCalc.getExceedProb(stRndVar, 1, numSig);
-				}
-				else {
-					return GaussianDistCalc.getExceedProb(stRndVar, 2, numSig);
-				}
-			}
+			return GaussianDistCalc.getExceedProb(stRndVar, truncType, truncLevel);
 		}
 		else {
 			if (iml > mean) {
@@ -561,6 +571,30 @@ extends AbstractIMR implements ScalarIMR {
 		}
 	}
 
+	/**
+	 * This returns the truncation type as used by
+	 * {@link GaussianDistCalc#getExceedProb(double, int, double)}
+	 * @param sigmaTruncTypeParam - the truncation type, or null for none
+	 * @return 0 for none, 1 for one sided and 2 for two sided
+	 */
+	public static int getTruncType(SigmaTruncTypeParam sigmaTruncTypeParam) {
+		if (sigmaTruncTypeParam == null ||
+				sigmaTruncTypeParam.getValue().equals(SigmaTruncTypeParam.SIGMA_TRUNC_TYPE_NONE))
+			return 0;
+		if (sigmaTruncTypeParam.getValue().equals(SigmaTruncTypeParam.SIGMA_TRUNC_TYPE_1SIDED))
+			return 1;
+		return 2;
+	}
+
+	/**
+	 * This returns the truncation level, in standard deviations
+	 * @param sigmaTruncLevelParam
+	 * @return
+	 */
+	public static double getTruncLevel(SigmaTruncLevelParam sigmaTruncLevelParam) {
+		return sigmaTruncLevelParam.getValue();
+	}
+
 	/**
 	 *  This fills in the exceedance probability for multiple intensityMeasure
 	 *  levels (often called a "hazard curve"); the levels are obtained from
@@ -578,10 +612,38 @@ extends AbstractIMR implements ScalarIMR {
 		double stdDev = getStdDev();
 		double mean = getMean();
 
-		for (int i=0; i<intensityMeasureLevels.size(); i++) {
-			double x = intensityMeasureLevels.getX(i);
-			double y = getExceedProbability(mean, stdDev, x);
-			intensityMeasureLevels.set(i, y);
+		return getExceedProbabilities(mean, stdDev, intensityMeasureLevels);
+	}
+
+	/**
+	 * This fills in the exceedance probabilities of the X values of the given function
+	 * for the given mean and standard deviation (and the current truncation settings),
+	 * computing them all with a single GaussianDistCalc.getExceedProbs() call.  This
+	 * works directly on the arrays of a LightFixedXFunc, other functions are copied.
+	 *
+	 * @param mean
+	 * @param stdDev
+	 * @param intensityMeasureLevels  The function to be filled in
+	 * @return                         The function filled in
+	 */
+	protected DiscretizedFunc getExceedProbabilities(double mean, double stdDev,
+			DiscretizedFunc intensityMeasureLevels) {
+
+		int truncType = getTruncType(sigmaTruncTypeParam);
+		double truncLevel = truncType == 0 ? 0 : getTruncLevel(sigmaTruncLevelParam);
+
+		int num = intensityMeasureLevels.size();
+		if (intensityMeasureLevels instanceof LightFixedXFunc) {
+			LightFixedXFunc func = (LightFixedXFunc)intensityMeasureLevels;
+			GaussianDistCalc.getExceedProbs(mean, stdDev, func.getXVals(), func.getYVals(),
+					num, truncType, truncLevel);
+		} else {
+			double[] vals = new double[num];
+			for (int i=0; i<num; i++)
+				vals[i] = intensityMeasureLevels.getX(i);
+			GaussianDistCalc.getExceedProbs(mean, stdDev, vals, vals, num, truncType, truncLevel);
+			for (int i=0; i<num; i++)
+				intensityMeasureLevels.set(i, vals[i]);
 		}
 
 		return intensityMeasureLevels;
@@ -0,0 +1,52 @@
+/*******************************************************************************
+ * Copyright 2009 OpenSHA.org in partnership with
+ * the Southern California Earthquake Center (SCEC, http://www.scec.org)
+ * at the University of Southern California and the UnitedStates Geological
+ * Survey (USGS; http://www.usgs.gov)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package org.opensha.sha.imr;
+
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.sha.earthquake.EqkRupture;
+
+
+/**
+ * <b>Title:</b> FastExceedProbIMR<br>
+ * <b>Description:</b> A ScalarIMR that can compute exceedance probabilities for a rupture
+ * directly from its primitive values, without going through setEqkRupture and the
+ * parameter change events that it causes. Hazard calculators use this for their
+ * rupture loops when the IMR supports it.
+ * <p>
+ * The results are the same as those of setEqkRupture(rupture) followed by
+ * getExceedProbabilities(intensityMeasureLevels), for the current site, intensity
+ * measure and other parameters. The difference is that the rupture is not set in the
+ * IMR, so its rupture and propagation effect parameters are left unchanged.
+ */
+
+public interface FastExceedProbIMR extends ScalarIMR {
+
+	/**
+	 * This fills in the y values of the given function with the exceedance probabilities
+	 * of its x values (natural log IMLs) for the given rupture at the current site.
+	 *
+	 * @param eqkRupture - rupture to compute the probabilities for
+	 * @param intensityMeasureLevels - function with log IMLs as x values
+	 * @return the same function, for convenience
+	 */
+	public DiscretizedFunc getExceedProbabilities(EqkRupture eqkRupture,
+			DiscretizedFunc intensityMeasureLevels);
+
+}
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright 2009 OpenSHA.org in partnership with
+ * the Southern California Earthquake Center (SCEC, http://www.scec.org)
+ * at the University of Southern California and the UnitedStates Geological
+ * Survey (USGS; http://www.usgs.gov)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package org.opensha.sha.imr;
+
+import org.opensha.commons.data.function.DiscretizedFunc;
+
+
+/**
+ * <b>Title:</b> MultiPeriodIMR<br>
+ * <b>Description:</b> A ScalarIMR that can evaluate any of its tabulated periods for the
+ * rupture and site currently set, without changing its intensity measure parameters. This
+ * lets calculators set a rupture once (including its propagation distances) and then
+ * evaluate several periods in a tight loop.
+ * <p>
+ * Period indices are specific to the implementation and must be obtained with
+ * {@link #getPeriodIndex(double)}. The mean, standard deviation and exceedance
+ * probabilities returned for an index are the same as those returned by the
+ * parameter based methods with the intensity measure set to that period (including
+ * the user max distance, std dev type and truncation settings).
+ */
+
+public interface MultiPeriodIMR extends ScalarIMR {
+
+	/**
+	 * Returns the index of the given period, where 0 is PGA.
+	 *
+	 * @param period - SA period in seconds, or 0 for PGA
+	 * @return index to use with the other methods of this interface
+	 * @throws IllegalArgumentException if the period is not tabulated
+	 */
+	public int getPeriodIndex(double period);
+
+	/**
+	 * @param periodIndex - index from {@link #getPeriodIndex(double)}
+	 * @return the mean for the current rupture and site at the given period
+	 */
+	public double getMean(int periodIndex);
+
+	/**
+	 * @param periodIndex - index from {@link #getPeriodIndex(double)}
+	 * @return the standard deviation for the current rupture and site at the given period
+	 */
+	public double getStdDev(int periodIndex);
+
+	/**
+	 * This fills in the y values of the given function with the exceedance probabilities
+	 * of its x values (natural log IMLs) at the given period.
+	 *
+	 * @param periodIndex - index from {@link #getPeriodIndex(double)}
+	 * @param intensityMeasureLevels - function with log IMLs as x values
+	 * @return the same function, for convenience
+	 */
+	public DiscretizedFunc getExceedProbabilities(int periodIndex,
+			DiscretizedFunc intensityMeasureLevels);
+
+}
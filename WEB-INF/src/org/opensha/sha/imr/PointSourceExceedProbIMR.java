@@ -0,0 +1,39 @@
+package org.opensha.sha.imr;
+
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.sha.earthquake.rupForecastImpl.PointEqkSource;
+import org.opensha.sha.faultSurface.PointSurface;
+
+
+/**
+ * <b>Title:</b> PointSourceExceedProbIMR<br>
+ * <b>Description:</b> A ScalarIMR that can compute exceedance probabilities for a rupture
+ * of a {@link PointEqkSource} from its magnitude, focal mechanism, depth and distances
+ * alone, without a rupture or surface object. Hazard calculators use this for point
+ * sources, computing the horizontal distance to the site once per source and only the
+ * point-source distance correction and depth terms for each rupture.
+ * <p>
+ * The results are the same as those of {@link FastExceedProbIMR} for a rupture with a
+ * {@link PointSurface} at the given distances, for the current site, intensity measure
+ * and other parameters. The rupture and propagation effect parameters are left unchanged.
+ */
+
+public interface PointSourceExceedProbIMR extends ScalarIMR {
+
+	/**
+	 * This fills in the y values of the given function with the exceedance probabilities
+	 * of its x values (natural log IMLs) for a point rupture at the current site.
+	 *
+	 * @param mag - magnitude
+	 * @param rake - rake in degrees
+	 * @param dip - dip in degrees
+	 * @param depth - depth of the point (and so of the top of the rupture)
+	 * @param distRup - rupture distance
+	 * @param distJB - Joyner-Boore distance, including any point-source distance correction
+	 * @param intensityMeasureLevels - function with log IMLs as x values
+	 * @return the same function, for convenience
+	 */
+	public DiscretizedFunc getExceedProbabilities(double mag, double rake, double dip,
+			double depth, double distRup, double distJB, DiscretizedFunc intensityMeasureLevels);
+
+}
@@ -0,0 +1,44 @@
+package org.opensha.sha.imr;
+
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.sha.earthquake.EqkRupture;
+import org.opensha.sha.faultSurface.cache.SiteDistanceTable;
+
+
+/**
+ * <b>Title:</b> PrecomputedDistancesIMR<br>
+ * <b>Description:</b> A ScalarIMR that can take the distances between a rupture and the
+ * current site from a {@link SiteDistanceTable} instead of measuring the rupture surface.
+ * Calculators that are given a table use this when the IMR supports it, so that the
+ * surfaces are only measured once per site.
+ * <p>
+ * The results are the same as those of the corresponding methods without distances, as
+ * long as the distances are those of the rupture surface at the current site location.
+ */
+
+public interface PrecomputedDistancesIMR extends ScalarIMR {
+
+	/**
+	 * This sets the rupture as {@link #setEqkRupture(EqkRupture)} does, but sets the
+	 * propagation effect parameters from the given distances.
+	 *
+	 * @param eqkRupture - rupture to set
+	 * @param distances - distances between the rupture surface and the current site
+	 */
+	public void setEqkRupture(EqkRupture eqkRupture, SiteDistanceTable.Distances distances);
+
+	/**
+	 * This fills in the y values of the given function with the exceedance probabilities
+	 * of its x values (natural log IMLs) for the given rupture at the current site, as
+	 * {@link FastExceedProbIMR#getExceedProbabilities(EqkRupture, DiscretizedFunc)} does,
+	 * using the given distances.
+	 *
+	 * @param eqkRupture - rupture to compute the probabilities for
+	 * @param distances - distances between the rupture surface and the current site
+	 * @param intensityMeasureLevels - function with log IMLs as x values
+	 * @return the same function, for convenience
+	 */
+	public DiscretizedFunc getExceedProbabilities(EqkRupture eqkRupture,
+			SiteDistanceTable.Distances distances, DiscretizedFunc intensityMeasureLevels);
+
+}
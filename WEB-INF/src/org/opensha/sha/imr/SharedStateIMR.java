@@ -0,0 +1,27 @@
+package org.opensha.sha.imr;
+
+import org.opensha.sha.util.IMRUtils;
+
+
+/**
+ * <b>Title:</b> SharedStateIMR<br>
+ * <b>Description:</b> A ScalarIMR with state that is not held in its parameters but
+ * can be shared between instances, such as precomputed tables. Clones made by
+ * {@link IMRUtils#cloneIMR(ScalarIMR)} are given the state of the original through
+ * {@link #copySharedState(ScalarIMR)}, so that they evaluate the same way.
+ * <p>
+ * Shared state must be read-only (or thread safe), since clones are used on other
+ * threads.
+ */
+
+public interface SharedStateIMR extends ScalarIMR {
+
+	/**
+	 * This sets the shared state of this IMR to that of the given one, which is of
+	 * the same class (the IMR this one was cloned from).
+	 *
+	 * @param imr - the IMR to share the state of
+	 */
+	public void copySharedState(ScalarIMR imr);
+
+}
@@ -0,0 +1,113 @@
+package org.opensha.sha.util;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.opensha.commons.param.Parameter;
+import org.opensha.commons.param.ParameterList;
+import org.opensha.commons.param.event.ParameterChangeWarningListener;
+import org.opensha.sha.earthquake.EqkRupture;
+import org.opensha.sha.faultSurface.cache.SiteDistanceTable;
+import org.opensha.sha.imr.PrecomputedDistancesIMR;
+import org.opensha.sha.imr.ScalarIMR;
+import org.opensha.sha.imr.SharedStateIMR;
+
+public class IMRUtils {
+
+	/**
+	 * This creates an independent copy of the given IMR so that it can be used on another
+	 * thread. A new instance of the same class is created through its
+	 * <code>(ParameterChangeWarningListener)</code> constructor, then the intensity measure
+	 * (including its independent parameters such as SA period), the other parameters and the
+	 * site are copied over. Rupture and propagation effect parameters are not copied as they
+	 * are set with each <code>setEqkRupture</code> call. A {@link SharedStateIMR} clone is
+	 * given the shared state of the original (e.g. precomputed tables), so both evaluate
+	 * alike. The user max
+	 * distance can't be read back from an IMR, so it must be set again on the clone.
+	 *
+	 * @param imr - Intensity Measure Relationship to copy
+	 * @return new IMR instance with the same settings
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public static ScalarIMR cloneIMR(ScalarIMR imr) {
+		ScalarIMR clone;
+		try {
+			clone = imr.getClass().getConstructor(ParameterChangeWarningListener.class)
+					.newInstance((ParameterChangeWarningListener)null);
+		} catch (Exception e) {
+			throw new IllegalArgumentException("Can't clone IMR "+imr.getName()
+					+": no (ParameterChangeWarningListener) constructor", e);
+		}
+		clone.setParamDefaults();
+
+		Parameter im = imr.getIntensityMeasure();
+		if (im != null) {
+			clone.setIntensityMeasure(im.getName());
+			copyValues(im.getIndependentParameterList(), clone);
+		}
+		copyValues(imr.getOtherParams(), clone);
+
+		if (imr.getSite() != null)
+			clone.setSite(imr.getSite());
+		if (clone instanceof SharedStateIMR)
+			((SharedStateIMR)clone).copySharedState(imr);
+		return clone;
+	}
+
+	/**
+	 * This clones every IMR in the given map with {@link #cloneIMR(ScalarIMR)}. An IMR
+	 * mapped to several TRTs is cloned once, so the returned map shares instances
+	 * in the same way as the original.
+	 *
+	 * @param imrMap - Mapping of IMR's to TRT's
+	 * @return new mapping to independent IMR copies
+	 */
+	public static HashMap<TectonicRegionType, ScalarIMR> cloneIMR_Map(
+			Map<TectonicRegionType, ScalarIMR> imrMap) {
+		Map<ScalarIMR, ScalarIMR> clones = new IdentityHashMap<ScalarIMR, ScalarIMR>();
+		HashMap<TectonicRegionType, ScalarIMR> cloneMap =
+			new HashMap<TectonicRegionType, ScalarIMR>();
+		for (Map.Entry<TectonicRegionType, ScalarIMR> entry : imrMap.entrySet()) {
+			ScalarIMR clone = clones.get(entry.getValue());
+			if (clone == null) {
+				clone = cloneIMR(entry.getValue());
+				clones.put(entry.getValue(), clone);
+			}
+			cloneMap.put(entry.getKey(), clone);
+		}
+		return cloneMap;
+	}
+
+	/**
+	 * This sets the rupture in the IMR, taking the distances to the current site from
+	 * the given table entry if the IMR is a {@link PrecomputedDistancesIMR}.
+	 *
+	 * @param imr - Intensity Measure Relationship to set the rupture in
+	 * @param rupture - the rupture
+	 * @param distances - distances of the rupture from the site of the IMR, or null to
+	 * measure them on the rupture surface
+	 */
+	public static void setEqkRupture(ScalarIMR imr, EqkRupture rupture,
+			SiteDistanceTable.Distances distances) {
+		if (distances != null && imr instanceof PrecomputedDistancesIMR)
+			((PrecomputedDistancesIMR)imr).setEqkRupture(rupture, distances);
+		else
+			imr.setEqkRupture(rupture);
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static void copyValues(ParameterList params, ScalarIMR dest) {
+		if (params == null)
+			return;
+		for (Parameter param : params) {
+			try {
+				dest.getParameter(param.getName()).setValue(param.getValue());
+			} catch (RuntimeException e) {
+				throw new IllegalStateException(
+						"Couldn't copy IMR parameter '"+param.getName()+"'", e);
+			}
+		}
+	}
+
+}
@@ -35,19 +35,18 @@ $(document).ready(function() {
         updatePage(true, false);
 
         // Retrieve data from servlet
-        ajaxRunning = $.ajax({
-            type: $(this).attr('method'),
-            url: $(this).attr('action'),
-            data: $(this).serialize()
-        })
+        ajaxRunning = runJob($(this).attr('action'), $(this).serialize())
 
             // Display response
             .done(function(data) {
 
                 // Update table with new data
-                var dataArray = data.hazFunction.points.list;
+                var dataArray = toPoints(data.hazFunction);
                 $('#response-data').text(JSON.stringify(dataArray));
                 refreshTable(dataArray);
+                if (data.approximate) {
+                    $('#result-interpolated').append("<p>Interpolated from precomputed curves (approximate).</p>");
+                }
                 drawChart(dataArray);
                 updatePage(false, false);
 
@@ -122,11 +121,7 @@ $(document).ready(function() {
         var strData = $('#nzhcc').serialize() + "&" + $(this).serialize();
 
         // Retrieve data from servlet
-        ajaxRunning = $.ajax({
-            type: $(this).attr('method'),
-            url: $(this).attr('action'),
-            data: strData
-        })
+        ajaxRunning = runJob($(this).attr('action'), strData)
 
             // Display response
             .done(function(data) {
@@ -165,6 +160,52 @@ $(document).ready(function() {
 
 });
 
+// Submit a calculation as a job, and poll the servlet until it is done.
+// Returns a promise for the servlet's response, with an abort() that cancels
+// the job on the server as well.
+function runJob(url, data) {
+
+    var deferred = $.Deferred();
+    var jobId, timer, xhr;
+
+    function poll(status) {
+        jobId = status.id;
+        if (status.state == "DONE") {
+            deferred.resolve(status.result);
+        } else if (status.state == "FAILED" || status.state == "CANCELLED") {
+            deferred.reject(status);
+        } else {
+            timer = setTimeout(function() {
+                xhr = $.ajax({type: "GET", url: url, data: {job: jobId}})
+                    .done(poll)
+                    .fail(function() {deferred.reject()});
+            }, 500);
+        }
+    }
+
+    xhr = $.ajax({type: "POST", url: url, data: data})
+        .done(poll)
+        .fail(function() {deferred.reject()});
+
+    var promise = deferred.promise();
+    promise.abort = function() {
+        clearTimeout(timer);
+        if (xhr) {xhr.abort();}
+        if (jobId) {$.ajax({type: "DELETE", url: url + "?" + $.param({job: jobId})});}
+        deferred.reject();
+    };
+    return promise;
+}
+
+// Points {x, y} of a curve sent as arrays of its x and y values
+function toPoints(func) {
+    var points = [];
+    for (var i = 0; i < func.x.length; i++) {
+        points.push({x: func.x[i], y: func.y[i]});
+    }
+    return points;
+}
+
 function refreshTable(array) {
 
     // Prepare variable and fields for interpolation